@@ -0,0 +1,68 @@
+package com.seltzer.split.benchmark;
+
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.GroupExpense;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.TransactionRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import com.seltzer.split.domain.service.GroupExpenseSplitter;
+import com.seltzer.split.domain.service.TransactionHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Records a bill shared equally by <code>participants</code> users, once as a {@link GroupExpense} and once the way clients had
+ * to before, as one {@link TransactionHandler#addTransaction(Transaction)} per participant, on the in-memory repositories.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class GroupExpenseBenchmark {
+    @Param({"12", "50"})
+    int participants;
+
+    TransactionRepository transactionRepository;
+    TransactionHandler transactionHandler;
+    GroupExpense expense;
+    List<Transaction> transactions;
+
+    @Setup
+    public void setUp() {
+        transactionRepository = new InMemoryTransactionRepository();
+        transactionHandler = new TransactionHandler(transactionRepository, new InMemoryFinalStateRepository());
+        expense = new GroupExpense()
+                .withPaidBy("user-0")
+                .withMoney(new Payment.Money(123_456, Currency.USD))
+                .withSplit(GroupExpense.Split.EQUAL)
+                .withShares(IntStream.range(0, participants)
+                        .mapToObj(i -> new GroupExpense.Share("user-" + i))
+                        .collect(Collectors.toList()));
+        transactions = GroupExpenseSplitter.split(expense);
+    }
+
+    @Setup(Level.Iteration)
+    public void dropTransactions() {
+        transactionRepository.deleteAll();
+    }
+
+    @Benchmark
+    public void groupExpense() {
+        transactionHandler.addGroupExpense(expense);
+    }
+
+    @Benchmark
+    public void perParticipant() {
+        for (final var transaction : transactions) {
+            transactionHandler.addTransaction(transaction);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.seltzer.split.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import com.seltzer.split.domain.service.LedgerImporter;
+import com.seltzer.split.domain.service.TransactionHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports a CSV export of <code>rows</code> payments between 1000 users through {@link LedgerImporter} on <code>lanes</code>
+ * lanes, against replaying the same payments with one {@link TransactionHandler#addTransaction(Transaction)} each, on fresh
+ * in-memory repositories every time. Scores are in rows per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class LedgerImportBenchmark {
+    private static final int ROWS = 100_000;
+    private static final int USERS = 1_000;
+
+    @Param({"1", "8"})
+    int lanes;
+
+    byte[] csv;
+    List<Transaction> transactions;
+    Path checkpointDirectory;
+    TransactionHandler transactionHandler;
+    LedgerImporter importer;
+    int imports;
+
+    @Setup
+    public void setUp() throws IOException {
+        final var random = new Random(42);
+        final var text = new StringBuilder("userId,direction,participantId,amountMinor,currency,createdAt\n");
+        transactions = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            final var userId = "user-" + random.nextInt(USERS);
+            final var participantId = "user-" + (USERS + random.nextInt(USERS));
+            final var amount = 1 + random.nextInt(10_000);
+            text.append(userId).append(",paidTo,").append(participantId).append(',').append(amount).append(",USD,")
+                    .append(1_600_000_000_000L + i).append('\n');
+            transactions.add(new Transaction()
+                    .withUserId(userId)
+                    .withPaidTo(new Payment().withUserId(participantId).withMoney(new Payment.Money(amount, Currency.USD))));
+        }
+        csv = text.toString().getBytes(StandardCharsets.UTF_8);
+        checkpointDirectory = Files.createTempDirectory("split-import");
+    }
+
+    @Setup(Level.Invocation)
+    public void freshRepositories() {
+        transactionHandler = new TransactionHandler(new InMemoryTransactionRepository(), new InMemoryFinalStateRepository());
+        importer = new LedgerImporter(transactionHandler, new ObjectMapper(), checkpointDirectory, 1_000, lanes, 4);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public Object importCsv() throws IOException {
+        return importer.importLedger("benchmark-" + imports++, new ByteArrayInputStream(csv), LedgerImporter.Format.CSV);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void perTransaction() {
+        for (final var transaction : transactions) {
+            transactionHandler.addTransaction(transaction);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.seltzer.split.benchmark;
+
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long the local ledger takes to start up over a log of <code>records</code> transactions spread over 10k pairs,
+ * whose <code>FinalState</code>s were snapshotted when the log was written. Pass <code>-p records=10000000</code> for the
+ * 10M-record case, which needs about 1.5 GB of disk.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class LocalLedgerRecoveryBenchmark {
+    private static final int PAIRS = 10_000;
+
+    @Param({"1000000"})
+    int records;
+
+    Path directory;
+    LocalLedgerStore localLedger;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("split-ledger");
+        final var store = new LocalLedgerStore(directory);
+        final var createdAt = System.currentTimeMillis();
+        for (int i = 0; i < records; i++) {
+            final var pair = i % PAIRS;
+            store.transactionRepository.save(new Transaction()
+                    .withId(UUID.randomUUID().toString())
+                    .withUserId("user-" + pair)
+                    .withCreatedAt(createdAt + i)
+                    .withPaidTo(new Payment()
+                            .withUserId("participant-" + pair)
+                            .withMoney(new Payment.Money(100, Currency.USD))));
+        }
+        for (int pair = 0; pair < PAIRS; pair++) {
+            store.finalStateRepository.save(new FinalState().withUserId("user-" + pair).withParticipantId("participant-" + pair)
+                    .withBalance((long) records / PAIRS * 100).withCurrency(Currency.USD));
+        }
+        store.close();
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() throws IOException {
+        localLedger.close();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        LocalLedgerStore.delete(directory);
+    }
+
+    @Benchmark
+    public long recover() {
+        localLedger = new LocalLedgerStore(directory);
+        return localLedger.transactionRepository.count();
+    }
+}
@@ -0,0 +1,51 @@
+package com.seltzer.split.benchmark;
+
+import com.seltzer.split.domain.repository.local.LocalLedgerFinalStateRepository;
+import com.seltzer.split.domain.repository.local.LocalLedgerLog;
+import com.seltzer.split.domain.repository.local.LocalLedgerSnapshotter;
+import com.seltzer.split.domain.repository.local.LocalLedgerTransactionRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+
+/**
+ * The beans of the local-ledger profile over a directory, wired the way Spring wires them.
+ */
+final class LocalLedgerStore {
+    final Path directory;
+    final LocalLedgerLog ledgerLog;
+    final LocalLedgerTransactionRepository transactionRepository;
+    final LocalLedgerFinalStateRepository finalStateRepository;
+    final LocalLedgerSnapshotter snapshotter;
+
+    /**
+     * Opens the store and recovers whatever the directory holds.
+     */
+    LocalLedgerStore(final Path directory) {
+        this.directory = directory;
+        ledgerLog = new LocalLedgerLog(directory, 64 << 20, false);
+        transactionRepository = new LocalLedgerTransactionRepository(ledgerLog);
+        finalStateRepository = new LocalLedgerFinalStateRepository(ledgerLog);
+        snapshotter = new LocalLedgerSnapshotter(ledgerLog, transactionRepository, finalStateRepository, directory, Duration.ofMinutes(1));
+        snapshotter.start();
+    }
+
+    /**
+     * Takes a final snapshot and closes the log.
+     */
+    void close() throws IOException {
+        snapshotter.stop();
+        ledgerLog.close();
+    }
+
+    static void delete(final Path directory) throws IOException {
+        try (var paths = Files.walk(directory)) {
+            for (final var path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.seltzer.split.benchmark;
+
+import com.seltzer.split.domain.service.SettlementPlanner;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plans the settlement of synthetic groups whose members' nets are drawn uniformly from [-100.00, 100.00).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SettlementPlannerBenchmark {
+    @Param({"100", "1000", "10000", "100000"})
+    int members;
+
+    long[] net;
+
+    @Setup
+    public void setUp() {
+        final var random = new Random(42);
+        net = new long[members];
+        for (int i = 0; i < members - 1; i++) {
+            net[i] = random.nextInt(20_000) - 10_000;
+            net[members - 1] -= net[i];
+        }
+    }
+
+    @Benchmark
+    public SettlementPlanner.CashFlows simplify() {
+        return SettlementPlanner.simplify(net);
+    }
+}
@@ -0,0 +1,153 @@
+package com.seltzer.split.benchmark;
+
+import com.seltzer.split.SplitApplication;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Drives the REST endpoints of an in-process server on the <code>in-memory</code> store with a closed loop of clients, at
+ * concurrencies from 1 to 1024, and prints the throughput and latencies seen by the clients next to the
+ * <code>http.server.requests</code> histograms of the server and the handler and repository timers behind them. Nine requests in ten add a transaction between two of
+ * 10k users, the tenth reads the balances of one of them. Run with
+ * <pre>
+ * java -cp split-benchmarks/target/benchmarks.jar com.seltzer.split.benchmark.SplitLoadTest [seconds per level] [concurrency...]
+ * </pre>
+ */
+public class SplitLoadTest {
+    private static final int USERS = 10_000;
+    private static final int[] DEFAULT_CONCURRENCY = {1, 16, 64, 256, 1024};
+
+    public static void main(final String[] args) throws Exception {
+        final var seconds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        final var concurrency = args.length > 1 ? parse(args, 1) : DEFAULT_CONCURRENCY;
+
+        final var application = new SpringApplication(SplitApplication.class);
+        application.setAdditionalProfiles("in-memory");
+        try (var context = application.run("--server.port=0",
+                "--server.tomcat.max-connections=" + 2 * Math.max(1024, max(concurrency)))) {
+            final var base = URI.create("http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort());
+            final var client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+            run(client, base, 16, seconds); // warm-up
+            System.out.printf("%11s %10s %10s %10s %10s %10s%n", "concurrency", "requests/s", "p50 ms", "p99 ms", "p99.9 ms", "errors");
+            for (final var clients : concurrency) {
+                final var result = run(client, base, clients, seconds);
+                final var latencies = result.latencies.takeSnapshot();
+                System.out.printf("%11d %10.0f %10.2f %10.2f %10.2f %10d%n", clients,
+                        result.latencies.count() / (double) seconds,
+                        latencies.percentileValues()[0].value(TimeUnit.MILLISECONDS),
+                        latencies.percentileValues()[1].value(TimeUnit.MILLISECONDS),
+                        latencies.percentileValues()[2].value(TimeUnit.MILLISECONDS),
+                        result.errors.get());
+            }
+
+            final var meterRegistry = context.getBean(MeterRegistry.class);
+            System.out.println();
+            System.out.println("http.server.requests over the whole run:");
+            meterRegistry.find("http.server.requests").timers().forEach(timer -> {
+                final var snapshot = timer.takeSnapshot();
+                System.out.printf("  %-6s %-36s %-4s count=%d mean=%.2fms max=%.2fms p99=%.2fms%n",
+                        timer.getId().getTag("method"), timer.getId().getTag("uri"), timer.getId().getTag("status"),
+                        timer.count(), timer.mean(TimeUnit.MILLISECONDS), timer.max(TimeUnit.MILLISECONDS),
+                        snapshot.percentileValues().length > 1 ? snapshot.percentileValues()[1].value(TimeUnit.MILLISECONDS) : Double.NaN);
+            });
+            System.out.println("split.handler and split.repository over the whole run:");
+            for (final var name : new String[]{"split.handler", "split.repository"}) {
+                meterRegistry.find(name).timers().forEach(timer -> System.out.printf("  %-60s count=%d mean=%.3fms max=%.2fms%n",
+                        timer.getId().getTags().stream().map(Tag::getValue).collect(Collectors.joining(" ")),
+                        timer.count(), timer.mean(TimeUnit.MILLISECONDS), timer.max(TimeUnit.MILLISECONDS)));
+            }
+        }
+    }
+
+    private static Result run(final HttpClient client, final URI base, final int clients, final int seconds) throws Exception {
+        final var result = new Result();
+        final var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final var loops = new CompletableFuture<?>[clients];
+        for (int i = 0; i < clients; i++) {
+            loops[i] = loop(client, base, result, deadline);
+        }
+        CompletableFuture.allOf(loops).get(seconds + 60L, TimeUnit.SECONDS);
+        return result;
+    }
+
+    /**
+     * @return A future completed once the client has sent its last request before the deadline.
+     */
+    private static CompletableFuture<Void> loop(final HttpClient client, final URI base, final Result result, final long deadline) {
+        if (System.nanoTime() >= deadline) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final var start = System.nanoTime();
+        return client.sendAsync(nextRequest(base), HttpResponse.BodyHandlers.discarding())
+                .handle((response, e) -> {
+                    result.latencies.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                    if (e != null || response.statusCode() >= 400) {
+                        result.errors.incrementAndGet();
+                    }
+                    return null;
+                })
+                .thenCompose(done -> loop(client, base, result, deadline));
+    }
+
+    private static HttpRequest nextRequest(final URI base) {
+        final var random = ThreadLocalRandom.current();
+        final var userId = "user-" + random.nextInt(USERS);
+        if (random.nextInt(10) == 0) {
+            return HttpRequest.newBuilder(base.resolve("/users/" + userId + "/balances"))
+                    .header("Accept", "application/json")
+                    .timeout(Duration.ofSeconds(30))
+                    .GET()
+                    .build();
+        }
+        var participantId = "user-" + random.nextInt(USERS);
+        if (participantId.equals(userId)) {
+            participantId = "user-" + (USERS + 1);
+        }
+        final var body = "{\"userId\":\"" + userId + "\",\"paidTo\":{\"userId\":\"" + participantId
+                + "\",\"money\":{\"amountMinor\":" + (1 + random.nextInt(10_000)) + ",\"currency\":\"USD\"}}}";
+        return HttpRequest.newBuilder(base.resolve("/transactions"))
+                .header("Content-Type", "application/json")
+                .timeout(Duration.ofSeconds(30))
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    private static int[] parse(final String[] args, final int from) {
+        final var values = new int[args.length - from];
+        for (int i = from; i < args.length; i++) {
+            values[i - from] = Integer.parseInt(args[i]);
+        }
+        return values;
+    }
+
+    private static int max(final int[] values) {
+        var max = 0;
+        for (final var value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    private static final class Result {
+        final Timer latencies = Timer.builder("client.requests")
+                .publishPercentiles(0.5, 0.99, 0.999)
+                .register(new SimpleMeterRegistry());
+        final AtomicLong errors = new AtomicLong();
+    }
+}
@@ -0,0 +1,113 @@
+package com.seltzer.split.benchmark;
+
+import com.seltzer.split.SplitApplication;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long the application takes from the launch of its JVM to the first request served: the balances of a user,
+ * read as soon as the port accepts connections, and the first <code>200</code> from <code>/actuator/health/readiness</code>,
+ * which with the <code>fast-startup</code> profile waits for the background warm-up. Every run starts a new JVM on the
+ * <code>in-memory</code> store, once per configuration, and the median of the runs is printed. Run with
+ * <pre>
+ * java -cp split-benchmarks/target/benchmarks.jar com.seltzer.split.benchmark.StartupBenchmark [runs] [JVM option...]
+ * </pre>
+ * where the JVM options are added to every run, e.g. <code>-XX:SharedArchiveFile=...</code>. An archive dumped for the jar
+ * built by <code>mvn -Pcds package</code> doesn't serve this one, as its class path differs.
+ */
+public class StartupBenchmark {
+    private static final String[][] CONFIGURATIONS = {{"in-memory"}, {"in-memory", "fast-startup"}};
+    private static final long TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(3);
+
+    public static void main(final String[] args) throws Exception {
+        final var runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        final var jvmOptions = Arrays.asList(args).subList(Math.min(1, args.length), args.length);
+        final var client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+
+        System.out.printf("%-24s %22s %22s%n", "profiles", "first request ms", "ready ms");
+        for (final var profiles : CONFIGURATIONS) {
+            final var firstRequest = new long[runs];
+            final var ready = new long[runs];
+            for (int i = 0; i < runs; i++) {
+                final var result = run(client, jvmOptions, String.join(",", profiles));
+                firstRequest[i] = result[0];
+                ready[i] = result[1];
+            }
+            System.out.printf("%-24s %22d %22d%n", String.join(",", profiles), median(firstRequest), median(ready));
+        }
+    }
+
+    /**
+     * @return The milliseconds from the launch to the first response with the balances, and to the first ready health check.
+     */
+    private static long[] run(final HttpClient client, final List<String> jvmOptions, final String profiles) throws Exception {
+        final var port = freePort();
+        final var command = new ArrayList<String>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(jvmOptions);
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), SplitApplication.class.getName(),
+                "--spring.profiles.active=" + profiles, "--server.port=" + port, "--management.endpoint.health.probes.enabled=true"));
+        final var base = URI.create("http://localhost:" + port);
+
+        final var start = System.nanoTime();
+        final var process = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        try {
+            final var firstRequest = await(client, base.resolve("/users/user-1/balances"), start, process) - start;
+            final var ready = await(client, base.resolve("/actuator/health/readiness"), start, process) - start;
+            return new long[]{TimeUnit.NANOSECONDS.toMillis(firstRequest), TimeUnit.NANOSECONDS.toMillis(ready)};
+        } finally {
+            process.destroy();
+            if (!process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * @return The time of the first <code>200</code> from the given URI, polled every millisecond.
+     */
+    private static long await(final HttpClient client, final URI uri, final long start, final Process process) throws Exception {
+        final var request = HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(30)).GET().build();
+        while (System.nanoTime() - start < TIMEOUT_NANOS) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("The application exited with " + process.exitValue());
+            }
+            try {
+                if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                    return System.nanoTime();
+                }
+            } catch (ConnectException e) {
+                // not listening yet
+            }
+            Thread.sleep(1);
+        }
+        throw new IllegalStateException("No 200 from " + uri + " within " + TimeUnit.NANOSECONDS.toSeconds(TIMEOUT_NANOS) + "s");
+    }
+
+    private static int freePort() throws IOException {
+        try (var socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static long median(final long[] values) {
+        final var sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
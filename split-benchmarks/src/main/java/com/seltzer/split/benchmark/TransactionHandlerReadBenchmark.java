@@ -0,0 +1,64 @@
+package com.seltzer.split.benchmark;
+
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.repository.FinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import com.seltzer.split.domain.service.ConflictRetryPolicy;
+import com.seltzer.split.domain.service.FinalStateCache;
+import com.seltzer.split.domain.service.FinalStateShards;
+import com.seltzer.split.domain.service.FxRateCache;
+import com.seltzer.split.domain.service.FxRates;
+import com.seltzer.split.domain.service.LedgerLog;
+import com.seltzer.split.domain.service.TimeOrderedTransactionIdGenerator;
+import com.seltzer.split.domain.service.TransactionHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the balances of a user whose partition holds <code>docs</code> <code>FinalState</code>s, half of them owed to the user and
+ * half owed by the user. With <code>cached=false</code> the cache holds nothing, so every call loads the partition from the
+ * repository.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransactionHandlerReadBenchmark {
+    @Param({"10", "1000", "100000"})
+    int docs;
+
+    @Param({"true", "false"})
+    boolean cached;
+
+    TransactionHandler transactionHandler;
+
+    @Setup
+    public void setUp() {
+        final FinalStateRepository finalStateRepository = new InMemoryFinalStateRepository();
+        final var finalStateCache = new FinalStateCache(FinalStateShards.disabled(finalStateRepository), cached ? 1_000_000 : 0, Duration.ofHours(1));
+        transactionHandler = new TransactionHandler(new InMemoryTransactionRepository(), finalStateRepository,
+                ConflictRetryPolicy.defaults(), finalStateCache, LedgerLog.disabled(), new TimeOrderedTransactionIdGenerator(),
+                FxRateCache.of(FxRates.EMPTY));
+        for (int i = 0; i < docs; i++) {
+            finalStateRepository.save(new FinalState().withUserId("user").withParticipantId("participant-" + i)
+                    .withBalance(i % 2 == 0 ? i * 100L + 1 : -i * 100L).withCurrency(Currency.USD));
+        }
+    }
+
+    @Benchmark
+    public List<FinalState> getAmountsToBeReceived() {
+        return transactionHandler.getAmountsToBeReceived("user");
+    }
+
+    @Benchmark
+    public List<FinalState> getAmountsToBePaid() {
+        return transactionHandler.getAmountsToBePaid("user");
+    }
+}
@@ -0,0 +1,116 @@
+package com.seltzer.split.benchmark;
+
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.FinalStateRepository;
+import com.seltzer.split.domain.repository.TransactionRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import com.seltzer.split.domain.service.TransactionHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records single transactions through each branch of {@link TransactionHandler#addTransaction(Transaction)} for a user whose
+ * partition already holds <code>docs</code> <code>FinalState</code>s, rotating over the counterparties, against either the
+ * in-memory or the local-ledger repositories. The transactions recorded in memory are dropped before every iteration to keep the
+ * heap flat; the local ledger keeps them in its log, which is written to a temporary directory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Benchmark)
+public class TransactionHandlerWriteBenchmark {
+    @Param({"10", "1000", "100000"})
+    int docs;
+
+    @Param({"in-memory", "local-ledger"})
+    String store;
+
+    LocalLedgerStore localLedger;
+    TransactionRepository transactionRepository;
+    TransactionHandler transactionHandler;
+    Transaction[] paidTo;
+    Transaction[] receivedFrom;
+    Transaction[] settlement;
+    int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        final FinalStateRepository finalStateRepository;
+        if (store.equals("local-ledger")) {
+            localLedger = new LocalLedgerStore(Files.createTempDirectory("split-ledger"));
+            finalStateRepository = localLedger.finalStateRepository;
+            transactionRepository = localLedger.transactionRepository;
+        } else {
+            finalStateRepository = new InMemoryFinalStateRepository();
+            transactionRepository = new InMemoryTransactionRepository();
+        }
+        transactionHandler = new TransactionHandler(transactionRepository, finalStateRepository);
+
+        paidTo = new Transaction[docs];
+        receivedFrom = new Transaction[docs];
+        settlement = new Transaction[docs];
+        for (int i = 0; i < docs; i++) {
+            final var participantId = "participant-" + i;
+            finalStateRepository.save(new FinalState().withUserId("user").withParticipantId(participantId).withBalance(i * 100L)
+                    .withCurrency(Currency.USD));
+            finalStateRepository.save(new FinalState().withUserId(participantId).withParticipantId("user").withBalance(-i * 100L)
+                    .withCurrency(Currency.USD));
+            paidTo[i] = new Transaction().withUserId("user").withPaidTo(payment(participantId, false));
+            receivedFrom[i] = new Transaction().withUserId("user").withReceivedFrom(payment(participantId, false));
+            settlement[i] = new Transaction().withUserId("user").withPaidTo(payment(participantId, true));
+        }
+        transactionHandler.getAmountsToBeReceived("user"); // warms the cache the way a live instance would have.
+    }
+
+    private static Payment payment(final String participantId, final boolean settlement) {
+        return new Payment()
+                .withUserId(participantId)
+                .withSettlement(settlement)
+                .withMoney(new Payment.Money(1_250, Currency.USD));
+    }
+
+    @Setup(Level.Iteration)
+    public void dropTransactions() {
+        if (localLedger == null) {
+            transactionRepository.deleteAll();
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (localLedger != null) {
+            localLedger.close();
+            LocalLedgerStore.delete(localLedger.directory);
+        }
+    }
+
+    private int next() {
+        final var index = next;
+        next = index + 1 == docs ? 0 : index + 1;
+        return index;
+    }
+
+    @Benchmark
+    public void paidTo() {
+        transactionHandler.addTransaction(paidTo[next()]);
+    }
+
+    @Benchmark
+    public void receivedFrom() {
+        transactionHandler.addTransaction(receivedFrom[next()]);
+    }
+
+    @Benchmark
+    public void settlement() {
+        transactionHandler.addTransaction(settlement[next()]);
+    }
+}
@@ -0,0 +1,58 @@
+package com.seltzer.split.benchmark;
+
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.service.CanonicalHashTransactionIdGenerator;
+import com.seltzer.split.domain.service.Sha256TransactionIdGenerator;
+import com.seltzer.split.domain.service.TimeOrderedTransactionIdGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the transaction ID strategies on a typical record. Run with <code>-prof gc</code> to compare allocation per ID.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransactionIdGeneratorBenchmark {
+    private final Sha256TransactionIdGenerator sha256 = new Sha256TransactionIdGenerator();
+    private final TimeOrderedTransactionIdGenerator timeOrdered = new TimeOrderedTransactionIdGenerator();
+    private final CanonicalHashTransactionIdGenerator canonicalHash = new CanonicalHashTransactionIdGenerator();
+
+    private Transaction record;
+
+    @Setup
+    public void setUp() {
+        record = new Transaction()
+                .withUserId("8c0d7f0e-4b8e-4a51-9d36-3f1c2b7a9e10")
+                .withCreatedAt(System.currentTimeMillis())
+                .withReceivedFrom(new Payment()
+                        .withUserId("1f6b2d4c-0a3e-4e7b-8c59-6d2a9b1e7f43")
+                        .withMoney(new Payment.Money(12_345, Currency.USD)));
+    }
+
+    @Benchmark
+    public String sha256OverToString() {
+        return sha256.generate(record, 7);
+    }
+
+    @Benchmark
+    public String timeOrdered() {
+        return timeOrdered.generate(record, 7);
+    }
+
+    @Benchmark
+    public String canonicalHash() {
+        return canonicalHash.generate(record, 7);
+    }
+
+    @Benchmark
+    public String idempotent() {
+        return canonicalHash.generateIdempotent("expense-42", record);
+    }
+}
@@ -0,0 +1,96 @@
+package com.seltzer.split.benchmark;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import com.seltzer.split.domain.service.TransactionHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records single transactions through each branch of {@link TransactionHandler#addTransaction(Transaction)} against stores
+ * that keep nothing: every read returns the same <code>FinalState</code>s and every write is dropped, so what is left is the
+ * handler's own bookkeeping. Run with <code>-prof gc</code> and read <code>gc.alloc.rate.norm</code>, the bytes allocated per
+ * transaction recorded.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+@State(Scope.Benchmark)
+public class WritePathAllocationBenchmark {
+    TransactionHandler transactionHandler;
+    Transaction paidTo;
+    Transaction receivedFrom;
+    Transaction settlement;
+
+    @Setup
+    public void setUp() {
+        final var finalStates = new HashMap<String, FinalState>();
+        finalStates.put("participant", new FinalState().withUserId("user").withParticipantId("participant")
+                .withBalance(10_000).withCurrency(Currency.USD).with_etag("1"));
+        finalStates.put("user", new FinalState().withUserId("participant").withParticipantId("user")
+                .withBalance(-10_000).withCurrency(Currency.USD).with_etag("1"));
+        transactionHandler = new TransactionHandler(new DroppingTransactionRepository(), new FixedFinalStateRepository(finalStates));
+
+        paidTo = new Transaction().withUserId("user").withPaidTo(payment(false));
+        receivedFrom = new Transaction().withUserId("user").withReceivedFrom(payment(false));
+        settlement = new Transaction().withUserId("user").withPaidTo(payment(true));
+    }
+
+    private static Payment payment(final boolean settlement) {
+        return new Payment()
+                .withUserId("participant")
+                .withSettlement(settlement)
+                .withMoney(new Payment.Money(1_250, Currency.USD));
+    }
+
+    @Benchmark
+    public void paidTo() {
+        transactionHandler.addTransaction(paidTo);
+    }
+
+    @Benchmark
+    public void receivedFrom() {
+        transactionHandler.addTransaction(receivedFrom);
+    }
+
+    @Benchmark
+    public void settlement() {
+        transactionHandler.addTransaction(settlement);
+    }
+
+    static final class DroppingTransactionRepository extends InMemoryTransactionRepository {
+        @Override
+        public <S extends Transaction> Iterable<S> saveAll(final Iterable<S> transactions) {
+            return transactions;
+        }
+    }
+
+    static final class FixedFinalStateRepository extends InMemoryFinalStateRepository {
+        private final Map<String, FinalState> finalStates;
+
+        FixedFinalStateRepository(final Map<String, FinalState> finalStates) {
+            this.finalStates = finalStates;
+        }
+
+        @Override
+        public Optional<FinalState> findById(final String participantId, final PartitionKey partitionKey) {
+            return Optional.ofNullable(finalStates.get(participantId)); // the two sides of the pair have different IDs.
+        }
+
+        @Override
+        public <S extends FinalState> S save(final S finalState) {
+            return finalState;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.seltzer.split.domain.model;
+
+import com.azure.spring.data.cosmos.core.mapping.Container;
+import com.azure.spring.data.cosmos.core.mapping.PartitionKey;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * What a user paid to, received from and settled with one participant during one UTC day or month, added up from the
+ * transaction records the user owns. Kept up to date by the writers, so that a report over a period reads one document per
+ * participant and bucket however many transactions the period holds.
+ */
+@With
+@AllArgsConstructor
+@NoArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+@ToString
+@Container(containerName = "activity-rollup")
+@Getter
+public class ActivityRollup {
+
+    @PartitionKey
+    String userId;
+    @Id
+    String id; // see getId(Granularity, String, String), which orders a partition by granularity and then bucket
+    String participantId;
+    Granularity granularity;
+    String bucket; // 2024-03-15 for a day, 2024-03 for a month
+    @JsonProperty("paidMinor")
+    Map<Currency, Long> paid; // per currency, in minor units, zero totals left out
+    @JsonProperty("receivedMinor")
+    Map<Currency, Long> received;
+    @JsonProperty("settledMinor")
+    Map<Currency, Long> settled; // balances cleared by settlements, either way
+    long transactions;
+    @Version
+    String _etag;
+
+    public enum Granularity {
+        DAY, MONTH;
+
+        /**
+         * @return The bucket the given time falls into.
+         */
+        public String bucketOf(final long epochMillis) {
+            final var date = Instant.ofEpochMilli(epochMillis).atOffset(ZoneOffset.UTC).toLocalDate();
+            return this == DAY ? date.toString() : YearMonth.from(date).toString();
+        }
+
+        /**
+         * @return The time the given bucket starts at, in epoch millis.
+         * @throws IllegalArgumentException If the bucket isn't a <code>yyyy-MM-dd</code> day or a <code>yyyy-MM</code> month.
+         */
+        public long startOf(@NonNull final String bucket) {
+            return toDate(bucket).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        }
+
+        /**
+         * @return The time the bucket after the given one starts at, in epoch millis.
+         */
+        public long endOf(@NonNull final String bucket) {
+            final var start = toDate(bucket);
+            return (this == DAY ? start.plusDays(1) : start.plusMonths(1)).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        }
+
+        /**
+         * @return The number of buckets from the first to the last, both included, or 0 if the last is before the first.
+         */
+        public long count(@NonNull final String first, @NonNull final String last) {
+            final var from = toDate(first);
+            final var to = toDate(last);
+            final var between = this == DAY ? ChronoUnit.DAYS.between(from, to) : ChronoUnit.MONTHS.between(from, to);
+            return Math.max(between + 1, 0);
+        }
+
+        private LocalDate toDate(final String bucket) {
+            try {
+                return this == DAY ? LocalDate.parse(bucket) : YearMonth.parse(bucket).atDay(1);
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException(String.format("%s is not a %s, expected %s", bucket, name().toLowerCase(),
+                        this == DAY ? "yyyy-MM-dd" : "yyyy-MM"), e);
+            }
+        }
+    }
+
+    /**
+     * @return The ID of a user's rollup of the given participant and bucket.
+     * @apiNote <code>participantId</code> goes last, so that IDs sort by bucket whatever characters it holds.
+     */
+    public static String getId(@NonNull final Granularity granularity, @NonNull final String bucket, @NonNull final String participantId) {
+        return granularity + ":" + bucket + ":" + participantId;
+    }
+
+    /**
+     * @return An empty rollup of the given user's activity with the participant in the bucket.
+     */
+    public static ActivityRollup empty(@NonNull final String userId, @NonNull final String participantId,
+                                       @NonNull final Granularity granularity, @NonNull final String bucket) {
+        return new ActivityRollup(userId, getId(granularity, bucket, participantId), participantId, granularity, bucket,
+                Map.of(), Map.of(), Map.of(), 0, null);
+    }
+
+    /**
+     * @return The rollup of the given transaction record alone, in the owner's bucket of the given granularity.
+     */
+    public static ActivityRollup of(@NonNull final Transaction record, @NonNull final Granularity granularity) {
+        final var payment = record.getPayment();
+        if (payment == null) {
+            throw new IllegalArgumentException(String.format("Not a valid transaction %s", record));
+        }
+        return empty(record.getUserId(), payment.getUserId(), granularity, granularity.bucketOf(record.getCreatedAt())).plus(record);
+    }
+
+    /**
+     * @return A copy with the given transaction record, owned by this rollup's user, counted in.
+     */
+    public ActivityRollup plus(@NonNull final Transaction record) {
+        final var payment = record.getPayment();
+        if (payment == null) {
+            throw new IllegalArgumentException(String.format("Not a valid transaction %s", record));
+        }
+        final var money = payment.getMoney();
+        return new ActivityRollup(userId, id, participantId, granularity, bucket,
+                !payment.isSettlement() && record.hasPaidTo() ? plus(paid, money) : paid,
+                !payment.isSettlement() && !record.hasPaidTo() ? plus(received, money) : received,
+                payment.isSettlement() ? plus(settled, money) : settled,
+                transactions + 1, _etag);
+    }
+
+    /**
+     * @return A copy with the totals of the given rollup added, keeping this rollup's <code>_etag</code>.
+     */
+    public ActivityRollup plus(@NonNull final ActivityRollup change) {
+        return new ActivityRollup(userId, id, participantId, granularity, bucket, plus(paid, change.paid),
+                plus(received, change.received), plus(settled, change.settled), transactions + change.transactions, _etag);
+    }
+
+    private static Map<Currency, Long> plus(final Map<Currency, Long> totals, final Payment.Money money) {
+        return plus(totals, Map.of(money.getCurrency(), money.getAmount()));
+    }
+
+    private static Map<Currency, Long> plus(final Map<Currency, Long> totals, final Map<Currency, Long> change) {
+        final var sum = new EnumMap<Currency, Long>(Currency.class);
+        if (totals != null) {
+            sum.putAll(totals);
+        }
+        if (change != null) {
+            change.forEach((currency, amount) -> sum.merge(currency, amount, Long::sum));
+        }
+        sum.values().removeIf(amount -> amount == 0);
+        return sum;
+    }
+}
@@ -0,0 +1,21 @@
+package com.seltzer.split.domain.model;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.experimental.FieldDefaults;
+
+import java.util.List;
+
+/**
+ * Both directions of a user's outstanding balances, derived from a single read of the user's <code>FinalState</code>s.
+ */
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Getter
+@ToString
+public class Balances {
+    List<FinalState> toBeReceived;
+    List<FinalState> toBePaid;
+}
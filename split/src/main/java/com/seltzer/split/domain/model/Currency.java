@@ -1,9 +1,41 @@
 package com.seltzer.split.domain.model;
 
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
 import lombok.ToString;
+import lombok.experimental.FieldDefaults;
 
+/**
+ * Amounts are stored as a whole number of the currency's minor unit (e.g. cents), <code>scale</code> being the number of
+ * decimal digits of the major unit that the minor unit stands for.
+ */
 @ToString
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
 public enum Currency {
-    USD,
-    INR
+    USD(2),
+    INR(2);
+
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1_000, 10_000};
+
+    @Getter
+    @ToString.Exclude
+    int scale;
+
+    /**
+     * @param amount An amount in major units, e.g. dollars.
+     * @return The amount in minor units, e.g. cents, rounded half up.
+     */
+    public long toMinorUnits(final double amount) {
+        return Math.round(amount * POWERS_OF_TEN[scale]);
+    }
+
+    /**
+     * @param amount An amount in minor units, e.g. cents.
+     * @return The amount in major units, e.g. dollars.
+     */
+    public double toMajorUnits(final long amount) {
+        return (double) amount / POWERS_OF_TEN[scale];
+    }
 }
@@ -2,12 +2,22 @@ package com.seltzer.split.domain.model;
 
 import com.azure.spring.data.cosmos.core.mapping.Container;
 import com.azure.spring.data.cosmos.core.mapping.PartitionKey;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.*;
 import lombok.experimental.FieldDefaults;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 @With
-@AllArgsConstructor
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
 @NoArgsConstructor
 @FieldDefaults(level = AccessLevel.PRIVATE)
 @ToString
@@ -15,14 +25,157 @@ import org.springframework.data.annotation.Id;
 @Getter
 public class FinalState {
 
-    @PartitionKey
-    String userId;
+    @PartitionKey("userId")
+    @JsonProperty("userId")
+    String partitionKey; // the userId, followed by "#" and the shard number if the user's FinalStates are sharded
     @Id
     String participantId;
-    float balance; // can be -ve, 0, +ve
-    Currency currency;
+    @JsonProperty("balanceMinor")
+    long balance; // in minor units of currency, can be -ve, 0, +ve
+    Currency currency; // the currency the pair first dealt in
+    @JsonProperty("otherBalancesMinor")
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    Map<Currency, Long> otherBalances; // non-zero balances in minor units of any other currency the pair dealt in, absent if none
+    @Version
+    String _etag; // makes writes conditional on the document not having changed since it was read
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    long revision; // bumped by every write of the balances, telling the newer of two copies of the document apart
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    Integer shards; // on a user's shard marker only: the number of shards the user's FinalStates are spread over
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    List<Applied> applied; // the records with an idempotencyKey most recently applied to the balances, oldest first
+    @With(AccessLevel.NONE)
+    @Getter(AccessLevel.NONE)
+    @JsonProperty(value = "balance", access = JsonProperty.Access.WRITE_ONLY)
+    Float legacyBalance; // in major units, as written before balances were kept in minor units; migrated on the next write
+
+    /**
+     * @return The partition key of the given shard of a user's <code>FinalState</code>s.
+     * @apiNote <code>#</code> is not allowed in a Cosmos document ID, so it can't be part of a <code>userId</code> either.
+     */
+    public static String getPartitionKey(@NonNull final String userId, final int shard) {
+        return userId + "#" + shard;
+    }
+
+    /**
+     * @return A <code>FinalState</code> that hasn't been written yet, to be kept in the given partition.
+     */
+    public static FinalState empty(@NonNull final String partitionKey) {
+        return new FinalState(partitionKey, null, 0, null, null, null, 0, null, null, null);
+    }
+
+    @JsonIgnore // derived from partitionKey
+    public String getUserId() {
+        final var separator = partitionKey == null ? -1 : partitionKey.indexOf('#');
+        return separator < 0 ? partitionKey : partitionKey.substring(0, separator);
+    }
+
+    /**
+     * @return A copy kept in the user's unsharded partition.
+     */
+    public FinalState withUserId(final String userId) {
+        return withPartitionKey(userId);
+    }
+
+    public long getBalance() {
+        return legacyBalance == null ? balance : (currency == null ? Currency.USD : currency).toMinorUnits(legacyBalance);
+    }
+
+    public FinalState withBalance(final long balance) {
+        return new FinalState(partitionKey, participantId, balance, currency, otherBalances, _etag, revision, shards, applied, null);
+    }
 
+    /**
+     * @return The balance in every currency the pair has dealt in, including zero balances in <code>currency</code>.
+     */
+    @JsonIgnore
+    public Map<Currency, Long> getBalances() {
+        final var balances = new EnumMap<Currency, Long>(Currency.class);
+        if (currency != null) {
+            balances.put(currency, getBalance());
+        }
+        if (otherBalances != null) {
+            balances.putAll(otherBalances);
+        }
+        return balances;
+    }
+
+    /**
+     * @return The balance in the given currency, in its minor units.
+     */
+    public long getBalance(@NonNull final Currency currency) {
+        if (currency == this.currency) {
+            return getBalance();
+        }
+        return otherBalances == null ? 0 : otherBalances.getOrDefault(currency, 0L);
+    }
+
+    /**
+     * @return A copy with the balance in the given currency replaced. A pair with nothing outstanding in any currency adopts
+     * the given one as its <code>currency</code>, so that a pair dealing in a single currency keeps the single-balance layout.
+     */
+    public FinalState withBalance(@NonNull final Currency currency, final long balance) {
+        if (this.currency == null || currency == this.currency || (getBalance() == 0 && (otherBalances == null || otherBalances.isEmpty()))) {
+            return new FinalState(partitionKey, participantId, balance, currency, otherBalances, _etag, revision, shards, applied, null);
+        }
+        final var others = new EnumMap<Currency, Long>(Currency.class);
+        if (otherBalances != null) {
+            others.putAll(otherBalances);
+        }
+        if (balance == 0) {
+            others.remove(currency);
+        } else {
+            others.put(currency, balance);
+        }
+        return new FinalState(partitionKey, participantId, getBalance(), this.currency, others.isEmpty() ? null : others, _etag,
+                revision, shards, applied, null);
+    }
+
+    /**
+     * @return One single-currency copy of this <code>FinalState</code> per currency the pair dealt in, for reporting, so without
+     * the records applied to it.
+     */
+    public List<FinalState> splitByCurrency() {
+        if (otherBalances == null || otherBalances.isEmpty()) {
+            return currency == null ? List.of() : List.of(applied == null ? this : withApplied(null));
+        }
+        final var split = new ArrayList<FinalState>(otherBalances.size() + 1);
+        getBalances().forEach((balanceCurrency, balance) ->
+                split.add(new FinalState(partitionKey, participantId, balance, balanceCurrency, null, _etag, revision, shards, null, null)));
+        return split;
+    }
+
+    /**
+     * @return The mark left by the record with the given ID, if it is among those most recently applied.
+     */
+    public Optional<Applied> getApplied(@NonNull final String recordId) {
+        if (applied != null) {
+            for (final var mark : applied) {
+                if (recordId.equals(mark.getId())) {
+                    return Optional.of(mark);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    @JsonIgnore // derived from balance and currency
     public Payment.Money getMoney() {
-        return new Payment.Money(Math.abs(balance), currency);
+        return new Payment.Money(Math.abs(getBalance()), currency);
+    }
+
+    /**
+     * The mark a transaction record with an <code>idempotencyKey</code> leaves on the <code>FinalState</code> it changed, so
+     * that a retry of a write that failed half-way doesn't change the balance again.
+     */
+    @AllArgsConstructor
+    @NoArgsConstructor
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    @Getter
+    @ToString
+    public static final class Applied {
+        String id; // the ID of the record, in the partition of this FinalState's side of the pair
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        Long settledMinor; // for a settlement, the balance it cleared, in minor units of its currency
     }
 }
@@ -0,0 +1,52 @@
+package com.seltzer.split.domain.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * A bill paid by one user and shared among several. Recorded as one <code>paidTo</code> transaction from the payer to every
+ * other participant, for that participant's part of the bill.
+ */
+@With
+@AllArgsConstructor
+@NoArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+@Getter
+@ToString
+public class GroupExpense {
+
+    String paidBy;
+    Payment.Money money; // the whole bill
+    Split split;
+    List<Share> shares; // may include the payer, whose own part is not recorded
+    String idempotencyKey;
+
+    public enum Split {
+        EQUAL, // everyone pays the same, up to a minor unit
+        EXACT, // everyone pays their amount, which add up to the bill
+        PERCENTAGE, // everyone pays their percentage, which add up to 100
+        SHARES // everyone pays in proportion to their shares
+    }
+
+    @With
+    @AllArgsConstructor
+    @NoArgsConstructor
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    @Getter
+    @ToString
+    public static final class Share {
+        String userId;
+        @JsonProperty("amountMinor")
+        long amount; // in minor units of currency, for EXACT
+        BigDecimal percentage; // for PERCENTAGE
+        long shares; // for SHARES
+
+        public Share(final String userId) {
+            this(userId, 0, null, 0);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.seltzer.split.domain.model;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * One transaction of a user with a participant, as seen by the user. Carries only what a history listing shows.
+ */
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Getter
+@ToString
+public class HistoryEntry {
+    String id;
+    long createdAt;
+    Direction direction;
+    long amount; // in minor units of currency
+    Currency currency;
+    boolean settlement;
+
+    public enum Direction {
+        PAID_TO,
+        RECEIVED_FROM
+    }
+}
@@ -0,0 +1,21 @@
+package com.seltzer.split.domain.model;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.experimental.FieldDefaults;
+
+import java.util.List;
+
+/**
+ * A page of a user's transaction history with a participant, newest first.
+ */
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Getter
+@ToString
+public class HistoryPage {
+    List<HistoryEntry> entries;
+    String nextCursor; // null on the last page
+}
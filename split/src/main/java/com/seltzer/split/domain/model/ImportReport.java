@@ -0,0 +1,26 @@
+package com.seltzer.split.domain.model;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.experimental.FieldDefaults;
+
+/**
+ * Outcome of one run of a ledger import.
+ */
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Getter
+@ToString
+public class ImportReport {
+    String importId;
+    long resumedAfterLine; // the last line a previous run had written, 0 on the first run
+    long lastLine; // the last line written, counting the CSV header and blank lines
+    long rowsImported; // by this run, including rows skipped as recorded by an interrupted run
+    long elapsedMillis;
+
+    public double getRowsPerSecond() {
+        return elapsedMillis == 0 ? rowsImported : rowsImported * 1000.0 / elapsedMillis;
+    }
+}
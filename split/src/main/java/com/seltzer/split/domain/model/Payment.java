@@ -1,5 +1,6 @@
 package com.seltzer.split.domain.model;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.*;
 import lombok.experimental.FieldDefaults;
 
@@ -15,13 +16,30 @@ public class Payment {
     Money money;
     boolean settlement;
     @With
-    @AllArgsConstructor
+    @AllArgsConstructor(access = AccessLevel.PRIVATE)
     @NoArgsConstructor
     @FieldDefaults(level = AccessLevel.PRIVATE)
     @Getter
     @ToString
     public static final class Money {
-        float amount;
+        @JsonProperty("amountMinor")
+        long amount; // in minor units of currency
         Currency currency;
+        @With(AccessLevel.NONE)
+        @Getter(AccessLevel.NONE)
+        @JsonProperty(value = "amount", access = JsonProperty.Access.WRITE_ONLY)
+        Float legacyAmount; // in major units, as written before amounts were kept in minor units
+
+        public Money(final long amount, final Currency currency) {
+            this(amount, currency, null);
+        }
+
+        public long getAmount() {
+            return legacyAmount == null ? amount : (currency == null ? Currency.USD : currency).toMinorUnits(legacyAmount);
+        }
+
+        public Money withAmount(final long amount) {
+            return new Money(amount, currency, null);
+        }
     }
 }
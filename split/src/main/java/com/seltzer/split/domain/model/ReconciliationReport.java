@@ -0,0 +1,42 @@
+package com.seltzer.split.domain.model;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.experimental.FieldDefaults;
+
+import java.util.List;
+
+/**
+ * Outcome of recomputing every <code>FinalState</code> from its transaction history.
+ */
+@AllArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Getter
+@ToString
+public class ReconciliationReport {
+    long partitionsScanned;
+    long transactionsScanned;
+    long drifted;
+    long repaired;
+    long failed;
+    long elapsedMillis;
+    List<Drift> drifts; // capped sample, see drifted for the total
+
+    public double getTransactionsPerSecond() {
+        return elapsedMillis == 0 ? transactionsScanned : transactionsScanned * 1000.0 / elapsedMillis;
+    }
+
+    @AllArgsConstructor
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    @Getter
+    @ToString
+    public static class Drift {
+        String userId;
+        String participantId;
+        long storedBalance;
+        long expectedBalance;
+        Currency currency;
+    }
+}
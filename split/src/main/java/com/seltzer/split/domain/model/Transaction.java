@@ -2,6 +2,8 @@ package com.seltzer.split.domain.model;
 
 import com.azure.spring.data.cosmos.core.mapping.Container;
 import com.azure.spring.data.cosmos.core.mapping.PartitionKey;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.*;
 import lombok.experimental.FieldDefaults;
 
@@ -15,7 +17,9 @@ import java.util.Optional;
 @Container(containerName = "transaction")
 public class Transaction {
     @PartitionKey
-    String partitionKey;
+    @Getter
+    @JsonProperty("partitionKey")
+    String partitionKey; // userId_participantId, see getPartitionKey(String, String); stored so that queries can filter on it
     @Getter
     @With
     String userId;
@@ -26,6 +30,15 @@ public class Transaction {
     Payment paidTo;
     @With
     Payment receivedFrom;
+    @Getter
+    @With
+    long createdAt; // epoch millis
+    @Getter
+    @With
+    String idempotencyKey; // optional, supplied by clients to make retries safe
+    @Getter
+    @With
+    long sequence; // order in which the records were written, assigned by the ledger log
 
     public Optional<Payment> getPaidTo() {
         return Optional.ofNullable(paidTo);
@@ -35,11 +48,50 @@ public class Transaction {
         return Optional.ofNullable(receivedFrom);
     }
 
+    public boolean hasPaidTo() {
+        return paidTo != null;
+    }
+
+    public boolean hasReceivedFrom() {
+        return receivedFrom != null;
+    }
+
+    /**
+     * @return <code>paidTo</code> if there is one, <code>receivedFrom</code> otherwise, or <code>null</code> if there is neither.
+     * @apiNote Same as <code>getPaidTo().or(this::getReceivedFrom)</code>, for the write path to tell the participant without
+     * wrapping anything.
+     */
+    @JsonIgnore
+    public Payment getPayment() {
+        return paidTo != null ? paidTo : receivedFrom;
+    }
+
+    /**
+     * @return A record of the user paying the payment's user, built in one go rather than copied field by field.
+     */
+    public static Transaction paidTo(final String userId, final Payment payment, final long createdAt, final String idempotencyKey) {
+        return new Transaction(null, userId, null, payment, null, createdAt, idempotencyKey, 0);
+    }
+
+    /**
+     * @return A record of the user receiving from the payment's user, built in one go rather than copied field by field.
+     */
+    public static Transaction receivedFrom(final String userId, final Payment payment, final long createdAt, final String idempotencyKey) {
+        return new Transaction(null, userId, null, null, payment, createdAt, idempotencyKey, 0);
+    }
+
     public void setPartitionKey(){
         if(paidTo == null){
-            this.partitionKey = String.format("%s_%s", this.userId, receivedFrom.getUserId());
+            this.partitionKey = getPartitionKey(this.userId, receivedFrom.getUserId());
         }else {
-            this.partitionKey = String.format("%s_%s", this.userId, paidTo.getUserId());
+            this.partitionKey = getPartitionKey(this.userId, paidTo.getUserId());
         }
     }
+
+    /**
+     * @return The partition holding the transactions of <code>userId</code> with <code>participantId</code>.
+     */
+    public static String getPartitionKey(String userId, String participantId) {
+        return userId + "_" + participantId;
+    }
 }
@@ -0,0 +1,134 @@
+package com.seltzer.split.domain.model;
+
+import com.azure.spring.data.cosmos.core.mapping.Container;
+import com.azure.spring.data.cosmos.core.mapping.PartitionKey;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.*;
+import lombok.experimental.FieldDefaults;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The totals of a user's <code>FinalState</code>s: what the user is owed and owes in every currency, and how many counterparties
+ * have something outstanding with the user. Kept up to date by the writers, so that it can be served with a single point read
+ * however many counterparties the user has.
+ */
+@With
+@AllArgsConstructor
+@NoArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+@ToString
+@Container(containerName = "user-balance-summary")
+@Getter
+public class UserBalanceSummary {
+
+    @Id
+    @PartitionKey
+    String userId;
+    @JsonProperty("toBeReceivedMinor")
+    Map<Currency, Long> toBeReceived; // sum of the positive balances per currency, in minor units, zero totals left out
+    @JsonProperty("toBePaidMinor")
+    Map<Currency, Long> toBePaid; // sum of the negative balances per currency, in minor units and made positive
+    int openCounterparties; // participants with a non-zero balance in any currency
+    String generation; // replaced whenever the totals are rebuilt from the FinalStates, null until they first are, see UserBalanceSummaries
+    Map<String, Long> pending; // epoch millis at which each writer yet to add its change marked the summary, by the writer's token
+    @Version
+    String _etag;
+
+    /**
+     * @return The totals of the given <code>FinalState</code>s, which must all belong to the user.
+     */
+    public static UserBalanceSummary of(@NonNull final String userId, @NonNull final Collection<FinalState> finalStates) {
+        var summary = new UserBalanceSummary(userId, Map.of(), Map.of(), 0, null, null, null);
+        for (final var finalState : finalStates) {
+            summary = summary.plus(change(null, finalState));
+        }
+        return summary;
+    }
+
+    /**
+     * @param before The <code>FinalState</code> before a write, <code>null</code> if it did not exist.
+     * @param after  The same <code>FinalState</code> after the write.
+     * @return The difference the write made to the totals of the user, whose fields may be negative.
+     */
+    public static UserBalanceSummary change(final FinalState before, @NonNull final FinalState after) {
+        final var currencies = EnumSet.noneOf(Currency.class);
+        addCurrencies(currencies, after);
+        if (before != null) {
+            addCurrencies(currencies, before);
+        }
+        final var toBeReceived = new EnumMap<Currency, Long>(Currency.class);
+        final var toBePaid = new EnumMap<Currency, Long>(Currency.class);
+        var wasOpen = false;
+        var isOpen = false;
+        for (final var currency : currencies) {
+            final var was = before == null ? 0 : before.getBalance(currency);
+            final var is = after.getBalance(currency);
+            put(toBeReceived, currency, Math.max(is, 0) - Math.max(was, 0));
+            put(toBePaid, currency, Math.max(-is, 0) - Math.max(-was, 0));
+            wasOpen |= was != 0;
+            isOpen |= is != 0;
+        }
+        return new UserBalanceSummary(after.getUserId(), toBeReceived, toBePaid, (isOpen ? 1 : 0) - (wasOpen ? 1 : 0), null, null, null);
+    }
+
+    /**
+     * Adds the currencies of {@link FinalState#getBalances()} without building the map.
+     */
+    private static void addCurrencies(final Set<Currency> currencies, final FinalState finalState) {
+        if (finalState.getCurrency() != null) {
+            currencies.add(finalState.getCurrency());
+        }
+        if (finalState.getOtherBalances() != null) {
+            currencies.addAll(finalState.getOtherBalances().keySet());
+        }
+    }
+
+    /**
+     * @return A copy with the totals of the given change added, keeping this summary's <code>userId</code>,
+     * <code>generation</code>, <code>pending</code> and <code>_etag</code>.
+     */
+    public UserBalanceSummary plus(@NonNull final UserBalanceSummary change) {
+        return new UserBalanceSummary(userId, plus(toBeReceived, change.toBeReceived), plus(toBePaid, change.toBePaid),
+                openCounterparties + change.openCounterparties, generation, pending, _etag);
+    }
+
+    /**
+     * @return The marks of the writers yet to add their change, never <code>null</code>.
+     */
+    public Map<String, Long> getPending() {
+        return pending == null ? Map.of() : pending;
+    }
+
+    /**
+     * @return Whether the change leaves the totals as they are.
+     */
+    public boolean isEmpty() {
+        return (toBeReceived == null || toBeReceived.isEmpty()) && (toBePaid == null || toBePaid.isEmpty()) && openCounterparties == 0;
+    }
+
+    private static Map<Currency, Long> plus(final Map<Currency, Long> totals, final Map<Currency, Long> change) {
+        final var sum = new EnumMap<Currency, Long>(Currency.class);
+        if (totals != null) {
+            sum.putAll(totals);
+        }
+        if (change != null) {
+            change.forEach((currency, amount) -> put(sum, currency, sum.getOrDefault(currency, 0L) + amount));
+        }
+        return sum;
+    }
+
+    private static void put(final Map<Currency, Long> totals, final Currency currency, final long amount) {
+        if (amount == 0) {
+            totals.remove(currency);
+        } else {
+            totals.put(currency, amount);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.seltzer.split.domain.repository;
+
+import com.azure.spring.data.cosmos.repository.CosmosRepository;
+import com.azure.spring.data.cosmos.repository.Query;
+import com.seltzer.split.domain.model.ActivityRollup;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface ActivityRollupRepository extends CosmosRepository<ActivityRollup, String> {
+    /**
+     * @param fromId The lowest ID to return, included.
+     * @param toId   The ID to stop before.
+     * @return The user's rollups with IDs in the given range, ordered by ID.
+     */
+    @Query("SELECT * FROM c WHERE c.userId = @userId AND c.id >= @fromId AND c.id < @toId ORDER BY c.id")
+    List<ActivityRollup> findByIdRange(@Param("userId") String userId,
+                                       @Param("fromId") String fromId,
+                                       @Param("toId") String toId);
+
+    /**
+     * @return The user's rollups of the participant with IDs in the given range, ordered by ID.
+     */
+    @Query("SELECT * FROM c WHERE c.userId = @userId AND c.participantId = @participantId AND c.id >= @fromId AND c.id < @toId "
+            + "ORDER BY c.id")
+    List<ActivityRollup> findByIdRange(@Param("userId") String userId,
+                                       @Param("participantId") String participantId,
+                                       @Param("fromId") String fromId,
+                                       @Param("toId") String toId);
+}
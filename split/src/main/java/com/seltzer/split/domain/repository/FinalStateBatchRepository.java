@@ -0,0 +1,27 @@
+package com.seltzer.split.domain.repository;
+
+import com.seltzer.split.domain.model.FinalState;
+
+import java.util.List;
+
+/**
+ * Writes several <code>FinalState</code>s of one partition as a single transactional batch: either all of them are written, or
+ * none is.
+ */
+public interface FinalStateBatchRepository {
+    /**
+     * The most operations Cosmos takes in one transactional batch.
+     */
+    int MAX_BATCH_SIZE = 100;
+
+    /**
+     * @param partitionKey The partition all the <code>FinalState</code>s are in, see {@link FinalState#getPartitionKey()}.
+     * @param finalStates  At most {@link #MAX_BATCH_SIZE} <code>FinalState</code>s, each with a different participant.
+     * @return The <code>FinalState</code>s written, in the given order, with their new <code>_etag</code>s.
+     * @apiNote Every write is conditional, as {@link FinalStateRepository#save(Object)} is: a <code>FinalState</code> without an
+     * <code>_etag</code> is created, and one with an <code>_etag</code> replaces the stored copy only if it still has it. If any
+     * of them fails, nothing is written, and the 409 or 412 of the one that failed is thrown as a
+     * <code>CosmosAccessException</code>.
+     */
+    List<FinalState> saveBatch(String partitionKey, List<FinalState> finalStates);
+}
@@ -0,0 +1,24 @@
+package com.seltzer.split.domain.repository;
+
+import com.azure.spring.data.cosmos.CosmosFactory;
+import com.azure.spring.data.cosmos.core.convert.MappingCosmosConverter;
+import com.seltzer.split.domain.model.FinalState;
+
+import java.util.List;
+
+/**
+ * The Cosmos implementation of {@link FinalStateBatchRepository}, mixed into the {@link FinalStateRepository}, which waits on
+ * the batch of {@link ReactiveFinalStateBatchRepositoryImpl}.
+ */
+class FinalStateBatchRepositoryImpl implements FinalStateBatchRepository {
+    private final ReactiveFinalStateBatchRepositoryImpl batches;
+
+    FinalStateBatchRepositoryImpl(final CosmosFactory cosmosFactory, final MappingCosmosConverter converter) {
+        this.batches = new ReactiveFinalStateBatchRepositoryImpl(cosmosFactory, converter);
+    }
+
+    @Override
+    public List<FinalState> saveBatch(final String partitionKey, final List<FinalState> finalStates) {
+        return batches.saveBatch(partitionKey, finalStates).collectList().block();
+    }
+}
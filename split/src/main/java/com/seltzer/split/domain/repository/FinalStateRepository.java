@@ -8,6 +8,6 @@ import org.springframework.stereotype.Repository;
 import java.util.List;
 
 @Repository
-public interface FinalStateRepository extends CosmosRepository<FinalState, String> {
+public interface FinalStateRepository extends CosmosRepository<FinalState, String>, FinalStateBatchRepository {
     List<FinalState> findAll(PartitionKey partitionKey);
 }
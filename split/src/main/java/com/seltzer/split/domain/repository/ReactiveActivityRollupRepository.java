@@ -0,0 +1,32 @@
+package com.seltzer.split.domain.repository;
+
+import com.azure.spring.data.cosmos.repository.Query;
+import com.azure.spring.data.cosmos.repository.ReactiveCosmosRepository;
+import com.seltzer.split.domain.model.ActivityRollup;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+
+/**
+ * Non-blocking variant of {@link ActivityRollupRepository}, over the same container.
+ */
+@Repository
+public interface ReactiveActivityRollupRepository extends ReactiveCosmosRepository<ActivityRollup, String> {
+    /**
+     * @see ActivityRollupRepository#findByIdRange(String, String, String)
+     */
+    @Query("SELECT * FROM c WHERE c.userId = @userId AND c.id >= @fromId AND c.id < @toId ORDER BY c.id")
+    Flux<ActivityRollup> findByIdRange(@Param("userId") String userId,
+                                       @Param("fromId") String fromId,
+                                       @Param("toId") String toId);
+
+    /**
+     * @see ActivityRollupRepository#findByIdRange(String, String, String, String)
+     */
+    @Query("SELECT * FROM c WHERE c.userId = @userId AND c.participantId = @participantId AND c.id >= @fromId AND c.id < @toId "
+            + "ORDER BY c.id")
+    Flux<ActivityRollup> findByIdRange(@Param("userId") String userId,
+                                       @Param("participantId") String participantId,
+                                       @Param("fromId") String fromId,
+                                       @Param("toId") String toId);
+}
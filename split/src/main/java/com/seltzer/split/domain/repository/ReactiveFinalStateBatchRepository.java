@@ -0,0 +1,17 @@
+package com.seltzer.split.domain.repository;
+
+import com.seltzer.split.domain.model.FinalState;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+
+/**
+ * Non-blocking variant of {@link FinalStateBatchRepository}.
+ */
+public interface ReactiveFinalStateBatchRepository {
+    /**
+     * @return The <code>FinalState</code>s written, as for {@link FinalStateBatchRepository#saveBatch(String, List)}, or the
+     * <code>CosmosAccessException</code> of the one that failed, in which case none was written.
+     */
+    Flux<FinalState> saveBatch(String partitionKey, List<FinalState> finalStates);
+}
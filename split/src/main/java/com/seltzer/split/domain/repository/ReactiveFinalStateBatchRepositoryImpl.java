@@ -0,0 +1,83 @@
+package com.seltzer.split.domain.repository;
+
+import com.azure.cosmos.CosmosAsyncContainer;
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.CosmosBatch;
+import com.azure.cosmos.models.CosmosBatchItemRequestOptions;
+import com.azure.cosmos.models.CosmosBatchOperationResult;
+import com.azure.cosmos.models.CosmosBatchResponse;
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.spring.data.cosmos.CosmosFactory;
+import com.azure.spring.data.cosmos.core.convert.MappingCosmosConverter;
+import com.azure.spring.data.cosmos.exception.CosmosAccessException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.seltzer.split.domain.model.FinalState;
+import reactor.core.publisher.Flux;
+
+import java.util.List;
+
+/**
+ * The Cosmos implementation of {@link ReactiveFinalStateBatchRepository}, which Spring Data finds by its name and mixes into the
+ * {@link ReactiveFinalStateRepository}: the <code>FinalState</code>s are written with one transactional batch of the
+ * <code>final-state</code> container, made of a create for each new one and a replace conditional on its <code>_etag</code>
+ * for each other.
+ */
+class ReactiveFinalStateBatchRepositoryImpl implements ReactiveFinalStateBatchRepository {
+    private static final int FAILED_DEPENDENCY = 424; // the status of the operations of a batch that failed on another one
+
+    private final CosmosAsyncContainer container;
+    private final MappingCosmosConverter converter;
+
+    ReactiveFinalStateBatchRepositoryImpl(final CosmosFactory cosmosFactory, final MappingCosmosConverter converter) {
+        this.container = cosmosFactory.getCosmosAsyncClient()
+                .getDatabase(cosmosFactory.getDatabaseName())
+                .getContainer("final-state");
+        this.converter = converter;
+    }
+
+    @Override
+    public Flux<FinalState> saveBatch(final String partitionKey, final List<FinalState> finalStates) {
+        if (finalStates.size() > FinalStateBatchRepository.MAX_BATCH_SIZE) {
+            return Flux.error(new IllegalArgumentException("At most " + FinalStateBatchRepository.MAX_BATCH_SIZE
+                    + " final states can be written in one batch, not " + finalStates.size()));
+        }
+        if (finalStates.isEmpty()) {
+            return Flux.empty();
+        }
+        final var batch = CosmosBatch.createCosmosBatch(new PartitionKey(partitionKey));
+        for (final var finalState : finalStates) {
+            final var document = converter.writeJsonNode(finalState);
+            if (finalState.get_etag() == null) {
+                batch.createItemOperation(document);
+            } else {
+                batch.replaceItemOperation(finalState.getParticipantId(), document,
+                        new CosmosBatchItemRequestOptions().setIfMatchETag(finalState.get_etag()));
+            }
+        }
+        return container.executeCosmosBatch(batch).flatMapMany(response -> response.isSuccessStatusCode()
+                ? Flux.fromIterable(response.getResults()).map(result -> converter.read(FinalState.class, result.getItem(JsonNode.class)))
+                : Flux.error(rejected(partitionKey, response)));
+    }
+
+    /**
+     * @return The failure of the operation that failed the batch, carried the way the repositories report a failed write.
+     */
+    private static CosmosAccessException rejected(final String partitionKey, final CosmosBatchResponse response) {
+        final var statusCode = response.getResults().stream()
+                .mapToInt(CosmosBatchOperationResult::getStatusCode)
+                .filter(status -> status >= 400 && status != FAILED_DEPENDENCY)
+                .findFirst()
+                .orElse(response.getStatusCode());
+        final var message = "Batch of final states of partition " + partitionKey + " failed with " + statusCode
+                + (response.getErrorMessage() == null ? "" : ": " + response.getErrorMessage());
+        return new CosmosAccessException(message, new BatchRejection(statusCode, message));
+    }
+
+    private static final class BatchRejection extends CosmosException {
+        private static final long serialVersionUID = 1L;
+
+        BatchRejection(final int statusCode, final String message) {
+            super(statusCode, message);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.seltzer.split.domain.repository;
+
+import com.azure.spring.data.cosmos.repository.Query;
+import com.azure.spring.data.cosmos.repository.ReactiveCosmosRepository;
+import com.seltzer.split.domain.model.FinalState;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+
+import java.util.Collection;
+
+/**
+ * Non-blocking variant of {@link FinalStateRepository}, over the same container.
+ */
+@Repository
+public interface ReactiveFinalStateRepository extends ReactiveCosmosRepository<FinalState, String>,
+        ReactiveFinalStateBatchRepository {
+    /**
+     * @param partitionKey The user's partition, or one of the user's shards, see {@link FinalState#getPartitionKey()}.
+     * @return The <code>FinalState</code>s of the partition with the given participants that exist, in one query.
+     */
+    @Query("SELECT * FROM c WHERE c.userId = @partitionKey AND ARRAY_CONTAINS(@participantIds, c.id)")
+    Flux<FinalState> findByParticipantIds(@Param("partitionKey") String partitionKey,
+                                          @Param("participantIds") Collection<String> participantIds);
+}
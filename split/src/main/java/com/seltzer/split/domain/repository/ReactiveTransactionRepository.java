@@ -0,0 +1,12 @@
+package com.seltzer.split.domain.repository;
+
+import com.azure.spring.data.cosmos.repository.ReactiveCosmosRepository;
+import com.seltzer.split.domain.model.Transaction;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Non-blocking variant of {@link TransactionRepository}, over the same container.
+ */
+@Repository
+public interface ReactiveTransactionRepository extends ReactiveCosmosRepository<Transaction, String> {
+}
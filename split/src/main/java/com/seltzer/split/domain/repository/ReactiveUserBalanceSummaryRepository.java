@@ -0,0 +1,12 @@
+package com.seltzer.split.domain.repository;
+
+import com.azure.spring.data.cosmos.repository.ReactiveCosmosRepository;
+import com.seltzer.split.domain.model.UserBalanceSummary;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Non-blocking variant of {@link UserBalanceSummaryRepository}, over the same container.
+ */
+@Repository
+public interface ReactiveUserBalanceSummaryRepository extends ReactiveCosmosRepository<UserBalanceSummary, String> {
+}
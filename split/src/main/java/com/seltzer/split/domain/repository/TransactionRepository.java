@@ -2,7 +2,11 @@ package com.seltzer.split.domain.repository;
 
 import com.azure.cosmos.models.PartitionKey;
 import com.azure.spring.data.cosmos.repository.CosmosRepository;
+import com.azure.spring.data.cosmos.repository.Query;
 import com.seltzer.split.domain.model.Transaction;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -10,4 +14,59 @@ import java.util.List;
 @Repository
 public interface TransactionRepository extends CosmosRepository<Transaction, String> {
     List<Transaction> findAll(PartitionKey partitionKey);
+
+    Page<Transaction> findByPartitionKey(String partitionKey, Pageable pageable);
+
+    /**
+     * @param createdAt Together with <code>id</code>, the position of the last transaction of the previous page; only the ones
+     *                  created before it are returned. Pass <code>Long.MAX_VALUE</code> and an empty <code>id</code> for the first page.
+     * @param limit     The maximum number of transactions to return.
+     * @return The transactions of the partition ordered by <code>createdAt</code> and then <code>id</code>, both descending,
+     * with only the fields a history listing needs.
+     * @apiNote Needs a composite index on <code>(createdAt DESC, id DESC)</code> in the Cosmos container.
+     */
+    @Query("SELECT c.id, c.userId, c.createdAt, c.paidTo, c.receivedFrom FROM c WHERE c.partitionKey = @partitionKey "
+            + "AND (c.createdAt < @createdAt OR (c.createdAt = @createdAt AND c.id < @id)) "
+            + "ORDER BY c.createdAt DESC, c.id DESC OFFSET 0 LIMIT @limit")
+    List<Transaction> findHistory(@Param("partitionKey") String partitionKey,
+                                  @Param("createdAt") long createdAt,
+                                  @Param("id") String id,
+                                  @Param("limit") int limit);
+
+    /**
+     * @param sequence  Together with <code>createdAt</code> and <code>id</code>, the position of the last transaction of the previous
+     *                  page; only the ones after it are returned. Pass <code>Long.MIN_VALUE</code> twice and an empty <code>id</code>
+     *                  for the first page.
+     * @param limit     The maximum number of transactions to return.
+     * @return The transactions of every partition in the order they were written: by <code>sequence</code>, then by
+     * <code>createdAt</code> and <code>id</code> for the records written before sequences were assigned, all ascending.
+     * @apiNote Needs a composite index on <code>(sequence ASC, createdAt ASC, id ASC)</code> in the Cosmos container. Cosmos
+     * leaves documents without a <code>sequence</code> out of the ordered results, so records written before it existed need
+     * it set to <code>0</code> first.
+     */
+    @Query("SELECT * FROM c WHERE c.sequence > @sequence OR (c.sequence = @sequence AND (c.createdAt > @createdAt "
+            + "OR (c.createdAt = @createdAt AND c.id > @id))) "
+            + "ORDER BY c.sequence ASC, c.createdAt ASC, c.id ASC OFFSET 0 LIMIT @limit")
+    List<Transaction> findReplayPage(@Param("sequence") long sequence,
+                                     @Param("createdAt") long createdAt,
+                                     @Param("id") String id,
+                                     @Param("limit") int limit);
+
+    /**
+     * @param partitionKey Together with <code>sequence</code>, <code>createdAt</code> and <code>id</code>, the position of the last
+     *                     transaction of the previous page. Pass an empty <code>partitionKey</code> and <code>id</code> and
+     *                     <code>Long.MIN_VALUE</code> twice for the first page.
+     * @return The transactions of every partition, one partition after the other, each in the order of
+     * {@link #findReplayPage(long, long, String, int)}.
+     * @apiNote Needs a composite index on <code>(partitionKey ASC, sequence ASC, createdAt ASC, id ASC)</code> in the Cosmos
+     * container.
+     */
+    @Query("SELECT * FROM c WHERE c.partitionKey > @partitionKey OR (c.partitionKey = @partitionKey AND (c.sequence > @sequence "
+            + "OR (c.sequence = @sequence AND (c.createdAt > @createdAt OR (c.createdAt = @createdAt AND c.id > @id))))) "
+            + "ORDER BY c.partitionKey ASC, c.sequence ASC, c.createdAt ASC, c.id ASC OFFSET 0 LIMIT @limit")
+    List<Transaction> findPartitionReplayPage(@Param("partitionKey") String partitionKey,
+                                              @Param("sequence") long sequence,
+                                              @Param("createdAt") long createdAt,
+                                              @Param("id") String id,
+                                              @Param("limit") int limit);
 }
@@ -0,0 +1,9 @@
+package com.seltzer.split.domain.repository;
+
+import com.azure.spring.data.cosmos.repository.CosmosRepository;
+import com.seltzer.split.domain.model.UserBalanceSummary;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface UserBalanceSummaryRepository extends CosmosRepository<UserBalanceSummary, String> {
+}
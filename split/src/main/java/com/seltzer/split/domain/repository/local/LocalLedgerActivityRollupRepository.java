@@ -0,0 +1,44 @@
+package com.seltzer.split.domain.repository.local;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.ActivityRollup;
+import com.seltzer.split.domain.repository.memory.InMemoryActivityRollupRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Repository;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rollups served from memory, like {@link InMemoryActivityRollupRepository}. They are derived data and never logged: on startup,
+ * once the {@link LocalLedgerSnapshotter} has recovered the transactions, they are added up again from every transaction, one
+ * partition at a time.
+ */
+@Slf4j
+@Repository
+@Profile("local-ledger")
+public class LocalLedgerActivityRollupRepository extends InMemoryActivityRollupRepository {
+
+    /**
+     * @param recovered Taken so that the transactions are recovered first.
+     */
+    public LocalLedgerActivityRollupRepository(final LocalLedgerTransactionRepository transactionRepository,
+                                               final LocalLedgerSnapshotter recovered) {
+        final var start = System.nanoTime();
+        long transactions = 0;
+        for (final var partitionKey : transactionRepository.getPartitionKeys()) {
+            final var rollups = new HashMap<String, ActivityRollup>();
+            for (final var record : transactionRepository.findAll(new PartitionKey(partitionKey))) {
+                for (final var granularity : ActivityRollup.Granularity.values()) {
+                    final var rollup = ActivityRollup.of(record, granularity);
+                    rollups.merge(rollup.getId(), rollup, ActivityRollup::plus);
+                }
+                transactions++;
+            }
+            rollups.values().forEach(this::save);
+        }
+        log.info("Rolled up {} transactions into {} activity rollups in {} ms", transactions, count(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+}
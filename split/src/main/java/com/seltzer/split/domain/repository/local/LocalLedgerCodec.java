@@ -0,0 +1,298 @@
+package com.seltzer.split.domain.repository.local;
+
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encoding of the records of the {@link LocalLedgerLog}. Strings are written as UTF-8 prefixed with their length in bytes,
+ * <code>-1</code> standing for <code>null</code>; currencies as their ordinal, <code>-1</code> standing for <code>null</code>.
+ * The fields a record is indexed by come first, so that recovery can skip decoding the rest.
+ */
+final class LocalLedgerCodec {
+    static final byte TRANSACTION = 1;
+    static final byte TRANSACTION_DELETE = 2;
+    static final byte TRANSACTION_DELETE_ALL = 3;
+    static final byte FINAL_STATE = 4;
+    static final byte FINAL_STATE_DELETE = 5;
+    static final byte FINAL_STATE_DELETE_ALL = 6;
+
+    static final long NO_POSITION = -1;
+
+    private static final byte PAID_TO = 1;
+    private static final byte RECEIVED_FROM = 2;
+    private static final Currency[] CURRENCIES = Currency.values();
+
+    private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(512));
+
+    private static final int TRANSACTION_PARTICIPANTS = Long.BYTES + Integer.BYTES;
+
+    /**
+     * Layout: <code>replaces, hash of id, userId, participantId, id, side, createdAt, idempotencyKey, settlement, amount,
+     * currency, [sequence]</code>, the sequence being left out when it is <code>0</code>, as in records written before it existed.
+     *
+     * @param replaces The position of the record the transaction replaces, or {@link #NO_POSITION}.
+     * @return A buffer holding the encoded record, valid until the calling thread encodes the next one.
+     */
+    ByteBuffer encode(final Transaction transaction, final long replaces) {
+        final var payment = transaction.getPayment();
+        if (payment == null) {
+            throw new IllegalArgumentException("Transaction " + transaction.getId() + " has no participant");
+        }
+        final var money = payment.getMoney();
+        final var userId = utf8(transaction.getUserId());
+        final var participantId = utf8(payment.getUserId());
+        final var id = utf8(transaction.getId());
+        final var idempotencyKey = utf8(transaction.getIdempotencyKey());
+        final var buffer = buffer(TRANSACTION_PARTICIPANTS + size(userId) + size(participantId) + size(id) + 1 + Long.BYTES + size(idempotencyKey)
+                + 1 + Long.BYTES + 1 + (transaction.getSequence() != 0 ? Long.BYTES : 0));
+        buffer.putLong(replaces);
+        buffer.putInt(transaction.getId().hashCode());
+        put(buffer, userId);
+        put(buffer, participantId);
+        put(buffer, id);
+        buffer.put(transaction.hasPaidTo() ? PAID_TO : RECEIVED_FROM);
+        buffer.putLong(transaction.getCreatedAt());
+        put(buffer, idempotencyKey);
+        buffer.put((byte) (payment.isSettlement() ? 1 : 0));
+        buffer.putLong(money == null ? 0 : money.getAmount());
+        buffer.put(money == null ? -2 : ordinal(money.getCurrency()));
+        if (transaction.getSequence() != 0) {
+            buffer.putLong(transaction.getSequence());
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * @return The key of the partition holding the transaction, without decoding the rest of it.
+     */
+    static String decodeTransactionPartitionKey(final ByteBuffer payload) {
+        payload.position(TRANSACTION_PARTICIPANTS);
+        return Transaction.getPartitionKey(getString(payload), getString(payload));
+    }
+
+    /**
+     * @return A 64-bit hash of the encoded participants of the transaction, which tells partitions apart without decoding their
+     * keys.
+     */
+    static long hashTransactionPartition(final ByteBuffer payload) {
+        final var start = TRANSACTION_PARTICIPANTS;
+        final var participantId = start + Integer.BYTES + Math.max(0, payload.getInt(start));
+        final var end = participantId + Integer.BYTES + Math.max(0, payload.getInt(participantId));
+        long hash = 0xcbf29ce484222325L;
+        var i = start;
+        for (; i + Long.BYTES <= end; i += Long.BYTES) {
+            hash = (hash ^ payload.getLong(i)) * 0x100000001b3L;
+            hash ^= hash >>> 29;
+        }
+        for (; i < end; i++) {
+            hash = (hash ^ payload.get(i)) * 0x100000001b3L;
+        }
+        return hash ^ (hash >>> 32);
+    }
+
+    static int decodeTransactionIdHash(final ByteBuffer payload) {
+        return payload.getInt(Long.BYTES);
+    }
+
+    /**
+     * @return The position of the record replaced by the transaction, or {@link #NO_POSITION}.
+     */
+    static long decodeReplaces(final ByteBuffer payload) {
+        return payload.getLong(0);
+    }
+
+    static Transaction decodeTransaction(final ByteBuffer payload) {
+        payload.position(TRANSACTION_PARTICIPANTS);
+        final var userId = getString(payload);
+        final var participantId = getString(payload);
+        final var id = getString(payload);
+        final var side = payload.get();
+        final var createdAt = payload.getLong();
+        final var idempotencyKey = getString(payload);
+        final var settlement = payload.get() == 1;
+        final var amount = payload.getLong();
+        final var currency = payload.get();
+        final var sequence = payload.hasRemaining() ? payload.getLong() : 0;
+        final var payment = new Payment(participantId, currency == -2 ? null : new Payment.Money(amount, currency(currency)), settlement);
+        return new Transaction()
+                .withId(id)
+                .withUserId(userId)
+                .withCreatedAt(createdAt)
+                .withIdempotencyKey(idempotencyKey)
+                .withSequence(sequence)
+                .withPaidTo(side == PAID_TO ? payment : null)
+                .withReceivedFrom(side == RECEIVED_FROM ? payment : null);
+    }
+
+    /**
+     * Layout: <code>partitionKey, position</code>.
+     */
+    ByteBuffer encodeTransactionDelete(final String partitionKey, final long position) {
+        final var key = utf8(partitionKey);
+        return put(buffer(size(key) + Long.BYTES), key).putLong(position).flip();
+    }
+
+    static String decodeDeletedPartitionKey(final ByteBuffer payload) {
+        payload.position(0);
+        return getString(payload);
+    }
+
+    static long decodeDeletedPosition(final ByteBuffer payload) {
+        return payload.getLong(payload.limit() - Long.BYTES);
+    }
+
+    /**
+     * Layout: <code>partitionKey, participantId, balance, currency, _etag, [count, (currency, balance) * count, [shards,
+     * [count, (id, settled) * count, [revision]]]]</code>, the trailing fields being left out when there are no balances in other
+     * currencies, the <code>FinalState</code> is not a shard marker, carries no applied marks and has never been written, as in
+     * records written before they existed. Shards are written as <code>-1</code> when only the marks or the revision follow, and
+     * a settled amount as <code>Long.MIN_VALUE</code> when the mark has none.
+     */
+    ByteBuffer encode(final FinalState finalState) {
+        final var partitionKey = utf8(finalState.getPartitionKey());
+        final var participantId = utf8(finalState.getParticipantId());
+        final var etag = utf8(finalState.get_etag());
+        final var otherBalances = finalState.getOtherBalances() == null ? Map.<Currency, Long>of() : finalState.getOtherBalances();
+        final var applied = finalState.getApplied() == null ? List.<FinalState.Applied>of() : finalState.getApplied();
+        final var appliedIds = new ArrayList<byte[]>(applied.size());
+        var appliedSize = 0;
+        for (final var mark : applied) {
+            final var id = utf8(mark.getId());
+            appliedIds.add(id);
+            appliedSize += size(id) + Long.BYTES;
+        }
+        final var revision = finalState.getRevision() != 0;
+        final var marks = !applied.isEmpty() || revision;
+        final var shards = finalState.getShards() != null || marks;
+        final var trailing = !otherBalances.isEmpty() || shards;
+        final var buffer = buffer(size(partitionKey) + size(participantId) + Long.BYTES + 1 + size(etag)
+                + (trailing ? 1 + otherBalances.size() * (1 + Long.BYTES) : 0) + (shards ? Integer.BYTES : 0)
+                + (marks ? Integer.BYTES + appliedSize : 0) + (revision ? Long.BYTES : 0));
+        put(buffer, partitionKey);
+        put(buffer, participantId);
+        buffer.putLong(finalState.getBalance());
+        buffer.put(ordinal(finalState.getCurrency()));
+        put(buffer, etag);
+        if (trailing) {
+            buffer.put((byte) otherBalances.size());
+            otherBalances.forEach((currency, balance) -> buffer.put(ordinal(currency)).putLong(balance));
+        }
+        if (shards) {
+            buffer.putInt(finalState.getShards() == null ? -1 : finalState.getShards());
+        }
+        if (marks) {
+            buffer.putInt(applied.size());
+            for (int i = 0; i < applied.size(); i++) {
+                final var settled = applied.get(i).getSettledMinor();
+                put(buffer, appliedIds.get(i)).putLong(settled == null ? Long.MIN_VALUE : settled);
+            }
+        }
+        if (revision) {
+            buffer.putLong(finalState.getRevision());
+        }
+        return buffer.flip();
+    }
+
+    static FinalState decodeFinalState(final ByteBuffer payload) {
+        payload.position(0);
+        final var finalState = new FinalState()
+                .withPartitionKey(getString(payload))
+                .withParticipantId(getString(payload))
+                .withBalance(payload.getLong())
+                .withCurrency(currency(payload.get()))
+                .with_etag(getString(payload));
+        if (!payload.hasRemaining()) {
+            return finalState;
+        }
+        final var otherBalances = new EnumMap<Currency, Long>(Currency.class);
+        for (int count = payload.get(); count > 0; count--) {
+            otherBalances.put(currency(payload.get()), payload.getLong());
+        }
+        final var shards = payload.hasRemaining() ? payload.getInt() : -1;
+        List<FinalState.Applied> applied = null;
+        if (payload.hasRemaining()) {
+            for (int count = payload.getInt(); count > 0; count--) {
+                if (applied == null) {
+                    applied = new ArrayList<>();
+                }
+                final var id = getString(payload);
+                final var settled = payload.getLong();
+                applied.add(new FinalState.Applied(id, settled == Long.MIN_VALUE ? null : settled));
+            }
+        }
+        return finalState
+                .withOtherBalances(otherBalances.isEmpty() ? null : otherBalances)
+                .withShards(shards < 0 ? null : shards)
+                .withApplied(applied)
+                .withRevision(payload.hasRemaining() ? payload.getLong() : 0);
+    }
+
+    /**
+     * Layout: <code>partitionKey, participantId</code>, the leading fields of an encoded <code>FinalState</code>.
+     */
+    ByteBuffer encodeFinalStateDelete(final FinalState finalState) {
+        final var partitionKey = utf8(finalState.getPartitionKey());
+        final var participantId = utf8(finalState.getParticipantId());
+        return put(put(buffer(size(partitionKey) + size(participantId)), partitionKey), participantId).flip();
+    }
+
+    static FinalState decodeFinalStateDelete(final ByteBuffer payload) {
+        payload.position(0);
+        return new FinalState().withPartitionKey(getString(payload)).withParticipantId(getString(payload));
+    }
+
+    ByteBuffer encodeEmpty() {
+        return buffer(1).put((byte) 0).flip();
+    }
+
+    private ByteBuffer buffer(final int size) {
+        var buffer = buffers.get();
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+            buffers.set(buffer);
+        }
+        return buffer.clear();
+    }
+
+    private static byte[] utf8(final String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int size(final byte[] value) {
+        return Integer.BYTES + (value == null ? 0 : value.length);
+    }
+
+    private static ByteBuffer put(final ByteBuffer buffer, final byte[] value) {
+        if (value == null) {
+            return buffer.putInt(-1);
+        }
+        return buffer.putInt(value.length).put(value);
+    }
+
+    private static String getString(final ByteBuffer payload) {
+        final var length = payload.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final var value = new byte[length];
+        payload.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    private static byte ordinal(final Currency currency) {
+        return (byte) (currency == null ? -1 : currency.ordinal());
+    }
+
+    private static Currency currency(final byte ordinal) {
+        return ordinal < 0 ? null : CURRENCIES[ordinal];
+    }
+}
@@ -0,0 +1,64 @@
+package com.seltzer.split.domain.repository.local;
+
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Repository;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <code>FinalState</code>s served from memory, like {@link InMemoryFinalStateRepository}, with every write also appended to the
+ * {@link LocalLedgerLog} so that they can be recovered from the last snapshot of the {@link LocalLedgerSnapshotter}.
+ */
+@Repository
+@Profile("local-ledger")
+public class LocalLedgerFinalStateRepository extends InMemoryFinalStateRepository {
+    private final LocalLedgerLog ledgerLog;
+    private final LocalLedgerCodec codec = new LocalLedgerCodec();
+
+    public LocalLedgerFinalStateRepository(final LocalLedgerLog ledgerLog) {
+        this.ledgerLog = ledgerLog;
+    }
+
+    @Override
+    protected void onSaved(final FinalState finalState) {
+        ledgerLog.append(LocalLedgerCodec.FINAL_STATE, codec.encode(finalState));
+    }
+
+    @Override
+    protected void onDeleted(final FinalState finalState) {
+        ledgerLog.append(LocalLedgerCodec.FINAL_STATE_DELETE, codec.encodeFinalStateDelete(finalState));
+    }
+
+    @Override
+    protected void onDeletedAll() {
+        ledgerLog.append(LocalLedgerCodec.FINAL_STATE_DELETE_ALL, codec.encodeEmpty());
+    }
+
+    /**
+     * Applies a record read back from the log by {@link LocalLedgerLog#recover(LocalLedgerLog.Visitor)}.
+     */
+    void recover(final byte type, final ByteBuffer payload) {
+        switch (type) {
+            case LocalLedgerCodec.FINAL_STATE:
+                restore(LocalLedgerCodec.decodeFinalState(payload));
+                break;
+            case LocalLedgerCodec.FINAL_STATE_DELETE:
+                restoreDelete(LocalLedgerCodec.decodeFinalStateDelete(payload));
+                break;
+            case LocalLedgerCodec.FINAL_STATE_DELETE_ALL:
+                restoreDeleteAll();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Loads a <code>FinalState</code> from a snapshot.
+     */
+    void recover(final FinalState finalState) {
+        restore(finalState);
+    }
+}
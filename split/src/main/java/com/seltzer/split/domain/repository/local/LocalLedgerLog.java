@@ -0,0 +1,239 @@
+package com.seltzer.split.domain.repository.local;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log of the local ledger, stored in fixed-size memory-mapped segment files. Every record is framed as
+ * <code>[int length][byte type][payload][int crc]</code>, the checksum covering the type and the payload. A record is
+ * addressed by its position, <code>segment * segmentSize + offset</code>, and reading one never locks.
+ * <p>
+ * Segment files are preallocated with zeros, so a zero length marks the end of the records of a segment. On recovery the log is
+ * read up to the first record that is incomplete or fails its checksum, which is where a crash interrupted the last append, and
+ * everything after it is erased before appending resumes. Appended records reach the OS page cache right away and so survive a
+ * crash of the process; they are forced to the device on every append only if <code>split.local-ledger.sync-on-write</code>
+ * is set, and otherwise on {@link #force()}.
+ */
+@Slf4j
+@Component
+@Profile("local-ledger")
+public class LocalLedgerLog {
+    private static final int HEADER_BYTES = Integer.BYTES + 1;
+    private static final int FRAME_BYTES = HEADER_BYTES + Integer.BYTES;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean syncOnWrite;
+    private final List<FileChannel> channels = new ArrayList<>();
+    private final CRC32C checksum = new CRC32C();
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+    private long end = -1;
+
+    public LocalLedgerLog(@Value("${split.local-ledger.directory:ledger}") final Path directory,
+                          @Value("${split.local-ledger.segment-size:67108864}") final int segmentSize,
+                          @Value("${split.local-ledger.sync-on-write:false}") final boolean syncOnWrite) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncOnWrite = syncOnWrite;
+    }
+
+    /**
+     * A record read back from the log. The payload is only valid during the call.
+     */
+    @FunctionalInterface
+    public interface Visitor {
+        void visit(long position, byte type, ByteBuffer payload);
+    }
+
+    /**
+     * @param visitor Called with every intact record, in the order they were appended.
+     * @return The number of records visited.
+     * @apiNote Maps the existing segments, reads them back and positions the log for appending after the last intact record.
+     * Must be called once, before anything is appended.
+     */
+    public synchronized long recover(@NonNull final Visitor visitor) {
+        if (end >= 0) {
+            throw new IllegalStateException("The local ledger log has already been recovered");
+        }
+        try {
+            Files.createDirectories(directory);
+            for (int segment = 0; Files.exists(segmentPath(segment)); segment++) {
+                map(segment);
+            }
+            if (segments.length == 0) {
+                map(0);
+            }
+            long records = 0;
+            var segment = 0;
+            var offset = 0;
+            while (true) {
+                final var buffer = segments[segment];
+                final var length = offset + HEADER_BYTES <= segmentSize ? buffer.getInt(offset) : 0;
+                if (length == 0 && segment + 1 < segments.length && isRolled(segment, offset)) {
+                    segment++;
+                    offset = 0;
+                    continue;
+                }
+                if (length <= 0 || length > segmentSize - offset - FRAME_BYTES) {
+                    break;
+                }
+                final var type = buffer.get(offset + Integer.BYTES);
+                final var payload = buffer.slice(offset + HEADER_BYTES, length);
+                checksum.reset();
+                checksum.update(type);
+                checksum.update(payload.duplicate());
+                if ((int) checksum.getValue() != buffer.getInt(offset + HEADER_BYTES + length)) {
+                    log.warn("Discarding the torn record at offset {} of segment {}", offset, segment);
+                    break;
+                }
+                visitor.visit(position(segment, offset), type, payload);
+                records++;
+                offset += FRAME_BYTES + length;
+            }
+            truncate(segment, offset);
+            end = position(segment, offset);
+            return records;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @param type    The type of the record, which is handed back on recovery.
+     * @param payload The remaining bytes of the buffer are appended.
+     * @return The position of the record.
+     */
+    public synchronized long append(final byte type, @NonNull final ByteBuffer payload) {
+        if (end < 0) {
+            throw new IllegalStateException("The local ledger log has not been recovered yet");
+        }
+        final var length = payload.remaining();
+        if (length == 0 || length > segmentSize - FRAME_BYTES) {
+            throw new IllegalArgumentException("Cannot append a record of " + length + " bytes to segments of " + segmentSize + " bytes");
+        }
+        var segment = (int) (end / segmentSize);
+        var offset = (int) (end % segmentSize);
+        if (offset + FRAME_BYTES + length > segmentSize) {
+            segment++;
+            offset = 0;
+            try {
+                map(segment);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        final var buffer = segments[segment];
+        checksum.reset();
+        checksum.update(type);
+        checksum.update(payload.duplicate());
+        buffer.put(offset + Integer.BYTES, type);
+        buffer.put(offset + HEADER_BYTES, payload, payload.position(), length);
+        buffer.putInt(offset + HEADER_BYTES + length, (int) checksum.getValue());
+        buffer.putInt(offset, length); // written last, so that a record is never seen before its payload.
+        if (syncOnWrite) {
+            buffer.force(offset, FRAME_BYTES + length);
+        }
+        final var position = position(segment, offset);
+        end = position + FRAME_BYTES + length;
+        return position;
+    }
+
+    /**
+     * @return The payload of the record at the given position, which must have been returned by {@link #append(byte, ByteBuffer)}
+     * or handed to a {@link Visitor}.
+     */
+    public ByteBuffer read(final long position) {
+        final var buffer = segments[(int) (position / segmentSize)];
+        final var offset = (int) (position % segmentSize);
+        return buffer.slice(offset + HEADER_BYTES, buffer.getInt(offset));
+    }
+
+    /**
+     * @return The position the next record will be appended at.
+     */
+    public synchronized long getEnd() {
+        return end;
+    }
+
+    /**
+     * Forces everything appended so far to the storage device.
+     */
+    public synchronized void force() {
+        for (final var segment : segments) {
+            segment.force();
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (end >= 0) {
+            force();
+        }
+        for (final var channel : channels) {
+            channel.close();
+        }
+        channels.clear();
+        segments = new MappedByteBuffer[0];
+        end = -1;
+    }
+
+    /**
+     * @return Whether the records of the segment end at the given offset because the next one did not fit into it.
+     */
+    private boolean isRolled(final int segment, final int offset) {
+        return segments[segment + 1].getInt(0) != 0;
+    }
+
+    /**
+     * Erases everything from the given offset on, including all the later segments.
+     */
+    private void truncate(final int segment, final int offset) throws IOException {
+        final var buffer = segments[segment];
+        final var zeros = new byte[Math.min(1 << 16, segmentSize)];
+        for (int i = offset; i < segmentSize; i += zeros.length) {
+            buffer.put(i, zeros, 0, Math.min(zeros.length, segmentSize - i));
+        }
+        for (int later = segments.length - 1; later > segment; later--) {
+            channels.remove(later).close();
+            Files.delete(segmentPath(later));
+        }
+        final var remaining = new MappedByteBuffer[segment + 1];
+        System.arraycopy(segments, 0, remaining, 0, remaining.length);
+        segments = remaining;
+    }
+
+    private void map(final int segment) throws IOException {
+        // mapping beyond the end of a new file extends it with zeros.
+        final var channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        channels.add(channel);
+        final var mapped = new MappedByteBuffer[segment + 1];
+        System.arraycopy(segments, 0, mapped, 0, segments.length);
+        mapped[segment] = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segments = mapped;
+    }
+
+    private long position(final int segment, final int offset) {
+        return (long) segment * segmentSize + offset;
+    }
+
+    private Path segmentPath(final int segment) {
+        return directory.resolve(String.format("segment-%08d.log", segment));
+    }
+}
@@ -0,0 +1,182 @@
+package com.seltzer.split.domain.repository.local;
+
+import com.seltzer.split.domain.model.FinalState;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Recovers the local ledger on startup and snapshots its <code>FinalState</code>s periodically and on shutdown.
+ * <p>
+ * A snapshot stores every <code>FinalState</code> together with the position the log had reached when the snapshot started.
+ * Writers are not paused while it is taken, so a snapshot may already contain some writes made after that position; replaying
+ * the log from the position reapplies those writes, and as every record of a <code>FinalState</code> holds its full state, the
+ * result is the same. Recovery loads the latest intact snapshot, then reads the log once from the start: transaction records are
+ * indexed wherever they are, <code>FinalState</code> records only from the snapshot's position on.
+ * <p>
+ * Never created lazily, so that recovery is over before the repositories serve a request.
+ */
+@Slf4j
+@Component
+@Lazy(false)
+@Profile("local-ledger")
+public class LocalLedgerSnapshotter {
+    private static final int MAGIC = 0x53504c54; // "SPLT"
+    private static final int FORMAT = 1;
+
+    private final LocalLedgerLog ledgerLog;
+    private final LocalLedgerTransactionRepository transactionRepository;
+    private final LocalLedgerFinalStateRepository finalStateRepository;
+    private final Path snapshot;
+    private final Duration interval;
+    private final LocalLedgerCodec codec = new LocalLedgerCodec();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        final var thread = new Thread(runnable, "split-local-ledger-snapshotter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LocalLedgerSnapshotter(final LocalLedgerLog ledgerLog,
+                                  final LocalLedgerTransactionRepository transactionRepository,
+                                  final LocalLedgerFinalStateRepository finalStateRepository,
+                                  @Value("${split.local-ledger.directory:ledger}") final Path directory,
+                                  @Value("${split.local-ledger.snapshot-interval:PT1M}") final Duration interval) {
+        this.ledgerLog = ledgerLog;
+        this.transactionRepository = transactionRepository;
+        this.finalStateRepository = finalStateRepository;
+        this.snapshot = directory.resolve("final-states.snapshot");
+        this.interval = interval;
+    }
+
+    @PostConstruct
+    public void start() {
+        recover();
+        scheduler.scheduleWithFixedDelay(this::snapshotQuietly, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+        snapshot();
+    }
+
+    /**
+     * @return The number of log records read.
+     */
+    long recover() {
+        final var start = System.nanoTime();
+        final var from = loadSnapshot();
+        final var records = ledgerLog.recover((position, type, payload) -> {
+            if (type <= LocalLedgerCodec.TRANSACTION_DELETE_ALL) {
+                transactionRepository.recover(position, type, payload);
+            } else if (position >= from) {
+                finalStateRepository.recover(type, payload);
+            }
+        });
+        transactionRepository.recovered();
+        log.info("Recovered the local ledger from {} log records in {} ms: {} transactions, {} final states", records,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), transactionRepository.count(), finalStateRepository.count());
+        return records;
+    }
+
+    /**
+     * Writes a new snapshot next to the current one and then replaces it, so that a crash midway leaves the previous snapshot.
+     */
+    void snapshot() {
+        final var position = ledgerLog.getEnd();
+        final var temporary = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try {
+            final var checksum = new CRC32C();
+            try (var out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)), checksum))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeLong(position);
+                final var finalStates = finalStateRepository.findAll();
+                out.writeInt(finalStates.size());
+                for (final var finalState : finalStates) {
+                    final var encoded = codec.encode(finalState);
+                    out.writeInt(encoded.remaining());
+                    out.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+                }
+                out.flush();
+                out.writeInt((int) checksum.getValue());
+            }
+            ledgerLog.force(); // the records before the position must be durable before the snapshot that skips them.
+            Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Snapshotted the local ledger at log position {}", position);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void snapshotQuietly() {
+        try {
+            snapshot();
+        } catch (RuntimeException e) {
+            log.error("Failed to snapshot the local ledger", e);
+        }
+    }
+
+    /**
+     * @return The log position the snapshot was taken at, or 0 if there is no intact snapshot, in which case the
+     * <code>FinalState</code>s are recovered from the whole log.
+     */
+    private long loadSnapshot() {
+        final var checksum = new CRC32C();
+        try (var in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(snapshot)), checksum))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                log.warn("Ignoring {}, which is not a snapshot this version can read", snapshot);
+                return 0;
+            }
+            final var position = in.readLong();
+            final var count = in.readInt();
+            final var finalStates = new FinalState[count];
+            var bytes = new byte[256];
+            for (int i = 0; i < count; i++) {
+                final var length = in.readInt();
+                if (length > bytes.length) {
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                }
+                in.readFully(bytes, 0, length);
+                finalStates[i] = LocalLedgerCodec.decodeFinalState(ByteBuffer.wrap(bytes, 0, length));
+            }
+            final var expected = (int) checksum.getValue();
+            if (in.readInt() != expected) {
+                log.warn("Ignoring {}, which is corrupt", snapshot);
+                return 0;
+            }
+            for (final var finalState : finalStates) {
+                finalStateRepository.recover(finalState);
+            }
+            return position;
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            log.warn("Ignoring {}, which could not be read", snapshot, e);
+            return 0;
+        }
+    }
+}
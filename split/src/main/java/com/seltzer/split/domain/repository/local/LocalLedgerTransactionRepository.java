@@ -0,0 +1,382 @@
+package com.seltzer.split.domain.repository.local;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.TransactionRepository;
+import com.seltzer.split.domain.repository.memory.Queries;
+import lombok.NonNull;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Repository;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Transactions kept in the {@link LocalLedgerLog}. The heap only holds an index from each partition to the positions of its
+ * records, with the hash of every record's ID to narrow down point reads, which is 12 bytes per transaction; reads decode the
+ * records straight from the mapped log. Transactions are not versioned, so saving one upserts it, as with Cosmos.
+ */
+@Repository
+@Profile("local-ledger")
+public class LocalLedgerTransactionRepository implements TransactionRepository {
+    private final LocalLedgerLog ledgerLog;
+    private final LocalLedgerCodec codec = new LocalLedgerCodec();
+    private final ConcurrentHashMap<String, Partition> partitions = new ConcurrentHashMap<>();
+    private Map<Long, Partition> recovering = new HashMap<>();
+
+    public LocalLedgerTransactionRepository(final LocalLedgerLog ledgerLog) {
+        this.ledgerLog = ledgerLog;
+    }
+
+    /**
+     * Rebuilds the index entry of a record read back from the log by {@link LocalLedgerLog#recover(LocalLedgerLog.Visitor)}.
+     * Partitions are looked up by a hash of the record's encoded participants, so that only the first record of a partition has
+     * its key decoded.
+     */
+    void recover(final long position, final byte type, final ByteBuffer payload) {
+        switch (type) {
+            case LocalLedgerCodec.TRANSACTION:
+                final var partition = recovering.computeIfAbsent(LocalLedgerCodec.hashTransactionPartition(payload),
+                        hash -> partitions.computeIfAbsent(LocalLedgerCodec.decodeTransactionPartitionKey(payload), key -> new Partition()));
+                final var replaces = LocalLedgerCodec.decodeReplaces(payload);
+                if (replaces != LocalLedgerCodec.NO_POSITION) {
+                    partition.remove(replaces);
+                }
+                partition.add(position, LocalLedgerCodec.decodeTransactionIdHash(payload));
+                break;
+            case LocalLedgerCodec.TRANSACTION_DELETE:
+                final var deletedFrom = partitions.get(LocalLedgerCodec.decodeDeletedPartitionKey(payload));
+                if (deletedFrom != null) {
+                    deletedFrom.remove(LocalLedgerCodec.decodeDeletedPosition(payload));
+                }
+                break;
+            case LocalLedgerCodec.TRANSACTION_DELETE_ALL:
+                partitions.clear();
+                recovering.clear();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Called once all the records have been recovered.
+     */
+    void recovered() {
+        recovering = new HashMap<>();
+    }
+
+    @Override
+    public <S extends Transaction> S save(@NonNull final S transaction) {
+        final var partitionKey = getPartitionKey(transaction);
+        final var partition = partitions.computeIfAbsent(partitionKey, key -> new Partition());
+        synchronized (partition) {
+            final var replaces = find(partition, transaction.getId());
+            final var position = ledgerLog.append(LocalLedgerCodec.TRANSACTION, codec.encode(transaction, replaces));
+            if (replaces != LocalLedgerCodec.NO_POSITION) {
+                partition.remove(replaces);
+            }
+            partition.add(position, transaction.getId().hashCode());
+        }
+        return transaction;
+    }
+
+    @Override
+    public <S extends Transaction> Iterable<S> saveAll(@NonNull final Iterable<S> transactions) {
+        final var saved = new ArrayList<S>();
+        for (final var transaction : transactions) {
+            saved.add(save(transaction));
+        }
+        return saved;
+    }
+
+    @Override
+    public Optional<Transaction> findById(@NonNull final String id, @NonNull final PartitionKey partitionKey) {
+        final var partition = partitions.get(Queries.valueOf(partitionKey));
+        if (partition == null) {
+            return Optional.empty();
+        }
+        final var position = find(partition, id);
+        return position == LocalLedgerCodec.NO_POSITION ? Optional.empty() : Optional.of(read(position));
+    }
+
+    /**
+     * @apiNote A cross-partition query, as in Cosmos: every partition is probed.
+     */
+    @Override
+    public Optional<Transaction> findById(@NonNull final String id) {
+        for (final var partition : partitions.values()) {
+            final var position = find(partition, id);
+            if (position != LocalLedgerCodec.NO_POSITION) {
+                return Optional.of(read(position));
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public boolean existsById(@NonNull final String id) {
+        return findById(id).isPresent();
+    }
+
+    /**
+     * @return The transactions of the partition in the order they were saved.
+     */
+    @Override
+    public List<Transaction> findAll(@NonNull final PartitionKey partitionKey) {
+        final var partition = partitions.get(Queries.valueOf(partitionKey));
+        return partition == null ? new ArrayList<>() : read(partition.index);
+    }
+
+    @Override
+    public Page<Transaction> findByPartitionKey(@NonNull final String partitionKey, @NonNull final Pageable pageable) {
+        final var partition = partitions.get(partitionKey);
+        final var transactions = partition == null ? new ArrayList<Transaction>() : read(partition.index);
+        transactions.sort(Queries.comparator(pageable.getSort()));
+        return Queries.page(transactions, pageable);
+    }
+
+    @Override
+    public List<Transaction> findHistory(@NonNull final String partitionKey, final long createdAt, @NonNull final String id,
+                                         final int limit) {
+        final var partition = partitions.get(partitionKey);
+        return partition == null ? new ArrayList<>() : Queries.history(decoding(partition.index), createdAt, id, limit);
+    }
+
+    /**
+     * @apiNote Decodes every partition for every page, which is fine for the batch jobs that page through it.
+     */
+    @Override
+    public List<Transaction> findReplayPage(final long sequence, final long createdAt, @NonNull final String id, final int limit) {
+        return Queries.replay(decodingAll(), sequence, createdAt, id, limit);
+    }
+
+    /**
+     * @apiNote Decodes every partition for every page, as {@link #findReplayPage(long, long, String, int)} does.
+     */
+    @Override
+    public List<Transaction> findPartitionReplayPage(@NonNull final String partitionKey, final long sequence, final long createdAt,
+                                                     @NonNull final String id, final int limit) {
+        return Queries.partitionReplay(decodingAll(), partitionKey, sequence, createdAt, id, limit);
+    }
+
+    /**
+     * @return The keys of the partitions holding transactions, as of the call.
+     */
+    Set<String> getPartitionKeys() {
+        return Set.copyOf(partitions.keySet());
+    }
+
+    @Override
+    public List<Transaction> findAll() {
+        final var all = new ArrayList<Transaction>();
+        partitions.values().forEach(partition -> all.addAll(read(partition.index)));
+        return all;
+    }
+
+    @Override
+    public List<Transaction> findAll(@NonNull final Sort sort) {
+        final var all = findAll();
+        all.sort(Queries.comparator(sort));
+        return all;
+    }
+
+    /**
+     * @apiNote Decodes and sorts the whole log for every page, which is fine for the batch jobs that page through it.
+     */
+    @Override
+    public Page<Transaction> findAll(@NonNull final Pageable pageable) {
+        return Queries.page(findAll(pageable.getSort()), pageable);
+    }
+
+    @Override
+    public List<Transaction> findAllById(@NonNull final Iterable<String> ids) {
+        return StreamSupport.stream(ids.spliterator(), false)
+                .map(this::findById)
+                .flatMap(Optional::stream)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public long count() {
+        return partitions.values().stream().mapToLong(partition -> partition.index.size).sum();
+    }
+
+    @Override
+    public void deleteById(@NonNull final String id, @NonNull final PartitionKey partitionKey) {
+        delete(Queries.valueOf(partitionKey), id);
+    }
+
+    @Override
+    public void deleteById(@NonNull final String id) {
+        partitions.keySet().forEach(partitionKey -> delete(partitionKey, id));
+    }
+
+    @Override
+    public void delete(@NonNull final Transaction transaction) {
+        delete(getPartitionKey(transaction), transaction.getId());
+    }
+
+    @Override
+    public void deleteAllById(@NonNull final Iterable<? extends String> ids) {
+        ids.forEach(this::deleteById);
+    }
+
+    @Override
+    public void deleteAll(@NonNull final Iterable<? extends Transaction> transactions) {
+        transactions.forEach(this::delete);
+    }
+
+    @Override
+    public void deleteAll() {
+        synchronized (ledgerLog) {
+            ledgerLog.append(LocalLedgerCodec.TRANSACTION_DELETE_ALL, codec.encodeEmpty());
+            partitions.clear();
+        }
+    }
+
+    private void delete(final String partitionKey, final String id) {
+        final var partition = partitions.get(partitionKey);
+        if (partition == null) {
+            return;
+        }
+        synchronized (partition) {
+            final var position = find(partition, id);
+            if (position != LocalLedgerCodec.NO_POSITION) {
+                ledgerLog.append(LocalLedgerCodec.TRANSACTION_DELETE, codec.encodeTransactionDelete(partitionKey, position));
+                partition.remove(position);
+            }
+        }
+    }
+
+    /**
+     * @return The position of the record with the given ID, or {@link LocalLedgerCodec#NO_POSITION}.
+     */
+    private long find(final Partition partition, final String id) {
+        final var index = partition.index;
+        final var hash = id.hashCode();
+        for (int i = 0; i < index.size; i++) {
+            if (index.idHashes[i] == hash) {
+                final var position = index.positions[i];
+                if (id.equals(read(position).getId())) {
+                    return position;
+                }
+            }
+        }
+        return LocalLedgerCodec.NO_POSITION;
+    }
+
+    private Transaction read(final long position) {
+        return LocalLedgerCodec.decodeTransaction(ledgerLog.read(position));
+    }
+
+    private List<Transaction> read(final Index index) {
+        final var transactions = new ArrayList<Transaction>(index.size);
+        for (int i = 0; i < index.size; i++) {
+            transactions.add(read(index.positions[i]));
+        }
+        return transactions;
+    }
+
+    /**
+     * @return The transactions of the index, decoded one at a time as they are iterated over.
+     */
+    private Iterable<Transaction> decodingAll() {
+        return () -> partitions.values().stream()
+                .flatMap(partition -> StreamSupport.stream(decoding(partition.index).spliterator(), false))
+                .iterator();
+    }
+
+    private Iterable<Transaction> decoding(final Index index) {
+        return () -> new Iterator<>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < index.size;
+            }
+
+            @Override
+            public Transaction next() {
+                if (next >= index.size) {
+                    throw new NoSuchElementException();
+                }
+                return read(index.positions[next++]);
+            }
+        };
+    }
+
+    private static String getPartitionKey(final Transaction transaction) {
+        final var payment = transaction.getPayment();
+        if (payment == null) {
+            throw new IllegalArgumentException("Transaction " + transaction.getId() + " has no participant");
+        }
+        return Transaction.getPartitionKey(transaction.getUserId(), payment.getUserId());
+    }
+
+    /**
+     * Positions of the records of one partition in the order they were appended. The arrays are shared between successive
+     * indexes, which only ever append beyond the size of their predecessors, so a reader holding an index sees a stable view.
+     */
+    private static final class Index {
+        static final Index EMPTY = new Index(new long[0], new int[0], 0);
+
+        final long[] positions;
+        final int[] idHashes;
+        final int size;
+
+        Index(final long[] positions, final int[] idHashes, final int size) {
+            this.positions = positions;
+            this.idHashes = idHashes;
+            this.size = size;
+        }
+    }
+
+    private static final class Partition {
+        volatile Index index = Index.EMPTY;
+
+        synchronized void add(final long position, final int idHash) {
+            var positions = index.positions;
+            var idHashes = index.idHashes;
+            final var size = index.size;
+            if (size == positions.length) {
+                final var capacity = Math.max(4, size * 2);
+                positions = Arrays.copyOf(positions, capacity);
+                idHashes = Arrays.copyOf(idHashes, capacity);
+            }
+            positions[size] = position;
+            idHashes[size] = idHash;
+            index = new Index(positions, idHashes, size + 1);
+        }
+
+        synchronized void remove(final long position) {
+            final var current = index;
+            for (int i = 0; i < current.size; i++) {
+                if (current.positions[i] == position) {
+                    final var positions = new long[current.positions.length];
+                    final var idHashes = new int[current.idHashes.length];
+                    System.arraycopy(current.positions, 0, positions, 0, i);
+                    System.arraycopy(current.idHashes, 0, idHashes, 0, i);
+                    System.arraycopy(current.positions, i + 1, positions, i, current.size - i - 1);
+                    System.arraycopy(current.idHashes, i + 1, idHashes, i, current.size - i - 1);
+                    index = new Index(positions, idHashes, current.size - 1);
+                    return;
+                }
+            }
+        }
+    }
+}
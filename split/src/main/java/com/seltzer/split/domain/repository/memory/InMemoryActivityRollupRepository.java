@@ -0,0 +1,56 @@
+package com.seltzer.split.domain.repository.memory;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.ActivityRollup;
+import com.seltzer.split.domain.repository.ActivityRollupRepository;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Rollups partitioned by <code>userId</code>, with <code>_etag</code> preconditions enforced. As a partition is kept sorted by
+ * ID, a range of buckets is read without looking at the rest of the user's rollups.
+ */
+@Repository
+@Profile("in-memory")
+public class InMemoryActivityRollupRepository extends InMemoryCosmosRepository<ActivityRollup> implements ActivityRollupRepository {
+    @Override
+    protected String getPartitionKey(final ActivityRollup rollup) {
+        return rollup.getUserId();
+    }
+
+    @Override
+    protected String getId(final ActivityRollup rollup) {
+        return rollup.getId();
+    }
+
+    @Override
+    protected String getVersion(final ActivityRollup rollup) {
+        return rollup.get_etag();
+    }
+
+    @Override
+    protected ActivityRollup withVersion(final ActivityRollup rollup, final String version) {
+        return rollup.with_etag(version);
+    }
+
+    @Override
+    protected boolean isVersioned() {
+        return true;
+    }
+
+    @Override
+    public List<ActivityRollup> findByIdRange(final String userId, final String fromId, final String toId) {
+        return super.findByIdRange(userId, fromId, toId);
+    }
+
+    @Override
+    public List<ActivityRollup> findByIdRange(final String userId, final String participantId, final String fromId, final String toId) {
+        final var range = findByIdRange(userId, fromId, toId);
+        return participantId == null ? range : range.stream()
+                .filter(rollup -> participantId.equals(rollup.getParticipantId()))
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,426 @@
+package com.seltzer.split.domain.repository.memory;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.spring.data.cosmos.repository.CosmosRepository;
+import lombok.NonNull;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Embedded stand-in for a Cosmos container. Partitions are kept sorted by partition key, and every partition keeps its documents
+ * in a skip list sorted by ID, so a point read or a write costs a logarithmic number of steps however large the partition grows,
+ * and the whole container can be walked in a stable order. Writes lock their partition, so that checking a version and storing
+ * the document are one step; reads never block. When the container has a version field, writes are conditional the way Cosmos
+ * makes them: a document without a version is created (409 if it exists), and a document with one replaces, or deletes, the
+ * stored copy only if the versions still match (412 otherwise).
+ *
+ * @param <T> The type of the documents.
+ */
+public abstract class InMemoryCosmosRepository<T> implements CosmosRepository<T, String> {
+    private static final int MAX_BATCH_SIZE = 100; // the most operations Cosmos takes in one transactional batch
+
+    private final ConcurrentSkipListMap<String, Partition<T>> partitions = new ConcurrentSkipListMap<>();
+    // seeded from the clock so that versions handed out after a restart never repeat those of documents restored from storage.
+    private final AtomicLong versions = new AtomicLong(System.currentTimeMillis() << 20);
+    // bumped by every write, so that a sorted copy of the container can be told apart from a stale one.
+    private final AtomicLong modifications = new AtomicLong();
+    private volatile SortedCopy<T> sortedCopy;
+
+    /**
+     * @return The value of the document's <code>@PartitionKey</code> field.
+     */
+    protected abstract String getPartitionKey(T document);
+
+    protected abstract String getId(T document);
+
+    /**
+     * @return The value of the document's <code>@Version</code> field, or <code>null</code> if it has none yet.
+     * The default implementation is for containers whose documents are not versioned, and are therefore always upserted.
+     */
+    protected String getVersion(final T document) {
+        return null;
+    }
+
+    /**
+     * @return A copy of the document carrying the given version, or the document itself if the container is not versioned.
+     */
+    protected T withVersion(final T document, final String version) {
+        return document;
+    }
+
+    protected boolean isVersioned() {
+        return false;
+    }
+
+    /**
+     * Called with the partition locked after a document has been saved, so that calls for one partition arrive in the order the
+     * writes were applied in.
+     */
+    protected void onSaved(final T document) {
+    }
+
+    /**
+     * Called with the partition locked after a document has been deleted.
+     */
+    protected void onDeleted(final T document) {
+    }
+
+    /**
+     * Called after all the documents have been deleted.
+     */
+    protected void onDeletedAll() {
+    }
+
+    /**
+     * Called with the partition locked whenever a document is stored, restored ones included, so that subclasses can keep
+     * secondary indexes of the container.
+     *
+     * @param replaced The document stored under the same ID before, or <code>null</code>.
+     */
+    protected void onStored(final T replaced, final T stored) {
+    }
+
+    /**
+     * Called with the partition locked whenever a document is removed, deletes replayed from storage included.
+     */
+    protected void onRemoved(final T removed) {
+    }
+
+    /**
+     * Called whenever all the documents are removed, deletes replayed from storage included.
+     */
+    protected void onCleared() {
+    }
+
+    @Override
+    public <S extends T> S save(@NonNull final S document) {
+        final var partition = partitions.computeIfAbsent(toKey(getPartitionKey(document)), key -> new Partition<>());
+        synchronized (partition) {
+            checkVersion(partition, document);
+            return store(partition, document);
+        }
+    }
+
+    /**
+     * Saves documents of one partition all together, the way a Cosmos transactional batch does: every version is checked before
+     * anything is stored, so either all the documents are saved or, with the 409 or 412 of the first that can't be, none is.
+     *
+     * @param documents At most 100 documents of the partition, each with a different ID.
+     * @return The documents saved, in the given order.
+     */
+    protected List<T> saveBatch(@NonNull final String partitionKey, @NonNull final List<T> documents) {
+        if (documents.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("At most " + MAX_BATCH_SIZE + " documents can be saved in one batch, not "
+                    + documents.size());
+        }
+        final var ids = new HashSet<String>();
+        for (final var document : documents) {
+            if (!partitionKey.equals(getPartitionKey(document))) {
+                throw new IllegalArgumentException("Document " + getId(document) + " is not in partition " + partitionKey);
+            }
+            if (!ids.add(getId(document))) {
+                throw new IllegalArgumentException("Document " + getId(document) + " appears twice in the batch");
+            }
+        }
+        final var partition = partitions.computeIfAbsent(toKey(partitionKey), key -> new Partition<>());
+        synchronized (partition) {
+            documents.forEach(document -> checkVersion(partition, document));
+            final var saved = new ArrayList<T>(documents.size());
+            documents.forEach(document -> saved.add(store(partition, document)));
+            return saved;
+        }
+    }
+
+    /**
+     * Throws if the document can't be saved over the one stored in the locked partition.
+     */
+    private void checkVersion(final Partition<T> partition, final T document) {
+        if (!isVersioned()) {
+            return;
+        }
+        final var id = getId(document);
+        final var stored = partition.documents.get(id);
+        final var version = getVersion(document);
+        if (version == null && stored != null) {
+            throw StoreRejection.conflict(id);
+        }
+        if (version != null && (stored == null || !version.equals(getVersion(stored)))) {
+            throw StoreRejection.preconditionFailed(id);
+        }
+    }
+
+    /**
+     * Stores the document in the locked partition under a new version.
+     */
+    private <S extends T> S store(final Partition<T> partition, final S document) {
+        @SuppressWarnings("unchecked") final var saved = (S) withVersion(document, Long.toString(versions.incrementAndGet()));
+        onStored(partition.documents.put(getId(document), saved), saved);
+        modifications.incrementAndGet();
+        onSaved(saved);
+        return saved;
+    }
+
+    /**
+     * Stores the document as it is, without checking or assigning its version and without calling {@link #onSaved(Object)}.
+     * Meant for loading documents back from durable storage.
+     */
+    protected void restore(@NonNull final T document) {
+        final var partition = partitions.computeIfAbsent(toKey(getPartitionKey(document)), key -> new Partition<>());
+        synchronized (partition) {
+            onStored(partition.documents.put(getId(document), document), document);
+            modifications.incrementAndGet();
+        }
+    }
+
+    /**
+     * Deletes the document without calling {@link #onDeleted(Object)}. Meant for replaying deletes from durable storage.
+     */
+    protected void restoreDelete(@NonNull final T document) {
+        delete(toKey(getPartitionKey(document)), getId(document), null, false);
+    }
+
+    /**
+     * Deletes all the documents without calling {@link #onDeletedAll()}.
+     */
+    protected void restoreDeleteAll() {
+        partitions.clear();
+        modifications.incrementAndGet();
+        onCleared();
+    }
+
+    @Override
+    public <S extends T> Iterable<S> saveAll(@NonNull final Iterable<S> documents) {
+        final var saved = new ArrayList<S>();
+        for (final var document : documents) {
+            saved.add(save(document));
+        }
+        return saved;
+    }
+
+    @Override
+    public Optional<T> findById(@NonNull final String id, @NonNull final PartitionKey partitionKey) {
+        final var partition = partitions.get(toKey(partitionKey));
+        return partition == null ? Optional.empty() : Optional.ofNullable(partition.documents.get(id));
+    }
+
+    /**
+     * @apiNote A cross-partition query, as in Cosmos: every partition is probed.
+     */
+    @Override
+    public Optional<T> findById(@NonNull final String id) {
+        for (final var partition : partitions.values()) {
+            final var document = partition.documents.get(id);
+            if (document != null) {
+                return Optional.of(document);
+            }
+        }
+        return Optional.empty();
+    }
+
+    @Override
+    public boolean existsById(@NonNull final String id) {
+        return findById(id).isPresent();
+    }
+
+    /**
+     * @return An unmodifiable copy of the partition, sorted by ID.
+     */
+    @Override
+    public List<T> findAll(@NonNull final PartitionKey partitionKey) {
+        final var partition = partitions.get(toKey(partitionKey));
+        return partition == null ? List.of() : List.copyOf(partition.documents.values());
+    }
+
+    /**
+     * @param fromId The lowest ID to return, included.
+     * @param toId   The ID to stop before.
+     * @return The documents of the partition with IDs in the given range, sorted by ID, found without looking at the others.
+     */
+    protected List<T> findByIdRange(@NonNull final String partitionKey, @NonNull final String fromId, @NonNull final String toId) {
+        final var partition = partitions.get(toKey(partitionKey));
+        return partition == null || fromId.compareTo(toId) >= 0
+                ? List.of()
+                : List.copyOf(partition.documents.subMap(fromId, toId).values());
+    }
+
+    /**
+     * @return A page of one partition, sorted by ID unless the page asks for another order.
+     * @apiNote Backs the derived <code>findByPartitionKey</code> queries of the repository interfaces.
+     */
+    protected Page<T> findByPartitionKey(@NonNull final String partitionKey, @NonNull final Pageable pageable) {
+        final var partition = partitions.get(toKey(partitionKey));
+        final var documents = partition == null ? new ArrayList<T>() : new ArrayList<>(partition.documents.values());
+        if (pageable.getSort().isSorted()) {
+            documents.sort(Queries.comparator(pageable.getSort()));
+        }
+        return Queries.page(documents, pageable);
+    }
+
+    @Override
+    public List<T> findAll() {
+        final var all = new ArrayList<T>();
+        partitions.values().forEach(partition -> all.addAll(partition.documents.values()));
+        return all;
+    }
+
+    @Override
+    public List<T> findAll(@NonNull final Sort sort) {
+        final var all = findAll();
+        all.sort(Queries.comparator(sort));
+        return all;
+    }
+
+    /**
+     * @return A page of the container, ordered by partition key then ID unless the page asks for another order.
+     * @apiNote An unsorted page walks the container in place up to the page. A sorted one is cut from a copy of the container
+     * sorted for the first page and reused by the following ones for as long as nothing is written.
+     */
+    @Override
+    public Page<T> findAll(@NonNull final Pageable pageable) {
+        if (pageable.isUnpaged()) {
+            return Queries.page(findAll(pageable.getSort()), pageable);
+        }
+        if (pageable.getSort().isSorted()) {
+            return Queries.page(getSortedCopy(pageable.getSort()), pageable);
+        }
+        final var content = partitions.values().stream()
+                .flatMap(partition -> partition.documents.values().stream())
+                .skip(pageable.getOffset())
+                .limit(pageable.getPageSize())
+                .collect(Collectors.toList());
+        return new PageImpl<>(content, pageable, count());
+    }
+
+    private List<T> getSortedCopy(final Sort sort) {
+        final var copy = sortedCopy;
+        final var modification = modifications.get();
+        if (copy != null && copy.modification == modification && copy.sort.equals(sort)) {
+            return copy.documents;
+        }
+        final var sorted = findAll(sort);
+        sortedCopy = new SortedCopy<>(sort, modification, sorted);
+        return sorted;
+    }
+
+    /**
+     * @apiNote A cross-partition query, as in Cosmos: the documents with any of the IDs in every partition.
+     */
+    @Override
+    public List<T> findAllById(@NonNull final Iterable<String> ids) {
+        final var wanted = StreamSupport.stream(ids.spliterator(), false).distinct().collect(Collectors.toList());
+        final var found = new ArrayList<T>();
+        for (final var partition : partitions.values()) {
+            for (final var id : wanted) {
+                final var document = partition.documents.get(id);
+                if (document != null) {
+                    found.add(document);
+                }
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public long count() {
+        return partitions.values().stream().mapToLong(partition -> partition.documents.size()).sum();
+    }
+
+    @Override
+    public void deleteById(@NonNull final String id, @NonNull final PartitionKey partitionKey) {
+        delete(toKey(partitionKey), id, null, true);
+    }
+
+    @Override
+    public void deleteById(@NonNull final String id) {
+        partitions.keySet().forEach(partitionKey -> delete(partitionKey, id, null, true));
+    }
+
+    /**
+     * @apiNote Conditional on the document's version when it has one, as in Cosmos: 412 if the stored copy has changed since.
+     */
+    @Override
+    public void delete(@NonNull final T document) {
+        delete(toKey(getPartitionKey(document)), getId(document), isVersioned() ? getVersion(document) : null, true);
+    }
+
+    @Override
+    public void deleteAllById(@NonNull final Iterable<? extends String> ids) {
+        ids.forEach(this::deleteById);
+    }
+
+    @Override
+    public void deleteAll(@NonNull final Iterable<? extends T> documents) {
+        documents.forEach(this::delete);
+    }
+
+    @Override
+    public void deleteAll() {
+        partitions.clear();
+        modifications.incrementAndGet();
+        onCleared();
+        onDeletedAll();
+    }
+
+    /**
+     * @param version The version the stored document must have, <code>null</code> to delete it whatever its version.
+     */
+    private void delete(final String partitionKey, final String id, final String version, final boolean notify) {
+        final var partition = partitions.get(partitionKey);
+        if (partition == null) {
+            return;
+        }
+        synchronized (partition) {
+            final var stored = partition.documents.get(id);
+            if (version != null && stored != null && !version.equals(getVersion(stored))) {
+                throw StoreRejection.preconditionFailed(id);
+            }
+            final var deleted = partition.documents.remove(id);
+            if (deleted != null) {
+                modifications.incrementAndGet();
+                onRemoved(deleted);
+                if (notify) {
+                    onDeleted(deleted);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The JSON rendering of the partition key, which keys the partitions; <code>PartitionKey</code> overrides
+     * <code>equals</code> but not <code>hashCode</code>.
+     */
+    private static String toKey(final PartitionKey partitionKey) {
+        return partitionKey.toString();
+    }
+
+    private static String toKey(final String partitionKey) {
+        return toKey(new PartitionKey(partitionKey));
+    }
+
+    private static final class Partition<T> {
+        final ConcurrentSkipListMap<String, T> documents = new ConcurrentSkipListMap<>();
+    }
+
+    private static final class SortedCopy<T> {
+        final Sort sort;
+        final long modification;
+        final List<T> documents;
+
+        SortedCopy(final Sort sort, final long modification, final List<T> documents) {
+            this.sort = sort;
+            this.modification = modification;
+            this.documents = documents;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.seltzer.split.domain.repository.memory;
+
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.repository.FinalStateRepository;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+/**
+ * <code>FinalState</code>s partitioned by <code>userId</code>, or by shard of it, with <code>_etag</code> preconditions enforced.
+ */
+@Repository
+@Profile("in-memory")
+public class InMemoryFinalStateRepository extends InMemoryCosmosRepository<FinalState> implements FinalStateRepository {
+    @Override
+    protected String getPartitionKey(final FinalState finalState) {
+        return finalState.getPartitionKey();
+    }
+
+    @Override
+    protected String getId(final FinalState finalState) {
+        return finalState.getParticipantId();
+    }
+
+    @Override
+    protected String getVersion(final FinalState finalState) {
+        return finalState.get_etag();
+    }
+
+    @Override
+    protected FinalState withVersion(final FinalState finalState, final String version) {
+        return finalState.with_etag(version);
+    }
+
+    @Override
+    protected boolean isVersioned() {
+        return true;
+    }
+
+    @Override
+    public List<FinalState> saveBatch(final String partitionKey, final List<FinalState> finalStates) {
+        return super.saveBatch(partitionKey, finalStates);
+    }
+}
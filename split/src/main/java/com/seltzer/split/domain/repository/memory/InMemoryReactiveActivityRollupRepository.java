@@ -0,0 +1,34 @@
+package com.seltzer.split.domain.repository.memory;
+
+import com.seltzer.split.domain.model.ActivityRollup;
+import com.seltzer.split.domain.repository.ActivityRollupRepository;
+import com.seltzer.split.domain.repository.ReactiveActivityRollupRepository;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+
+/**
+ * The reactive view of whichever embedded {@link ActivityRollupRepository} the active profile provides.
+ */
+@Repository
+@Profile({"in-memory", "local-ledger"})
+public class InMemoryReactiveActivityRollupRepository extends ReactiveCosmosRepositoryAdapter<ActivityRollup>
+        implements ReactiveActivityRollupRepository {
+    private final ActivityRollupRepository rollupRepository;
+
+    public InMemoryReactiveActivityRollupRepository(final ActivityRollupRepository rollupRepository) {
+        super(rollupRepository);
+        this.rollupRepository = rollupRepository;
+    }
+
+    @Override
+    public Flux<ActivityRollup> findByIdRange(final String userId, final String fromId, final String toId) {
+        return call(() -> rollupRepository.findByIdRange(userId, fromId, toId)).flatMapIterable(rollups -> rollups);
+    }
+
+    @Override
+    public Flux<ActivityRollup> findByIdRange(final String userId, final String participantId, final String fromId,
+                                              final String toId) {
+        return call(() -> rollupRepository.findByIdRange(userId, participantId, fromId, toId)).flatMapIterable(rollups -> rollups);
+    }
+}
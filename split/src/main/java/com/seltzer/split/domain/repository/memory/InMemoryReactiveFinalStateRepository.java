@@ -0,0 +1,44 @@
+package com.seltzer.split.domain.repository.memory;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.repository.FinalStateRepository;
+import com.seltzer.split.domain.repository.ReactiveFinalStateRepository;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Repository;
+import reactor.core.publisher.Flux;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * The reactive view of whichever embedded {@link FinalStateRepository} the active profile provides.
+ */
+@Repository
+@Profile({"in-memory", "local-ledger"})
+public class InMemoryReactiveFinalStateRepository extends ReactiveCosmosRepositoryAdapter<FinalState>
+        implements ReactiveFinalStateRepository {
+    private final FinalStateRepository finalStateRepository;
+
+    public InMemoryReactiveFinalStateRepository(final FinalStateRepository finalStateRepository) {
+        super(finalStateRepository);
+        this.finalStateRepository = finalStateRepository;
+    }
+
+    @Override
+    public Flux<FinalState> findByParticipantIds(final String partitionKey, final Collection<String> participantIds) {
+        final var partition = new PartitionKey(partitionKey);
+        return call(() -> participantIds.stream()
+                .map(participantId -> finalStateRepository.findById(participantId, partition))
+                .flatMap(Optional::stream)
+                .collect(Collectors.toList()))
+                .flatMapIterable(finalStates -> finalStates);
+    }
+
+    @Override
+    public Flux<FinalState> saveBatch(final String partitionKey, final List<FinalState> finalStates) {
+        return call(() -> finalStateRepository.saveBatch(partitionKey, finalStates)).flatMapIterable(saved -> saved);
+    }
+}
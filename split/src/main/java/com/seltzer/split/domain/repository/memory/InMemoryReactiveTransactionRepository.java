@@ -0,0 +1,19 @@
+package com.seltzer.split.domain.repository.memory;
+
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.ReactiveTransactionRepository;
+import com.seltzer.split.domain.repository.TransactionRepository;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Repository;
+
+/**
+ * The reactive view of whichever embedded {@link TransactionRepository} the active profile provides.
+ */
+@Repository
+@Profile({"in-memory", "local-ledger"})
+public class InMemoryReactiveTransactionRepository extends ReactiveCosmosRepositoryAdapter<Transaction>
+        implements ReactiveTransactionRepository {
+    public InMemoryReactiveTransactionRepository(final TransactionRepository transactionRepository) {
+        super(transactionRepository);
+    }
+}
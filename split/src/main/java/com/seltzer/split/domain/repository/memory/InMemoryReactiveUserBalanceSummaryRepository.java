@@ -0,0 +1,19 @@
+package com.seltzer.split.domain.repository.memory;
+
+import com.seltzer.split.domain.model.UserBalanceSummary;
+import com.seltzer.split.domain.repository.ReactiveUserBalanceSummaryRepository;
+import com.seltzer.split.domain.repository.UserBalanceSummaryRepository;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Repository;
+
+/**
+ * The reactive view of the embedded {@link UserBalanceSummaryRepository}.
+ */
+@Repository
+@Profile({"in-memory", "local-ledger"})
+public class InMemoryReactiveUserBalanceSummaryRepository extends ReactiveCosmosRepositoryAdapter<UserBalanceSummary>
+        implements ReactiveUserBalanceSummaryRepository {
+    public InMemoryReactiveUserBalanceSummaryRepository(final UserBalanceSummaryRepository summaryRepository) {
+        super(summaryRepository);
+    }
+}
@@ -0,0 +1,177 @@
+package com.seltzer.split.domain.repository.memory;
+
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.TransactionRepository;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Repository;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Transactions partitioned by <code>userId_participantId</code>. Transactions are not versioned, so saving one upserts it.
+ * Besides the container, the repository keeps the transactions in the orders of the paged queries, one skip list for the whole
+ * container and two for every partition, so that a page starts where its cursor points instead of rescanning everything before.
+ */
+@Repository
+@Profile("in-memory")
+public class InMemoryTransactionRepository extends InMemoryCosmosRepository<Transaction> implements TransactionRepository {
+    private final ConcurrentSkipListMap<ReplayKey, Transaction> replayOrder = new ConcurrentSkipListMap<>(ReplayKey.ORDER);
+    private final ConcurrentSkipListMap<String, PartitionIndex> partitionIndexes = new ConcurrentSkipListMap<>();
+
+    @Override
+    protected String getPartitionKey(final Transaction transaction) {
+        final var payment = transaction.getPayment();
+        if (payment == null) {
+            throw new IllegalArgumentException("Transaction " + transaction.getId() + " has no participant");
+        }
+        return Transaction.getPartitionKey(transaction.getUserId(), payment.getUserId());
+    }
+
+    @Override
+    protected String getId(final Transaction transaction) {
+        return transaction.getId();
+    }
+
+    @Override
+    protected void onStored(final Transaction replaced, final Transaction stored) {
+        final var partitionKey = getPartitionKey(stored);
+        final var index = partitionIndexes.computeIfAbsent(partitionKey, key -> new PartitionIndex());
+        if (replaced != null) {
+            remove(index, replaced, partitionKey);
+        }
+        final var replayKey = new ReplayKey(stored, partitionKey);
+        replayOrder.put(replayKey, stored);
+        index.replayOrder.put(replayKey, stored);
+        index.historyOrder.put(new HistoryKey(stored.getCreatedAt(), stored.getId()), stored);
+    }
+
+    @Override
+    protected void onRemoved(final Transaction removed) {
+        final var partitionKey = getPartitionKey(removed);
+        final var index = partitionIndexes.get(partitionKey);
+        if (index != null) {
+            remove(index, removed, partitionKey);
+        }
+    }
+
+    @Override
+    protected void onCleared() {
+        replayOrder.clear();
+        partitionIndexes.clear();
+    }
+
+    private void remove(final PartitionIndex index, final Transaction transaction, final String partitionKey) {
+        final var replayKey = new ReplayKey(transaction, partitionKey);
+        replayOrder.remove(replayKey);
+        index.replayOrder.remove(replayKey);
+        index.historyOrder.remove(new HistoryKey(transaction.getCreatedAt(), transaction.getId()));
+    }
+
+    @Override
+    public Page<Transaction> findByPartitionKey(final String partitionKey, final Pageable pageable) {
+        return super.findByPartitionKey(partitionKey, pageable);
+    }
+
+    @Override
+    public List<Transaction> findHistory(final String partitionKey, final long createdAt, final String id, final int limit) {
+        final var index = partitionIndexes.get(partitionKey);
+        return index == null
+                ? new ArrayList<>()
+                : first(index.historyOrder.headMap(new HistoryKey(createdAt, id), false).descendingMap(), limit);
+    }
+
+    @Override
+    public List<Transaction> findReplayPage(final long sequence, final long createdAt, final String id, final int limit) {
+        return first(replayOrder.tailMap(ReplayKey.after(sequence, createdAt, id), false), limit);
+    }
+
+    @Override
+    public List<Transaction> findPartitionReplayPage(final String partitionKey, final long sequence, final long createdAt,
+                                                     final String id, final int limit) {
+        final var page = new ArrayList<Transaction>(Math.min(limit, 1024));
+        for (final var entry : partitionIndexes.tailMap(partitionKey, true).entrySet()) {
+            final var transactions = entry.getKey().equals(partitionKey)
+                    ? entry.getValue().replayOrder.tailMap(ReplayKey.after(sequence, createdAt, id), false)
+                    : entry.getValue().replayOrder;
+            for (final var transaction : transactions.values()) {
+                if (page.size() == limit) {
+                    return page;
+                }
+                page.add(transaction);
+            }
+        }
+        return page;
+    }
+
+    private static List<Transaction> first(final Map<?, Transaction> ordered, final int limit) {
+        final var page = new ArrayList<Transaction>(Math.min(limit, 1024));
+        for (final var transaction : ordered.values()) {
+            if (page.size() == limit) {
+                break;
+            }
+            page.add(transaction);
+        }
+        return page;
+    }
+
+    /**
+     * Position of a transaction in the order of {@link #findReplayPage(long, long, String, int)}. The partition key only tells
+     * apart transactions of different partitions that tie on the rest; a cursor has none, and sorts after all of them.
+     */
+    private static final class ReplayKey {
+        static final Comparator<ReplayKey> ORDER = Comparator.<ReplayKey>comparingLong(key -> key.sequence)
+                .thenComparingLong(key -> key.createdAt)
+                .thenComparing(key -> key.id)
+                .thenComparing(key -> key.partitionKey, Comparator.nullsLast(Comparator.naturalOrder()));
+
+        final long sequence;
+        final long createdAt;
+        final String id;
+        final String partitionKey;
+
+        ReplayKey(final long sequence, final long createdAt, final String id, final String partitionKey) {
+            this.sequence = sequence;
+            this.createdAt = createdAt;
+            this.id = id;
+            this.partitionKey = partitionKey;
+        }
+
+        ReplayKey(final Transaction transaction, final String partitionKey) {
+            this(transaction.getSequence(), transaction.getCreatedAt(), transaction.getId(), partitionKey);
+        }
+
+        static ReplayKey after(final long sequence, final long createdAt, final String id) {
+            return new ReplayKey(sequence, createdAt, id, null);
+        }
+    }
+
+    /**
+     * Position of a transaction of a partition in the order of {@link #findHistory(String, long, String, int)}, reversed.
+     */
+    private static final class HistoryKey implements Comparable<HistoryKey> {
+        final long createdAt;
+        final String id;
+
+        HistoryKey(final long createdAt, final String id) {
+            this.createdAt = createdAt;
+            this.id = id;
+        }
+
+        @Override
+        public int compareTo(final HistoryKey other) {
+            final var byCreatedAt = Long.compare(createdAt, other.createdAt);
+            return byCreatedAt != 0 ? byCreatedAt : id.compareTo(other.id);
+        }
+    }
+
+    private static final class PartitionIndex {
+        final ConcurrentSkipListMap<ReplayKey, Transaction> replayOrder = new ConcurrentSkipListMap<>(ReplayKey.ORDER);
+        final ConcurrentSkipListMap<HistoryKey, Transaction> historyOrder = new ConcurrentSkipListMap<>();
+    }
+}
@@ -0,0 +1,41 @@
+package com.seltzer.split.domain.repository.memory;
+
+import com.seltzer.split.domain.model.UserBalanceSummary;
+import com.seltzer.split.domain.repository.UserBalanceSummaryRepository;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Summaries partitioned by <code>userId</code>, with <code>_etag</code> preconditions enforced. The <code>local-ledger</code>
+ * store keeps them in memory only: they are derived data, rebuilt from the recovered <code>FinalState</code>s on a user's first
+ * write after a restart.
+ */
+@Repository
+@Profile({"in-memory", "local-ledger"})
+public class InMemoryUserBalanceSummaryRepository extends InMemoryCosmosRepository<UserBalanceSummary>
+        implements UserBalanceSummaryRepository {
+    @Override
+    protected String getPartitionKey(final UserBalanceSummary summary) {
+        return summary.getUserId();
+    }
+
+    @Override
+    protected String getId(final UserBalanceSummary summary) {
+        return summary.getUserId();
+    }
+
+    @Override
+    protected String getVersion(final UserBalanceSummary summary) {
+        return summary.get_etag();
+    }
+
+    @Override
+    protected UserBalanceSummary withVersion(final UserBalanceSummary summary, final String version) {
+        return summary.with_etag(version);
+    }
+
+    @Override
+    protected boolean isVersioned() {
+        return true;
+    }
+}
@@ -0,0 +1,145 @@
+package com.seltzer.split.domain.repository.memory;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.seltzer.split.domain.model.Transaction;
+import org.springframework.beans.support.MutableSortDefinition;
+import org.springframework.beans.support.PropertyComparator;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+/**
+ * Sorting and paging for the embedded repositories, which answer queries from documents already in memory.
+ */
+public final class Queries {
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final Comparator<Transaction> HISTORY_ORDER = Comparator.comparingLong(Transaction::getCreatedAt)
+            .thenComparing(Transaction::getId).reversed();
+    private static final Comparator<Transaction> REPLAY_ORDER = Comparator.comparingLong(Transaction::getSequence)
+            .thenComparingLong(Transaction::getCreatedAt).thenComparing(Transaction::getId);
+    private static final Comparator<Transaction> PARTITION_REPLAY_ORDER = Comparator.comparing(Queries::getPartitionKey)
+            .thenComparing(REPLAY_ORDER);
+
+    private Queries() {
+    }
+
+    /**
+     * @return The value of a single-valued partition key.
+     */
+    public static String valueOf(final PartitionKey partitionKey) {
+        final var json = partitionKey.toString(); // ["value"]
+        if (json.indexOf('\\') < 0) {
+            return json.substring(2, json.length() - 2);
+        }
+        try {
+            return JSON.readValue(json, String[].class)[0];
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Unsupported partition key " + json, e);
+        }
+    }
+
+    /**
+     * @return A comparator ordering documents by the properties of the given sort, read through their getters.
+     */
+    public static <T> Comparator<T> comparator(final Sort sort) {
+        Comparator<T> comparator = (left, right) -> 0;
+        for (final var order : sort) {
+            comparator = comparator.thenComparing(new PropertyComparator<>(
+                    new MutableSortDefinition(order.getProperty(), order.isIgnoreCase(), order.isAscending())));
+        }
+        return comparator;
+    }
+
+    /**
+     * @param documents All the documents matching the query, in the requested order.
+     * @return The requested page of the documents.
+     */
+    public static <T> Page<T> page(final List<T> documents, final Pageable pageable) {
+        if (pageable.isUnpaged()) {
+            return new PageImpl<>(documents, pageable, documents.size());
+        }
+        final var from = (int) Math.min(pageable.getOffset(), documents.size());
+        final var to = Math.min(from + pageable.getPageSize(), documents.size());
+        return new PageImpl<>(documents.subList(from, to), pageable, documents.size());
+    }
+
+    /**
+     * Answers {@link com.seltzer.split.domain.repository.TransactionRepository#findHistory(String, long, String, int)} from the
+     * transactions of a partition, keeping only the <code>limit</code> newest candidates while scanning them.
+     * @apiNote Scans the whole partition for every page, for stores that keep no index in that order; the
+     * {@link InMemoryTransactionRepository} pages from its own.
+     */
+    public static List<Transaction> history(final Iterable<Transaction> partition, final long createdAt, final String id,
+                                            final int limit) {
+        final var oldestOnTop = new PriorityQueue<Transaction>(limit + 1, HISTORY_ORDER.reversed());
+        for (final var transaction : partition) {
+            final var before = transaction.getCreatedAt() < createdAt
+                    || (transaction.getCreatedAt() == createdAt && transaction.getId().compareTo(id) < 0);
+            if (before) {
+                oldestOnTop.add(transaction);
+                if (oldestOnTop.size() > limit) {
+                    oldestOnTop.poll();
+                }
+            }
+        }
+        final var history = new ArrayList<>(oldestOnTop);
+        history.sort(HISTORY_ORDER);
+        return history;
+    }
+
+    /**
+     * Answers {@link com.seltzer.split.domain.repository.TransactionRepository#findReplayPage(long, long, String, int)} from the
+     * given transactions, keeping only the <code>limit</code> first candidates while scanning them.
+     */
+    public static List<Transaction> replay(final Iterable<Transaction> transactions, final long sequence, final long createdAt,
+                                           final String id, final int limit) {
+        return first(transactions, REPLAY_ORDER, transaction -> isAfter(transaction, sequence, createdAt, id), limit);
+    }
+
+    /**
+     * Answers {@link com.seltzer.split.domain.repository.TransactionRepository#findPartitionReplayPage(String, long, long, String, int)}
+     * from the given transactions, keeping only the <code>limit</code> first candidates while scanning them.
+     */
+    public static List<Transaction> partitionReplay(final Iterable<Transaction> transactions, final String partitionKey,
+                                                    final long sequence, final long createdAt, final String id, final int limit) {
+        return first(transactions, PARTITION_REPLAY_ORDER, transaction -> {
+            final var partition = getPartitionKey(transaction).compareTo(partitionKey);
+            return partition > 0 || (partition == 0 && isAfter(transaction, sequence, createdAt, id));
+        }, limit);
+    }
+
+    private static String getPartitionKey(final Transaction transaction) {
+        return Transaction.getPartitionKey(transaction.getUserId(), transaction.getPayment().getUserId());
+    }
+
+    private static boolean isAfter(final Transaction transaction, final long sequence, final long createdAt, final String id) {
+        return transaction.getSequence() > sequence
+                || (transaction.getSequence() == sequence && (transaction.getCreatedAt() > createdAt
+                || (transaction.getCreatedAt() == createdAt && transaction.getId().compareTo(id) > 0)));
+    }
+
+    private static List<Transaction> first(final Iterable<Transaction> transactions, final Comparator<Transaction> order,
+                                           final Predicate<Transaction> after, final int limit) {
+        final var lastOnTop = new PriorityQueue<Transaction>(limit + 1, order.reversed());
+        for (final var transaction : transactions) {
+            if (after.test(transaction)) {
+                lastOnTop.add(transaction);
+                if (lastOnTop.size() > limit) {
+                    lastOnTop.poll();
+                }
+            }
+        }
+        final var page = new ArrayList<>(lastOnTop);
+        page.sort(order);
+        return page;
+    }
+}
@@ -0,0 +1,155 @@
+package com.seltzer.split.domain.repository.memory;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.spring.data.cosmos.repository.CosmosRepository;
+import com.azure.spring.data.cosmos.repository.ReactiveCosmosRepository;
+import lombok.NonNull;
+import org.reactivestreams.Publisher;
+import org.springframework.data.domain.Sort;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Exposes one of the embedded repositories through the reactive interface of a Cosmos container. The embedded repositories
+ * answer from memory without blocking on I/O, so every call runs on the thread that subscribes to it.
+ *
+ * @param <T> The type of the documents.
+ */
+public abstract class ReactiveCosmosRepositoryAdapter<T> implements ReactiveCosmosRepository<T, String> {
+    private final CosmosRepository<T, String> repository;
+
+    protected ReactiveCosmosRepositoryAdapter(@NonNull final CosmosRepository<T, String> repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * @return A <code>Mono</code> making the call when subscribed to, and emitting its result unless it is <code>null</code>.
+     * @apiNote Every single-valued operation goes through here.
+     */
+    protected <R> Mono<R> call(final Callable<R> call) {
+        return Mono.fromCallable(call);
+    }
+
+    private <R> Flux<R> callMany(final Callable<Iterable<R>> call) {
+        return call(call).flatMapIterable(iterable -> iterable);
+    }
+
+    private Mono<Void> run(final Runnable call) {
+        return call(() -> {
+            call.run();
+            return null;
+        });
+    }
+
+    @Override
+    public Mono<T> findById(final String id, final PartitionKey partitionKey) {
+        return call(() -> repository.findById(id, partitionKey).orElse(null));
+    }
+
+    @Override
+    public Mono<Void> deleteById(final String id, final PartitionKey partitionKey) {
+        return run(() -> repository.deleteById(id, partitionKey));
+    }
+
+    @Override
+    public Flux<T> findAll(final PartitionKey partitionKey) {
+        return callMany(() -> repository.findAll(partitionKey));
+    }
+
+    @Override
+    public Flux<T> findAll(final Sort sort) {
+        return callMany(() -> repository.findAll(sort));
+    }
+
+    @Override
+    public <S extends T> Mono<S> save(final S document) {
+        return call(() -> repository.save(document));
+    }
+
+    @Override
+    public <S extends T> Flux<S> saveAll(final Iterable<S> documents) {
+        return callMany(() -> repository.saveAll(documents));
+    }
+
+    @Override
+    public <S extends T> Flux<S> saveAll(final Publisher<S> documents) {
+        return Flux.from(documents).concatMap(this::save);
+    }
+
+    @Override
+    public Mono<T> findById(final String id) {
+        return call(() -> repository.findById(id).orElse(null));
+    }
+
+    @Override
+    public Mono<T> findById(final Publisher<String> id) {
+        return Mono.from(id).flatMap(this::findById);
+    }
+
+    @Override
+    public Mono<Boolean> existsById(final String id) {
+        return call(() -> repository.existsById(id));
+    }
+
+    @Override
+    public Mono<Boolean> existsById(final Publisher<String> id) {
+        return Mono.from(id).flatMap(this::existsById);
+    }
+
+    @Override
+    public Flux<T> findAll() {
+        return callMany(repository::findAll);
+    }
+
+    @Override
+    public Flux<T> findAllById(final Iterable<String> ids) {
+        return callMany(() -> repository.findAllById(ids));
+    }
+
+    @Override
+    public Flux<T> findAllById(final Publisher<String> ids) {
+        return Flux.from(ids).concatMap(this::findById);
+    }
+
+    @Override
+    public Mono<Long> count() {
+        return call(repository::count);
+    }
+
+    @Override
+    public Mono<Void> deleteById(final String id) {
+        return run(() -> repository.deleteById(id));
+    }
+
+    @Override
+    public Mono<Void> deleteById(final Publisher<String> id) {
+        return Mono.from(id).flatMap(this::deleteById);
+    }
+
+    @Override
+    public Mono<Void> delete(final T document) {
+        return run(() -> repository.delete(document));
+    }
+
+    @Override
+    public Mono<Void> deleteAllById(final Iterable<? extends String> ids) {
+        return run(() -> repository.deleteAllById(ids));
+    }
+
+    @Override
+    public Mono<Void> deleteAll(final Iterable<? extends T> documents) {
+        return run(() -> repository.deleteAll(documents));
+    }
+
+    @Override
+    public Mono<Void> deleteAll(final Publisher<? extends T> documents) {
+        return Flux.from(documents).concatMap(this::delete).then();
+    }
+
+    @Override
+    public Mono<Void> deleteAll() {
+        return run(repository::deleteAll);
+    }
+}
@@ -0,0 +1,35 @@
+package com.seltzer.split.domain.repository.memory;
+
+import com.azure.cosmos.CosmosException;
+import com.azure.spring.data.cosmos.exception.CosmosAccessException;
+import org.springframework.http.HttpStatus;
+
+/**
+ * The status of a write the embedded stores refused, carried the way the Cosmos repositories report one: as the
+ * <code>CosmosException</code> of a <code>CosmosAccessException</code>, so that callers check the status code alike.
+ */
+final class StoreRejection extends CosmosException {
+    private static final long serialVersionUID = 1L;
+
+    private StoreRejection(final int statusCode, final String message) {
+        super(statusCode, message);
+    }
+
+    /**
+     * @return A 409, for a document created with an ID that is taken.
+     */
+    static CosmosAccessException conflict(final String id) {
+        return rejected(HttpStatus.CONFLICT, "Document " + id + " already exists");
+    }
+
+    /**
+     * @return A 412, for a document written or deleted against a version that is no longer the stored one.
+     */
+    static CosmosAccessException preconditionFailed(final String id) {
+        return rejected(HttpStatus.PRECONDITION_FAILED, "Document " + id + " has changed");
+    }
+
+    private static CosmosAccessException rejected(final HttpStatus status, final String message) {
+        return new CosmosAccessException(message, new StoreRejection(status.value(), message));
+    }
+}
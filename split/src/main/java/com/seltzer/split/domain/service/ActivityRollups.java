@@ -0,0 +1,238 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.spring.data.cosmos.exception.CosmosAccessException;
+import com.seltzer.split.domain.model.ActivityRollup;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.ActivityRollupRepository;
+import com.seltzer.split.domain.repository.TransactionRepository;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Keeps every user's {@link ActivityRollup}s in step with their transaction records, and answers reports over a period from
+ * them. The writers collect the records they saved in a {@link Changes}, which adds them up per user, participant and bucket,
+ * and each bucket is then updated with one conditional write, retried on conflicts like the <code>FinalState</code>s are.
+ * <p>
+ * A bucket that can't be updated is added up again from the pair's transactions in its time range, which have been written by
+ * then. Should that fail too, or the writer die between saving the records and updating the buckets, the buckets stay short
+ * until {@link #rebuild(String, String, ActivityRollup.Granularity, String)} is called for them.
+ */
+@Slf4j
+@Component
+public class ActivityRollups {
+    public static final int MAX_BUCKETS = 1_000;
+    private static final int REBUILD_PAGE_SIZE = 1_000;
+
+    private final ActivityRollupRepository rollupRepository;
+    private final TransactionRepository transactionRepository;
+    private final ConflictRetryPolicy conflictRetryPolicy;
+
+    public ActivityRollups(final ActivityRollupRepository rollupRepository,
+                           final TransactionRepository transactionRepository,
+                           final ConflictRetryPolicy conflictRetryPolicy) {
+        this.rollupRepository = rollupRepository;
+        this.transactionRepository = transactionRepository;
+        this.conflictRetryPolicy = conflictRetryPolicy;
+    }
+
+    /**
+     * @param enabled Whether to keep rollups, which costs a read and a write per user, participant and bucket a batch touches.
+     */
+    @Autowired
+    public ActivityRollups(final ActivityRollupRepository rollupRepository,
+                           final TransactionRepository transactionRepository,
+                           final ConflictRetryPolicy conflictRetryPolicy,
+                           @Value("${split.rollups.enabled:true}") final boolean enabled) {
+        this(enabled ? rollupRepository : null, transactionRepository, conflictRetryPolicy);
+    }
+
+    /**
+     * @return Rollups that are never stored, for which every report comes out empty.
+     */
+    public static ActivityRollups disabled() {
+        return new ActivityRollups(null, null, ConflictRetryPolicy.defaults());
+    }
+
+    public boolean isEnabled() {
+        return rollupRepository != null;
+    }
+
+    /**
+     * @param participantId The participant to report on, or <code>null</code> for all of them.
+     * @param from          The first bucket, <code>yyyy-MM-dd</code> for days and <code>yyyy-MM</code> for months.
+     * @param to            The last bucket, included.
+     * @return The user's rollups in the given buckets, ordered by bucket and then <code>participantId</code>. Buckets without any
+     * activity are left out.
+     * @throws IllegalArgumentException If a bucket is malformed, or the range spans more than {@link #MAX_BUCKETS} buckets.
+     * @apiNote A single query of the user's partition, reading one document per participant and bucket with activity.
+     */
+    public List<ActivityRollup> find(@NonNull final String userId, final String participantId,
+                                     @NonNull final ActivityRollup.Granularity granularity,
+                                     @NonNull final String from, @NonNull final String to) {
+        final var buckets = checkRange(granularity, from, to);
+        if (!isEnabled() || buckets == 0) {
+            return List.of();
+        }
+        return participantId == null
+                ? rollupRepository.findByIdRange(userId, getFromId(granularity, from), getToId(granularity, to))
+                : rollupRepository.findByIdRange(userId, participantId, getFromId(granularity, from), getToId(granularity, to));
+    }
+
+    /**
+     * @return The number of buckets from the first to the last, included.
+     * @throws IllegalArgumentException If a bucket is malformed, or the range spans more than {@link #MAX_BUCKETS} buckets.
+     */
+    static long checkRange(final ActivityRollup.Granularity granularity, final String from, final String to) {
+        final var buckets = granularity.count(from, to);
+        if (buckets > MAX_BUCKETS) {
+            throw new IllegalArgumentException(String.format("%s to %s spans %d buckets, at most %d are allowed", from, to, buckets,
+                    MAX_BUCKETS));
+        }
+        return buckets;
+    }
+
+    /**
+     * @return The lowest ID of the rollups of the bucket, whatever their participant.
+     */
+    static String getFromId(final ActivityRollup.Granularity granularity, final String from) {
+        return granularity + ":" + from + ":";
+    }
+
+    /**
+     * @return The ID every rollup of the bucket sorts before: ':' is followed by ';', whatever participant the IDs end with.
+     */
+    static String getToId(final ActivityRollup.Granularity granularity, final String to) {
+        return granularity + ":" + to + ";";
+    }
+
+    /**
+     * @param changes The records of a batch that have all been saved.
+     * @apiNote A bucket that can't be updated is rebuilt rather than failing a batch that has already been recorded.
+     */
+    public void apply(@NonNull final Changes changes) {
+        changes.get().forEach(this::applyOrRebuild);
+    }
+
+    void applyOrRebuild(final ActivityRollup change) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            save(change, current -> current.map(rollup -> rollup.plus(change)).orElse(change));
+        } catch (RuntimeException e) {
+            log.warn("Failed to update the activity rollup {} of {}, rebuilding it", change.getId(), change.getUserId(), e);
+            try {
+                rebuild(change.getUserId(), change.getParticipantId(), change.getGranularity(), change.getBucket());
+            } catch (RuntimeException rebuildFailure) {
+                log.error("Failed to rebuild the activity rollup {} of {}, it stays short until rebuilt", change.getId(),
+                        change.getUserId(), rebuildFailure);
+            }
+        }
+    }
+
+    /**
+     * @return The rollup as written, added up from the transactions the user has with the participant in the bucket.
+     * @apiNote Reads the pair's transactions of the bucket a page at a time, newest first. Writes racing the rebuild may or may
+     * not be counted, so it should be run once they are done.
+     */
+    public ActivityRollup rebuild(@NonNull final String userId, @NonNull final String participantId,
+                                  @NonNull final ActivityRollup.Granularity granularity, @NonNull final String bucket) {
+        final var start = granularity.startOf(bucket);
+        var rollup = ActivityRollup.empty(userId, participantId, granularity, bucket);
+        if (!isEnabled()) {
+            return rollup;
+        }
+        final var partitionKey = Transaction.getPartitionKey(userId, participantId);
+        var createdAt = granularity.endOf(bucket);
+        var id = "";
+        while (true) {
+            final var page = transactionRepository.findHistory(partitionKey, createdAt, id, REBUILD_PAGE_SIZE);
+            for (final var record : page) {
+                if (record.getCreatedAt() < start) {
+                    return saveRebuilt(rollup);
+                }
+                rollup = rollup.plus(record);
+            }
+            if (page.size() < REBUILD_PAGE_SIZE) {
+                return saveRebuilt(rollup);
+            }
+            createdAt = page.get(page.size() - 1).getCreatedAt();
+            id = page.get(page.size() - 1).getId();
+        }
+    }
+
+    private ActivityRollup saveRebuilt(final ActivityRollup rebuilt) {
+        return save(rebuilt, current -> rebuilt.with_etag(current.map(ActivityRollup::get_etag).orElse(null)));
+    }
+
+    /**
+     * @param update Gives the rollup to write, from the stored one if there is one.
+     */
+    private ActivityRollup save(final ActivityRollup rollup, final Function<Optional<ActivityRollup>, ActivityRollup> update) {
+        for (int attempt = 1; ; attempt++) {
+            final var current = rollupRepository.findById(rollup.getId(), new PartitionKey(rollup.getUserId()));
+            try {
+                return rollupRepository.save(update.apply(current));
+            } catch (CosmosAccessException e) {
+                if (!TransactionHandler.isWriteConflict(e)) {
+                    throw e;
+                }
+                if (attempt >= conflictRetryPolicy.getMaxAttempts()) {
+                    throw new OptimisticLockingFailureException(String.format("Gave up updating the activity rollup %s of %s after %d attempts",
+                            rollup.getId(), rollup.getUserId(), attempt), e);
+                }
+                try {
+                    conflictRetryPolicy.backOff(attempt);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new OptimisticLockingFailureException(String.format("Interrupted while updating the activity rollup %s of %s",
+                            rollup.getId(), rollup.getUserId()), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * The records a batch saved, added up per user, participant and bucket. Safe for concurrent writers.
+     */
+    public static final class Changes {
+        private final Map<String, ActivityRollup> changes = new LinkedHashMap<>();
+
+        /**
+         * @return Changes holding the given records.
+         */
+        public static Changes of(@NonNull final List<Transaction> records) {
+            final var changes = new Changes();
+            records.forEach(changes::record);
+            return changes;
+        }
+
+        /**
+         * @param record A transaction record as saved, with its final <code>createdAt</code>.
+         */
+        public synchronized void record(@NonNull final Transaction record) {
+            for (final var granularity : ActivityRollup.Granularity.values()) {
+                final var change = ActivityRollup.of(record, granularity);
+                changes.merge(change.getUserId() + "|" + change.getId(), change, ActivityRollup::plus);
+            }
+        }
+
+        /**
+         * @return The change of every bucket, in the order the buckets were first touched.
+         */
+        public synchronized List<ActivityRollup> get() {
+            return List.copyOf(changes.values());
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.Transaction;
+import lombok.NonNull;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * IDs hashed from the record: the first 128 bits of a SHA-256 over the record's fields, written in a fixed binary layout into a
+ * per-thread buffer instead of going through <code>toString()</code>. The same fields always give the same ID, which is also what
+ * makes {@link #generateIdempotent(String, Transaction)} suitable for deduplicating client retries.
+ * <p>
+ * Equal transactions of different requests, stamped in the same millisecond, have the same fields up to <code>createdAt</code>
+ * and position, so {@link #generate(Transaction, int)} also hashes the record's <code>idempotencyKey</code>, or else its
+ * <code>sequence</code>, or else, when it has neither yet, 128 random bits.
+ */
+@Component
+@ConditionalOnProperty(name = "split.transaction-id.strategy", havingValue = "canonical-hash")
+public class CanonicalHashTransactionIdGenerator implements TransactionIdGenerator {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final byte PAID_TO = 1;
+    private static final byte RECEIVED_FROM = 2;
+    private static final byte KEYED = 1;
+    private static final byte SEQUENCED = 2;
+    private static final byte RANDOM = 3;
+
+    private final ThreadLocal<Hasher> hashers = ThreadLocal.withInitial(Hasher::new);
+
+    @Override
+    public String generate(@NonNull final Transaction record, final int position) {
+        final var hasher = hashers.get().reset();
+        putRecord(hasher, record);
+        final var payment = record.getPayment();
+        if (payment != null && payment.getMoney() != null) {
+            final var money = payment.getMoney();
+            hasher.putLong(money.getAmount());
+            hasher.putInt(money.getCurrency() == null ? -1 : money.getCurrency().ordinal());
+            hasher.putByte((byte) (payment.isSettlement() ? 1 : 0));
+        }
+        hasher.putLong(record.getCreatedAt());
+        hasher.putInt(position);
+        if (record.getIdempotencyKey() != null) {
+            hasher.putByte(KEYED);
+            hasher.putString(record.getIdempotencyKey());
+        } else if (record.getSequence() > 0) {
+            hasher.putByte(SEQUENCED);
+            hasher.putLong(record.getSequence());
+        } else {
+            // records are identified before their sequence is reserved, see TransactionHandler, so this is the usual case.
+            final var random = ThreadLocalRandom.current();
+            hasher.putByte(RANDOM);
+            hasher.putLong(random.nextLong());
+            hasher.putLong(random.nextLong());
+        }
+        return hasher.digestHex();
+    }
+
+    /**
+     * @param idempotencyKey The client-supplied key of the transaction the record belongs to.
+     * @param record         The record to identify.
+     * @return An ID that depends only on the key and on which side of the transaction the record is, so that a retried
+     * transaction maps onto the records it already wrote.
+     */
+    public String generateIdempotent(@NonNull final String idempotencyKey, @NonNull final Transaction record) {
+        final var hasher = hashers.get().reset();
+        hasher.putString(idempotencyKey);
+        putRecord(hasher, record);
+        return hasher.digestHex();
+    }
+
+    private static void putRecord(final Hasher hasher, final Transaction record) {
+        hasher.putString(record.getUserId());
+        hasher.putByte(record.hasPaidTo() ? PAID_TO : RECEIVED_FROM);
+        hasher.putString(record.getPayment() == null ? null : record.getPayment().getUserId());
+    }
+
+    private static final class Hasher {
+        private final MessageDigest digest;
+        private final char[] hex = new char[32];
+        private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        Hasher() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+
+        Hasher reset() {
+            buffer.clear();
+            return this;
+        }
+
+        void putString(final String value) {
+            if (value == null) {
+                putInt(-1);
+                return;
+            }
+            putInt(value.length());
+            ensureRemaining(value.length() * 2);
+            for (int i = 0; i < value.length(); i++) {
+                buffer.putChar(value.charAt(i));
+            }
+        }
+
+        void putLong(final long value) {
+            ensureRemaining(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void putInt(final int value) {
+            ensureRemaining(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putByte(final byte value) {
+            ensureRemaining(1);
+            buffer.put(value);
+        }
+
+        String digestHex() {
+            buffer.flip();
+            digest.update(buffer);
+            final var hash = digest.digest();
+            for (int i = 0; i < 16; i++) {
+                hex[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+                hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0xF];
+            }
+            return new String(hex);
+        }
+
+        private void ensureRemaining(final int bytes) {
+            if (buffer.remaining() < bytes) {
+                final var grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+                buffer.flip();
+                grown.put(buffer);
+                buffer = grown;
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.seltzer.split.domain.service;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.experimental.FieldDefaults;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Bounds how often, and how eagerly, a conditional write that lost a race is retried.
+ * Back-off grows exponentially from <code>initialBackoffMillis</code> up to <code>maxBackoffMillis</code>, with full jitter so that
+ * writers colliding on the same document don't retry in lock-step.
+ */
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class ConflictRetryPolicy {
+    @Getter
+    int maxAttempts;
+    long initialBackoffMillis;
+    long maxBackoffMillis;
+
+    public ConflictRetryPolicy(@Value("${split.conflict-retry.max-attempts:10}") final int maxAttempts,
+                               @Value("${split.conflict-retry.initial-backoff-millis:2}") final long initialBackoffMillis,
+                               @Value("${split.conflict-retry.max-backoff-millis:100}") final long maxBackoffMillis) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException(String.format("maxAttempts must be at least 1, got %d", maxAttempts));
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    public static ConflictRetryPolicy defaults() {
+        return new ConflictRetryPolicy(10, 2, 100);
+    }
+
+    /**
+     * @param attempt The attempt that just failed, starting at 1.
+     * @apiNote Sleeps before the next attempt.
+     */
+    void backOff(final int attempt) throws InterruptedException {
+        final var backoff = nextBackoffMillis(attempt);
+        if (backoff > 0) {
+            Thread.sleep(backoff);
+        }
+    }
+
+    /**
+     * @param attempt The attempt that just failed, starting at 1.
+     * @return How long to wait before the next attempt, for callers that must not sleep.
+     */
+    long nextBackoffMillis(final int attempt) {
+        final var ceiling = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 20));
+        return ceiling > 0 ? ThreadLocalRandom.current().nextLong(ceiling + 1) : 0;
+    }
+}
@@ -0,0 +1,130 @@
+package com.seltzer.split.domain.service;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.repository.FinalStateRepository;
+import lombok.NonNull;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Read-through cache of every user's <code>FinalState</code>s, as read by {@link FinalStateShards#findAll(String)}, kept per user
+ * in a skip list by <code>participantId</code> so that a write replaces one entry in place rather than copying the user's list.
+ * Entries are weighed by the number of <code>FinalState</code>s they hold, so a few users with many counterparties can't crowd
+ * out the rest, and expire after a fixed time to bound staleness against writes made by other instances.
+ */
+@Component
+public class FinalStateCache {
+    private final FinalStateShards finalStateShards;
+    private final LoadingCache<String, Partition> cache;
+
+    public FinalStateCache(final FinalStateShards finalStateShards,
+                           @Value("${split.balance-cache.maximum-weight:1000000}") final long maximumWeight,
+                           @Value("${split.balance-cache.expire-after-write:PT1M}") final Duration expireAfterWrite) {
+        this.finalStateShards = finalStateShards;
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher((String userId, Partition partition) -> partition.size + 1)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .build(userId -> new Partition(finalStateShards.findAll(userId)));
+    }
+
+    public static FinalStateCache defaults(final FinalStateRepository finalStateRepository) {
+        return new FinalStateCache(FinalStateShards.disabled(finalStateRepository), 1_000_000, Duration.ofMinutes(1));
+    }
+
+    /**
+     * @return The routing the cache loads users' <code>FinalState</code>s with, which writers must follow for the cached copies
+     * to be the ones they update.
+     */
+    public FinalStateShards getShards() {
+        return finalStateShards;
+    }
+
+    /**
+     * @param userId The ID of the user whose <code>FinalState</code>s to return.
+     * @return All the <code>FinalState</code>s of the user, across their shards if they have any, loaded on a miss, sorted by
+     * <code>participantId</code>.
+     */
+    public List<FinalState> get(@NonNull final String userId) {
+        return List.copyOf(cache.get(userId).finalStates.values());
+    }
+
+    /**
+     * @return The cached <code>FinalState</code>s of the user, or nothing if the user isn't cached. Never loads the user's partition.
+     */
+    public Optional<List<FinalState>> getIfPresent(@NonNull final String userId) {
+        return Optional.ofNullable(cache.getIfPresent(userId)).map(partition -> List.copyOf(partition.finalStates.values()));
+    }
+
+    /**
+     * @return The cached <code>FinalState</code> of the user with the participant, or nothing if the user isn't cached or the pair
+     * has none. Never loads the user's partition.
+     */
+    public Optional<FinalState> getIfPresent(@NonNull final String userId, @NonNull final String participantId) {
+        final var partition = cache.getIfPresent(userId);
+        return partition == null ? Optional.empty() : Optional.ofNullable(partition.finalStates.get(participantId));
+    }
+
+    /**
+     * @param finalState A <code>FinalState</code> that has just been written.
+     * @apiNote Replaces the cached copy of the given <code>FinalState</code>, if its user's partition is cached and the given one
+     * is newer: writers racing on a pair can get here in either order, and the copy written last carries the higher
+     * <code>revision</code>.
+     */
+    public void put(@NonNull final FinalState finalState) {
+        // computeIfPresent serialises the puts for a user, and has the entry weighed again once the participant is in.
+        cache.asMap().computeIfPresent(finalState.getUserId(), (userId, partition) -> {
+            partition.finalStates.compute(finalState.getParticipantId(), (participantId, cached) -> {
+                if (cached == null) {
+                    partition.size++;
+                    return finalState;
+                }
+                return isNewer(finalState, cached) ? finalState : cached;
+            });
+            return partition;
+        });
+    }
+
+    private static boolean isNewer(final FinalState finalState, final FinalState cached) {
+        return finalState.getRevision() > cached.getRevision()
+                && (finalState.get_etag() == null || !finalState.get_etag().equals(cached.get_etag()));
+    }
+
+    public void invalidate(@NonNull final String userId) {
+        cache.invalidate(userId);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return Hit, miss, load and eviction counts since startup.
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /**
+     * The cached <code>FinalState</code>s of one user. Only changed under the cache's lock for the user, which keeps
+     * <code>size</code> in step; read without it.
+     */
+    private static final class Partition {
+        final ConcurrentSkipListMap<String, FinalState> finalStates = new ConcurrentSkipListMap<>();
+        volatile int size;
+
+        Partition(final List<FinalState> finalStates) {
+            finalStates.forEach(finalState -> this.finalStates.put(finalState.getParticipantId(), finalState));
+            size = this.finalStates.size();
+        }
+    }
+}
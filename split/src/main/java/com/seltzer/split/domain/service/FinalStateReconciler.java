@@ -0,0 +1,348 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.ReconciliationReport;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.FinalStateRepository;
+import com.seltzer.split.domain.repository.TransactionRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recomputes every <code>FinalState</code> from the transaction history and reports, or repairs, the ones that drifted.
+ * Each <code>FinalState</code> (userId, participantId) is derived from exactly one transaction partition,
+ * <code>userId_participantId</code>. The transactions are streamed one partition after the other, page by page, each partition in
+ * the order its records were written, and folded into a running balance per currency, so memory use is bounded by the page size
+ * and the number of workers regardless of the size of the ledger. The <code>FinalState</code> of every partition is then checked
+ * in parallel, so that a pair whose <code>FinalState</code> is missing is reported too. A second pass over the
+ * <code>FinalState</code>s reports the ones with a balance but no transactions, which takes a key per pair seen in the first.
+ */
+@Slf4j
+@Component
+public class FinalStateReconciler {
+    private static final int MAX_REPORTED_DRIFTS = 1_000;
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final TransactionRepository transactionRepository;
+    private final FinalStateRepository finalStateRepository;
+    private final FinalStateCache finalStateCache;
+    private final UserBalanceSummaries userBalanceSummaries;
+    private final int workers;
+    private final int pageSize;
+
+    public FinalStateReconciler(final TransactionRepository transactionRepository,
+                                final FinalStateRepository finalStateRepository,
+                                final FinalStateCache finalStateCache,
+                                final UserBalanceSummaries userBalanceSummaries,
+                                @Value("${split.reconciliation.workers:4}") final int workers,
+                                @Value("${split.reconciliation.page-size:1000}") final int pageSize) {
+        this.transactionRepository = transactionRepository;
+        this.finalStateRepository = finalStateRepository;
+        this.finalStateCache = finalStateCache;
+        this.userBalanceSummaries = userBalanceSummaries;
+        this.workers = workers;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param repair Whether to overwrite drifted balances with the recomputed ones, and create the missing <code>FinalState</code>s.
+     * @return What was scanned and what drifted.
+     * @apiNote A <code>FinalState</code> is read after its partition has been folded, and only compared if the partition has no
+     * records after the ones folded, so one written to while it was being recomputed is reported as failed rather than compared
+     * with a stale balance, and a repair is conditional on the <code>_etag</code> read. A write that has committed its
+     * <code>FinalState</code> but not yet saved its records still looks like drift, so repair while writes are paused.
+     * <p>
+     * The transactions are read by one thread, as a single cross-partition query whose continuation can't be split without
+     * knowing the partition keys up front; the reads and repairs of the <code>FinalState</code>s run on the workers.
+     */
+    public ReconciliationReport reconcile(final boolean repair) {
+        final var run = new Run(repair);
+        final ExecutorService executor = Executors.newFixedThreadPool(workers);
+        final var inFlight = new Semaphore(workers * 2);
+        try {
+            final var partition = new Partition();
+            Transaction last = null;
+            while (true) {
+                final var page = last == null
+                        ? transactionRepository.findPartitionReplayPage("", Long.MIN_VALUE, Long.MIN_VALUE, "", pageSize)
+                        : transactionRepository.findPartitionReplayPage(getPartitionKey(last), last.getSequence(),
+                        last.getCreatedAt(), last.getId(), pageSize);
+                for (final var record : page) {
+                    if (!partition.holds(record)) {
+                        submit(executor, inFlight, partition.finish(run));
+                        partition.start(record);
+                    }
+                    partition.fold(record);
+                }
+                run.transactions.add(page.size());
+                if (page.size() < pageSize) {
+                    break;
+                }
+                last = page.get(page.size() - 1);
+            }
+            submit(executor, inFlight, partition.finish(run));
+
+            Pageable pageable = PageRequest.of(0, pageSize);
+            while (true) {
+                final var page = finalStateRepository.findAll(pageable);
+                for (final var finalState : page) {
+                    if (!FinalStateShards.isMarker(finalState) && !run.isSeen(finalState) && !finalState.getBalances().isEmpty()) {
+                        submit(executor, inFlight, () -> run.reconcileUnrecorded(finalState));
+                    }
+                }
+                if (!page.hasNext()) {
+                    break;
+                }
+                pageable = page.nextPageable();
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(PROGRESS_INTERVAL_NANOS, TimeUnit.NANOSECONDS)) {
+                run.logProgress();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reconciling final states", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        final var report = run.toReport();
+        log.info("Reconciliation done: {}", report);
+        return report;
+    }
+
+    private static void submit(final ExecutorService executor, final Semaphore inFlight, final Runnable task)
+            throws InterruptedException {
+        if (task == null) {
+            return;
+        }
+        inFlight.acquire();
+        executor.execute(() -> {
+            try {
+                task.run();
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private static String getPartitionKey(final Transaction record) {
+        return Transaction.getPartitionKey(record.getUserId(), record.getPayment().getUserId());
+    }
+
+    /**
+     * Folds the records of one partition, in the order they were written, the same way {@link TransactionHandler#project} does.
+     */
+    private static final class Partition {
+        String userId;
+        String participantId;
+        Map<Currency, Long> balances;
+        Transaction last;
+
+        boolean holds(final Transaction record) {
+            return userId != null && userId.equals(record.getUserId()) && participantId.equals(record.getPayment().getUserId());
+        }
+
+        void start(final Transaction record) {
+            userId = record.getUserId();
+            participantId = record.getPayment().getUserId();
+            balances = new EnumMap<>(Currency.class);
+            last = null;
+        }
+
+        void fold(final Transaction record) {
+            final var payment = record.getPayment();
+            final var currency = payment.getMoney().getCurrency();
+            if (payment.isSettlement()) {
+                balances.put(currency, 0L);
+            } else if (record.hasPaidTo()) {
+                balances.merge(currency, payment.getMoney().getAmount(), Long::sum);
+            } else {
+                balances.merge(currency, -payment.getMoney().getAmount(), Long::sum);
+            }
+            last = record;
+        }
+
+        /**
+         * @return The check of the partition folded so far against its <code>FinalState</code>, <code>null</code> if none was.
+         */
+        Runnable finish(final Run run) {
+            if (userId == null) {
+                return null;
+            }
+            final var userId = this.userId;
+            final var participantId = this.participantId;
+            final var expected = balances;
+            final var last = this.last;
+            run.seen(userId, participantId);
+            return () -> run.reconcile(userId, participantId, expected, last);
+        }
+    }
+
+    private final class Run {
+        final boolean repair;
+        final long startedAt = System.nanoTime();
+        final LongAdder partitions = new LongAdder();
+        final LongAdder transactions = new LongAdder();
+        final LongAdder drifted = new LongAdder();
+        final LongAdder repaired = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final List<ReconciliationReport.Drift> drifts = Collections.synchronizedList(new ArrayList<>());
+        final Set<String> seen = ConcurrentHashMap.newKeySet();
+        volatile long lastProgressAt = startedAt;
+
+        Run(final boolean repair) {
+            this.repair = repair;
+        }
+
+        void seen(final String userId, final String participantId) {
+            seen.add(Transaction.getPartitionKey(userId, participantId));
+        }
+
+        boolean isSeen(final FinalState finalState) {
+            return seen.contains(Transaction.getPartitionKey(finalState.getUserId(), finalState.getParticipantId()));
+        }
+
+        /**
+         * Checks the <code>FinalState</code> of a pair against the balances folded from its transactions, a missing one counting as
+         * zero in every currency.
+         *
+         * @param last The last record folded, <code>null</code> if the pair had none.
+         */
+        void reconcile(final String userId, final String participantId, final Map<Currency, Long> expected, final Transaction last) {
+            try {
+                final var partitionKey = finalStateCache.getShards().getPartitionKey(userId, participantId);
+                final var finalState = finalStateRepository.findById(participantId, new PartitionKey(partitionKey))
+                        .orElseGet(() -> FinalState.empty(partitionKey).withParticipantId(participantId));
+                if (hasRecordsAfter(Transaction.getPartitionKey(userId, participantId), last)) {
+                    log.info("The final state of {} with {} was written to while being reconciled, skipping it", userId, participantId);
+                    failed.increment();
+                } else {
+                    compare(finalState, expected);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Failed to reconcile the final state of {} with {}", userId, participantId, e);
+                failed.increment();
+            }
+            progress();
+        }
+
+        /**
+         * Checks a <code>FinalState</code> that had a balance but no transactions when the first pass went by. Its partition is
+         * folded again, as the pair may have been written to since, and the <code>FinalState</code> read again after that.
+         */
+        void reconcileUnrecorded(final FinalState finalState) {
+            final var userId = finalState.getUserId();
+            final var participantId = finalState.getParticipantId();
+            final Map<Currency, Long> expected;
+            final Transaction folded;
+            try {
+                final var partitionKey = Transaction.getPartitionKey(userId, participantId);
+                final var partition = new Partition();
+                Transaction last = null;
+                var more = true;
+                while (more) {
+                    final var page = last == null
+                            ? transactionRepository.findPartitionReplayPage(partitionKey, Long.MIN_VALUE, Long.MIN_VALUE, "", pageSize)
+                            : transactionRepository.findPartitionReplayPage(partitionKey, last.getSequence(), last.getCreatedAt(),
+                            last.getId(), pageSize);
+                    more = page.size() == pageSize;
+                    for (final var record : page) {
+                        if (!getPartitionKey(record).equals(partitionKey)) {
+                            more = false;
+                            break;
+                        }
+                        if (last == null) {
+                            partition.start(record);
+                        }
+                        partition.fold(record);
+                        last = record;
+                        transactions.increment();
+                    }
+                }
+                expected = partition.balances == null ? Map.of() : partition.balances;
+                folded = last;
+            } catch (RuntimeException e) {
+                log.warn("Failed to reconcile the final state of {} with {}", userId, participantId, e);
+                failed.increment();
+                progress();
+                return;
+            }
+            reconcile(userId, participantId, expected, folded);
+        }
+
+        /**
+         * @param last The last record folded from the partition, <code>null</code> if none was.
+         * @return Whether the partition holds records written after it.
+         */
+        private boolean hasRecordsAfter(final String partitionKey, final Transaction last) {
+            final var next = last == null
+                    ? transactionRepository.findPartitionReplayPage(partitionKey, Long.MIN_VALUE, Long.MIN_VALUE, "", 1)
+                    : transactionRepository.findPartitionReplayPage(partitionKey, last.getSequence(), last.getCreatedAt(), last.getId(), 1);
+            return !next.isEmpty() && getPartitionKey(next.get(0)).equals(partitionKey);
+        }
+
+        private void compare(final FinalState finalState, final Map<Currency, Long> expected) {
+            partitions.increment();
+            final var currencies = EnumSet.noneOf(Currency.class);
+            currencies.addAll(expected.keySet());
+            currencies.addAll(finalState.getBalances().keySet());
+            var repairedState = finalState;
+            for (final var currency : currencies) {
+                final var expectedBalance = expected.getOrDefault(currency, 0L);
+                if (expectedBalance != finalState.getBalance(currency)) {
+                    if (drifts.size() < MAX_REPORTED_DRIFTS) {
+                        drifts.add(new ReconciliationReport.Drift(finalState.getUserId(), finalState.getParticipantId(),
+                                finalState.getBalance(currency), expectedBalance, currency));
+                    }
+                    repairedState = repairedState.withBalance(currency, expectedBalance);
+                }
+            }
+            if (repairedState != finalState) {
+                drifted.increment();
+                if (repair) {
+                    finalStateRepository.save(repairedState.withRevision(finalState.getRevision() + 1));
+                    finalStateCache.invalidate(finalState.getUserId());
+                    userBalanceSummaries.invalidate(finalState.getUserId());
+                    repaired.increment();
+                }
+            }
+        }
+
+        private void progress() {
+            if (System.nanoTime() - lastProgressAt > PROGRESS_INTERVAL_NANOS) {
+                logProgress();
+            }
+        }
+
+        void logProgress() {
+            lastProgressAt = System.nanoTime();
+            final var elapsedSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(lastProgressAt - startedAt));
+            log.info("Reconciled {} partitions, {} transactions ({} txn/s), {} drifted",
+                    partitions.sum(), transactions.sum(), transactions.sum() / elapsedSeconds, drifted.sum());
+        }
+
+        ReconciliationReport toReport() {
+            return new ReconciliationReport(partitions.sum(), transactions.sum(), drifted.sum(), repaired.sum(), failed.sum(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt), List.copyOf(drifts));
+        }
+    }
+}
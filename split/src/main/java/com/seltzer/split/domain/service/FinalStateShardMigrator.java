@@ -0,0 +1,181 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.spring.data.cosmos.exception.CosmosAccessException;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.repository.FinalStateRepository;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads the <code>FinalState</code>s of users with more than <code>split.final-state.sharding.threshold</code> counterparties
+ * over <code>split.final-state.sharding.shards</code> partitions, see {@link FinalStateShards}. A migration
+ * <ol>
+ *     <li>copies every <code>FinalState</code> of the user into its shard,</li>
+ *     <li>writes the shard marker, from which point this instance reads and writes the shards,</li>
+ *     <li>waits for the other instances to notice the marker, which takes up to <code>split.final-state.sharding.directory-ttl</code>,</li>
+ *     <li>carries over to the shards whatever the other instances changed in the user's partition in the meantime, and deletes
+ *     the originals, each on the condition that it has not changed again since.</li>
+ * </ol>
+ * Balances stay readable and writable throughout. A migration that fails part way can be run again: copies are overwritten
+ * until the marker is written, which only happens once every <code>FinalState</code> has been copied.
+ */
+@Slf4j
+@Component
+public class FinalStateShardMigrator {
+    private final FinalStateRepository finalStateRepository;
+    private final FinalStateCache finalStateCache;
+    private final TransactionHandler transactionHandler;
+    private final int shards;
+    private final int threshold;
+    private final int pageSize;
+
+    public FinalStateShardMigrator(final FinalStateRepository finalStateRepository,
+                                   final FinalStateCache finalStateCache,
+                                   final TransactionHandler transactionHandler,
+                                   @Value("${split.final-state.sharding.shards:16}") final int shards,
+                                   @Value("${split.final-state.sharding.threshold:10000}") final int threshold,
+                                   @Value("${split.final-state.sharding.page-size:1000}") final int pageSize) {
+        this.finalStateRepository = finalStateRepository;
+        this.finalStateCache = finalStateCache;
+        this.transactionHandler = transactionHandler;
+        this.shards = shards;
+        this.threshold = threshold;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return The unsharded users with more <code>FinalState</code>s than the threshold, with their number of
+     * <code>FinalState</code>s, from a scan of every <code>FinalState</code>.
+     */
+    public Map<String, Long> findHotUsers() {
+        final var counts = new HashMap<String, Long>();
+        Pageable pageable = PageRequest.of(0, pageSize);
+        while (true) {
+            final var page = finalStateRepository.findAll(pageable);
+            for (final var finalState : page) {
+                if (finalState.getPartitionKey().equals(finalState.getUserId()) && !FinalStateShards.isMarker(finalState)) {
+                    counts.merge(finalState.getUserId(), 1L, Long::sum);
+                }
+            }
+            if (!page.hasNext()) {
+                break;
+            }
+            pageable = page.nextPageable();
+        }
+        final var hot = new LinkedHashMap<String, Long>();
+        counts.entrySet().stream()
+                .filter(count -> count.getValue() > threshold)
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .forEach(count -> hot.put(count.getKey(), count.getValue()));
+        return hot;
+    }
+
+    /**
+     * @return The users migrated, with the number of <code>FinalState</code>s moved for each.
+     */
+    public Map<String, Integer> migrateHotUsers() throws InterruptedException {
+        final var migrated = new LinkedHashMap<String, Integer>();
+        for (final var userId : findHotUsers().keySet()) {
+            migrated.put(userId, migrate(userId));
+        }
+        return migrated;
+    }
+
+    /**
+     * @param userId The user whose <code>FinalState</code>s to shard.
+     * @return The number of <code>FinalState</code>s moved, 0 if the user was sharded already.
+     * @throws IllegalStateException If sharding is not enabled.
+     */
+    public int migrate(@NonNull final String userId) throws InterruptedException {
+        final var finalStateShards = finalStateCache.getShards();
+        if (!finalStateShards.isEnabled()) {
+            throw new IllegalStateException("Set split.final-state.sharding.enabled to shard the final states of " + userId);
+        }
+        final var originals = new LinkedHashMap<String, FinalState>();
+        for (final var finalState : finalStateRepository.findAll(new PartitionKey(userId))) {
+            if (FinalStateShards.isMarker(finalState)) {
+                return 0;
+            }
+            originals.put(finalState.getParticipantId(), finalState);
+        }
+        final var start = System.nanoTime();
+        for (final var original : originals.values()) {
+            final var partitionKey = FinalState.getPartitionKey(userId, FinalStateShards.getShard(original.getParticipantId(), shards));
+            final var copied = finalStateRepository.findById(original.getParticipantId(), new PartitionKey(partitionKey));
+            finalStateRepository.save(original.withPartitionKey(partitionKey).with_etag(copied.map(FinalState::get_etag).orElse(null)));
+        }
+        finalStateRepository.save(new FinalState().withUserId(userId).withParticipantId(FinalStateShards.MARKER_ID).withShards(shards));
+        finalStateShards.invalidate(userId);
+        finalStateCache.invalidate(userId);
+        log.info("Copied {} final states of {} into {} shards, waiting {} for other instances to follow",
+                originals.size(), userId, shards, finalStateShards.getDirectoryTtl());
+
+        TimeUnit.MILLISECONDS.sleep(finalStateShards.getDirectoryTtl().toMillis());
+        for (final var original : originals.values()) {
+            deleteOriginal(original);
+        }
+        finalStateCache.invalidate(userId);
+        log.info("Sharded {} final states of {} in {} ms", originals.size(), userId,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return originals.size();
+    }
+
+    /**
+     * Deletes the original once whatever was added to it since it was copied has been carried over to the shard. The delete is
+     * conditional, so an instance that still wrote to the original in between has its change carried over too, and the delete
+     * retried.
+     */
+    private void deleteOriginal(final FinalState original) {
+        var carried = original;
+        while (true) {
+            final var current = finalStateRepository.findById(original.getParticipantId(), new PartitionKey(original.getPartitionKey()));
+            if (current.isEmpty()) {
+                return;
+            }
+            if (!current.get().get_etag().equals(carried.get_etag())) {
+                carryOver(carried, current.get());
+                carried = current.get();
+            }
+            try {
+                finalStateRepository.delete(current.get());
+                return;
+            } catch (CosmosAccessException e) {
+                if (!TransactionHandler.isWriteConflict(e)) {
+                    throw e;
+                }
+                log.info("Final state of {} with {} changed while being moved to its shard, carrying it over again",
+                        original.getUserId(), original.getParticipantId());
+            }
+        }
+    }
+
+    /**
+     * Adds to the shard what was added to the original after it was copied, by an instance still routing to the user's partition.
+     */
+    private void carryOver(final FinalState copied, final FinalState current) {
+        final var update = new FinalStateUpdate(current.getUserId(), current.getParticipantId());
+        final var currencies = EnumSet.noneOf(Currency.class);
+        currencies.addAll(copied.getBalances().keySet());
+        currencies.addAll(current.getBalances().keySet());
+        for (final var currency : currencies) {
+            final var delta = current.getBalance(currency) - copied.getBalance(currency);
+            if (delta != 0) {
+                update.add(delta, currency);
+            }
+        }
+        // the delta was counted in the user's summary when it was added to the original.
+        transactionHandler.commit(update, UserBalanceSummaries.Changes.NONE);
+    }
+}
@@ -0,0 +1,189 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.repository.FinalStateRepository;
+import com.seltzer.split.domain.repository.ReactiveFinalStateRepository;
+import lombok.NonNull;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tells which partition each <code>FinalState</code> lives in. A user's <code>FinalState</code>s are kept in the partition
+ * <code>userId</code>, unless the {@link FinalStateShardMigrator} has spread them over the partitions <code>userId#0</code> to
+ * <code>userId#n-1</code>, by a hash of the <code>participantId</code>, so that a user with a great many counterparties isn't
+ * capped by the throughput and storage limits of a single logical partition. A sharded user's own partition then only holds a
+ * marker document, {@link #MARKER_ID}, recording <code>n</code>.
+ * <p>
+ * Whether a user is sharded is cached for <code>split.final-state.sharding.directory-ttl</code>, which bounds how long other
+ * instances keep writing to the old partition after a migration. With <code>split.final-state.sharding.enabled</code> off,
+ * nothing is looked up and every user is taken to be unsharded.
+ */
+@Component
+public class FinalStateShards {
+    public static final String MARKER_ID = "$shards";
+
+    private final FinalStateRepository finalStateRepository;
+    private final boolean enabled;
+    private final Duration directoryTtl;
+    private final LoadingCache<String, Integer> directory;
+    private final ExecutorService readExecutor;
+
+    @Autowired
+    public FinalStateShards(final FinalStateRepository finalStateRepository,
+                            @Value("${split.final-state.sharding.enabled:false}") final boolean enabled,
+                            @Value("${split.final-state.sharding.directory-ttl:PT1M}") final Duration directoryTtl,
+                            @Value("${split.final-state.sharding.read-threads:16}") final int readThreads) {
+        this.finalStateRepository = finalStateRepository;
+        this.enabled = enabled;
+        this.directoryTtl = directoryTtl;
+        this.directory = Caffeine.newBuilder()
+                .maximumSize(1_000_000)
+                .expireAfterWrite(directoryTtl)
+                .build(userId -> finalStateRepository.findById(MARKER_ID, new PartitionKey(userId))
+                        .map(FinalState::getShards)
+                        .orElse(0));
+        final var threads = new AtomicInteger();
+        this.readExecutor = !enabled ? null : Executors.newFixedThreadPool(readThreads, runnable -> {
+            final var thread = new Thread(runnable, "split-shard-read-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return Routing that keeps every user in their own partition.
+     */
+    public static FinalStateShards disabled(final FinalStateRepository finalStateRepository) {
+        return new FinalStateShards(finalStateRepository, false, Duration.ZERO, 1);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    Duration getDirectoryTtl() {
+        return directoryTtl;
+    }
+
+    /**
+     * @return The number of shards the user's <code>FinalState</code>s are spread over, 0 if they aren't sharded.
+     */
+    public int getShards(@NonNull final String userId) {
+        return enabled ? directory.get(userId) : 0;
+    }
+
+    /**
+     * @return The key of the partition holding the <code>FinalState</code> of the user with the participant.
+     */
+    public String getPartitionKey(@NonNull final String userId, @NonNull final String participantId) {
+        final var shards = getShards(userId);
+        return shards == 0 ? userId : FinalState.getPartitionKey(userId, getShard(participantId, shards));
+    }
+
+    /**
+     * @return All the <code>FinalState</code>s of the user. Those of a sharded user are read from every shard at once and merged.
+     * @apiNote The user's own partition is read first, as it is for an unsharded user, and tells whether there are shards to
+     * read, which also refreshes the cached routing for the user.
+     */
+    public List<FinalState> findAll(@NonNull final String userId) {
+        final var finalStates = finalStateRepository.findAll(new PartitionKey(userId));
+        final var shards = remember(userId, finalStates);
+        if (shards == 0) {
+            return finalStates;
+        }
+        // until a migration completes, the user's own partition still holds the FinalStates being moved; the shards win.
+        final var reads = new ArrayList<CompletableFuture<List<FinalState>>>(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            final var partitionKey = new PartitionKey(FinalState.getPartitionKey(userId, shard));
+            reads.add(readExecutor == null
+                    ? CompletableFuture.completedFuture(finalStateRepository.findAll(partitionKey))
+                    : CompletableFuture.supplyAsync(() -> finalStateRepository.findAll(partitionKey), readExecutor));
+        }
+        final var merged = new ArrayList<FinalState>();
+        try {
+            reads.forEach(read -> merged.addAll(read.join()));
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+        return merged;
+    }
+
+    /**
+     * @param finalStateRepository The reactive view of the container this routing reads.
+     * @return The same <code>FinalState</code>s as {@link #findAll(String)}, read without blocking: the user's own partition, then
+     * every shard at once if it holds a marker.
+     */
+    public Mono<List<FinalState>> findAll(@NonNull final String userId,
+                                          @NonNull final ReactiveFinalStateRepository finalStateRepository) {
+        return finalStateRepository.findAll(new PartitionKey(userId)).collectList().flatMap(finalStates -> {
+            final var shards = remember(userId, finalStates);
+            if (shards == 0) {
+                return Mono.just(finalStates);
+            }
+            return Flux.range(0, shards)
+                    .flatMap(shard -> finalStateRepository.findAll(new PartitionKey(FinalState.getPartitionKey(userId, shard))))
+                    .collectList();
+        });
+    }
+
+    /**
+     * @param finalStates The documents of the user's own partition.
+     * @return The number of shards the marker among them records, 0 without one, which is also cached as the user's routing.
+     */
+    private int remember(final String userId, final List<FinalState> finalStates) {
+        final var shards = finalStates.stream().filter(FinalStateShards::isMarker).findFirst().map(FinalState::getShards).orElse(0);
+        if (enabled) {
+            directory.put(userId, shards);
+        }
+        return shards;
+    }
+
+    /**
+     * Forgets the cached routing of the user, after a migration.
+     */
+    void invalidate(@NonNull final String userId) {
+        directory.invalidate(userId);
+    }
+
+    /**
+     * Forgets the cached routing of every user, after the markers have been written again.
+     */
+    void invalidateAll() {
+        directory.invalidateAll();
+    }
+
+    /**
+     * @return The shard of the user's <code>FinalState</code> with the participant, out of <code>shards</code>.
+     * @apiNote <code>String.hashCode</code> is fixed by the language specification, so every instance agrees on it.
+     */
+    static int getShard(final String participantId, final int shards) {
+        return Math.floorMod(participantId.hashCode(), shards);
+    }
+
+    public static boolean isMarker(final FinalState finalState) {
+        return MARKER_ID.equals(finalState.getParticipantId());
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (readExecutor != null) {
+            readExecutor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.FieldDefaults;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pending change to a single <code>FinalState</code> document.
+ * The change is kept as the sequence of operations that produced it rather than as a resulting balance, so that it can be
+ * re-applied on top of a fresh read whenever the conditional write of the document loses a race against a concurrent writer.
+ * <p>
+ * An operation made by a record with an <code>idempotencyKey</code> leaves a {@link FinalState.Applied} mark with the record's
+ * ID on the document, and is skipped when the document already carries that mark: a write retried after it failed half-way,
+ * with one side of a pair committed and the other not, then only changes the side it hadn't reached. The last
+ * {@value #RETAINED_MARKS} marks are kept, on top of those of the update being applied.
+ */
+@RequiredArgsConstructor
+@FieldDefaults(level = AccessLevel.PRIVATE)
+final class FinalStateUpdate {
+    static final int RETAINED_MARKS = 16;
+
+    @Getter
+    final String userId;
+    @Getter
+    final String participantId;
+    final List<Operation> operations = new ArrayList<>(2); // a pair is mostly touched once or twice per batch
+
+    /**
+     * @param amount   The (signed) amount to add to the balance in the given currency.
+     * @param currency The currency of the amount.
+     */
+    void add(final long amount, @NonNull final Currency currency) {
+        add(amount, currency, null);
+    }
+
+    /**
+     * @param recordId The ID of the record making the change, if it carries an <code>idempotencyKey</code>, <code>null</code>
+     *                 otherwise.
+     */
+    void add(final long amount, @NonNull final Currency currency, final String recordId) {
+        operations.add(new Operation(amount, currency, null, recordId));
+    }
+
+    /**
+     * @param currency The currency of the settling payment.
+     * @return A handle exposing the amount that was settled once the update has been applied.
+     * @apiNote Resets the balance in the given currency to zero, leaving the balances in other currencies as they are.
+     */
+    Settlement settle(@NonNull final Currency currency) {
+        return settle(currency, null);
+    }
+
+    /**
+     * @param recordId The ID of the record making the settlement, if it carries an <code>idempotencyKey</code>.
+     * @apiNote A settlement skipped as already applied reports the amount it cleared back then.
+     */
+    Settlement settle(@NonNull final Currency currency, final String recordId) {
+        final var settlement = new Settlement();
+        operations.add(new Operation(0, currency, settlement, recordId));
+        return settlement;
+    }
+
+    /**
+     * @return Whether any of the operations is a settlement, whose amount is only known once the update is applied.
+     */
+    boolean hasSettlement() {
+        return operations.stream().anyMatch(operation -> operation.settlement != null);
+    }
+
+    /**
+     * @param current The <code>FinalState</code> as currently stored, or an empty one if the document does not exist yet, which
+     *                may already name the partition it is to be written to.
+     * @return The <code>FinalState</code> to write back, one <code>revision</code> past <code>current</code>, or
+     * <code>current</code> itself if every operation had already been applied to it.
+     */
+    FinalState applyTo(@NonNull final FinalState current) {
+        var finalState = current.getPartitionKey() == null ? current.withUserId(userId) : current;
+        if (!participantId.equals(finalState.getParticipantId())) {
+            finalState = finalState.withParticipantId(participantId);
+        }
+        // consecutive operations in one currency are run on a local balance, and the document copied once per run.
+        Currency currency = null;
+        long balance = 0;
+        List<FinalState.Applied> marks = null;
+        for (final var operation : operations) {
+            if (operation.recordId != null) {
+                final var applied = current.getApplied(operation.recordId);
+                if (applied.isPresent()) {
+                    if (operation.settlement != null) {
+                        final var settled = applied.get().getSettledMinor();
+                        operation.settlement.money = new Payment.Money(settled == null ? 0 : settled, operation.currency);
+                    }
+                    continue;
+                }
+            }
+            if (operation.currency != currency) {
+                if (currency != null) {
+                    finalState = finalState.withBalance(currency, balance);
+                }
+                currency = operation.currency;
+                balance = finalState.getBalance(currency);
+            }
+            Long settled = null;
+            if (operation.settlement != null) {
+                operation.settlement.money = new Payment.Money(Math.abs(balance), currency);
+                settled = Math.abs(balance);
+                balance = 0;
+            } else {
+                balance += operation.amount;
+            }
+            if (operation.recordId != null) {
+                if (marks == null) {
+                    marks = new ArrayList<>();
+                }
+                marks.add(new FinalState.Applied(operation.recordId, settled));
+            }
+        }
+        if (currency == null) {
+            return finalState == current ? current : finalState.withRevision(current.getRevision() + 1);
+        }
+        finalState = finalState.withBalance(currency, balance).withRevision(current.getRevision() + 1);
+        return marks == null ? finalState : finalState.withApplied(mark(current.getApplied(), marks));
+    }
+
+    /**
+     * @return The marks to keep: the given new ones, after as many of the previous ones as fit in {@value #RETAINED_MARKS}.
+     */
+    private static List<FinalState.Applied> mark(final List<FinalState.Applied> previous, final List<FinalState.Applied> marks) {
+        if (previous == null || previous.isEmpty() || marks.size() >= RETAINED_MARKS) {
+            return marks;
+        }
+        final var kept = Math.min(previous.size(), RETAINED_MARKS - marks.size());
+        final var retained = new ArrayList<FinalState.Applied>(kept + marks.size());
+        retained.addAll(previous.subList(previous.size() - kept, previous.size()));
+        retained.addAll(marks);
+        return retained;
+    }
+
+    @RequiredArgsConstructor
+    private static final class Operation {
+        final long amount;
+        final Currency currency;
+        final Settlement settlement;
+        final String recordId;
+    }
+
+    /**
+     * The amount cleared by a settlement, known only once the balance it settles has been read.
+     */
+    static final class Settlement {
+        @Getter
+        private Payment.Money money;
+    }
+}
@@ -0,0 +1,75 @@
+package com.seltzer.split.domain.service;
+
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the current {@link FxRates} and reloads them from the {@link FxRateProvider} every <code>split.fx.refresh-interval</code>.
+ * A reload swaps in a whole new table, so readers take a consistent snapshot with a single volatile read and never wait. A
+ * reload that fails keeps the previous rates.
+ */
+@Slf4j
+@Component
+public class FxRateCache {
+    private final FxRateProvider provider;
+    private final ScheduledExecutorService scheduler;
+    private volatile FxRates rates;
+
+    @Autowired
+    public FxRateCache(final FxRateProvider provider,
+                       @Value("${split.fx.refresh-interval:PT5M}") final Duration refreshInterval) throws IOException {
+        this.provider = provider;
+        this.rates = new FxRates(provider.load());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final var thread = new Thread(runnable, "split-fx-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::refresh, refreshInterval.toMillis(), refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private FxRateCache(final FxRates rates) {
+        this.provider = null;
+        this.scheduler = null;
+        this.rates = rates;
+    }
+
+    /**
+     * @return A cache that always holds the given rates.
+     */
+    public static FxRateCache of(@NonNull final FxRates rates) {
+        return new FxRateCache(rates);
+    }
+
+    /**
+     * @return The rates as of the last successful load.
+     */
+    public FxRates get() {
+        return rates;
+    }
+
+    void refresh() {
+        try {
+            rates = new FxRates(provider.load());
+        } catch (IOException | RuntimeException e) {
+            log.warn("Failed to reload exchange rates, keeping the previous ones", e);
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.Currency;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * Source of the exchange rates loaded into the {@link FxRateCache}.
+ */
+@FunctionalInterface
+public interface FxRateProvider {
+    /**
+     * @return Units of each currency per unit of a common base currency, see {@link FxRates#FxRates(Map)}.
+     */
+    Map<Currency, BigDecimal> load() throws IOException;
+}
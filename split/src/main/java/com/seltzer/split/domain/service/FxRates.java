@@ -0,0 +1,58 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.Currency;
+import lombok.NonNull;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+/**
+ * An immutable table of exchange rates. Every rate is given as the number of major units of a currency that one major unit of
+ * a common base currency buys, and the table precomputes the factor converting minor units of any currency into minor units of
+ * any other, so that a conversion is an array lookup and a multiplication.
+ */
+public final class FxRates {
+    private static final Currency[] CURRENCIES = Currency.values();
+
+    public static final FxRates EMPTY = new FxRates(Map.of());
+
+    // factors[from][to], NaN where either rate is unknown.
+    private final double[][] factors = new double[CURRENCIES.length][CURRENCIES.length];
+
+    /**
+     * @param rates Units of each currency per unit of the base currency. Currencies left out can't be converted.
+     */
+    public FxRates(@NonNull final Map<Currency, BigDecimal> rates) {
+        for (final var from : CURRENCIES) {
+            for (final var to : CURRENCIES) {
+                final var fromRate = rates.get(from);
+                final var toRate = rates.get(to);
+                if (from == to) {
+                    factors[from.ordinal()][to.ordinal()] = 1;
+                } else if (fromRate == null || toRate == null || fromRate.signum() <= 0 || toRate.signum() <= 0) {
+                    factors[from.ordinal()][to.ordinal()] = Double.NaN;
+                } else {
+                    factors[from.ordinal()][to.ordinal()] = toRate.doubleValue() / fromRate.doubleValue()
+                            * Math.pow(10, to.getScale() - from.getScale());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param amount An amount in minor units of <code>from</code>.
+     * @return The amount in minor units of <code>to</code>, rounded half away from zero so that both sides of a pair convert
+     * to the same amount.
+     * @throws IllegalArgumentException If the rate of either currency is unknown.
+     */
+    public long convert(final long amount, @NonNull final Currency from, @NonNull final Currency to) {
+        if (from == to) {
+            return amount;
+        }
+        final var factor = factors[from.ordinal()][to.ordinal()];
+        if (Double.isNaN(factor)) {
+            throw new IllegalArgumentException(String.format("No exchange rate from %s to %s", from, to));
+        }
+        return amount < 0 ? -Math.round(-amount * factor) : Math.round(amount * factor);
+    }
+}
@@ -0,0 +1,124 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.GroupExpense;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import lombok.NonNull;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Turns a {@link GroupExpense} into the transactions that record it. Parts are worked out in minor units with the largest
+ * remainder method, so they always add up to the bill: every participant gets the floor of their exact part, and the minor units
+ * left over go one each to the participants with the largest fractions, earlier participants first on a tie.
+ */
+public final class GroupExpenseSplitter {
+    private static final BigDecimal HUNDRED = BigDecimal.valueOf(100);
+
+    private GroupExpenseSplitter() {
+    }
+
+    /**
+     * @param expense The expense to split.
+     * @return One <code>paidTo</code> transaction from the payer to every other participant with a non-zero part, in the order of
+     * the shares. With an <code>idempotencyKey</code> on the expense, each carries <code>idempotencyKey:participantId</code>.
+     * @throws IllegalArgumentException If the expense is incomplete or its shares don't add up.
+     */
+    public static List<Transaction> split(@NonNull final GroupExpense expense) {
+        final var money = expense.getMoney();
+        if (expense.getPaidBy() == null || money == null || money.getCurrency() == null || expense.getSplit() == null) {
+            throw new IllegalArgumentException("Group expense needs paidBy, money and split");
+        }
+        if (money.getAmount() <= 0) {
+            throw new IllegalArgumentException("Group expense of " + money.getAmount() + " is not positive");
+        }
+        final var shares = expense.getShares();
+        if (shares == null || shares.isEmpty()) {
+            throw new IllegalArgumentException("Group expense has no shares");
+        }
+        final var userIds = new HashSet<String>();
+        for (final var share : shares) {
+            if (share.getUserId() == null || !userIds.add(share.getUserId())) {
+                throw new IllegalArgumentException("Group expense has a missing or repeated participant " + share.getUserId());
+            }
+        }
+
+        final var parts = getParts(expense.getSplit(), money.getAmount(), shares);
+        final var transactions = new ArrayList<Transaction>(shares.size());
+        for (int i = 0; i < shares.size(); i++) {
+            final var participantId = shares.get(i).getUserId();
+            if (parts[i] != 0 && !participantId.equals(expense.getPaidBy())) {
+                transactions.add(new Transaction()
+                        .withUserId(expense.getPaidBy())
+                        .withPaidTo(new Payment()
+                                .withUserId(participantId)
+                                .withMoney(new Payment.Money(parts[i], money.getCurrency())))
+                        .withIdempotencyKey(expense.getIdempotencyKey() == null ? null : expense.getIdempotencyKey() + ":" + participantId));
+            }
+        }
+        return transactions;
+    }
+
+    /**
+     * @return Every participant's part of <code>amount</code>, in minor units and in the order of the shares.
+     */
+    static long[] getParts(final GroupExpense.Split split, final long amount, final List<GroupExpense.Share> shares) {
+        switch (split) {
+            case EQUAL:
+                return allocate(amount, shares.stream().map(share -> BigDecimal.ONE).toArray(BigDecimal[]::new));
+            case EXACT:
+                final var parts = shares.stream().mapToLong(GroupExpense.Share::getAmount).toArray();
+                if (Arrays.stream(parts).anyMatch(part -> part < 0)
+                        || Arrays.stream(parts).mapToObj(BigInteger::valueOf).reduce(BigInteger.ZERO, BigInteger::add)
+                        .compareTo(BigInteger.valueOf(amount)) != 0) {
+                    throw new IllegalArgumentException("Exact amounts " + Arrays.toString(parts) + " don't add up to " + amount);
+                }
+                return parts;
+            case PERCENTAGE:
+                final var percentages = shares.stream()
+                        .map(share -> share.getPercentage() == null ? BigDecimal.ZERO : share.getPercentage())
+                        .toArray(BigDecimal[]::new);
+                if (Arrays.stream(percentages).reduce(BigDecimal.ZERO, BigDecimal::add).compareTo(HUNDRED) != 0) {
+                    throw new IllegalArgumentException("Percentages " + Arrays.toString(percentages) + " don't add up to 100");
+                }
+                return allocate(amount, percentages);
+            case SHARES:
+                return allocate(amount, shares.stream().map(share -> BigDecimal.valueOf(share.getShares())).toArray(BigDecimal[]::new));
+            default:
+                throw new IllegalArgumentException("Unknown split " + split);
+        }
+    }
+
+    /**
+     * @param weights Non-negative, and not all zero.
+     * @return <code>amount</code> divided in proportion to the weights, by the largest remainder method.
+     */
+    private static long[] allocate(final long amount, final BigDecimal[] weights) {
+        final var total = Arrays.stream(weights).reduce(BigDecimal.ZERO, BigDecimal::add);
+        if (Arrays.stream(weights).anyMatch(weight -> weight.signum() < 0) || total.signum() == 0) {
+            throw new IllegalArgumentException("Weights " + Arrays.toString(weights) + " must be non-negative and not all zero");
+        }
+        final var parts = new long[weights.length];
+        final var remainders = new BigDecimal[weights.length];
+        var left = amount;
+        for (int i = 0; i < weights.length; i++) {
+            final var exact = BigDecimal.valueOf(amount).multiply(weights[i]);
+            final var floor = exact.divideToIntegralValue(total);
+            parts[i] = floor.longValueExact();
+            remainders[i] = exact.subtract(floor.multiply(total));
+            left -= parts[i];
+        }
+        IntStream.range(0, weights.length).boxed()
+                .sorted(Comparator.comparing((Integer i) -> remainders[i]).reversed().thenComparing(i -> i))
+                .limit(left)
+                .forEach(i -> parts[i]++);
+        return parts;
+    }
+}
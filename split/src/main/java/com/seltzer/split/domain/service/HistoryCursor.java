@@ -0,0 +1,49 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.HistoryEntry;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position in a transaction history, handed to clients as an opaque token: the <code>createdAt</code> and <code>id</code> of
+ * the last transaction of a page. The next page starts right after it however many transactions were recorded meanwhile.
+ */
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Getter
+final class HistoryCursor {
+    static final HistoryCursor START = new HistoryCursor(Long.MAX_VALUE, "");
+
+    long createdAt;
+    String id;
+
+    static HistoryCursor after(@NonNull final HistoryEntry entry) {
+        return new HistoryCursor(entry.getCreatedAt(), entry.getId());
+    }
+
+    /**
+     * @param token A token returned by {@link #toToken()}, or <code>null</code> for the start of the history.
+     */
+    static HistoryCursor parse(final String token) {
+        if (token == null || token.isEmpty()) {
+            return START;
+        }
+        try {
+            final var decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            final var separator = decoded.indexOf(':');
+            return new HistoryCursor(Long.parseLong(decoded.substring(0, separator)), decoded.substring(separator + 1));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid history cursor " + token, e);
+        }
+    }
+
+    String toToken() {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString((createdAt + ":" + id).getBytes(StandardCharsets.UTF_8));
+    }
+}
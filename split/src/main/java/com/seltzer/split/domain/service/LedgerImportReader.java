@@ -0,0 +1,237 @@
+package com.seltzer.split.domain.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads a ledger export one line at a time and maps every line to a <code>Transaction</code>, keeping count of the bytes and
+ * lines consumed so that an import can be resumed right after the last line it wrote.
+ * <p>
+ * A CSV export starts with a header naming its columns, in any order: <code>userId</code>, <code>direction</code>
+ * (<code>paidTo</code> or <code>receivedFrom</code>), <code>participantId</code>, <code>amountMinor</code> and
+ * <code>currency</code>, optionally followed by <code>createdAt</code> (epoch millis or ISO-8601), <code>idempotencyKey</code> and
+ * <code>settlement</code>. Fields may be quoted, but not span lines. An NDJSON export holds one transaction per line, as
+ * <code>POST /transactions</code> takes it. Blank lines are skipped.
+ */
+final class LedgerImportReader {
+    private static final List<String> REQUIRED_COLUMNS = List.of("userId", "direction", "participantId", "amountMinor", "currency");
+
+    private final InputStream in;
+    private final LedgerImporter.Format format;
+    private final ObjectReader transactionReader;
+    private final byte[] buffer = new byte[1 << 16];
+    private int position;
+    private int limit;
+    private byte[] line = new byte[256];
+    private long offset;
+    private long lineNumber;
+    private Map<String, Integer> columns;
+
+    LedgerImportReader(final InputStream in, final LedgerImporter.Format format, final ObjectMapper objectMapper) throws IOException {
+        this.in = in;
+        this.format = format;
+        this.transactionReader = objectMapper.readerFor(Transaction.class);
+        if (format == LedgerImporter.Format.CSV) {
+            readHeader();
+        }
+    }
+
+    /**
+     * @return The number of bytes consumed, up to the end of the last line returned by {@link #next()}.
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The 1-based number of the last line returned by {@link #next()}, counting the header and blank lines.
+     */
+    long getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Skips ahead to the given position, which must be the end of a line of the same export.
+     */
+    void skipTo(final long offset, final long lineNumber) throws IOException {
+        if (offset < this.offset) {
+            throw new IllegalArgumentException(String.format("Can't resume at byte %d, before the header ends at %d", offset, this.offset));
+        }
+        var remaining = offset - this.offset;
+        final var buffered = (int) Math.min(remaining, limit - position);
+        position += buffered;
+        remaining -= buffered;
+        try {
+            in.skipNBytes(remaining);
+        } catch (EOFException e) {
+            throw new IllegalArgumentException(String.format("The export ends before byte %d where the import left off", offset), e);
+        }
+        this.offset = offset;
+        this.lineNumber = lineNumber;
+    }
+
+    /**
+     * @return The transaction on the next line that isn't blank, or <code>null</code> at the end of the export.
+     * @throws IllegalArgumentException If the line can't be parsed.
+     */
+    Transaction next() throws IOException {
+        String text;
+        do {
+            text = readLine();
+            if (text == null) {
+                return null;
+            }
+        } while (text.isBlank());
+        try {
+            return format == LedgerImporter.Format.CSV ? parseCsv(text) : transactionReader.readValue(text);
+        } catch (JsonProcessingException | RuntimeException e) {
+            throw new IllegalArgumentException(String.format("Line %d: %s", lineNumber, e.getMessage()), e);
+        }
+    }
+
+    private void readHeader() throws IOException {
+        final var header = readLine();
+        if (header == null) {
+            throw new IllegalArgumentException("The export is empty, expected a CSV header");
+        }
+        columns = new HashMap<>();
+        final var names = split(header);
+        for (int i = 0; i < names.size(); i++) {
+            columns.put(names.get(i).trim(), i);
+        }
+        for (final var column : REQUIRED_COLUMNS) {
+            if (!columns.containsKey(column)) {
+                throw new IllegalArgumentException(String.format("The CSV header %s has no %s column", header, column));
+            }
+        }
+    }
+
+    private Transaction parseCsv(final String text) {
+        final var fields = split(text);
+        final var money = new Payment.Money(Long.parseLong(get(fields, "amountMinor")),
+                Currency.valueOf(get(fields, "currency").toUpperCase(Locale.ROOT)));
+        final var payment = new Payment(get(fields, "participantId"), money, Boolean.parseBoolean(get(fields, "settlement")));
+        final var createdAt = get(fields, "createdAt");
+        final var idempotencyKey = get(fields, "idempotencyKey");
+        final var transaction = new Transaction()
+                .withUserId(get(fields, "userId"))
+                .withCreatedAt(createdAt == null ? 0 : parseCreatedAt(createdAt))
+                .withIdempotencyKey(idempotencyKey);
+        final var direction = get(fields, "direction");
+        if ("paidTo".equalsIgnoreCase(direction)) {
+            return transaction.withPaidTo(payment);
+        }
+        if ("receivedFrom".equalsIgnoreCase(direction)) {
+            return transaction.withReceivedFrom(payment);
+        }
+        throw new IllegalArgumentException(String.format("direction must be paidTo or receivedFrom, was %s", direction));
+    }
+
+    private static long parseCreatedAt(final String createdAt) {
+        if (createdAt.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(createdAt);
+        }
+        try {
+            return Instant.parse(createdAt).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException(String.format("createdAt must be epoch millis or ISO-8601, was %s", createdAt), e);
+        }
+    }
+
+    /**
+     * @return The named field, or <code>null</code> if the column is missing or the field empty.
+     */
+    private String get(final List<String> fields, final String column) {
+        final var index = columns.get(column);
+        if (index == null || index >= fields.size()) {
+            return null;
+        }
+        final var field = fields.get(index).trim();
+        return field.isEmpty() ? null : field;
+    }
+
+    /**
+     * @return The fields of a CSV line, unquoted.
+     */
+    static List<String> split(final String text) {
+        final var fields = new ArrayList<String>();
+        final var field = new StringBuilder();
+        var quoted = false;
+        for (int i = 0; i < text.length(); i++) {
+            final var c = text.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < text.length() && text.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quoted field");
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * @return The next line without its terminator, or <code>null</code> at the end of the export.
+     */
+    private String readLine() throws IOException {
+        var length = 0;
+        while (true) {
+            if (position == limit) {
+                limit = in.read(buffer);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    if (length == 0) {
+                        return null;
+                    }
+                    break;
+                }
+            }
+            final var b = buffer[position++];
+            offset++;
+            if (b == '\n') {
+                break;
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, length * 2);
+            }
+            line[length++] = b;
+        }
+        lineNumber++;
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+}
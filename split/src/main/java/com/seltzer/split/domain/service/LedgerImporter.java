@@ -0,0 +1,413 @@
+package com.seltzer.split.domain.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.seltzer.split.domain.model.ImportReport;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Replays a ledger exported from elsewhere, in CSV or NDJSON, see {@link LedgerImportReader}. The export is read one line at a time
+ * and cut into chunks of <code>split.import.batch-size</code> lines. Every chunk is split by pair over
+ * <code>split.import.lanes</code> lanes, each a thread writing its share of the chunk as one batch of
+ * {@link TransactionHandler#importTransactions(List, Predicate)}, so a pair's <code>FinalState</code>s are written once per chunk
+ * and always by the same lane, in the order of the export. A lane holds at most <code>split.import.queue-capacity</code> batches,
+ * past which reading waits for the lanes to catch up.
+ * <p>
+ * Once every chunk up to some line has been written, the position after that line is saved as the import's checkpoint, under
+ * <code>split.import.checkpoint-directory</code>. Importing the same export under the same ID again resumes from there. Lines
+ * without an <code>idempotencyKey</code> are given <code>import:{importId}:{line}</code>, so that the ones an interrupted run
+ * wrote past its checkpoint are recognised; only those are looked up, the lines beyond are written blind.
+ */
+@Slf4j
+@Component
+public class LedgerImporter {
+    private static final Pattern IMPORT_ID = Pattern.compile("[A-Za-z0-9_.-]{1,128}");
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int RESERVED_CHUNKS = 100;
+
+    private final TransactionHandler transactionHandler;
+    private final ObjectMapper objectMapper;
+    private final Path checkpointDirectory;
+    private final int batchSize;
+    private final int lanes;
+    private final int queueCapacity;
+
+    public LedgerImporter(final TransactionHandler transactionHandler,
+                          final ObjectMapper objectMapper,
+                          @Value("${split.import.checkpoint-directory:imports}") final Path checkpointDirectory,
+                          @Value("${split.import.batch-size:1000}") final int batchSize,
+                          @Value("${split.import.lanes:8}") final int lanes,
+                          @Value("${split.import.queue-capacity:4}") final int queueCapacity) {
+        this.transactionHandler = transactionHandler;
+        this.objectMapper = objectMapper;
+        this.checkpointDirectory = checkpointDirectory;
+        this.batchSize = batchSize;
+        this.lanes = lanes;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public enum Format {
+        CSV, NDJSON
+    }
+
+    /**
+     * @param importId Names the import's checkpoint, letters, digits, <code>.</code>, <code>_</code> and <code>-</code> only.
+     * @param in       The export, read up to its end but not closed.
+     * @param format   The format of the export.
+     * @return What this run imported and how fast.
+     * @throws IllegalArgumentException If a line is invalid. Every line before it has been written and checkpointed, so the import
+     *                                  can be resumed once the line has been fixed.
+     * @apiNote Runs on the calling thread until the whole export has been written. Importing the same ID concurrently is not
+     * supported.
+     */
+    public ImportReport importLedger(@NonNull final String importId, @NonNull final InputStream in, @NonNull final Format format)
+            throws IOException {
+        if (!IMPORT_ID.matcher(importId).matches()) {
+            throw new IllegalArgumentException(String.format("Not a valid import ID %s", importId));
+        }
+        final var checkpoint = Checkpoint.load(checkpointDirectory.resolve(importId + ".checkpoint"));
+        final var reader = new LedgerImportReader(in, format, objectMapper);
+        if (checkpoint.offset > 0) {
+            reader.skipTo(checkpoint.offset, checkpoint.line);
+            log.info("Resuming import {} after line {}", importId, checkpoint.line);
+        }
+        final var run = new Run(importId, checkpoint);
+        run.start();
+        try {
+            run.read(reader);
+        } finally {
+            run.finish();
+        }
+        final var report = run.toReport();
+        log.info("Import done: {}", report);
+        return report;
+    }
+
+    /**
+     * @return The lane of the pair the transaction is between, whichever side it is recorded from.
+     */
+    private int getLane(final Transaction transaction) {
+        final var participantId = getParticipantId(transaction);
+        final var hash = transaction.getUserId().compareTo(participantId) < 0
+                ? transaction.getUserId().hashCode() * 31 + participantId.hashCode()
+                : participantId.hashCode() * 31 + transaction.getUserId().hashCode();
+        return Math.floorMod(hash, lanes);
+    }
+
+    private static String getParticipantId(final Transaction transaction) {
+        return transaction.getPaidTo().or(transaction::getReceivedFrom).map(Payment::getUserId).orElse(null);
+    }
+
+    /**
+     * Rejects what {@link TransactionHandler} would, and what it would take at face value but can't be right in an export.
+     */
+    private static void validate(final Transaction transaction, final long line) {
+        final var payment = transaction.getPaidTo().or(transaction::getReceivedFrom);
+        final String problem;
+        if (transaction.getUserId() == null || transaction.getUserId().isBlank()) {
+            problem = "no userId";
+        } else if (payment.isEmpty() || payment.get().getUserId() == null || payment.get().getUserId().isBlank()) {
+            problem = "no participant";
+        } else if (payment.get().getUserId().equals(transaction.getUserId())) {
+            problem = "the participant is the user";
+        } else if (payment.get().getMoney() == null || payment.get().getMoney().getCurrency() == null) {
+            problem = "no amount";
+        } else if (payment.get().isSettlement() && transaction.getPaidTo().isEmpty()) {
+            problem = "a settlement must be paidTo";
+        } else if (payment.get().getMoney().getAmount() < 0 || (payment.get().getMoney().getAmount() == 0 && !payment.get().isSettlement())) {
+            problem = "the amount must be positive";
+        } else {
+            return;
+        }
+        throw new IllegalArgumentException(String.format("Line %d: %s", line, problem));
+    }
+
+    /**
+     * The lines read together, and how far into the export they reach. Done once every lane has written its share.
+     */
+    private static final class Chunk {
+        final AtomicInteger pending = new AtomicInteger();
+        long lastLine;
+        long endOffset;
+        int rows;
+    }
+
+    private static final class Batch {
+        static final Batch END = new Batch(null, List.of());
+
+        final Chunk chunk;
+        final List<Transaction> transactions;
+
+        Batch(final Chunk chunk, final List<Transaction> transactions) {
+            this.chunk = chunk;
+            this.transactions = transactions;
+        }
+    }
+
+    private final class Run {
+        final String importId;
+        final String keyPrefix;
+        final Checkpoint resumedFrom;
+        final long startedAt = System.nanoTime();
+        final List<BlockingQueue<Batch>> queues = new ArrayList<>(lanes);
+        final List<Thread> threads = new ArrayList<>(lanes);
+        final ArrayDeque<Chunk> chunks = new ArrayDeque<>(); // dispatched and not yet checkpointed, in order; guarded by this
+        final LongAdder imported = new LongAdder();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        final Predicate<Transaction> mayBeRecorded;
+        Checkpoint checkpoint; // guarded by this
+        long lastCheckpointAt = startedAt; // guarded by this
+        long lastProgressAt = startedAt; // guarded by this
+
+        Run(final String importId, final Checkpoint resumedFrom) {
+            this.importId = importId;
+            this.keyPrefix = "import:" + importId + ":";
+            this.resumedFrom = resumedFrom;
+            this.checkpoint = resumedFrom;
+            // lines past the reservation of the interrupted run were never handed to a lane, and can't have been written.
+            this.mayBeRecorded = transaction -> !transaction.getIdempotencyKey().startsWith(keyPrefix)
+                    || Long.parseLong(transaction.getIdempotencyKey().substring(keyPrefix.length())) <= resumedFrom.reservedLine;
+        }
+
+        void start() {
+            for (int i = 0; i < lanes; i++) {
+                final BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(queueCapacity);
+                final var thread = new Thread(() -> write(queue), "split-import-" + importId + "-" + i);
+                thread.setDaemon(true);
+                queues.add(queue);
+                threads.add(thread);
+                thread.start();
+            }
+        }
+
+        void read(final LedgerImportReader reader) throws IOException {
+            var chunk = new Chunk();
+            var shares = newShares();
+            Transaction transaction;
+            while (failure.get() == null && (transaction = reader.next()) != null) {
+                validate(transaction, reader.getLineNumber());
+                if (transaction.getIdempotencyKey() == null) {
+                    transaction = transaction.withIdempotencyKey(keyPrefix + reader.getLineNumber());
+                }
+                shares.get(getLane(transaction)).add(transaction);
+                chunk.lastLine = reader.getLineNumber();
+                chunk.endOffset = reader.getOffset();
+                if (++chunk.rows == batchSize) {
+                    dispatch(chunk, shares);
+                    chunk = new Chunk();
+                    shares = newShares();
+                }
+            }
+            if (chunk.rows > 0 && failure.get() == null) {
+                dispatch(chunk, shares);
+            }
+        }
+
+        private List<List<Transaction>> newShares() {
+            final var shares = new ArrayList<List<Transaction>>(lanes);
+            for (int i = 0; i < lanes; i++) {
+                shares.add(new ArrayList<>());
+            }
+            return shares;
+        }
+
+        /**
+         * Hands the shares of the chunk to their lanes, once the lines of the chunk are covered by the saved reservation.
+         */
+        private void dispatch(final Chunk chunk, final List<List<Transaction>> shares) {
+            chunk.pending.set((int) shares.stream().filter(share -> !share.isEmpty()).count());
+            synchronized (this) {
+                if (chunk.lastLine > checkpoint.reservedLine) {
+                    checkpoint = checkpoint.reserve(chunk.lastLine + (long) batchSize * RESERVED_CHUNKS);
+                    save();
+                }
+                chunks.add(chunk);
+            }
+            for (int i = 0; i < lanes; i++) {
+                if (!shares.get(i).isEmpty()) {
+                    put(queues.get(i), new Batch(chunk, shares.get(i)));
+                }
+            }
+        }
+
+        /**
+         * Waits for room in the lane, unless a lane has failed, in which case the lanes are no longer taking anything.
+         */
+        private void put(final BlockingQueue<Batch> queue, final Batch batch) {
+            try {
+                while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                    if (failure.get() != null) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while importing " + importId, e);
+            }
+        }
+
+        private void write(final BlockingQueue<Batch> queue) {
+            while (true) {
+                final Batch batch;
+                try {
+                    batch = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (batch == Batch.END) {
+                    return;
+                }
+                if (failure.get() != null) {
+                    continue;
+                }
+                try {
+                    transactionHandler.importTransactions(batch.transactions, mayBeRecorded);
+                    imported.add(batch.transactions.size());
+                    if (batch.chunk.pending.decrementAndGet() == 0) {
+                        written();
+                    }
+                } catch (RuntimeException e) {
+                    log.warn("Failed to import a batch of {} transactions of {}", batch.transactions.size(), importId, e);
+                    failure.compareAndSet(null, e);
+                }
+            }
+        }
+
+        /**
+         * Moves the checkpoint past the chunks written so far, and saves it every so often.
+         */
+        private synchronized void written() {
+            while (!chunks.isEmpty() && chunks.peek().pending.get() == 0) {
+                final var chunk = chunks.poll();
+                checkpoint = checkpoint.advance(chunk.endOffset, chunk.lastLine);
+            }
+            final var now = System.nanoTime();
+            if (now - lastCheckpointAt > CHECKPOINT_INTERVAL_NANOS) {
+                save();
+            }
+            if (now - lastProgressAt > PROGRESS_INTERVAL_NANOS) {
+                lastProgressAt = now;
+                final var elapsedSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(now - startedAt));
+                log.info("Imported {} rows of {} up to line {} ({} rows/s)", imported.sum(), importId, checkpoint.line,
+                        imported.sum() / elapsedSeconds);
+            }
+        }
+
+        private synchronized void save() {
+            lastCheckpointAt = System.nanoTime();
+            try {
+                checkpoint.save();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to save the checkpoint of " + importId, e);
+            }
+        }
+
+        /**
+         * Lets the lanes write what they were handed, and saves the checkpoint they got to.
+         */
+        void finish() {
+            try {
+                // the lanes keep taking batches after a failure, without writing them.
+                for (final var queue : queues) {
+                    queue.put(Batch.END);
+                }
+                for (final var thread : threads) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while importing " + importId, e);
+            }
+            save();
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        }
+
+        ImportReport toReport() {
+            return new ImportReport(importId, resumedFrom.line, checkpoint.line, imported.sum(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+        }
+    }
+
+    /**
+     * How far an import got: the byte offset and number of the last line written, and the last line that may have been handed
+     * to a lane, which is saved before any line past it is.
+     */
+    private static final class Checkpoint {
+        final Path path;
+        final long offset;
+        final long line;
+        final long reservedLine;
+
+        Checkpoint(final Path path, final long offset, final long line, final long reservedLine) {
+            this.path = path;
+            this.offset = offset;
+            this.line = line;
+            this.reservedLine = reservedLine;
+        }
+
+        static Checkpoint load(final Path path) throws IOException {
+            if (!Files.exists(path)) {
+                return new Checkpoint(path, 0, 0, 0);
+            }
+            final var properties = new Properties();
+            try (var reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+            return new Checkpoint(path, Long.parseLong(properties.getProperty("offset")), Long.parseLong(properties.getProperty("line")),
+                    Long.parseLong(properties.getProperty("reservedLine")));
+        }
+
+        Checkpoint advance(final long offset, final long line) {
+            return new Checkpoint(path, offset, line, reservedLine);
+        }
+
+        Checkpoint reserve(final long reservedLine) {
+            return new Checkpoint(path, offset, line, reservedLine);
+        }
+
+        /**
+         * Replaces the saved checkpoint in one step, so that a crash leaves either the old one or the new one.
+         */
+        void save() throws IOException {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            final var properties = new Properties();
+            properties.setProperty("offset", Long.toString(offset));
+            properties.setProperty("line", Long.toString(line));
+            properties.setProperty("reservedLine", Long.toString(reservedLine));
+            final var temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                properties.store(writer, null);
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.Transaction;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local append log of the transaction records written in event-sourced mode, in the order they were written.
+ * The log only holds the records the {@link LedgerProjector} hasn't applied yet and is bounded: appending blocks while the
+ * projector is <code>capacity</code> records behind, so the log never grows with the size of the ledger.
+ * <p>
+ * The log also hands out the <code>sequence</code> of every record written, in every mode, for records to be replayed in the
+ * order they were written rather than by <code>createdAt</code>, which a whole batch shares. Sequences start at the clock, in
+ * units of {@value #SEQUENCE_SHIFT} bits below the millisecond, so that they keep growing across restarts. The log itself is
+ * not durable, but the checkpoint is, when <code>split.ledger.checkpoint-file</code> is set: the projector replays the records
+ * written after it from the <code>TransactionRepository</code> on startup. A batch applied just before the process died can be
+ * applied again by that replay, as its checkpoint may not have been written; {@link LedgerProjector#rebuild()} recomputes the
+ * balances from scratch.
+ */
+@Slf4j
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE)
+public class LedgerLog {
+    static final int SEQUENCE_SHIFT = 20;
+
+    @Getter
+    final boolean enabled;
+    final BlockingQueue<Entry> entries;
+    final Path checkpointFile;
+    final Object checkpointMonitor = new Object();
+    /**
+     * The sequences reserved and not applied yet, each reservation keyed by its first sequence and counting its records left.
+     */
+    final TreeMap<Long, Integer> pending = new TreeMap<>();
+    /**
+     * The last sequence handed out by the previous process, for the projector to replay the records up to it.
+     */
+    @Getter
+    final long recoveredSequence;
+    long lastSequence;
+    @Getter
+    volatile long checkpoint;
+
+    @Autowired
+    public LedgerLog(@Value("${split.ledger.event-sourced:false}") final boolean enabled,
+                     @Value("${split.ledger.capacity:100000}") final int capacity,
+                     @Value("${split.ledger.checkpoint-file:}") final String checkpointFile) {
+        this.enabled = enabled;
+        this.entries = new ArrayBlockingQueue<>(capacity);
+        this.checkpointFile = enabled && !checkpointFile.isEmpty() ? Path.of(checkpointFile) : null;
+        this.checkpoint = readCheckpoint(this.checkpointFile);
+        this.recoveredSequence = Math.max(checkpoint, System.currentTimeMillis() << SEQUENCE_SHIFT);
+        this.lastSequence = recoveredSequence;
+    }
+
+    public LedgerLog(final boolean enabled, final int capacity) {
+        this(enabled, capacity, "");
+    }
+
+    public static LedgerLog disabled() {
+        return new LedgerLog(false, 1);
+    }
+
+    private static long readCheckpoint(final Path checkpointFile) {
+        if (checkpointFile == null || !Files.exists(checkpointFile)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(Files.readString(checkpointFile).trim());
+        } catch (IOException | NumberFormatException e) {
+            throw new IllegalStateException("Unreadable ledger checkpoint " + checkpointFile, e);
+        }
+    }
+
+    /**
+     * @param count The number of records about to be written.
+     * @return The first of <code>count</code> consecutive sequences for the records, greater than any handed out before.
+     * @apiNote In event-sourced mode the checkpoint can't move past the sequences until the records are appended and applied,
+     * or released.
+     */
+    public long reserve(final int count) {
+        synchronized (pending) {
+            final var first = Math.max(lastSequence + 1, System.currentTimeMillis() << SEQUENCE_SHIFT);
+            lastSequence = first + count - 1;
+            if (enabled && count > 0) {
+                pending.put(first, count);
+            }
+            return first;
+        }
+    }
+
+    /**
+     * @param first A sequence returned by {@link #reserve(int)} for records that won't be appended, as writing them failed.
+     */
+    public void release(final long first) {
+        final long checkpoint;
+        synchronized (pending) {
+            pending.remove(first);
+            checkpoint = getAppliedSequence();
+        }
+        checkpoint(checkpoint);
+    }
+
+    /**
+     * @param records The records to append, in order, carrying the sequences reserved for them.
+     * @return The sequence of the last appended record.
+     * @apiNote Blocks while the log is full.
+     */
+    public long append(@NonNull final List<Transaction> records) {
+        long last = 0;
+        try {
+            for (final var record : records) {
+                entries.put(new Entry(record.getSequence(), record));
+                last = record.getSequence();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while appending to the ledger log", e);
+        }
+        return last;
+    }
+
+    /**
+     * @param batch   The list to drain entries into.
+     * @param maxSize The maximum number of entries to drain.
+     * @apiNote Blocks until at least one entry is available.
+     */
+    void take(final List<Entry> batch, final int maxSize) throws InterruptedException {
+        batch.add(entries.take());
+        entries.drainTo(batch, maxSize - 1);
+    }
+
+    /**
+     * @apiNote Drops every entry not taken yet, e.g. because a rebuild is about to replay them from the repository.
+     */
+    void clear() {
+        final var dropped = new ArrayList<Entry>();
+        entries.drainTo(dropped);
+        applied(dropped);
+    }
+
+    /**
+     * Moves the checkpoint past the given entries, once they have been applied to the balances, up to the first sequence that is
+     * still pending.
+     */
+    void applied(final List<Entry> batch) {
+        final long checkpoint;
+        synchronized (pending) {
+            for (final var entry : batch) {
+                final var reservation = pending.floorEntry(entry.getSequence());
+                if (reservation != null) {
+                    if (reservation.getValue() > 1) {
+                        pending.put(reservation.getKey(), reservation.getValue() - 1);
+                    } else {
+                        pending.remove(reservation.getKey());
+                    }
+                }
+            }
+            checkpoint = getAppliedSequence();
+        }
+        checkpoint(checkpoint);
+    }
+
+    private long getAppliedSequence() {
+        return pending.isEmpty() ? lastSequence : pending.firstKey() - 1;
+    }
+
+    /**
+     * @return The last sequence handed out.
+     */
+    long getLastSequence() {
+        synchronized (pending) {
+            return lastSequence;
+        }
+    }
+
+    void checkpoint(final long sequence) {
+        synchronized (checkpointMonitor) {
+            if (sequence <= checkpoint) {
+                return;
+            }
+            checkpoint = sequence;
+            checkpointMonitor.notifyAll();
+            if (checkpointFile != null) {
+                writeCheckpoint(sequence);
+            }
+        }
+    }
+
+    private void writeCheckpoint(final long sequence) {
+        try {
+            final var written = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+            Files.writeString(written, Long.toString(sequence));
+            Files.move(written, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Failed to write the ledger checkpoint {} to {}", sequence, checkpointFile, e); // rewritten with the next one.
+        }
+    }
+
+    /**
+     * @param sequence A sequence returned by {@link #append(List)}.
+     * @param timeout  How long to wait at most.
+     * @return Whether every record up to <code>sequence</code> has been applied to the balances.
+     */
+    public boolean awaitCheckpoint(final long sequence, final long timeout, final TimeUnit unit) throws InterruptedException {
+        final var deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (checkpointMonitor) {
+            while (checkpoint < sequence) {
+                final var remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(checkpointMonitor, remaining);
+            }
+            return true;
+        }
+    }
+
+    @AllArgsConstructor
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    @Getter
+    static class Entry {
+        long sequence;
+        Transaction record;
+    }
+}
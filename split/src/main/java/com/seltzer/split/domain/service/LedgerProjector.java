@@ -0,0 +1,187 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.repository.FinalStateRepository;
+import com.seltzer.split.domain.repository.TransactionRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the <code>FinalState</code> balances up to date in event-sourced mode by applying the records of the {@link LedgerLog}
+ * in micro-batches, and can recompute all balances from scratch by replaying the <code>TransactionRepository</code>. Never
+ * created lazily, as nothing else would start the projection.
+ */
+@Slf4j
+@Component
+@Lazy(false)
+public class LedgerProjector {
+    private static final long FAILURE_BACKOFF_MILLIS = 1_000;
+
+    private final TransactionHandler transactionHandler;
+    private final LedgerLog ledgerLog;
+    private final TransactionRepository transactionRepository;
+    private final FinalStateRepository finalStateRepository;
+    private final FinalStateCache finalStateCache;
+    private final int batchSize;
+    private final int pageSize;
+    private final Object projectionLock = new Object();
+    private final Thread worker = new Thread(this::run, "split-ledger-projector");
+
+    public LedgerProjector(final TransactionHandler transactionHandler,
+                           final LedgerLog ledgerLog,
+                           final TransactionRepository transactionRepository,
+                           final FinalStateRepository finalStateRepository,
+                           final FinalStateCache finalStateCache,
+                           @Value("${split.ledger.batch-size:500}") final int batchSize,
+                           @Value("${split.ledger.page-size:1000}") final int pageSize) {
+        this.transactionHandler = transactionHandler;
+        this.ledgerLog = ledgerLog;
+        this.transactionRepository = transactionRepository;
+        this.finalStateRepository = finalStateRepository;
+        this.finalStateCache = finalStateCache;
+        this.batchSize = batchSize;
+        this.pageSize = pageSize;
+        this.worker.setDaemon(true);
+    }
+
+    @PostConstruct
+    public void start() {
+        if (ledgerLog.isEnabled()) {
+            worker.start();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        worker.interrupt();
+    }
+
+    /**
+     * @return The number of transaction records replayed.
+     * @apiNote Deletes every <code>FinalState</code> and recomputes them from the <code>TransactionRepository</code>, one page of records
+     * at a time in the order they were written, see {@link ReplayCursor}. The shard markers are written back first, so the
+     * recomputed <code>FinalState</code>s of sharded users land in their shards, and the users' summaries are dropped, to be built
+     * again from the recomputed <code>FinalState</code>s. Writes should be paused while this runs, as records
+     * written concurrently may or may not be seen by the replay.
+     */
+    public long rebuild() {
+        synchronized (projectionLock) {
+            ledgerLog.clear();
+            final var markers = new ArrayList<FinalState>();
+            for (final var marker : finalStateRepository.findAllById(List.of(FinalStateShards.MARKER_ID))) {
+                markers.add(marker.with_etag(null));
+            }
+            finalStateRepository.deleteAll();
+            finalStateRepository.saveAll(markers);
+            finalStateCache.getShards().invalidateAll();
+            finalStateCache.invalidateAll();
+            transactionHandler.getUserBalanceSummaries().invalidateAll();
+            try {
+                return replay(ReplayCursor.START, Long.MAX_VALUE);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while rebuilding the final states", e);
+            }
+        }
+    }
+
+    /**
+     * Applies the records written by the previous process after its last checkpoint, which its log lost, before the records of
+     * this one.
+     *
+     * @return The number of transaction records replayed.
+     */
+    long catchUp() throws InterruptedException {
+        synchronized (projectionLock) {
+            final var checkpoint = ledgerLog.getCheckpoint();
+            if (checkpoint == 0 || checkpoint >= ledgerLog.getRecoveredSequence()) {
+                return 0;
+            }
+            final var replayed = replay(ReplayCursor.afterSequence(checkpoint), ledgerLog.getRecoveredSequence());
+            ledgerLog.checkpoint(ledgerLog.getRecoveredSequence());
+            return replayed;
+        }
+    }
+
+    /**
+     * @param upTo The last sequence to replay, as the records after it are applied from the log.
+     */
+    private long replay(ReplayCursor cursor, final long upTo) throws InterruptedException {
+        long replayed = 0;
+        while (true) {
+            final var page = cursor.next(transactionRepository, pageSize);
+            final var updates = new LinkedHashMap<String, FinalStateUpdate>();
+            for (final var record : page) {
+                if (record.getSequence() > upTo) {
+                    commit(updates.values());
+                    return replayed;
+                }
+                TransactionHandler.project(record, updates);
+                replayed++;
+            }
+            commit(updates.values());
+            log.info("Replayed {} transaction records", replayed);
+            if (page.size() < pageSize) {
+                return replayed;
+            }
+            cursor = ReplayCursor.after(page.get(page.size() - 1));
+        }
+    }
+
+    private void run() {
+        try {
+            final var replayed = catchUp();
+            if (replayed > 0) {
+                log.info("Caught up with {} transaction records written after the last checkpoint", replayed);
+            }
+        } catch (InterruptedException e) {
+            return;
+        }
+        final var batch = new ArrayList<LedgerLog.Entry>(batchSize);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                ledgerLog.take(batch, batchSize);
+                synchronized (projectionLock) {
+                    final var updates = new LinkedHashMap<String, FinalStateUpdate>();
+                    batch.forEach(entry -> TransactionHandler.project(entry.getRecord(), updates));
+                    commit(updates.values());
+                    ledgerLog.applied(batch);
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Commits every update, retrying the ones that failed, so that each update is applied exactly once, and then the changes they
+     * made to the users' summaries.
+     */
+    private void commit(final Collection<FinalStateUpdate> updates) throws InterruptedException {
+        final var pending = new ArrayDeque<>(updates);
+        final var changes = new UserBalanceSummaries.Changes();
+        while (!pending.isEmpty()) {
+            try {
+                transactionHandler.commit(pending.peek(), changes);
+                pending.poll();
+            } catch (RuntimeException e) {
+                log.warn("Failed to apply the ledger to the final state of {} with {}, retrying",
+                        pending.peek().getUserId(), pending.peek().getParticipantId(), e);
+                TimeUnit.MILLISECONDS.sleep(FAILURE_BACKOFF_MILLIS);
+            }
+        }
+        transactionHandler.getUserBalanceSummaries().apply(changes);
+    }
+}
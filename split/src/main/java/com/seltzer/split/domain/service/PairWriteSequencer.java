@@ -0,0 +1,235 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.Transaction;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.ToString;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Routes writes to a fixed set of single-threaded lanes keyed by the unordered (userId, participantId) pair.
+ * Writes of a pair are always handled by the same lane and so never race each other for the pair's <code>FinalState</code>s,
+ * while different pairs spread over the lanes and proceed in parallel. Every lane drains whatever queued up while it was busy
+ * and hands it to {@link TransactionHandler#addTransactions(List)} as one micro-batch.
+ * <p>
+ * Every lane is metered, tagged with its <code>lane</code>:
+ * <ul>
+ *     <li><code>split.sequencer.queue.depth</code>, the writes waiting on the lane;</li>
+ *     <li><code>split.sequencer.wait</code>, the time a write waited before its batch was taken;</li>
+ *     <li><code>split.sequencer.batch.size</code>, the writes in each batch.</li>
+ * </ul>
+ */
+@Slf4j
+@Component
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+public class PairWriteSequencer implements MeterBinder {
+    static final String QUEUE_DEPTH = "split.sequencer.queue.depth";
+    static final String WAIT_TIMER = "split.sequencer.wait";
+    static final String BATCH_SIZE = "split.sequencer.batch.size";
+
+    TransactionHandler transactionHandler;
+    int maxBatchSize;
+    List<Lane> lanes;
+
+    public PairWriteSequencer(final TransactionHandler transactionHandler,
+                              @Value("${split.sequencer.lanes:0}") final int lanes,
+                              @Value("${split.sequencer.max-batch-size:64}") final int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException(String.format("maxBatchSize must be at least 1, got %d", maxBatchSize));
+        }
+        this.transactionHandler = transactionHandler;
+        this.maxBatchSize = maxBatchSize;
+        this.lanes = IntStream.range(0, lanes > 0 ? lanes : Runtime.getRuntime().availableProcessors())
+                .mapToObj(Lane::new)
+                .collect(Collectors.toList());
+        this.lanes.forEach(Lane::start);
+    }
+
+    /**
+     * @param transaction The transaction to record.
+     * @return A future completed once the transaction has been recorded, or completed exceptionally with the reason it wasn't.
+     * @apiNote Queues the transaction on its pair's lane.
+     */
+    public CompletableFuture<Void> submit(@NonNull final Transaction transaction) {
+        final var payment = transaction.getPayment();
+        if (payment == null || payment.getUserId() == null || transaction.getUserId() == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(String.format("Not a valid transaction %s", transaction)));
+        }
+        final var pending = new Pending(transaction, new CompletableFuture<>(), System.nanoTime());
+        lanes.get(getLaneIndex(transaction.getUserId(), payment.getUserId())).queue.add(pending);
+        return pending.future;
+    }
+
+    /**
+     * @return A snapshot of every lane's queue depth and queueing delay.
+     */
+    public List<LaneStats> getLaneStats() {
+        return lanes.stream().map(Lane::getStats).collect(Collectors.toList());
+    }
+
+    /**
+     * @apiNote Called by Spring Boot once the registry exists; lanes record nothing until then.
+     */
+    @Override
+    public void bindTo(@NonNull final MeterRegistry registry) {
+        for (final var lane : lanes) {
+            final var tag = Integer.toString(lane.index);
+            Gauge.builder(QUEUE_DEPTH, lane.queue, BlockingQueue::size)
+                    .tag("lane", tag)
+                    .register(registry);
+            lane.waitTimer = Timer.builder(WAIT_TIMER)
+                    .tag("lane", tag)
+                    .register(registry);
+            lane.batchSize = DistributionSummary.builder(BATCH_SIZE)
+                    .tag("lane", tag)
+                    .baseUnit("transactions")
+                    .register(registry);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        lanes.forEach(lane -> lane.worker.interrupt());
+    }
+
+    private int getLaneIndex(final String userId, final String participantId) {
+        // both directions of a pair must land on the same lane.
+        final var pairHash = userId.compareTo(participantId) <= 0
+                ? 31 * userId.hashCode() + participantId.hashCode()
+                : 31 * participantId.hashCode() + userId.hashCode();
+        return Math.floorMod(pairHash, lanes.size());
+    }
+
+    @AllArgsConstructor
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    @Getter
+    @ToString
+    public static class LaneStats {
+        int lane;
+        int queueDepth;
+        long processed;
+        long batches;
+        double meanWaitMillis;
+        double maxWaitMillis;
+    }
+
+    @AllArgsConstructor
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    @Getter
+    private static class Pending {
+        Transaction transaction;
+        CompletableFuture<Void> future;
+        long enqueuedAtNanos;
+    }
+
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    private final class Lane implements Runnable {
+        int index;
+        BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+        Thread worker;
+        LongAdder processed = new LongAdder();
+        LongAdder batches = new LongAdder();
+        LongAdder totalWaitNanos = new LongAdder();
+        AtomicLong maxWaitNanos = new AtomicLong();
+        @NonFinal
+        volatile Timer waitTimer;
+        @NonFinal
+        volatile DistributionSummary batchSize;
+
+        Lane(final int index) {
+            this.index = index;
+            this.worker = new Thread(this, "split-lane-" + index);
+            this.worker.setDaemon(true);
+        }
+
+        void start() {
+            worker.start();
+        }
+
+        LaneStats getStats() {
+            final var count = processed.sum();
+            return new LaneStats(index, queue.size(), count, batches.sum(),
+                    count == 0 ? 0 : totalWaitNanos.sum() / 1e6 / count,
+                    maxWaitNanos.get() / 1e6);
+        }
+
+        @Override
+        public void run() {
+            final var batch = new ArrayList<Pending>(maxBatchSize);
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                queue.drainTo(batch, maxBatchSize - 1);
+
+                final var dequeuedAt = System.nanoTime();
+                final var waitTimer = this.waitTimer;
+                for (final var pending : batch) {
+                    final var wait = dequeuedAt - pending.enqueuedAtNanos;
+                    totalWaitNanos.add(wait);
+                    maxWaitNanos.accumulateAndGet(wait, Math::max);
+                    if (waitTimer != null) {
+                        waitTimer.record(wait, TimeUnit.NANOSECONDS);
+                    }
+                }
+                processed.add(batch.size());
+                batches.increment();
+                final var batchSize = this.batchSize;
+                if (batchSize != null) {
+                    batchSize.record(batch.size());
+                }
+                process(batch);
+                batch.clear();
+            }
+            queue.forEach(pending -> pending.future.completeExceptionally(new IllegalStateException("Sequencer shut down")));
+        }
+
+        private void process(final List<Pending> batch) {
+            try {
+                transactionHandler.addTransactions(batch.stream().map(Pending::getTransaction).collect(Collectors.toList()));
+                batch.forEach(pending -> pending.future.complete(null));
+            } catch (IllegalArgumentException e) {
+                // a batch is validated before anything is written, so retry one by one to fail only the invalid ones.
+                batch.forEach(this::processOne);
+            } catch (RuntimeException e) {
+                log.warn("Failed to record a batch of {} transactions", batch.size(), e);
+                batch.forEach(pending -> pending.future.completeExceptionally(e));
+            }
+        }
+
+        private void processOne(final Pending pending) {
+            try {
+                transactionHandler.addTransaction(pending.transaction);
+                pending.future.complete(null);
+            } catch (RuntimeException e) {
+                pending.future.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.spring.data.cosmos.exception.CosmosAccessException;
+import com.seltzer.split.domain.model.ActivityRollup;
+import com.seltzer.split.domain.model.Balances;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.GroupExpense;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.model.UserBalanceSummary;
+import com.seltzer.split.domain.repository.FinalStateBatchRepository;
+import com.seltzer.split.domain.repository.ReactiveActivityRollupRepository;
+import com.seltzer.split.domain.repository.ReactiveFinalStateRepository;
+import com.seltzer.split.domain.repository.ReactiveTransactionRepository;
+import com.seltzer.split.domain.repository.ReactiveUserBalanceSummaryRepository;
+import lombok.AllArgsConstructor;
+import lombok.NonNull;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Non-blocking counterpart of {@link TransactionHandler}, which it shares the bookkeeping with.
+ * Everything a write reads is read at once: the <code>FinalState</code>s of both sides of every pair, along with the records of
+ * any retried <code>idempotencyKey</code>s. Everything it writes is then written at once: the <code>FinalState</code>s along
+ * with the transaction records. A transaction thereby costs two round trips to Cosmos where the blocking handler makes them one
+ * after the other. The users' summaries and then the activity rollups are updated last, all at once, on the bounded elastic
+ * scheduler as their repositories block.
+ * <p>
+ * Balances, summaries and activity are read through the reactive repositories, so a read holds no thread while it waits on
+ * storage either.
+ */
+@Service
+@AllArgsConstructor
+public class ReactiveTransactionHandler {
+    private final ReactiveTransactionRepository transactionRepository;
+    private final ReactiveFinalStateRepository finalStateRepository;
+    private final TransactionHandler transactionHandler;
+    private final ConflictRetryPolicy conflictRetryPolicy;
+    private final FinalStateCache finalStateCache;
+    private final LedgerLog ledgerLog;
+    private final ReactiveUserBalanceSummaryRepository summaryRepository;
+    private final ReactiveActivityRollupRepository rollupRepository;
+
+    /**
+     * @param userId         The ID of the user whose balances to return.
+     * @param targetCurrency The currency to express the amounts in, or <code>null</code> to list every currency apart.
+     * @return What {@link TransactionHandler#getBalances(String)} or {@link TransactionHandler#getBalances(String, Currency)}
+     * return.
+     * @apiNote Served from the {@link FinalStateCache} when it holds the user. A miss is read from storage without being cached,
+     * as a copy read outside the cache's own loading could overwrite one that a write put in meanwhile.
+     */
+    public Mono<Balances> getBalances(@NonNull final String userId, final Currency targetCurrency) {
+        return readFinalStates(userId).map(finalStates -> transactionHandler.toBalances(finalStates, targetCurrency));
+    }
+
+    /**
+     * @return What {@link TransactionHandler#getSummary(String)} returns.
+     * @apiNote A single point read of the summary, falling back to the user's <code>FinalState</code>s if it hasn't been built.
+     * A summary that isn't current is handed to {@link UserBalanceSummaries#find(String)} to be rebuilt.
+     */
+    public Mono<UserBalanceSummary> getSummary(@NonNull final String userId) {
+        final var derived = Mono.defer(() -> readFinalStates(userId).map(finalStates -> UserBalanceSummary.of(userId, finalStates)));
+        final var summaries = transactionHandler.getUserBalanceSummaries();
+        return summaries.isEnabled()
+                ? summaryRepository.findById(userId, new PartitionKey(userId))
+                .flatMap(summary -> summaries.isCurrent(summary)
+                        ? Mono.just(summary)
+                        : Mono.fromCallable(() -> summaries.find(userId).orElse(null)).subscribeOn(Schedulers.boundedElastic()))
+                .switchIfEmpty(derived)
+                : derived;
+    }
+
+    /**
+     * @return What {@link TransactionHandler#getActivity(String, String, ActivityRollup.Granularity, String, String)} returns.
+     */
+    public Mono<List<ActivityRollup>> getActivity(@NonNull final String userId, final String participantId,
+                                                  @NonNull final ActivityRollup.Granularity granularity,
+                                                  @NonNull final String from, @NonNull final String to) {
+        return Mono.fromCallable(() -> ActivityRollups.checkRange(granularity, from, to)).flatMap(buckets -> {
+            if (!transactionHandler.getActivityRollups().isEnabled() || buckets == 0) {
+                return Mono.just(List.<ActivityRollup>of());
+            }
+            final var fromId = ActivityRollups.getFromId(granularity, from);
+            final var toId = ActivityRollups.getToId(granularity, to);
+            return (participantId == null
+                    ? rollupRepository.findByIdRange(userId, fromId, toId)
+                    : rollupRepository.findByIdRange(userId, participantId, fromId, toId)).collectList();
+        });
+    }
+
+    private Mono<List<FinalState>> readFinalStates(final String userId) {
+        return finalStateCache.getIfPresent(userId)
+                .map(Mono::just)
+                .orElseGet(() -> finalStateCache.getShards().findAll(userId, finalStateRepository));
+    }
+
+    /**
+     * @param transaction The transaction to record.
+     * @return A <code>Mono</code> completing once the transaction has been recorded.
+     * @apiNote See {@link TransactionHandler#addTransaction(Transaction)}.
+     */
+    public Mono<Void> addTransaction(@NonNull final Transaction transaction) {
+        return addTransactions(List.of(transaction));
+    }
+
+    /**
+     * @param transactions The transactions to record, applied in the given order.
+     * @return A <code>Mono</code> completing once the transactions have been recorded.
+     * @apiNote See {@link TransactionHandler#addTransactions(List)}. The <code>FinalState</code>s are committed all at once, and
+     * the transaction records written once they all are. A write failing half-way is finished by retrying it with the same
+     * <code>idempotencyKey</code>, as for the blocking handler.
+     */
+    public Mono<Void> addTransactions(@NonNull final List<Transaction> transactions) {
+        if (transactions.isEmpty()) {
+            return Mono.empty();
+        }
+        return Mono.zip(findRecordedKeys(transactions), readFinalStates(transactions))
+                .flatMap(read -> {
+                    final var recorded = read.getT1();
+                    final var idempotencyKeys = new HashSet<String>();
+                    final var plan = transactionHandler.plan(transactions, transaction -> transaction.getIdempotencyKey() != null
+                            && (!idempotencyKeys.add(transaction.getIdempotencyKey()) || recorded.contains(transaction.getIdempotencyKey())));
+                    return write(plan, read.getT2());
+                });
+    }
+
+    /**
+     * @param expense The bill to record.
+     * @return A <code>Mono</code> completing once every participant's part has been recorded, or failing with an
+     * <code>IllegalArgumentException</code> if the expense is invalid.
+     * @apiNote See {@link TransactionHandler#addGroupExpense(GroupExpense)}. The <code>FinalState</code>s are read in one query
+     * of the payer's partition plus one point read per participant, all at once, and then written all at once.
+     */
+    public Mono<Void> addGroupExpense(@NonNull final GroupExpense expense) {
+        return Mono.fromCallable(() -> GroupExpenseSplitter.split(expense)).flatMap(this::addTransactions);
+    }
+
+    /**
+     * @param userId The ID of the user whose balances to clear.
+     * @return A <code>Mono</code> completing once everything the user and each of their participants owed each other, in every
+     * currency, has been settled.
+     * @apiNote Reads the user's <code>FinalState</code>s once, with one query of their partition or of each of their shards, and
+     * builds a settlement for every pair and currency with something outstanding, for the amount read. The other side of each
+     * pair is taken from the {@link FinalStateCache} if it holds the participant, and point read otherwise, all at once. The
+     * <code>FinalState</code>s of each partition are then written together, with one transactional batch per partition of up to
+     * {@value FinalStateBatchRepository#MAX_BATCH_SIZE}, all at once, conditional on the copies they were computed from, and the
+     * records after them, as for {@link #addTransactions(List)}. A batch that fails on a side that changed since it was read
+     * writes nothing, and its sides are then re-read and settled again one at a time; the settlement records the amount it
+     * actually cleared. See {@link TransactionHandler#settleAll(String)} for the blocking variant.
+     */
+    public Mono<Void> settleAll(@NonNull final String userId) {
+        final var shards = finalStateCache.getShards();
+        return shards.findAll(userId, finalStateRepository).flatMap(finalStates -> {
+            final var read = new HashMap<String, FinalState>();
+            final var settlements = TransactionHandler.settlementsOf(userId, finalStates, read);
+            if (settlements.isEmpty()) {
+                return Mono.empty();
+            }
+            final var plan = transactionHandler.plan(settlements, transaction -> false);
+            if (ledgerLog.isEnabled()) {
+                return write(plan, read);
+            }
+            final var participantIds = settlements.stream().map(ReactiveTransactionHandler::getParticipantId)
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+            return Flux.fromIterable(participantIds)
+                    .flatMap(participantId -> finalStateCache.getIfPresent(participantId, userId).map(Mono::just)
+                            .orElseGet(() -> finalStateRepository.findById(userId,
+                                    new PartitionKey(shards.getPartitionKey(participantId, userId)))))
+                    .collectList()
+                    .flatMap(mirrors -> {
+                        mirrors.forEach(mirror -> read.put(getKey(mirror.getUserId(), mirror.getParticipantId()), mirror));
+                        return write(plan, changes -> commitAll(plan.getUpdates(), read, changes));
+                    });
+        });
+    }
+
+    private Mono<Void> write(final TransactionHandler.WritePlan plan, final Map<String, FinalState> finalStates) {
+        if (plan.getRecords().isEmpty()) {
+            return Mono.empty();
+        }
+        if (ledgerLog.isEnabled()) {
+            return Mono.fromRunnable(() -> transactionHandler.resolveSettlements(plan))
+                    .subscribeOn(Schedulers.boundedElastic())
+                    .then(Mono.defer(() -> {
+                        final var sequence = ledgerLog.reserve(plan.getRecords().size());
+                        final var records = TransactionHandler.materialise(plan.getRecords(), sequence);
+                        return transactionRepository.saveAll(records)
+                                .doOnError(e -> ledgerLog.release(sequence))
+                                .then(Mono.fromRunnable(() -> ledgerLog.append(records)))
+                                .then(applyRollups(records));
+                    }));
+        }
+        return write(plan, changes -> Flux.fromIterable(plan.getUpdates())
+                .flatMap(update -> commit(update, Mono.justOrEmpty(finalStates.get(getKey(update.getUserId(), update.getParticipantId()))),
+                        changes, 1))
+                .then());
+    }
+
+    /**
+     * @param commit Commits the updates of the plan, recording their changes, once the users' summaries have been marked.
+     */
+    private Mono<Void> write(final TransactionHandler.WritePlan plan,
+                             final Function<UserBalanceSummaries.Changes, Mono<Void>> commit) {
+        final var changes = transactionHandler.getUserBalanceSummaries().newChanges();
+        final var commits = observeSummaries(plan.getUpdates(), changes).then(Mono.defer(() -> commit.apply(changes)));
+        return commits.then(Mono.defer(() -> {
+            final var records = TransactionHandler.materialise(plan.getRecords(), ledgerLog.reserve(plan.getRecords().size()));
+            return saveRecords(records)
+                    .then(applySummaries(changes))
+                    .then(applyRollups(records));
+        }));
+    }
+
+    /**
+     * @param records The records of a plan, each transaction's complement followed by the transaction itself.
+     * @return A <code>Mono</code> completing once every complement has been saved, and then every transaction, so that the
+     * record an idempotent retry looks for only exists once the rest of the write went through, see
+     * {@link #findRecordedKeys(List)}. Without an <code>idempotencyKey</code> in the batch, all of them are saved at once.
+     */
+    private Mono<Void> saveRecords(final List<Transaction> records) {
+        if (records.stream().allMatch(record -> record.getIdempotencyKey() == null)) {
+            return transactionRepository.saveAll(records).then();
+        }
+        final var complements = new ArrayList<Transaction>(records.size() / 2);
+        final var transactions = new ArrayList<Transaction>(records.size() / 2);
+        for (int i = 0; i < records.size(); i++) {
+            (i % 2 == 0 ? complements : transactions).add(records.get(i));
+        }
+        return transactionRepository.saveAll(complements).then(transactionRepository.saveAll(transactions).then());
+    }
+
+    /**
+     * @return A <code>Mono</code> completing once the summary of every user the updates are for has been marked and its generation
+     * read, see {@link UserBalanceSummaries#observe(UserBalanceSummaries.Changes, String)}.
+     */
+    private Mono<Void> observeSummaries(final Collection<FinalStateUpdate> updates, final UserBalanceSummaries.Changes changes) {
+        final var summaries = transactionHandler.getUserBalanceSummaries();
+        if (!summaries.isEnabled()) {
+            return Mono.empty();
+        }
+        return Flux.fromIterable(updates)
+                .map(FinalStateUpdate::getUserId)
+                .distinct()
+                .flatMap(userId -> Mono.fromRunnable(() -> summaries.observe(changes, userId))
+                        .subscribeOn(Schedulers.boundedElastic()))
+                .then();
+    }
+
+    /**
+     * @return A <code>Mono</code> completing once the summary of every user the changes were recorded for has been updated, or
+     * dropped if it couldn't be, see {@link UserBalanceSummaries#apply(UserBalanceSummaries.Changes)}.
+     */
+    private Mono<Void> applySummaries(final UserBalanceSummaries.Changes changes) {
+        final var summaries = transactionHandler.getUserBalanceSummaries();
+        if (!summaries.isEnabled()) {
+            return Mono.empty();
+        }
+        return Flux.defer(() -> Flux.fromIterable(changes.get().entrySet()))
+                .flatMap(change -> Mono.fromRunnable(() -> summaries.applyOrInvalidate(change.getKey(), change.getValue()))
+                        .subscribeOn(Schedulers.boundedElastic()))
+                .then();
+    }
+
+    /**
+     * @return A <code>Mono</code> completing once every bucket the records fall into has been updated, or rebuilt if it couldn't
+     * be, see {@link ActivityRollups#apply(ActivityRollups.Changes)}.
+     */
+    private Mono<Void> applyRollups(final List<Transaction> records) {
+        final var rollups = transactionHandler.getActivityRollups();
+        if (!rollups.isEnabled()) {
+            return Mono.empty();
+        }
+        return Flux.defer(() -> Flux.fromIterable(ActivityRollups.Changes.of(records).get()))
+                .flatMap(change -> Mono.fromRunnable(() -> rollups.applyOrRebuild(change))
+                        .subscribeOn(Schedulers.boundedElastic()))
+                .then();
+    }
+
+    /**
+     * @return The <code>idempotencyKey</code>s of the given transactions that have been recorded before.
+     */
+    private Mono<Set<String>> findRecordedKeys(final List<Transaction> transactions) {
+        return Flux.fromIterable(transactions)
+                .filter(transaction -> transaction.getIdempotencyKey() != null && getParticipantId(transaction) != null)
+                .flatMap(transaction -> transactionRepository.findById(TransactionHandler.getIdempotentId(transaction),
+                                new PartitionKey(Transaction.getPartitionKey(transaction.getUserId(), getParticipantId(transaction))))
+                        .map(record -> transaction.getIdempotencyKey()))
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * @return The stored <code>FinalState</code>s of both sides of every pair the given transactions are between, keyed by
+     * {@link #getKey(String, String)}. Pairs that have none yet are left out. The documents of a partition are read with a point
+     * read if there is just one, and with a single query of the partition otherwise, so that the payer's side of a
+     * {@link GroupExpense} costs one request however many participants share it, or one per shard if the payer is sharded.
+     */
+    private Mono<Map<String, FinalState>> readFinalStates(final List<Transaction> transactions) {
+        final var shards = finalStateCache.getShards();
+        final var participantIds = new LinkedHashMap<String, Set<String>>();
+        for (final var transaction : transactions) {
+            final var participantId = getParticipantId(transaction);
+            if (transaction.getUserId() != null && participantId != null) {
+                participantIds.computeIfAbsent(shards.getPartitionKey(transaction.getUserId(), participantId), partitionKey -> new LinkedHashSet<>())
+                        .add(participantId);
+                participantIds.computeIfAbsent(shards.getPartitionKey(participantId, transaction.getUserId()), partitionKey -> new LinkedHashSet<>())
+                        .add(transaction.getUserId());
+            }
+        }
+        return Flux.fromIterable(participantIds.entrySet())
+                .flatMap(partition -> partition.getValue().size() == 1
+                        ? finalStateRepository.findById(partition.getValue().iterator().next(), new PartitionKey(partition.getKey()))
+                        : finalStateRepository.findByParticipantIds(partition.getKey(), partition.getValue()))
+                .collectMap(finalState -> getKey(finalState.getUserId(), finalState.getParticipantId()));
+    }
+
+    /**
+     * @return A <code>Mono</code> completing once every update has been committed, as
+     * {@link TransactionHandler#commitAll(Collection, Map, UserBalanceSummaries.Changes)} does, with the batches of
+     * every partition written at once.
+     */
+    private Mono<Void> commitAll(final Collection<FinalStateUpdate> updates, final Map<String, FinalState> finalStates,
+                                 final UserBalanceSummaries.Changes changes) {
+        return Flux.fromIterable(transactionHandler.toBatches(updates))
+                .flatMap(batch -> {
+                    batch.apply(finalStates);
+                    if (batch.getUpdated().isEmpty()) {
+                        return Mono.empty(); // applied by an earlier attempt at the same write.
+                    }
+                    return finalStateRepository.saveBatch(batch.getPartitionKey(), batch.getUpdated())
+                            .collectList()
+                            .doOnNext(saved -> batch.saved(saved, changes, finalStateCache))
+                            .then()
+                            .onErrorResume(CosmosAccessException.class, e -> !TransactionHandler.isWriteConflict(e)
+                                    ? Mono.error(e)
+                                    : Flux.fromIterable(batch.getUpdates())
+                                    .flatMap(update -> commit(update, finalStateRepository.findById(update.getParticipantId(),
+                                            new PartitionKey(batch.getPartitionKey())), changes, 1))
+                                    .then());
+                })
+                .then();
+    }
+
+    /**
+     * @param current The <code>FinalState</code> as read, empty if it does not exist yet.
+     * @return The <code>FinalState</code> written, after re-reading the document and re-applying the update whenever a concurrent
+     * writer got there first, as {@link TransactionHandler#commit(FinalStateUpdate, UserBalanceSummaries.Changes)} does.
+     */
+    private Mono<FinalState> commit(final FinalStateUpdate update, final Mono<FinalState> current,
+                                    final UserBalanceSummaries.Changes changes, final int attempt) {
+        final var partitionKey = finalStateCache.getShards().getPartitionKey(update.getUserId(), update.getParticipantId());
+        return current
+                .defaultIfEmpty(FinalState.empty(partitionKey))
+                .flatMap(finalState -> {
+                    final var updated = update.applyTo(finalState);
+                    if (updated == finalState) {
+                        return Mono.just(finalState); // applied by an earlier attempt at the same write.
+                    }
+                    return finalStateRepository.save(updated)
+                            .doOnNext(saved -> changes.record(finalState, saved))
+                            .doOnNext(finalStateCache::put);
+                })
+                .onErrorResume(CosmosAccessException.class, e -> {
+                    if (!TransactionHandler.isWriteConflict(e)) {
+                        return Mono.error(e);
+                    }
+                    if (attempt >= conflictRetryPolicy.getMaxAttempts()) {
+                        return Mono.error(new OptimisticLockingFailureException(String.format(
+                                "Gave up updating final state of %s with %s after %d attempts",
+                                update.getUserId(), update.getParticipantId(), attempt), e));
+                    }
+                    final var reread = finalStateRepository.findById(update.getParticipantId(), new PartitionKey(partitionKey));
+                    return Mono.delay(Duration.ofMillis(conflictRetryPolicy.nextBackoffMillis(attempt)))
+                            .then(commit(update, reread, changes, attempt + 1));
+                });
+    }
+
+    private static String getParticipantId(final Transaction transaction) {
+        final var payment = transaction.getPayment();
+        return payment == null ? null : payment.getUserId();
+    }
+
+    private static String getKey(final String userId, final String participantId) {
+        return TransactionHandler.getKey(userId, participantId);
+    }
+}
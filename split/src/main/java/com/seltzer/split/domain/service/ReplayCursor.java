@@ -0,0 +1,45 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.TransactionRepository;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+
+import java.util.List;
+
+/**
+ * Position in the replay of the transaction records, in the order they were written: the <code>sequence</code>,
+ * <code>createdAt</code> and <code>id</code> of the last record of a page. The next page starts right after it however many
+ * records were written or deleted meanwhile, unlike an offset.
+ */
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+@Getter
+final class ReplayCursor {
+    static final ReplayCursor START = new ReplayCursor(Long.MIN_VALUE, Long.MIN_VALUE, "");
+
+    long sequence;
+    long createdAt;
+    String id;
+
+    static ReplayCursor after(@NonNull final Transaction record) {
+        return new ReplayCursor(record.getSequence(), record.getCreatedAt(), record.getId());
+    }
+
+    /**
+     * @return A position before every record written after the given sequence.
+     */
+    static ReplayCursor afterSequence(final long sequence) {
+        return new ReplayCursor(sequence, Long.MAX_VALUE, "");
+    }
+
+    /**
+     * @return The next <code>limit</code> records at most, see {@link TransactionRepository#findReplayPage(long, long, String, int)}.
+     */
+    List<Transaction> next(final TransactionRepository transactionRepository, final int limit) {
+        return transactionRepository.findReplayPage(sequence, createdAt, id, limit);
+    }
+}
@@ -0,0 +1,43 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.Currency;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Reads the exchange rates from a properties file mapping each currency code to its rate, e.g. <code>INR=83.12</code>, found at
+ * <code>split.fx.rates</code>: a file path (<code>file:/etc/split/fx-rates.properties</code>) or by default the table bundled
+ * with the application. The file is re-read on every refresh, so rates can be updated in place.
+ */
+@Component
+public class ResourceFxRateProvider implements FxRateProvider {
+    private final Resource rates;
+
+    public ResourceFxRateProvider(@Value("${split.fx.rates:classpath:fx-rates.properties}") final Resource rates) {
+        this.rates = rates;
+    }
+
+    @Override
+    public Map<Currency, BigDecimal> load() throws IOException {
+        final var properties = new Properties();
+        try (var in = rates.getInputStream()) {
+            properties.load(in);
+        }
+        final var loaded = new EnumMap<Currency, BigDecimal>(Currency.class);
+        for (final var code : properties.stringPropertyNames()) {
+            try {
+                loaded.put(Currency.valueOf(code.trim()), new BigDecimal(properties.getProperty(code).trim()));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(String.format("Invalid exchange rate %s=%s in %s", code, properties.getProperty(code), rates), e);
+            }
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,228 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.experimental.FieldDefaults;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes how a group of users can clear everything they owe each other with as few payments as possible.
+ * Every member's balances with the rest of the group are netted into a single amount, and the largest debtor then repeatedly
+ * pays the largest creditor, which leaves at most <code>n - 1</code> payments for <code>n</code> members with a non-zero net.
+ * The pairwise balances those payments leave are then cleared with settlements, which move no member's net.
+ */
+@Service
+@AllArgsConstructor
+public class SettlementPlanner {
+    private final FinalStateCache finalStateCache;
+
+    /**
+     * @param userIds The members of the group. Balances with users outside the group are ignored.
+     * @return The payments that leave every member with a zero net balance towards the rest of the group, followed by a
+     * settlement of every pair of members whose balance those payments leave non-zero, in every currency they deal in.
+     * @apiNote Recording the whole plan with {@link TransactionHandler#addTransactions} in the order given settles the group:
+     * the payments bring every member's net to zero, and the settlements then clear the pairwise balances that still offset
+     * each other, which moves no member's net. Balances with users outside the group are left as they are.
+     */
+    public List<Transaction> planSettlements(@NonNull final Set<String> userIds) {
+        final var members = new ArrayList<>(new LinkedHashSet<>(userIds));
+        final var index = new HashMap<String, Integer>(members.size() * 2);
+        for (int i = 0; i < members.size(); i++) {
+            index.put(members.get(i), i);
+        }
+
+        final var nets = new EnumMap<Currency, long[]>(Currency.class);
+        // balance of the member with the lower index towards the other, by pair, for the pairs with a FinalState.
+        final var pairs = new EnumMap<Currency, Map<Long, Long>>(Currency.class);
+        for (int i = 0; i < members.size(); i++) {
+            for (final var finalState : finalStateCache.get(members.get(i))) {
+                final var participant = index.get(finalState.getParticipantId());
+                if (participant != null) {
+                    // a positive balance is owed to the member, so the member is a creditor.
+                    final var member = i;
+                    finalState.getBalances().forEach((currency, balance) -> {
+                        nets.computeIfAbsent(currency, key -> new long[members.size()])[member] += balance;
+                        final var pairBalances = pairs.computeIfAbsent(currency, key -> new HashMap<>());
+                        if (member < participant) {
+                            pairBalances.put(getPairKey(member, participant, members.size()), balance);
+                        } else {
+                            pairBalances.putIfAbsent(getPairKey(participant, member, members.size()), -balance);
+                        }
+                    });
+                }
+            }
+        }
+
+        final var transactions = new ArrayList<Transaction>();
+        nets.forEach((currency, net) -> {
+            final var flows = simplify(net);
+            final var pairBalances = pairs.get(currency);
+            for (int i = 0; i < flows.size; i++) {
+                final var from = flows.from[i];
+                final var to = flows.to[i];
+                transactions.add(new Transaction()
+                        .withUserId(members.get(from))
+                        .withPaidTo(new Payment()
+                                .withUserId(members.get(to))
+                                .withMoney(new Payment.Money(flows.amount[i], currency))));
+                pairBalances.merge(getPairKey(Math.min(from, to), Math.max(from, to), members.size()),
+                        from < to ? flows.amount[i] : -flows.amount[i], Long::sum);
+            }
+        });
+        pairs.forEach((currency, pairBalances) -> pairBalances.forEach((pair, balance) -> {
+            if (balance != 0) {
+                transactions.add(new Transaction()
+                        .withUserId(members.get((int) (pair / members.size())))
+                        .withPaidTo(new Payment()
+                                .withUserId(members.get((int) (pair % members.size())))
+                                .withMoney(new Payment.Money(0, currency))
+                                .withSettlement(true)));
+            }
+        }));
+        return transactions;
+    }
+
+    private static long getPairKey(final int lower, final int higher, final int members) {
+        return (long) lower * members + higher;
+    }
+
+    /**
+     * @param net Every member's net balance in minor units, positive for creditors. Expected to sum up to zero.
+     * @return The payments, from debtors to creditors, that bring every net balance to zero.
+     */
+    public static CashFlows simplify(@NonNull final long[] net) {
+        final var remaining = net.clone();
+        final var creditors = new IndexHeap(remaining, net.length, 1);
+        final var debtors = new IndexHeap(remaining, net.length, -1);
+        for (int i = 0; i < net.length; i++) {
+            if (net[i] > 0) {
+                creditors.push(i);
+            } else if (net[i] < 0) {
+                debtors.push(i);
+            }
+        }
+
+        final var flows = new CashFlows(Math.max(0, net.length - 1));
+        while (!creditors.isEmpty() && !debtors.isEmpty()) {
+            final var creditor = creditors.pop();
+            final var debtor = debtors.pop();
+            final var amount = Math.min(remaining[creditor], -remaining[debtor]);
+            flows.add(debtor, creditor, amount);
+
+            remaining[creditor] -= amount;
+            remaining[debtor] += amount;
+            if (remaining[creditor] > 0) {
+                creditors.push(creditor);
+            }
+            if (remaining[debtor] < 0) {
+                debtors.push(debtor);
+            }
+        }
+        return flows;
+    }
+
+    /**
+     * Parallel arrays of payments: <code>from[i]</code> pays <code>amount[i]</code> to <code>to[i]</code>, for every i below <code>size</code>.
+     */
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    @Getter
+    public static final class CashFlows {
+        int size;
+        int[] from;
+        int[] to;
+        long[] amount;
+
+        CashFlows(final int capacity) {
+            this.from = new int[capacity];
+            this.to = new int[capacity];
+            this.amount = new long[capacity];
+        }
+
+        private void add(final int from, final int to, final long amount) {
+            if (size == this.from.length) {
+                final var capacity = Math.max(4, size * 2);
+                this.from = Arrays.copyOf(this.from, capacity);
+                this.to = Arrays.copyOf(this.to, capacity);
+                this.amount = Arrays.copyOf(this.amount, capacity);
+            }
+            this.from[size] = from;
+            this.to[size] = to;
+            this.amount[size] = amount;
+            size++;
+        }
+    }
+
+    /**
+     * Binary heap of indexes into <code>keys</code>, ordered by the largest <code>sign * keys[index]</code> first.
+     * Keys of indexes in the heap must not change, which holds as the planner pops an index before changing its key.
+     */
+    private static final class IndexHeap {
+        private final long[] keys;
+        private final int[] heap;
+        private final int sign;
+        private int size;
+
+        IndexHeap(final long[] keys, final int capacity, final int sign) {
+            this.keys = keys;
+            this.heap = new int[capacity];
+            this.sign = sign;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void push(final int index) {
+            var child = size++;
+            while (child > 0) {
+                final var parent = (child - 1) >>> 1;
+                if (!greater(index, heap[parent])) {
+                    break;
+                }
+                heap[child] = heap[parent];
+                child = parent;
+            }
+            heap[child] = index;
+        }
+
+        int pop() {
+            final var top = heap[0];
+            final var last = heap[--size];
+            var parent = 0;
+            while (true) {
+                var child = 2 * parent + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && greater(heap[child + 1], heap[child])) {
+                    child++;
+                }
+                if (!greater(heap[child], last)) {
+                    break;
+                }
+                heap[parent] = heap[child];
+                parent = child;
+            }
+            heap[parent] = last;
+            return top;
+        }
+
+        private boolean greater(final int a, final int b) {
+            return sign * keys[a] > sign * keys[b];
+        }
+    }
+}
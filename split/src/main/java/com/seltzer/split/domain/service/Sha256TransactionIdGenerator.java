@@ -0,0 +1,21 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.Transaction;
+import lombok.NonNull;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * The original scheme: SHA-256 over the record's <code>toString()</code>, with the creation time and position standing in for the ID
+ * to add uniqueness to the hash generation.
+ */
+@Component
+@ConditionalOnProperty(name = "split.transaction-id.strategy", havingValue = "sha256")
+public class Sha256TransactionIdGenerator implements TransactionIdGenerator {
+
+    @Override
+    public String generate(@NonNull final Transaction record, final int position) {
+        return DigestUtils.sha256Hex(record.withId(record.getCreatedAt() + "_" + position).toString());
+    }
+}
@@ -0,0 +1,37 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.Transaction;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 128-bit IDs that sort by creation time, rendered as 32 hex digits: 48 bits of epoch millis and a 16-bit sequence, strictly
+ * increasing within the JVM, followed by 64 random bits that keep IDs of different JVMs apart. Nothing of the record is read.
+ */
+@Component
+@ConditionalOnProperty(name = "split.transaction-id.strategy", havingValue = "time-ordered", matchIfMissing = true)
+public class TimeOrderedTransactionIdGenerator implements TransactionIdGenerator {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final AtomicLong lastTimeAndSequence = new AtomicLong();
+
+    @Override
+    public String generate(final Transaction record, final int position) {
+        final var candidate = System.currentTimeMillis() << 16;
+        final var timeAndSequence = lastTimeAndSequence.updateAndGet(last -> Math.max(last + 1, candidate));
+        final var chars = new char[32];
+        writeHex(timeAndSequence, chars, 0);
+        writeHex(ThreadLocalRandom.current().nextLong(), chars, 16);
+        return new String(chars);
+    }
+
+    private static void writeHex(long value, final char[] chars, final int offset) {
+        for (int i = offset + 15; i >= offset; i--) {
+            chars[i] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+}
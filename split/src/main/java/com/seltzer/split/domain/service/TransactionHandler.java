@@ -1,19 +1,46 @@
 package com.seltzer.split.domain.service;
 
 import com.azure.cosmos.models.PartitionKey;
+import com.azure.spring.data.cosmos.exception.CosmosAccessException;
+import com.seltzer.split.domain.model.ActivityRollup;
+import com.seltzer.split.domain.model.Balances;
+import com.seltzer.split.domain.model.Currency;
 import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.GroupExpense;
+import com.seltzer.split.domain.model.HistoryEntry;
+import com.seltzer.split.domain.model.HistoryPage;
 import com.seltzer.split.domain.model.Payment;
 import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.model.UserBalanceSummary;
+import com.seltzer.split.domain.repository.FinalStateBatchRepository;
 import com.seltzer.split.domain.repository.FinalStateRepository;
 import com.seltzer.split.domain.repository.TransactionRepository;
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.NonNull;
-import org.apache.commons.codec.digest.DigestUtils;
+import lombok.experimental.FieldDefaults;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 
-import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * TERMINOLOGIES:
@@ -23,18 +50,82 @@ import java.util.stream.Collectors;
  * 3. "INWARD TRANSACTIONS" = All those transactions where some money has been received.
  * 4. "OUTWARD TRANSACTIONS" = All those transactions where some money has been paid/lent.
  */
+@Slf4j
 @Service
-@AllArgsConstructor
+@AllArgsConstructor(onConstructor_ = @Autowired)
 public class TransactionHandler {
+    public static final int MAX_HISTORY_PAGE_SIZE = 1_000;
+    static final long SETTLEMENT_CATCH_UP_MILLIS = 5_000;
+
+    private static final CanonicalHashTransactionIdGenerator IDEMPOTENT_IDS = new CanonicalHashTransactionIdGenerator();
+
     private final TransactionRepository transactionRepository;
     private final FinalStateRepository finalStateRepository;
+    private final ConflictRetryPolicy conflictRetryPolicy;
+    private final FinalStateCache finalStateCache;
+    private final LedgerLog ledgerLog;
+    private final TransactionIdGenerator transactionIdGenerator;
+    private final FxRateCache fxRateCache;
+    private final UserBalanceSummaries userBalanceSummaries;
+    private final ActivityRollups activityRollups;
+
+    public TransactionHandler(final TransactionRepository transactionRepository, final FinalStateRepository finalStateRepository) {
+        this(transactionRepository, finalStateRepository, ConflictRetryPolicy.defaults());
+    }
+
+    public TransactionHandler(final TransactionRepository transactionRepository, final FinalStateRepository finalStateRepository,
+                              final ConflictRetryPolicy conflictRetryPolicy) {
+        this(transactionRepository, finalStateRepository, conflictRetryPolicy, FinalStateCache.defaults(finalStateRepository), LedgerLog.disabled(),
+                new TimeOrderedTransactionIdGenerator(), FxRateCache.of(FxRates.EMPTY));
+    }
+
+    public TransactionHandler(final TransactionRepository transactionRepository, final FinalStateRepository finalStateRepository,
+                              final ConflictRetryPolicy conflictRetryPolicy, final FinalStateCache finalStateCache,
+                              final LedgerLog ledgerLog, final TransactionIdGenerator transactionIdGenerator,
+                              final FxRateCache fxRateCache) {
+        this(transactionRepository, finalStateRepository, conflictRetryPolicy, finalStateCache, ledgerLog, transactionIdGenerator,
+                fxRateCache, UserBalanceSummaries.disabled());
+    }
 
-    private String generateID(@NonNull final Transaction transaction) {
-        return DigestUtils.sha256Hex(transaction.toString());
+    public TransactionHandler(final TransactionRepository transactionRepository, final FinalStateRepository finalStateRepository,
+                              final ConflictRetryPolicy conflictRetryPolicy, final FinalStateCache finalStateCache,
+                              final LedgerLog ledgerLog, final TransactionIdGenerator transactionIdGenerator,
+                              final FxRateCache fxRateCache, final UserBalanceSummaries userBalanceSummaries) {
+        this(transactionRepository, finalStateRepository, conflictRetryPolicy, finalStateCache, ledgerLog, transactionIdGenerator,
+                fxRateCache, userBalanceSummaries, ActivityRollups.disabled());
     }
 
     private List<FinalState> getAllFinalStateTransactions(final String userId) {
-        return finalStateRepository.findAll(new PartitionKey(userId));
+        return finalStateCache.get(userId);
+    }
+
+    /**
+     * @return The user's <code>FinalState</code>s, one per currency for pairs that dealt in more than one.
+     */
+    private Stream<FinalState> getFinalStatesByCurrency(final String userId) {
+        return byCurrency(getAllFinalStateTransactions(userId));
+    }
+
+    private static Stream<FinalState> byCurrency(final List<FinalState> finalStates) {
+        return finalStates.stream().flatMap(state -> state.splitByCurrency().stream());
+    }
+
+    /**
+     * @return The user's <code>FinalState</code>s, with the balances of every pair converted to the target currency and summed.
+     */
+    private Stream<FinalState> getFinalStatesIn(final String userId, final Currency targetCurrency) {
+        return in(getAllFinalStateTransactions(userId), targetCurrency);
+    }
+
+    private Stream<FinalState> in(final List<FinalState> finalStates, final Currency targetCurrency) {
+        final var rates = fxRateCache.get();
+        return finalStates.stream().map(state -> {
+            long balance = 0;
+            for (final var subBalance : state.getBalances().entrySet()) {
+                balance += rates.convert(subBalance.getValue(), subBalance.getKey(), targetCurrency);
+            }
+            return state.withBalance(balance).withCurrency(targetCurrency).withOtherBalances(null).withApplied(null);
+        });
     }
 
 
@@ -42,11 +133,23 @@ public class TransactionHandler {
      * @param userId The ID of the user for whom to derive the balance.
      * @return A <code>Map</code> representing users and their corresponding amount of money that the individual owes to the user with <code>userId</code>.
      * @apiNote Takes a <code>userId</code> and returns a <code>Map</code> representing users and their corresponding amount of money that the individual
-     * owes to the user with <code>userId</code>.
+     * owes to the user with <code>userId</code>. A participant dealt with in several currencies appears once per currency.
      */
     public List<FinalState> getAmountsToBeReceived(@NonNull final String userId) {
-        var transactionTips = getAllFinalStateTransactions(userId);
-        return transactionTips.stream()
+        return getFinalStatesByCurrency(userId)
+                .filter(state -> state.getBalance() > 0)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param userId         The ID of the user for whom to derive the balance.
+     * @param targetCurrency The currency to express the amounts in.
+     * @return The amount every participant owes the user on balance across all currencies, converted at the current
+     * exchange rates.
+     * @throws IllegalArgumentException If the rate of a currency the user dealt in is unknown.
+     */
+    public List<FinalState> getAmountsToBeReceived(@NonNull final String userId, @NonNull final Currency targetCurrency) {
+        return getFinalStatesIn(userId, targetCurrency)
                 .filter(state -> state.getBalance() > 0)
                 .collect(Collectors.toList());
     }
@@ -56,96 +159,679 @@ public class TransactionHandler {
      * @param userId The ID of the user for whom to derive the balance.
      * @return A <code>Map</code> representing users and their corresponding amount of money that the individual should be paid by the user with <code>userId</code>.
      * @apiNote Takes a <code>userId</code> and returns a <code>Map</code> representing users and their corresponding amount of money that the individual
-     * should be paid by the user with <code>userId</code>.
+     * should be paid by the user with <code>userId</code>. A participant dealt with in several currencies appears once per currency.
      */
     public List<FinalState> getAmountsToBePaid(@NonNull final String userId) {
-        var transactionTips = getAllFinalStateTransactions(userId);
-        return transactionTips.stream()
+        return getFinalStatesByCurrency(userId)
                 .filter(state -> state.getBalance() < 0)
                 .map(state -> state.withBalance(Math.abs(state.getBalance())))
                 .collect(Collectors.toList());
     }
 
+    /**
+     * @param userId         The ID of the user for whom to derive the balance.
+     * @param targetCurrency The currency to express the amounts in.
+     * @return The amount the user owes every participant on balance across all currencies, converted at the current exchange rates.
+     * @throws IllegalArgumentException If the rate of a currency the user dealt in is unknown.
+     */
+    public List<FinalState> getAmountsToBePaid(@NonNull final String userId, @NonNull final Currency targetCurrency) {
+        return getFinalStatesIn(userId, targetCurrency)
+                .filter(state -> state.getBalance() < 0)
+                .map(state -> state.withBalance(Math.abs(state.getBalance())))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param userId The ID of the user for whom to derive the balances.
+     * @return Both the amounts the user is owed and the amounts the user owes, as returned by {@link #getAmountsToBeReceived(String)}
+     * and {@link #getAmountsToBePaid(String)}.
+     * @apiNote Derives both directions from a single read of the user's <code>FinalState</code>s.
+     */
+    public Balances getBalances(@NonNull final String userId) {
+        return toBalances(getFinalStatesByCurrency(userId).collect(Collectors.toList()));
+    }
+
+    /**
+     * @param userId         The ID of the user for whom to derive the balances.
+     * @param targetCurrency The currency to express the amounts in.
+     * @return Both directions as returned by {@link #getAmountsToBeReceived(String, Currency)} and
+     * {@link #getAmountsToBePaid(String, Currency)}.
+     */
+    public Balances getBalances(@NonNull final String userId, @NonNull final Currency targetCurrency) {
+        return toBalances(getFinalStatesIn(userId, targetCurrency).collect(Collectors.toList()));
+    }
+
+    /**
+     * @param finalStates All the <code>FinalState</code>s of a user, however they were read.
+     * @param targetCurrency The currency to express the amounts in, or <code>null</code> to list every currency apart.
+     * @return The balances {@link #getBalances(String)} or {@link #getBalances(String, Currency)} derive from them.
+     */
+    Balances toBalances(final List<FinalState> finalStates, final Currency targetCurrency) {
+        return toBalances((targetCurrency == null ? byCurrency(finalStates) : in(finalStates, targetCurrency))
+                .collect(Collectors.toList()));
+    }
+
+    private static Balances toBalances(final List<FinalState> transactionTips) {
+        return new Balances(
+                transactionTips.stream()
+                        .filter(state -> state.getBalance() > 0)
+                        .collect(Collectors.toList()),
+                transactionTips.stream()
+                        .filter(state -> state.getBalance() < 0)
+                        .map(state -> state.withBalance(Math.abs(state.getBalance())))
+                        .collect(Collectors.toList()));
+    }
+
+    /**
+     * @param userId The ID of the user whose totals to return.
+     * @return What the user is owed and owes in every currency, and how many counterparties have something outstanding with them.
+     * @apiNote A single point read of the user's {@link UserBalanceSummary}, however many counterparties the user has. A user whose
+     * summary hasn't been built yet gets it derived from their <code>FinalState</code>s.
+     */
+    public UserBalanceSummary getSummary(@NonNull final String userId) {
+        return userBalanceSummaries.find(userId)
+                .orElseGet(() -> UserBalanceSummary.of(userId, getAllFinalStateTransactions(userId)));
+    }
+
+    /**
+     * @param userId        The ID of the user whose activity to report.
+     * @param participantId The participant to report on, or <code>null</code> for every participant.
+     * @param granularity   Whether to report by day or by month, in UTC.
+     * @param from          The first day (<code>yyyy-MM-dd</code>) or month (<code>yyyy-MM</code>) to report.
+     * @param to            The last day or month to report, included.
+     * @return What the user paid to, received from and settled with each participant in each day or month, leaving out those
+     * without any transaction.
+     * @apiNote Answered from the user's {@link ActivityRollup}s, with a cost that grows with the number of buckets reported and
+     * not with the number of transactions in them. See {@link ActivityRollups#find(String, String, ActivityRollup.Granularity, String, String)}.
+     */
+    public List<ActivityRollup> getActivity(@NonNull final String userId, final String participantId,
+                                            @NonNull final ActivityRollup.Granularity granularity,
+                                            @NonNull final String from, @NonNull final String to) {
+        return activityRollups.find(userId, participantId, granularity, from, to);
+    }
+
+    /**
+     * @param userId        The ID of the user whose history to return.
+     * @param participantId The ID of the participant the transactions were with.
+     * @param pageSize      The maximum number of transactions to return, at most {@value #MAX_HISTORY_PAGE_SIZE}.
+     * @param cursor        The <code>nextCursor</code> of the previous page, or <code>null</code> for the first page.
+     * @return The transactions of the user with the participant, newest first.
+     * @apiNote Pages are positioned by the last transaction of the previous one rather than by an offset, so each page is a
+     * bounded query on the pair's partition however deep into the history it is.
+     */
+    public HistoryPage getHistory(@NonNull final String userId, @NonNull final String participantId, final int pageSize,
+                                  final String cursor) {
+        if (pageSize <= 0 || pageSize > MAX_HISTORY_PAGE_SIZE) {
+            throw new IllegalArgumentException("Page size must be between 1 and " + MAX_HISTORY_PAGE_SIZE + ", was " + pageSize);
+        }
+        final var entries = readHistory(userId, participantId, pageSize, HistoryCursor.parse(cursor));
+        return new HistoryPage(entries, entries.size() < pageSize ? null : HistoryCursor.after(entries.get(entries.size() - 1)).toToken());
+    }
+
+    /**
+     * @param userId        The ID of the user whose history to return.
+     * @param participantId The ID of the participant the transactions were with.
+     * @return The whole history of the user with the participant, newest first, read one page of {@value #MAX_HISTORY_PAGE_SIZE}
+     * at a time as the stream is consumed.
+     */
+    public Stream<HistoryEntry> streamHistory(@NonNull final String userId, @NonNull final String participantId) {
+        final var pages = Stream.iterate(
+                readHistory(userId, participantId, MAX_HISTORY_PAGE_SIZE, HistoryCursor.START),
+                page -> !page.isEmpty(),
+                page -> page.size() < MAX_HISTORY_PAGE_SIZE ? List.of()
+                        : readHistory(userId, participantId, MAX_HISTORY_PAGE_SIZE, HistoryCursor.after(page.get(page.size() - 1))));
+        return pages.flatMap(List::stream);
+    }
+
+    private List<HistoryEntry> readHistory(final String userId, final String participantId, final int limit,
+                                           final HistoryCursor cursor) {
+        return transactionRepository.findHistory(Transaction.getPartitionKey(userId, participantId), cursor.getCreatedAt(),
+                        cursor.getId(), limit).stream()
+                .map(TransactionHandler::toHistoryEntry)
+                .collect(Collectors.toList());
+    }
+
+    private static HistoryEntry toHistoryEntry(final Transaction transaction) {
+        final var paidTo = transaction.hasPaidTo();
+        final var payment = transaction.getPayment();
+        final var money = payment.getMoney();
+        return new HistoryEntry(transaction.getId(), transaction.getCreatedAt(),
+                paidTo ? HistoryEntry.Direction.PAID_TO : HistoryEntry.Direction.RECEIVED_FROM,
+                money == null ? 0 : money.getAmount(), money == null ? null : money.getCurrency(), payment.isSettlement());
+    }
+
     /**
      * @param transaction The transaction to record.
      * @apiNote Creates a complement of the given transaction to record both Inward and Outward transactions.
+     * A transaction carrying an <code>idempotencyKey</code> that has already been recorded is ignored, so that clients can safely
+     * retry a transaction they are unsure went through.
      */
     public void addTransaction(@NonNull final Transaction transaction) {
-        if (transaction.getReceivedFrom().isPresent()) {
-            final var participantId = transaction.getReceivedFrom().get().getUserId();
-            final var finalStateSelfOpt = finalStateRepository.findById(participantId, new PartitionKey(transaction.getUserId()));
-            final var finalStateParticipantOpt = finalStateRepository.findById(transaction.getUserId(), new PartitionKey(participantId));
-
-            final var selfFinalState = finalStateSelfOpt.orElseGet(FinalState::new);
-            final var participantFinalState = finalStateParticipantOpt.orElseGet(FinalState::new);
-
-            final var receivedAmount = transaction.getReceivedFrom().get().getMoney().getAmount();
-            final var updatedSelfFinalState = selfFinalState
-                    .withUserId(transaction.getUserId())
-                    .withParticipantId(participantId)
-                    .withBalance(selfFinalState.getBalance() - receivedAmount)
-                    .withCurrency(transaction.getReceivedFrom().get().getMoney().getCurrency());
-
-            final var updatedParticipantFinalState = participantFinalState
-                    .withUserId(participantId)
-                    .withParticipantId(transaction.getUserId())
-                    .withBalance(participantFinalState.getBalance() + receivedAmount)
-                    .withCurrency(transaction.getReceivedFrom().get().getMoney().getCurrency());
-
-            final var outTxn = new Transaction()
-                    .withId(String.valueOf(OffsetDateTime.now().toInstant().toEpochMilli())) // to add uniqueness to the hash generation.
-                    .withUserId(transaction.getReceivedFrom().get().getUserId())
-                    .withPaidTo(new Payment()
-                            .withUserId(transaction.getUserId())
-                            .withMoney(transaction.getReceivedFrom().get().getMoney())
-                    );
-
-            transactionRepository.saveAll(List.of(outTxn.withId(generateID(outTxn)), getUpdatedTransaction(transaction)));
-            finalStateRepository.saveAll(List.of(updatedSelfFinalState, updatedParticipantFinalState));
-        } else if (transaction.getPaidTo().isPresent()) {
-            final var participantId = transaction.getPaidTo().get().getUserId();
-            final var selfFinalStateOpt = finalStateRepository.findById(participantId, new PartitionKey(transaction.getUserId()));
-            final var participantFinalStateOpt = finalStateRepository.findById(transaction.getUserId(), new PartitionKey(participantId));
-
-            final var selfFinalState = selfFinalStateOpt.orElseGet(FinalState::new);
-            final var participantFinalState = participantFinalStateOpt.orElseGet(FinalState::new);
-
-            final var payment = transaction.getPaidTo().get();
-            final var paidAmount = payment.isSettlement() ? 0 : transaction.getPaidTo().get().getMoney().getAmount();
-
-            final var updatedSelfFinalState = selfFinalState
-                    .withUserId(transaction.getUserId())
-                    .withParticipantId(participantId)
-                    .withBalance(payment.isSettlement() ? 0 : selfFinalState.getBalance() + paidAmount)
-                    .withCurrency(transaction.getPaidTo().get().getMoney().getCurrency());
-
-            final var updatedParticipantFinalState = participantFinalState
-                    .withParticipantId(transaction.getUserId())
-                    .withUserId(participantId)
-                    .withBalance(payment.isSettlement() ? 0 : participantFinalState.getBalance() - paidAmount)
-                    .withCurrency(transaction.getPaidTo().get().getMoney().getCurrency());
-
-            final var inTxn = new Transaction()
-                    .withId(String.valueOf(OffsetDateTime.now().toInstant().toEpochMilli())) // to add uniqueness to the hash generation.
-                    .withUserId(transaction.getPaidTo().get().getUserId())
-                    .withReceivedFrom(new Payment()
-                            .withUserId(transaction.getUserId())
-                            .withMoney(payment.isSettlement() ? selfFinalState.getMoney() : transaction.getPaidTo().get().getMoney())
-                    );
+        write(plan(List.of(transaction), record -> record.getIdempotencyKey() != null && isAlreadyRecorded(record, new HashSet<>())));
+    }
+
+    /**
+     * @param transactions The transactions to record, applied in the given order.
+     * @apiNote Batch variant of {@link #addTransaction(Transaction)}. The <code>FinalState</code> of every (userId, participantId) pair
+     * touched by the batch is read once, all the deltas are applied in memory and the resulting balances are written back once per
+     * document, followed by a single <code>saveAll</code> of the transactions. Nothing is written if any of the transactions is invalid.
+     * Transactions whose <code>idempotencyKey</code> has already been recorded, earlier or within the batch, are skipped.
+     */
+    public void addTransactions(@NonNull final List<Transaction> transactions) {
+        if (transactions.isEmpty()) {
+            return;
+        }
+        final var idempotencyKeys = new HashSet<String>();
+        write(plan(transactions, transaction -> isAlreadyRecorded(transaction, idempotencyKeys)));
+    }
+
+    /**
+     * @param expense The bill to record.
+     * @throws IllegalArgumentException If the expense is invalid, see {@link GroupExpenseSplitter#split(GroupExpense)}.
+     * @apiNote Records one transaction per participant as a single batch of {@link #addTransactions(List)}. Retrying an expense
+     * with the same <code>idempotencyKey</code> only records the parts that didn't go through.
+     */
+    public void addGroupExpense(@NonNull final GroupExpense expense) {
+        addTransactions(GroupExpenseSplitter.split(expense));
+    }
+
+    /**
+     * @param userId The ID of the user whose balances to clear.
+     * @apiNote Clears everything the user and each of their participants owe each other, in every currency, as
+     * {@link ReactiveTransactionHandler#settleAll(String)} does: the user's <code>FinalState</code>s are read once, the other side of
+     * each pair is taken from the {@link FinalStateCache} if it holds the participant and point read otherwise, and the
+     * <code>FinalState</code>s are then committed by partition, see {@link #commitAll(Collection, Map, UserBalanceSummaries.Changes)}.
+     * In event-sourced mode the settlements are written as any other transactions.
+     */
+    public void settleAll(@NonNull final String userId) {
+        final var shards = finalStateCache.getShards();
+        final var read = new HashMap<String, FinalState>();
+        final var settlements = settlementsOf(userId, shards.findAll(userId), read);
+        if (settlements.isEmpty()) {
+            return;
+        }
+        final var plan = plan(settlements, transaction -> false);
+        if (ledgerLog.isEnabled()) {
+            write(plan);
+            return;
+        }
+        for (final var participantId : settlements.stream().map(settlement -> settlement.getPayment().getUserId())
+                .collect(Collectors.toCollection(LinkedHashSet::new))) {
+            finalStateCache.getIfPresent(participantId, userId)
+                    .or(() -> finalStateRepository.findById(userId, new PartitionKey(shards.getPartitionKey(participantId, userId))))
+                    .ifPresent(mirror -> read.put(getKey(participantId, userId), mirror));
+        }
+        write(plan, changes -> commitAll(plan.getUpdates(), read, changes));
+    }
+
+    /**
+     * @param finalStates The <code>FinalState</code>s of the user, shard markers included.
+     * @param read        Where to put the <code>FinalState</code>s settled, keyed by {@link #getKey(String, String)}.
+     * @return A settlement for every pair and currency with something outstanding, for the amount read.
+     */
+    static List<Transaction> settlementsOf(final String userId, final List<FinalState> finalStates, final Map<String, FinalState> read) {
+        final var settlements = new ArrayList<Transaction>();
+        for (final var finalState : finalStates) {
+            if (FinalStateShards.isMarker(finalState)) {
+                continue;
+            }
+            read.put(getKey(userId, finalState.getParticipantId()), finalState);
+            finalState.getBalances().forEach((currency, balance) -> {
+                if (balance != 0) {
+                    settlements.add(new Transaction()
+                            .withUserId(userId)
+                            .withPaidTo(new Payment()
+                                    .withUserId(finalState.getParticipantId())
+                                    .withMoney(new Payment.Money(Math.abs(balance), currency))
+                                    .withSettlement(true)));
+                }
+            });
+        }
+        return settlements;
+    }
+
+    /**
+     * @param transactions  Transactions exported from another ledger, applied in the given order.
+     * @param mayBeRecorded Tells the transactions whose <code>idempotencyKey</code> may have been recorded before, which are
+     *                      looked up and skipped if they were. The others are written without a lookup.
+     * @apiNote Like {@link #addTransactions(List)}, except that transactions keep their <code>createdAt</code>, for
+     * {@link LedgerImporter} to replay history without a read per transaction. The records still get the <code>sequence</code>
+     * of when they are written, so an import into a pair that already has transactions is replayed, and reconciled, in the order
+     * the balances actually changed, rather than interleaved with the pair's later transactions by date.
+     */
+    void importTransactions(final List<Transaction> transactions, final Predicate<Transaction> mayBeRecorded) {
+        final var idempotencyKeys = new HashSet<String>();
+        write(plan(transactions, transaction -> mayBeRecorded.test(transaction) && isAlreadyRecorded(transaction, idempotencyKeys), true));
+    }
+
+    /**
+     * @param transactions      The transactions to record, in order.
+     * @param isAlreadyRecorded Tells the transactions to skip, called once per transaction in order.
+     * @return The balance changes and the records of the transactions, before anything is read or written.
+     * @throws IllegalArgumentException If any of the transactions is invalid.
+     */
+    WritePlan plan(final List<Transaction> transactions, final Predicate<Transaction> isAlreadyRecorded) {
+        return plan(transactions, isAlreadyRecorded, false);
+    }
+
+    /**
+     * @param keepCreatedAt Whether transactions that carry a <code>createdAt</code> keep it, rather than all being stamped now.
+     */
+    private WritePlan plan(final List<Transaction> transactions, final Predicate<Transaction> isAlreadyRecorded,
+                           final boolean keepCreatedAt) {
+        final var updates = new LinkedHashMap<String, FinalStateUpdate>();
+        final var records = new ArrayList<Supplier<Transaction>>(transactions.size() * 2);
+        final var timestamp = System.currentTimeMillis();
+        for (int i = 0; i < transactions.size(); i++) {
+            final var transaction = transactions.get(i);
+            if (!isAlreadyRecorded.test(transaction)) {
+                final var createdAt = keepCreatedAt && transaction.getCreatedAt() > 0 ? transaction.getCreatedAt() : timestamp;
+                // the position keeps identical line items of one batch from getting the same ID.
+                recordTransaction(transaction, i, createdAt, updates, records);
+            }
+        }
+        return new WritePlan(updates.values(), records);
+    }
+
+    /**
+     * In event-sourced mode only the transactions are written and the balance changes are left to the {@link LedgerProjector},
+     * with the balances settlements clear read beforehand, see {@link #resolveSettlements(WritePlan)}; otherwise the balances are committed first, the transactions written after them and the users' summaries updated next.
+     * The activity rollups are updated last, from the records as written.
+     * <p>
+     * The <code>FinalState</code>s are committed one at a time, so a write failing half-way can leave one side of a pair changed and
+     * the other not, and no record of either. Retrying a transaction that carries an <code>idempotencyKey</code> finishes the job:
+     * the sides already changed carry its mark and are left alone, see {@link FinalStateUpdate}. A transaction without one is
+     * not safe to retry, and a pair it left lopsided is reported by the {@link FinalStateReconciler}.
+     */
+    private void write(final WritePlan plan) {
+        write(plan, changes -> plan.getUpdates().forEach(update -> commit(update, changes)));
+    }
+
+    /**
+     * @param commit Commits the updates of the plan, recording their changes, unless in event-sourced mode.
+     */
+    private void write(final WritePlan plan, final Consumer<UserBalanceSummaries.Changes> commit) {
+        if (plan.getRecords().isEmpty()) {
+            return;
+        }
+        final var changes = userBalanceSummaries.newChanges();
+        if (!ledgerLog.isEnabled()) {
+            commit.accept(changes);
+        } else {
+            resolveSettlements(plan);
+        }
+        final var sequence = ledgerLog.reserve(plan.getRecords().size());
+        final var materialised = materialise(plan.getRecords(), sequence);
+        try {
+            transactionRepository.saveAll(materialised);
+        } catch (RuntimeException e) {
+            ledgerLog.release(sequence);
+            throw e;
+        }
+        if (ledgerLog.isEnabled()) {
+            ledgerLog.append(materialised);
+        }
+        userBalanceSummaries.apply(changes);
+        if (activityRollups.isEnabled()) {
+            activityRollups.apply(ActivityRollups.Changes.of(materialised));
+        }
+    }
+
+    /**
+     * In event-sourced mode the <code>FinalState</code>s are not committed by the writer, so the amount a settlement clears is
+     * worked out before its records are materialised: once the {@link LedgerProjector} has applied the records written so far,
+     * waiting at most {@value #SETTLEMENT_CATCH_UP_MILLIS} ms, each settling side is read and its update applied to the copy
+     * read, without writing it back. Writes to a pair being queued on one sequencer lane, nothing should come in between; the
+     * balance the projector clears is the one it folds either way, only the amount recorded depends on the read.
+     */
+    void resolveSettlements(final WritePlan plan) {
+        final var settling = plan.getUpdates().stream()
+                .filter(FinalStateUpdate::hasSettlement)
+                .collect(Collectors.toList());
+        if (settling.isEmpty()) {
+            return;
+        }
+        try {
+            if (!ledgerLog.awaitCheckpoint(ledgerLog.getLastSequence(), SETTLEMENT_CATCH_UP_MILLIS, TimeUnit.MILLISECONDS)) {
+                log.warn("The ledger projector is behind, settlements record the balances it has applied so far");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the ledger projector", e);
+        }
+        for (final var update : settling) {
+            final var partitionKey = finalStateCache.getShards().getPartitionKey(update.getUserId(), update.getParticipantId());
+            update.applyTo(finalStateRepository.findById(update.getParticipantId(), new PartitionKey(partitionKey))
+                    .orElseGet(() -> FinalState.empty(partitionKey)));
+        }
+    }
+
+    /**
+     * @param sequence The first of the sequences reserved for the records, see {@link LedgerLog#reserve(int)}.
+     */
+    static List<Transaction> materialise(final List<Supplier<Transaction>> records, final long sequence) {
+        final var materialised = new ArrayList<Transaction>(records.size());
+        for (final var record : records) {
+            final var transaction = record.get().withSequence(sequence + materialised.size());
+            transaction.setPartitionKey();
+            materialised.add(transaction);
+        }
+        return materialised;
+    }
+
+    /**
+     * Registers the balance changes of the given transaction in <code>updates</code> and appends the transaction along with its
+     * complement to <code>records</code>. Records are only materialised once the updates are committed, as a settlement records
+     * the balance it actually cleared. Records are built in one go, see {@link Transaction#paidTo(String, Payment, long, String)}.
+     * The updates of a transaction carrying an <code>idempotencyKey</code> are marked with the ID of the record in the same
+     * partition, see {@link FinalStateUpdate}, and the complement is appended before the transaction itself, see
+     * {@link #isAlreadyRecorded(Transaction, Set)}.
+     */
+    private void recordTransaction(@NonNull final Transaction transaction,
+                                   final int position,
+                                   final long createdAt,
+                                   final Map<String, FinalStateUpdate> updates,
+                                   final List<Supplier<Transaction>> records) {
+        if (transaction.hasReceivedFrom()) {
+            // a transaction naming both sides counts as received, so receivedFrom is read here rather than getPayment().
+            final var receivedFrom = transaction.hasPaidTo() ? transaction.getReceivedFrom().get() : transaction.getPayment();
+            final var participantId = receivedFrom.getUserId();
+            final var money = receivedFrom.getMoney();
+
+            final var outRecord = identify(Transaction.paidTo(participantId, new Payment(transaction.getUserId(), money, false),
+                    createdAt, transaction.getIdempotencyKey()), position);
+            final var record = identify(transaction.withCreatedAt(createdAt), position);
+            final var keyed = transaction.getIdempotencyKey() != null;
+
+            getUpdate(transaction.getUserId(), participantId, updates).add(-money.getAmount(), money.getCurrency(), keyed ? record.getId() : null);
+            getUpdate(participantId, transaction.getUserId(), updates).add(money.getAmount(), money.getCurrency(), keyed ? outRecord.getId() : null);
+
+            records.add(() -> outRecord);
+            records.add(() -> record);
+        } else if (transaction.hasPaidTo()) {
+            final var payment = transaction.getPayment();
+            final var participantId = payment.getUserId();
+            final var currency = payment.getMoney().getCurrency();
+
             if (payment.isSettlement()) {
-                var updatedPayment = payment.withMoney(selfFinalState.getMoney());
-                transactionRepository.saveAll(List.of(inTxn.withId(generateID(inTxn)), getUpdatedTransaction(transaction.withPaidTo(updatedPayment))));
+                final var key = transaction.getIdempotencyKey();
+                // the IDs don't depend on the amount, so the records are identified before the amount cleared is known.
+                final var settlement = getUpdate(transaction.getUserId(), participantId, updates).settle(currency, key == null ? null
+                        : IDEMPOTENT_IDS.generateIdempotent(key, Transaction.paidTo(transaction.getUserId(), payment, createdAt, key)));
+                getUpdate(participantId, transaction.getUserId(), updates).settle(currency, key == null ? null
+                        : IDEMPOTENT_IDS.generateIdempotent(key, Transaction.receivedFrom(participantId,
+                        new Payment(transaction.getUserId(), payment.getMoney(), true), createdAt, key)));
+
+                // the cleared balance is unknown until the updates are committed, or read, see resolveSettlements(WritePlan).
+                final Supplier<Payment.Money> settledMoney = () -> settlement.getMoney() != null ? settlement.getMoney() : payment.getMoney();
+                records.add(() -> getComplement(transaction, settledMoney.get(), true, createdAt, position));
+                records.add(() -> identify(Transaction.paidTo(transaction.getUserId(), new Payment(participantId, settledMoney.get(), true),
+                        createdAt, transaction.getIdempotencyKey()), position));
             } else {
-                transactionRepository.saveAll(List.of(inTxn.withId(generateID(inTxn)), getUpdatedTransaction(transaction)));
+                final var inRecord = getComplement(transaction, payment.getMoney(), false, createdAt, position);
+                final var record = identify(transaction.withCreatedAt(createdAt), position);
+                final var keyed = transaction.getIdempotencyKey() != null;
+
+                getUpdate(transaction.getUserId(), participantId, updates).add(payment.getMoney().getAmount(), currency,
+                        keyed ? record.getId() : null);
+                getUpdate(participantId, transaction.getUserId(), updates).add(-payment.getMoney().getAmount(), currency,
+                        keyed ? inRecord.getId() : null);
+                records.add(() -> inRecord);
+                records.add(() -> record);
             }
-            finalStateRepository.saveAll(List.of(updatedParticipantFinalState, updatedSelfFinalState));
         } else {
             throw new IllegalArgumentException(String.format("Not a valid transaction %s", transaction));
         }
     }
 
-    private Transaction getUpdatedTransaction(@NonNull final Transaction transaction) {
-        var id = generateID(transaction.withId(String.valueOf(OffsetDateTime.now().toInstant().toEpochMilli())));
-        return transaction.withId(id);
+    private Transaction getComplement(final Transaction transaction, final Payment.Money money,
+                                      final boolean settlement, final long createdAt, final int position) {
+        // settlement lets the complement be replayed on its own, see project(Transaction, Map).
+        return identify(Transaction.receivedFrom(transaction.getPayment().getUserId(), new Payment(transaction.getUserId(), money, settlement),
+                createdAt, transaction.getIdempotencyKey()), position);
+    }
+
+    private Transaction identify(final Transaction record, final int position) {
+        return record.withId(record.getIdempotencyKey() != null
+                ? IDEMPOTENT_IDS.generateIdempotent(record.getIdempotencyKey(), record)
+                : transactionIdGenerator.generate(record, position));
+    }
+
+    /**
+     * @param idempotencyKeys The keys of the transactions recorded so far by the calling batch, to which the key of the given
+     *                        transaction is added.
+     * @return Whether the given transaction carries an <code>idempotencyKey</code> that was recorded before. The record looked up
+     * is the transaction itself, which is saved after its complement and after both <code>FinalState</code>s, so it is only found
+     * once the whole write went through. A transaction whose write failed before that is planned again, and the
+     * <code>FinalState</code>s it already changed carry its mark and are left alone, see {@link FinalStateUpdate}. Retries racing
+     * each other on different instances can both miss the record, and are then serialised by the conditional writes of the
+     * <code>FinalState</code>s: whichever commits second finds the mark and skips the change. A retry coming after more than
+     * {@value FinalStateUpdate#RETAINED_MARKS} other keyed writes to the pair can no longer find the mark.
+     */
+    private boolean isAlreadyRecorded(final Transaction transaction, final Set<String> idempotencyKeys) {
+        final var key = transaction.getIdempotencyKey();
+        if (key == null) {
+            return false;
+        }
+        if (!idempotencyKeys.add(key)) {
+            return true;
+        }
+        final var payment = transaction.getPayment();
+        if (payment == null) {
+            return false; // rejected as invalid later on.
+        }
+        return transactionRepository.findById(getIdempotentId(transaction),
+                new PartitionKey(Transaction.getPartitionKey(transaction.getUserId(), payment.getUserId()))).isPresent();
+    }
+
+    /**
+     * @return The ID under which the given transaction, which carries an <code>idempotencyKey</code>, is stored.
+     */
+    static String getIdempotentId(final Transaction transaction) {
+        return IDEMPOTENT_IDS.generateIdempotent(transaction.getIdempotencyKey(), transaction);
+    }
+
+    /**
+     * Registers the effect of a single stored transaction record on its owner's <code>FinalState</code> in <code>updates</code>.
+     * A transaction and its complement each carry the change to their own user's side of the pair, so replaying every record this
+     * way reproduces the balances <code>addTransaction</code> would have written.
+     */
+    static void project(@NonNull final Transaction record, final Map<String, FinalStateUpdate> updates) {
+        final var payment = record.getPayment();
+        if (payment == null) {
+            throw new IllegalArgumentException(String.format("Not a valid transaction %s", record));
+        }
+        final var update = getUpdate(record.getUserId(), payment.getUserId(), updates);
+        if (payment.isSettlement()) {
+            update.settle(payment.getMoney().getCurrency());
+        } else {
+            update.add(record.hasPaidTo() ? payment.getMoney().getAmount() : -payment.getMoney().getAmount(), payment.getMoney().getCurrency());
+        }
+    }
+
+    static FinalStateUpdate getUpdate(final String userId, final String participantId, final Map<String, FinalStateUpdate> updates) {
+        return updates.computeIfAbsent(getKey(userId, participantId), key -> new FinalStateUpdate(userId, participantId));
+    }
+
+    /**
+     * @return The key of the user's <code>FinalState</code> with the participant among those of a write.
+     */
+    static String getKey(final String userId, final String participantId) {
+        return userId + "|" + participantId;
+    }
+
+    /**
+     * Applies the update to the stored <code>FinalState</code> with a conditional write, re-reading the document and re-applying the
+     * update whenever a concurrent writer got there first.
+     *
+     * @param changes Where to record the change the write made to the user's summary, for the caller to apply once the rest of
+     *                its writes are done, and the generation of that summary before the write.
+     */
+    FinalState commit(final FinalStateUpdate update, final UserBalanceSummaries.Changes changes) {
+        final var partitionKey = finalStateCache.getShards().getPartitionKey(update.getUserId(), update.getParticipantId());
+        userBalanceSummaries.observe(changes, update.getUserId());
+        for (int attempt = 1; ; attempt++) {
+            final var stored = finalStateRepository.findById(update.getParticipantId(), new PartitionKey(partitionKey));
+            final var current = stored.isPresent() ? stored.get() : FinalState.empty(partitionKey);
+            final var updated = update.applyTo(current);
+            if (updated == current) {
+                return current; // applied by an earlier attempt at the same write.
+            }
+            try {
+                final var saved = finalStateRepository.save(updated);
+                finalStateCache.put(saved);
+                changes.record(current, saved);
+                return saved;
+            } catch (CosmosAccessException e) {
+                if (!isWriteConflict(e)) {
+                    throw e;
+                }
+                if (attempt >= conflictRetryPolicy.getMaxAttempts()) {
+                    throw new OptimisticLockingFailureException(String.format("Gave up updating final state of %s with %s after %d attempts",
+                            update.getUserId(), update.getParticipantId(), attempt), e);
+                }
+                try {
+                    conflictRetryPolicy.backOff(attempt);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new OptimisticLockingFailureException(String.format("Interrupted while updating final state of %s with %s",
+                            update.getUserId(), update.getParticipantId()), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits the updates partition by partition, each partition's with transactional batches of up to
+     * {@value FinalStateBatchRepository#MAX_BATCH_SIZE}, applied to the copies read beforehand. A batch that fails because one
+     * of its documents changed since it was read writes nothing, and its updates are then committed one at a time, see
+     * {@link #commit(FinalStateUpdate, UserBalanceSummaries.Changes)}.
+     *
+     * @param finalStates The <code>FinalState</code>s read, keyed by {@link #getKey(String, String)}; those missing are taken
+     *                    not to exist yet.
+     */
+    void commitAll(final Collection<FinalStateUpdate> updates, final Map<String, FinalState> finalStates,
+                   final UserBalanceSummaries.Changes changes) {
+        updates.stream().map(FinalStateUpdate::getUserId).distinct().forEach(userId -> userBalanceSummaries.observe(changes, userId));
+        for (final var batch : toBatches(updates)) {
+            batch.apply(finalStates);
+            if (batch.getUpdated().isEmpty()) {
+                continue; // applied by an earlier attempt at the same write.
+            }
+            try {
+                batch.saved(finalStateRepository.saveBatch(batch.getPartitionKey(), batch.getUpdated()), changes, finalStateCache);
+            } catch (CosmosAccessException e) {
+                if (!isWriteConflict(e)) {
+                    throw e;
+                }
+                batch.getUpdates().forEach(update -> commit(update, changes));
+            }
+        }
+    }
+
+    /**
+     * @return The updates grouped by the partition of their <code>FinalState</code>, in batches of up to
+     * {@value FinalStateBatchRepository#MAX_BATCH_SIZE}.
+     */
+    List<FinalStateBatch> toBatches(final Collection<FinalStateUpdate> updates) {
+        final var shards = finalStateCache.getShards();
+        final var partitions = new LinkedHashMap<String, List<FinalStateUpdate>>();
+        for (final var update : updates) {
+            partitions.computeIfAbsent(shards.getPartitionKey(update.getUserId(), update.getParticipantId()),
+                    partitionKey -> new ArrayList<>()).add(update);
+        }
+        final var batches = new ArrayList<FinalStateBatch>();
+        partitions.forEach((partitionKey, partitionUpdates) -> {
+            for (int i = 0; i < partitionUpdates.size(); i += FinalStateBatchRepository.MAX_BATCH_SIZE) {
+                batches.add(new FinalStateBatch(partitionKey, partitionUpdates.subList(i,
+                        Math.min(partitionUpdates.size(), i + FinalStateBatchRepository.MAX_BATCH_SIZE))));
+            }
+        });
+        return batches;
+    }
+
+    /**
+     * @return The summaries the changes recorded by {@link #commit(FinalStateUpdate, UserBalanceSummaries.Changes)} are to be
+     * applied to.
+     */
+    UserBalanceSummaries getUserBalanceSummaries() {
+        return userBalanceSummaries;
+    }
+
+    /**
+     * @return The rollups the records written by the reactive handler are to be added to.
+     */
+    ActivityRollups getActivityRollups() {
+        return activityRollups;
+    }
+
+    /**
+     * @return Whether the write failed because the document changed (412) or was created (409) since it was read.
+     */
+    static boolean isWriteConflict(final CosmosAccessException e) {
+        final var cosmosException = e.getCosmosException();
+        return cosmosException != null
+                && (cosmosException.getStatusCode() == HttpStatus.PRECONDITION_FAILED.value()
+                || cosmosException.getStatusCode() == HttpStatus.CONFLICT.value());
+    }
+
+    /**
+     * The balance changes of a batch and the records that make it up. Records of settlements carry the amount cleared and can
+     * only be materialised once the updates are committed.
+     */
+    @AllArgsConstructor
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    @Getter
+    static final class WritePlan {
+        Collection<FinalStateUpdate> updates;
+        List<Supplier<Transaction>> records;
+    }
+
+    /**
+     * Updates of <code>FinalState</code>s of one partition, written together, see
+     * {@link #commitAll(Collection, Map, UserBalanceSummaries.Changes)}.
+     */
+    @FieldDefaults(level = AccessLevel.PRIVATE, makeFinal = true)
+    @Getter
+    static final class FinalStateBatch {
+        String partitionKey;
+        List<FinalStateUpdate> updates;
+        @Getter(AccessLevel.NONE)
+        List<FinalState> read = new ArrayList<>();
+        List<FinalState> updated = new ArrayList<>();
+
+        FinalStateBatch(final String partitionKey, final List<FinalStateUpdate> updates) {
+            this.partitionKey = partitionKey;
+            this.updates = updates;
+        }
+
+        /**
+         * Applies the updates to the copies read, keeping those that change something in {@link #getUpdated()}.
+         */
+        void apply(final Map<String, FinalState> finalStates) {
+            read.clear();
+            updated.clear();
+            for (final var update : updates) {
+                final var current = finalStates.getOrDefault(getKey(update.getUserId(), update.getParticipantId()),
+                        FinalState.empty(partitionKey));
+                final var next = update.applyTo(current);
+                if (next != current) {
+                    read.add(current);
+                    updated.add(next);
+                }
+            }
+        }
+
+        /**
+         * Records the changes the batch made to the users' summaries and caches the <code>FinalState</code>s written.
+         *
+         * @param saved The <code>FinalState</code>s written, in the order of {@link #getUpdated()}.
+         */
+        void saved(final List<FinalState> saved, final UserBalanceSummaries.Changes changes, final FinalStateCache finalStateCache) {
+            for (int i = 0; i < saved.size(); i++) {
+                changes.record(read.get(i), saved.get(i));
+                finalStateCache.put(saved.get(i));
+            }
+        }
     }
 }
@@ -0,0 +1,17 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.Transaction;
+
+/**
+ * Strategy for the IDs of stored transaction records, selected with <code>split.transaction-id.strategy</code>.
+ */
+public interface TransactionIdGenerator {
+
+    /**
+     * @param record   The record to identify, with its <code>createdAt</code> set.
+     * @param position The position of the transaction the record belongs to within its batch, 0 outside of batches. Records that are
+     *                 otherwise identical, such as two equal line items of one batch, must only differ by position.
+     * @return The ID of the record.
+     */
+    String generate(Transaction record, int position);
+}
@@ -0,0 +1,324 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.spring.data.cosmos.exception.CosmosAccessException;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.UserBalanceSummary;
+import com.seltzer.split.domain.repository.UserBalanceSummaryRepository;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Keeps every user's {@link UserBalanceSummary} in step with their <code>FinalState</code>s. The writers collect the change each
+ * committed <code>FinalState</code> made in a {@link Changes}, and add them up per user into that user's summary with one
+ * conditional write per batch, retried on conflicts like the <code>FinalState</code>s are.
+ * <p>
+ * Summaries live in their own container, so a writer can't commit a <code>FinalState</code> and its summary together. Instead it
+ * marks the summary before committing, see {@link #observe(Changes, String)}, and removes its mark when it adds its change. A
+ * mark older than <code>split.summaries.pending-timeout</code> is taken to belong to a writer that died in between, whose change
+ * the summary may or may not count, and the next read rebuilds the summary from the <code>FinalState</code>s, see
+ * {@link #find(String)}.
+ * <p>
+ * A user without a summary, because it was never built or was dropped after a failed update, gets one built from their
+ * <code>FinalState</code>s on their next write, which are read after that write has been committed. Until then their summary is
+ * derived on every read. Every build stamps the summary with a new <code>generation</code>, and a writer reads the generation
+ * as it marks the summary: its change is only added if the generation is still the same, as a summary built since may already
+ * count it. Otherwise the summary is built again, so two writers building the same user's summary at once never count a change
+ * twice.
+ */
+@Slf4j
+@Component
+public class UserBalanceSummaries {
+    private final UserBalanceSummaryRepository summaryRepository;
+    private final FinalStateShards finalStateShards;
+    private final ConflictRetryPolicy conflictRetryPolicy;
+    private final Duration pendingTimeout;
+
+    @Autowired
+    public UserBalanceSummaries(final UserBalanceSummaryRepository summaryRepository,
+                                final FinalStateShards finalStateShards,
+                                final ConflictRetryPolicy conflictRetryPolicy,
+                                @Value("${split.summaries.pending-timeout:PT1M}") final Duration pendingTimeout) {
+        this.summaryRepository = summaryRepository;
+        this.finalStateShards = finalStateShards;
+        this.conflictRetryPolicy = conflictRetryPolicy;
+        this.pendingTimeout = pendingTimeout;
+    }
+
+    public UserBalanceSummaries(final UserBalanceSummaryRepository summaryRepository,
+                                final FinalStateShards finalStateShards,
+                                final ConflictRetryPolicy conflictRetryPolicy) {
+        this(summaryRepository, finalStateShards, conflictRetryPolicy, Duration.ofMinutes(1));
+    }
+
+    /**
+     * @return Summaries that are never stored, so that every read derives them from the <code>FinalState</code>s.
+     */
+    public static UserBalanceSummaries disabled() {
+        return new UserBalanceSummaries(null, null, ConflictRetryPolicy.defaults());
+    }
+
+    public boolean isEnabled() {
+        return summaryRepository != null;
+    }
+
+    /**
+     * @return Where a batch is to record the changes it makes, which keeps nothing if summaries aren't.
+     */
+    public Changes newChanges() {
+        return isEnabled() ? new Changes() : Changes.NONE;
+    }
+
+    /**
+     * @return The stored summary of the user, with a single point read, or empty if none has been built yet.
+     * @apiNote A summary left marked by a writer that never came back to it is rebuilt from the user's <code>FinalState</code>s,
+     * and stored again unless it has changed since.
+     */
+    public Optional<UserBalanceSummary> find(@NonNull final String userId) {
+        if (!isEnabled()) {
+            return Optional.empty();
+        }
+        final var stored = summaryRepository.findById(userId, new PartitionKey(userId));
+        if (stored.isEmpty() || isCurrent(stored.get())) {
+            return stored;
+        }
+        if (!hasExpiredMarks(stored.get())) {
+            return Optional.empty(); // marked by writers still at work before it was first built.
+        }
+        final var rebuilt = build(userId, stored.get().getPending(), stored.get().get_etag());
+        try {
+            return Optional.of(summaryRepository.save(rebuilt));
+        } catch (RuntimeException e) {
+            log.warn("Failed to store the rebuilt balance summary of {}", userId, e);
+            return Optional.of(rebuilt);
+        }
+    }
+
+    /**
+     * @return Whether the stored summary can be served as it is: it has been built, and every writer that marked it is still
+     * expected to add its change.
+     */
+    public boolean isCurrent(@NonNull final UserBalanceSummary summary) {
+        return summary.getGeneration() != null && !hasExpiredMarks(summary);
+    }
+
+    private boolean hasExpiredMarks(final UserBalanceSummary summary) {
+        final var now = System.currentTimeMillis();
+        return summary.getPending().values().stream().anyMatch(markedAt -> isExpired(markedAt, now));
+    }
+
+    private boolean isExpired(final long markedAt, final long now) {
+        return now - markedAt >= pendingTimeout.toMillis();
+    }
+
+    /**
+     * Marks the summary of the user as about to change, once per batch, and reads its generation for {@link #apply(Changes)} to
+     * tell whether the summary was built after the changes were made. A user without a summary gets an empty one, not built
+     * yet, to carry the mark. To be called before the batch commits any of the user's <code>FinalState</code>s.
+     *
+     * @apiNote Throws if the summary can't be marked, so that no <code>FinalState</code> is committed that the summary may never
+     * count.
+     */
+    public void observe(@NonNull final Changes changes, @NonNull final String userId) {
+        if (!isEnabled() || !changes.recording || changes.isObserved(userId)) {
+            return;
+        }
+        for (int attempt = 1; ; attempt++) {
+            final var current = summaryRepository.findById(userId, new PartitionKey(userId));
+            final var markedAt = System.currentTimeMillis();
+            final var pending = new HashMap<>(current.map(UserBalanceSummary::getPending).orElse(Map.of()));
+            pending.put(changes.token, markedAt);
+            final var marked = current.orElseGet(() -> UserBalanceSummary.of(userId, List.of())).withPending(pending);
+            try {
+                summaryRepository.save(marked);
+                changes.observed(userId, current.map(UserBalanceSummary::getGeneration).orElse(null), markedAt);
+                return;
+            } catch (CosmosAccessException e) {
+                if (!TransactionHandler.isWriteConflict(e)) {
+                    throw e;
+                }
+                backOff(attempt, userId, "marking", e);
+            }
+        }
+    }
+
+    /**
+     * @param changes The changes made by a batch whose <code>FinalState</code>s have all been committed.
+     * @apiNote A user whose summary can't be updated has it dropped, to be rebuilt on their next write, rather than failing a
+     * batch that has already been committed.
+     */
+    public void apply(@NonNull final Changes changes) {
+        changes.get().forEach(this::applyOrInvalidate);
+    }
+
+    void applyOrInvalidate(final String userId, final UserBalanceSummary change) {
+        try {
+            apply(userId, change);
+        } catch (RuntimeException e) {
+            log.warn("Failed to update the balance summary of {}, dropping it", userId, e);
+            invalidate(userId);
+        }
+    }
+
+    private void apply(final String userId, final UserBalanceSummary change) {
+        if (!isEnabled() || (change.isEmpty() && change.getPending().isEmpty())) {
+            return;
+        }
+        for (int attempt = 1; ; attempt++) {
+            final var current = summaryRepository.findById(userId, new PartitionKey(userId));
+            final var pending = new HashMap<>(current.map(UserBalanceSummary::getPending).orElse(Map.of()));
+            pending.keySet().removeAll(change.getPending().keySet());
+            final var summary = current.isPresent() && change.getGeneration() != null
+                    && change.getGeneration().equals(current.get().getGeneration())
+                    ? current.get().plus(change).withPending(pending)
+                    : build(userId, pending, current.map(UserBalanceSummary::get_etag).orElse(null));
+            try {
+                summaryRepository.save(summary);
+                return;
+            } catch (CosmosAccessException e) {
+                if (!TransactionHandler.isWriteConflict(e)) {
+                    throw e;
+                }
+                backOff(attempt, userId, "updating", e);
+            }
+        }
+    }
+
+    /**
+     * @param pending The marks of the stored summary, of which only those of writers still expected to add their change are kept:
+     *                the others have committed whatever they were going to, which the <code>FinalState</code>s read here count.
+     * @return The summary of the user built from their <code>FinalState</code>s, to replace the stored one with the given
+     * <code>_etag</code>.
+     */
+    private UserBalanceSummary build(final String userId, final Map<String, Long> pending, final String etag) {
+        final var now = System.currentTimeMillis();
+        final var kept = new HashMap<String, Long>();
+        pending.forEach((token, markedAt) -> {
+            if (!isExpired(markedAt, now)) {
+                kept.put(token, markedAt);
+            }
+        });
+        return UserBalanceSummary.of(userId, finalStateShards.findAll(userId))
+                .withGeneration(UUID.randomUUID().toString())
+                .withPending(kept)
+                .with_etag(etag);
+    }
+
+    private void backOff(final int attempt, final String userId, final String action, final CosmosAccessException e) {
+        if (attempt >= conflictRetryPolicy.getMaxAttempts()) {
+            throw new OptimisticLockingFailureException(String.format("Gave up %s the balance summary of %s after %d attempts",
+                    action, userId, attempt), e);
+        }
+        try {
+            conflictRetryPolicy.backOff(attempt);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new OptimisticLockingFailureException(String.format("Interrupted while %s the balance summary of %s", action,
+                    userId), e);
+        }
+    }
+
+    /**
+     * @apiNote Drops the user's summary, for one to be built from their <code>FinalState</code>s on their next write. For use
+     * whenever <code>FinalState</code>s are written without going through the handlers.
+     */
+    public void invalidate(@NonNull final String userId) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            summaryRepository.deleteById(userId, new PartitionKey(userId));
+        } catch (RuntimeException e) {
+            log.warn("Failed to drop the balance summary of {}", userId, e);
+        }
+    }
+
+    /**
+     * Drops every summary, for them to be built from the <code>FinalState</code>s on each user's next write. For use before the
+     * <code>FinalState</code>s are all recomputed.
+     */
+    public void invalidateAll() {
+        if (isEnabled()) {
+            summaryRepository.deleteAll();
+        }
+    }
+
+    /**
+     * The changes a batch made to the summaries of the users it touched, added up per user, along with the generation of each
+     * user's summary as it was before and the mark the batch left on it. Safe for concurrent writers.
+     */
+    public static final class Changes {
+        /**
+         * Keeps nothing, for writes whose changes the summaries already count.
+         */
+        static final Changes NONE = new Changes(false);
+
+        private final Map<String, UserBalanceSummary> changes = new LinkedHashMap<>();
+        private final Map<String, String> generations = new HashMap<>();
+        private final Map<String, Long> marks = new HashMap<>();
+        private final String token = UUID.randomUUID().toString();
+        private final boolean recording;
+
+        public Changes() {
+            this(true);
+        }
+
+        private Changes(final boolean recording) {
+            this.recording = recording;
+        }
+
+        /**
+         * @param before The <code>FinalState</code> as it was read, <code>null</code> or without balances if it did not exist.
+         * @param after  The <code>FinalState</code> as it was written.
+         */
+        public void record(final FinalState before, @NonNull final FinalState after) {
+            if (!recording) {
+                return;
+            }
+            final var change = UserBalanceSummary.change(before, after);
+            synchronized (this) {
+                changes.merge(after.getUserId(), change, UserBalanceSummary::plus);
+            }
+        }
+
+        synchronized boolean isObserved(final String userId) {
+            return generations.containsKey(userId);
+        }
+
+        synchronized void observed(final String userId, final String generation, final long markedAt) {
+            generations.put(userId, generation);
+            marks.put(userId, markedAt);
+        }
+
+        /**
+         * @return The change of every user's summary, by <code>userId</code>, carrying the <code>generation</code> observed before
+         * it was made, if any, and the mark to remove as <code>pending</code>. A user whose summary was marked but whose
+         * <code>FinalState</code>s did not change gets an empty change, for the mark to be removed all the same.
+         */
+        public synchronized Map<String, UserBalanceSummary> get() {
+            final var observed = new LinkedHashMap<String, UserBalanceSummary>();
+            changes.forEach((userId, change) -> observed.put(userId, withMark(userId, change)));
+            marks.keySet().forEach(userId -> observed.computeIfAbsent(userId,
+                    key -> withMark(userId, UserBalanceSummary.of(userId, List.of()))));
+            return observed;
+        }
+
+        private UserBalanceSummary withMark(final String userId, final UserBalanceSummary change) {
+            final var markedAt = marks.get(userId);
+            return change.withGeneration(generations.get(userId))
+                    .withPending(markedAt == null ? Map.of() : Map.of(token, markedAt));
+        }
+    }
+}
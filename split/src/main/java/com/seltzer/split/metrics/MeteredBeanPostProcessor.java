@@ -0,0 +1,266 @@
+package com.seltzer.split.metrics;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.spring.data.cosmos.exception.CosmosAccessException;
+import com.azure.spring.data.cosmos.repository.CosmosRepository;
+import com.azure.spring.data.cosmos.repository.ReactiveCosmosRepository;
+import com.seltzer.split.domain.model.GroupExpense;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.service.ReactiveTransactionHandler;
+import com.seltzer.split.domain.service.TransactionHandler;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.aop.framework.ProxyFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times every public method of the transaction handlers and every call to a repository, by wrapping the beans in a proxy.
+ * <ul>
+ *     <li><code>split.handler</code>, tagged with the <code>handler</code>, the <code>method</code>, the <code>branch</code> a
+ *     single transaction takes (<code>paidTo</code>, <code>receivedFrom</code> or <code>settlement</code>; <code>batch</code>,
+ *     <code>group</code> or <code>none</code> otherwise) and the <code>outcome</code>.</li>
+ *     <li><code>split.repository</code>, tagged with the <code>repository</code>, the <code>method</code> and the
+ *     <code>outcome</code>: <code>success</code>, <code>conflict</code> for a lost optimistic write, which the handlers retry,
+ *     <code>throttled</code> for a request Cosmos rejected with 429 after the SDK's own retries, or <code>error</code>.</li>
+ *     <li><code>split.repository.partition.size</code>, the number of documents <code>findAll(PartitionKey)</code> returned.</li>
+ * </ul>
+ * Reactive calls are timed from subscription to completion. Timers are kept per method, then per branch and outcome, so a call
+ * costs two clock reads and a few lookups keyed by objects that already exist, with nothing built, on top of the proxy.
+ */
+@Component
+public class MeteredBeanPostProcessor implements BeanPostProcessor {
+    static final String HANDLER_TIMER = "split.handler";
+    static final String REPOSITORY_TIMER = "split.repository";
+    static final String PARTITION_SIZE = "split.repository.partition.size";
+    private static final String NO_BRANCH = "";
+
+    private final ObjectProvider<MeterRegistry> meterRegistry;
+    private final Map<String, DistributionSummary> partitionSizes = new ConcurrentHashMap<>();
+
+    /**
+     * @param meterRegistry Resolved on the first call, as post-processors are created before the registry is.
+     */
+    public MeteredBeanPostProcessor(final ObjectProvider<MeterRegistry> meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(final Object bean, final String beanName) {
+        if (bean instanceof TransactionHandler || bean instanceof ReactiveTransactionHandler) {
+            return proxy(bean, new HandlerInterceptor(ClassUtils.getUserClass(bean).getSimpleName()));
+        }
+        if (bean instanceof CosmosRepository || bean instanceof ReactiveCosmosRepository) {
+            return proxy(bean, new RepositoryInterceptor(getRepositoryName(bean)));
+        }
+        return bean;
+    }
+
+    /**
+     * @return A proxy of the given bean's class, so that it can still be injected as such, unless the bean is a proxy of its
+     * interfaces already, as the Cosmos repositories are.
+     */
+    private static Object proxy(final Object bean, final MethodInterceptor interceptor) {
+        final var factory = new ProxyFactory(bean);
+        factory.setProxyTargetClass(!Proxy.isProxyClass(bean.getClass()));
+        factory.addAdvice(interceptor);
+        return factory.getProxy(bean.getClass().getClassLoader());
+    }
+
+    /**
+     * @return The simple name of the application's repository interface the bean implements, e.g. <code>FinalStateRepository</code>.
+     */
+    private static String getRepositoryName(final Object bean) {
+        return ClassUtils.getAllInterfacesForClassAsSet(bean.getClass()).stream()
+                .filter(type -> type.getPackageName().startsWith("com.seltzer.split"))
+                .map(Class::getSimpleName)
+                .findFirst()
+                .orElse(ClassUtils.getUserClass(bean).getSimpleName());
+    }
+
+    /**
+     * The timers of one method of one bean, by branch and outcome. Both come from the handful of constants above, so the
+     * lookups hash strings whose hash codes are already cached.
+     */
+    private final class MethodTimers {
+        private final String name;
+        private final String ownerTag;
+        private final String owner;
+        private final String method;
+        private final Map<String, Map<String, Timer>> byBranch = new ConcurrentHashMap<>();
+
+        MethodTimers(final String name, final String ownerTag, final String owner, final Method method) {
+            this.name = name;
+            this.ownerTag = ownerTag;
+            this.owner = owner;
+            this.method = method.getName();
+        }
+
+        /**
+         * @param branch <code>null</code> for a meter without a <code>branch</code> tag.
+         */
+        Timer get(final String branch, final String outcome) {
+            return byBranch.computeIfAbsent(branch == null ? NO_BRANCH : branch, key -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(outcome, key -> {
+                        final var builder = Timer.builder(name).tag(ownerTag, owner).tag("method", method).tag("outcome", outcome);
+                        return (branch == null ? builder : builder.tag("branch", branch)).register(meterRegistry.getObject());
+                    });
+        }
+    }
+
+    private DistributionSummary partitionSize(final String repository) {
+        return partitionSizes.computeIfAbsent(repository, key -> DistributionSummary.builder(PARTITION_SIZE)
+                .tag("repository", repository)
+                .baseUnit("documents")
+                .register(meterRegistry.getObject()));
+    }
+
+    static String getBranch(final Object[] arguments) {
+        if (arguments.length == 0) {
+            return "none";
+        }
+        if (arguments[0] instanceof Transaction) {
+            final var transaction = (Transaction) arguments[0];
+            if (transaction.hasPaidTo() && transaction.getPayment().isSettlement()) {
+                return "settlement";
+            }
+            return transaction.hasReceivedFrom() ? "receivedFrom" : "paidTo";
+        }
+        if (arguments[0] instanceof List) {
+            return "batch";
+        }
+        return arguments[0] instanceof GroupExpense ? "group" : "none";
+    }
+
+    static String getOutcome(final Throwable e) {
+        if (e instanceof OptimisticLockingFailureException) {
+            return "conflict";
+        }
+        if (e instanceof IllegalArgumentException) {
+            return "invalid";
+        }
+        if (e instanceof CosmosAccessException && ((CosmosAccessException) e).getCosmosException() != null) {
+            final var statusCode = ((CosmosAccessException) e).getCosmosException().getStatusCode();
+            if (statusCode == HttpStatus.PRECONDITION_FAILED.value() || statusCode == HttpStatus.CONFLICT.value()) {
+                return "conflict";
+            }
+            if (statusCode == HttpStatus.TOO_MANY_REQUESTS.value()) {
+                return "throttled";
+            }
+        }
+        return "error";
+    }
+
+    /**
+     * Times the invocation of a public method, or the <code>Mono</code> or <code>Flux</code> it returns from subscription to termination.
+     */
+    private abstract class MeteringInterceptor implements MethodInterceptor {
+        @Override
+        public Object invoke(final MethodInvocation invocation) throws Throwable {
+            final var method = invocation.getMethod();
+            if (method.getDeclaringClass() == Object.class || !Modifier.isPublic(method.getModifiers())) {
+                return invocation.proceed();
+            }
+            final var start = System.nanoTime();
+            final Object result;
+            try {
+                result = invocation.proceed();
+            } catch (final Throwable e) {
+                record(invocation, getOutcome(e), start);
+                throw e;
+            }
+            if (result instanceof Mono) {
+                return Mono.defer(() -> {
+                    final var subscribed = System.nanoTime();
+                    return ((Mono<?>) result)
+                            .doOnSuccess(value -> record(invocation, "success", subscribed))
+                            .doOnError(e -> record(invocation, getOutcome(e), subscribed));
+                });
+            }
+            if (result instanceof Flux) {
+                return Flux.defer(() -> {
+                    final var subscribed = System.nanoTime();
+                    final var count = new AtomicLong();
+                    return ((Flux<?>) result)
+                            .doOnNext(value -> count.incrementAndGet())
+                            .doOnComplete(() -> {
+                                record(invocation, "success", subscribed);
+                                onCompleted(invocation, count.get());
+                            })
+                            .doOnError(e -> record(invocation, getOutcome(e), subscribed));
+                });
+            }
+            record(invocation, "success", start);
+            if (result instanceof List) {
+                onCompleted(invocation, ((List<?>) result).size());
+            }
+            return result;
+        }
+
+        abstract void record(MethodInvocation invocation, String outcome, long start);
+
+        /**
+         * @param size The number of elements the call returned.
+         */
+        void onCompleted(final MethodInvocation invocation, final long size) {
+        }
+    }
+
+    private final class HandlerInterceptor extends MeteringInterceptor {
+        private final String handler;
+        private final Map<Method, MethodTimers> timers = new ConcurrentHashMap<>();
+
+        HandlerInterceptor(final String handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        void record(final MethodInvocation invocation, final String outcome, final long start) {
+            timers.computeIfAbsent(invocation.getMethod(), method -> new MethodTimers(HANDLER_TIMER, "handler", handler, method))
+                    .get(getBranch(invocation.getArguments()), outcome)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private final class RepositoryInterceptor extends MeteringInterceptor {
+        private final String repository;
+        private final Map<Method, MethodTimers> timers = new ConcurrentHashMap<>();
+
+        RepositoryInterceptor(final String repository) {
+            this.repository = repository;
+        }
+
+        @Override
+        void record(final MethodInvocation invocation, final String outcome, final long start) {
+            timers.computeIfAbsent(invocation.getMethod(), method -> new MethodTimers(REPOSITORY_TIMER, "repository", repository, method))
+                    .get(null, outcome)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        void onCompleted(final MethodInvocation invocation, final long size) {
+            final var arguments = invocation.getArguments();
+            if (invocation.getMethod().getName().equals("findAll") && arguments.length == 1 && arguments[0] instanceof PartitionKey) {
+                partitionSize(repository).record(size);
+            }
+        }
+    }
+}
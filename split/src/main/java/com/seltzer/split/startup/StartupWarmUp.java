@@ -0,0 +1,192 @@
+package com.seltzer.split.startup;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.spring.data.cosmos.repository.CosmosRepository;
+import com.azure.spring.data.cosmos.repository.ReactiveCosmosRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.annotation.Profile;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Warms the application up in the background once it has started, and reports <code>DOWN</code> as the
+ * <code>startupWarmUp</code> health indicator until it is done, so that a readiness probe holding it keeps traffic away meanwhile.
+ * Only part of the <code>fast-startup</code> profile, which is what leaves beans to be warmed up; in that profile the overall
+ * <code>/actuator/health</code> is <code>DOWN</code> too until then, so point liveness checks at
+ * <code>/actuator/health/liveness</code>.
+ * <ol>
+ *     <li>Creates every singleton left lazy by <code>spring.main.lazy-initialization</code>, so that a broken bean fails now
+ *     rather than on the request that first needs it.</li>
+ *     <li>Reads a document that doesn't exist from every repository, which has the Cosmos client fetch the container metadata
+ *     and open its connections to the partitions.</li>
+ *     <li>Writes and reads a transaction with the application's <code>ObjectMapper</code>, and sends one request to the
+ *     server's own health endpoint, which initializes the dispatcher servlet.</li>
+ * </ol>
+ * A step that fails is logged and reported in the details; the application still becomes ready, only colder. With
+ * <code>split.startup.exit-after-warm-up</code> set, the application exits once warm, which is how the <code>cds</code> build
+ * profile records the classes a started application has loaded.
+ */
+@Slf4j
+@Component
+@Profile("fast-startup")
+@Lazy(false)
+public class StartupWarmUp implements HealthIndicator {
+    private static final String MISSING_ID = "split-warm-up";
+
+    private final ApplicationContext context;
+    private final ObjectMapper objectMapper;
+    private final boolean exitAfterWarmUp;
+    private volatile Health health = Health.down().withDetail("warmUp", "pending").build();
+
+    public StartupWarmUp(final ApplicationContext context,
+                         final ObjectMapper objectMapper,
+                         @Value("${split.startup.exit-after-warm-up:false}") final boolean exitAfterWarmUp) {
+        this.context = context;
+        this.objectMapper = objectMapper;
+        this.exitAfterWarmUp = exitAfterWarmUp;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        final var thread = new Thread(this::run, "split-startup-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public Health health() {
+        return health;
+    }
+
+    private void run() {
+        warmUp();
+        if (exitAfterWarmUp) {
+            log.info("Exiting after the warm-up, as split.startup.exit-after-warm-up is set");
+            System.exit(SpringApplication.exit(context));
+        }
+    }
+
+    /**
+     * @return The health reported from now on: <code>UP</code>, with the time taken and the steps that failed, if any.
+     */
+    Health warmUp() {
+        final var start = System.nanoTime();
+        final var failures = new ArrayList<String>();
+        final var beans = createBeans(failures);
+        final var repositories = readRepositories(failures);
+        step("json", failures, this::roundTripJson);
+        if (context instanceof WebServerApplicationContext webServerContext && webServerContext.getWebServer() != null) {
+            step("http", failures, () -> requestHealth(webServerContext.getWebServer().getPort()));
+        }
+        final var millis = (System.nanoTime() - start) / 1_000_000;
+        health = Health.up()
+                .withDetail("millis", millis)
+                .withDetail("beans", beans)
+                .withDetail("repositories", repositories)
+                .withDetail("failures", failures)
+                .build();
+        log.info("Warmed up in {} ms: created {} beans, read from {} repositories, {} steps failed", millis, beans, repositories,
+                failures.size());
+        return health;
+    }
+
+    /**
+     * @return The number of singletons created, or found created.
+     */
+    private int createBeans(final List<String> failures) {
+        if (!(context instanceof ConfigurableApplicationContext configurableContext)) {
+            return 0;
+        }
+        final var beanFactory = configurableContext.getBeanFactory();
+        var created = 0;
+        for (final var name : beanFactory.getBeanDefinitionNames()) {
+            final var definition = beanFactory.getBeanDefinition(name);
+            if (definition.isAbstract() || !definition.isSingleton()) {
+                continue;
+            }
+            try {
+                beanFactory.getBean(name);
+                created++;
+            } catch (RuntimeException e) {
+                log.warn("Couldn't create the bean {}", name, e);
+                failures.add("bean " + name);
+            }
+        }
+        return created;
+    }
+
+    /**
+     * @return The number of repositories read from.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private int readRepositories(final List<String> failures) {
+        final var partitionKey = new PartitionKey(MISSING_ID);
+        var read = 0;
+        for (final var entry : context.getBeansOfType(CosmosRepository.class).entrySet()) {
+            final CosmosRepository repository = entry.getValue();
+            if (step("repository " + entry.getKey(), failures, () -> repository.findById(MISSING_ID, partitionKey))) {
+                read++;
+            }
+        }
+        for (final var entry : context.getBeansOfType(ReactiveCosmosRepository.class).entrySet()) {
+            final ReactiveCosmosRepository repository = entry.getValue();
+            if (step("repository " + entry.getKey(), failures, () -> repository.findById(MISSING_ID, partitionKey).block())) {
+                read++;
+            }
+        }
+        return read;
+    }
+
+    private void roundTripJson() throws Exception {
+        final var transaction = new Transaction()
+                .withUserId(MISSING_ID)
+                .withPaidTo(new Payment().withUserId(MISSING_ID).withMoney(new Payment.Money(1, Currency.USD)));
+        objectMapper.readValue(objectMapper.writeValueAsBytes(transaction), Transaction.class);
+    }
+
+    private static void requestHealth(final int port) throws Exception {
+        final var request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/actuator/health"))
+                .timeout(Duration.ofSeconds(10))
+                .GET()
+                .build();
+        // 503 until this warm-up is done, which serves as well.
+        HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.discarding());
+    }
+
+    private static boolean step(final String name, final List<String> failures, final Step step) {
+        try {
+            step.run();
+            return true;
+        } catch (Exception e) {
+            log.warn("Warm-up step {} failed", name, e);
+            failures.add(name);
+            return false;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Step {
+        void run() throws Exception;
+    }
+}
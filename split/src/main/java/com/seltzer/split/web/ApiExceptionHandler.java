@@ -0,0 +1,30 @@
+package com.seltzer.split.web;
+
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import java.util.Map;
+
+/**
+ * Maps the exceptions the domain services throw for bad input and for writes that kept colliding onto HTTP responses.
+ */
+@RestControllerAdvice
+public class ApiExceptionHandler {
+    @ExceptionHandler(IllegalArgumentException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public Map<String, String> handleIllegalArgument(final IllegalArgumentException e) {
+        return Map.of("error", e.getMessage());
+    }
+
+    /**
+     * @apiNote The balances changed under every attempt; the transaction was not recorded and may be retried.
+     */
+    @ExceptionHandler(OptimisticLockingFailureException.class)
+    @ResponseStatus(HttpStatus.CONFLICT)
+    public Map<String, String> handleOptimisticLockingFailure(final OptimisticLockingFailureException e) {
+        return Map.of("error", e.getMessage());
+    }
+}
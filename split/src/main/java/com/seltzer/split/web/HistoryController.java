@@ -0,0 +1,57 @@
+package com.seltzer.split.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.seltzer.split.domain.model.HistoryPage;
+import com.seltzer.split.domain.service.TransactionHandler;
+import lombok.AllArgsConstructor;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.BufferedOutputStream;
+
+/**
+ * Transaction history of a user with a participant, paged or streamed.
+ */
+@RestController
+@RequestMapping("/users/{userId}/history/{participantId}")
+@AllArgsConstructor
+public class HistoryController {
+    public static final MediaType APPLICATION_NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+    private final TransactionHandler transactionHandler;
+    private final ObjectMapper objectMapper;
+
+    @GetMapping
+    public HistoryPage getHistory(@PathVariable final String userId,
+                                  @PathVariable final String participantId,
+                                  @RequestParam(defaultValue = "50") final int pageSize,
+                                  @RequestParam(required = false) final String cursor) {
+        return transactionHandler.getHistory(userId, participantId, pageSize, cursor);
+    }
+
+    /**
+     * @return The whole history as newline-delimited JSON, written out as it is read so that neither side holds all of it.
+     */
+    @GetMapping(value = "/stream", produces = "application/x-ndjson")
+    public ResponseEntity<StreamingResponseBody> streamHistory(@PathVariable final String userId,
+                                                               @PathVariable final String participantId) {
+        final StreamingResponseBody body = outputStream -> {
+            final var out = new BufferedOutputStream(outputStream);
+            final var writer = objectMapper.writer();
+            try (var entries = transactionHandler.streamHistory(userId, participantId)) {
+                for (final var iterator = entries.iterator(); iterator.hasNext(); ) {
+                    out.write(writer.writeValueAsBytes(iterator.next()));
+                    out.write('\n');
+                }
+            }
+            out.flush();
+        };
+        return ResponseEntity.ok().contentType(APPLICATION_NDJSON).body(body);
+    }
+}
@@ -0,0 +1,37 @@
+package com.seltzer.split.web;
+
+import com.seltzer.split.domain.model.ImportReport;
+import com.seltzer.split.domain.service.LedgerImporter;
+import lombok.AllArgsConstructor;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Imports ledgers exported from elsewhere, streamed as the request body, e.g.
+ * <pre>
+ * curl -H 'Content-Type: text/csv' --data-binary @ledger.csv http://localhost:8080/imports/group-42
+ * </pre>
+ * Posting the same export under the same ID again resumes an import that was interrupted. Unlike the other endpoints, an import
+ * holds its servlet thread until it is done, as it runs for longer than the async request timeout.
+ */
+@RestController
+@RequestMapping("/imports/{importId}")
+@AllArgsConstructor
+public class ImportController {
+    private final LedgerImporter ledgerImporter;
+
+    @PostMapping(consumes = "text/csv")
+    public ImportReport importCsv(@PathVariable final String importId, final InputStream body) throws IOException {
+        return ledgerImporter.importLedger(importId, body, LedgerImporter.Format.CSV);
+    }
+
+    @PostMapping(consumes = "application/x-ndjson")
+    public ImportReport importNdjson(@PathVariable final String importId, final InputStream body) throws IOException {
+        return ledgerImporter.importLedger(importId, body, LedgerImporter.Format.NDJSON);
+    }
+}
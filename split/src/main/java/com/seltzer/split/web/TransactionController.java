@@ -0,0 +1,119 @@
+package com.seltzer.split.web;
+
+import com.seltzer.split.domain.model.ActivityRollup;
+import com.seltzer.split.domain.model.Balances;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.GroupExpense;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.model.UserBalanceSummary;
+import com.seltzer.split.domain.service.PairWriteSequencer;
+import com.seltzer.split.domain.service.ReactiveTransactionHandler;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Records transactions and serves balances. Every endpoint returns a <code>CompletableFuture</code>, see {@link WebConfig}.
+ */
+@RestController
+public class TransactionController {
+    private final ReactiveTransactionHandler reactiveTransactionHandler;
+    private final PairWriteSequencer pairWriteSequencer;
+
+    public TransactionController(final ReactiveTransactionHandler reactiveTransactionHandler,
+                                 final PairWriteSequencer pairWriteSequencer) {
+        this.reactiveTransactionHandler = reactiveTransactionHandler;
+        this.pairWriteSequencer = pairWriteSequencer;
+    }
+
+    /**
+     * @apiNote Queued on the pair's lane, where it is batched with the other writes of the pair that are waiting.
+     */
+    @PostMapping("/transactions")
+    public CompletableFuture<ResponseEntity<Void>> addTransaction(@RequestBody final Transaction transaction) {
+        return pairWriteSequencer.submit(transaction).thenApply(done -> ResponseEntity.noContent().build());
+    }
+
+    /**
+     * @apiNote Applied as one batch in the given order, see {@link ReactiveTransactionHandler#addTransactions(List)}.
+     */
+    @PostMapping("/transactions/batch")
+    public CompletableFuture<ResponseEntity<Void>> addTransactions(@RequestBody final List<Transaction> transactions) {
+        return reactiveTransactionHandler.addTransactions(transactions).toFuture()
+                .thenApply(done -> ResponseEntity.noContent().build());
+    }
+
+    /**
+     * @apiNote Records the payer's transaction with every other participant as one batch, see
+     * {@link ReactiveTransactionHandler#addGroupExpense(GroupExpense)}.
+     */
+    @PostMapping("/expenses")
+    public CompletableFuture<ResponseEntity<Void>> addGroupExpense(@RequestBody final GroupExpense expense) {
+        return reactiveTransactionHandler.addGroupExpense(expense).toFuture()
+                .thenApply(done -> ResponseEntity.noContent().build());
+    }
+
+    /**
+     * @apiNote With a <code>currency</code>, every participant's balances are converted into it and netted, otherwise a
+     * participant dealt with in several currencies is listed once per currency.
+     */
+    @GetMapping("/users/{userId}/balances")
+    public CompletableFuture<Balances> getBalances(@PathVariable final String userId,
+                                                   @RequestParam(required = false) final Currency currency) {
+        return reactiveTransactionHandler.getBalances(userId, currency).toFuture();
+    }
+
+    /**
+     * @apiNote A single point read however many counterparties the user has, see {@link ReactiveTransactionHandler#getSummary(String)}.
+     */
+    @GetMapping("/users/{userId}/summary")
+    public CompletableFuture<UserBalanceSummary> getSummary(@PathVariable final String userId) {
+        return reactiveTransactionHandler.getSummary(userId).toFuture();
+    }
+
+    /**
+     * @apiNote One document per participant and day or month with activity, see
+     * {@link ReactiveTransactionHandler#getActivity(String, String, ActivityRollup.Granularity, String, String)}.
+     */
+    @GetMapping("/users/{userId}/activity")
+    public CompletableFuture<List<ActivityRollup>> getActivity(@PathVariable final String userId,
+                                                               @RequestParam(required = false) final String participantId,
+                                                               @RequestParam(defaultValue = "MONTH") final ActivityRollup.Granularity granularity,
+                                                               @RequestParam final String from,
+                                                               @RequestParam final String to) {
+        return reactiveTransactionHandler.getActivity(userId, participantId, granularity, from, to).toFuture();
+    }
+
+    /**
+     * @apiNote Clears whatever the user and the participant owe each other in the given currency.
+     */
+    @PostMapping("/users/{userId}/settlements/{participantId}")
+    public CompletableFuture<ResponseEntity<Void>> settle(@PathVariable final String userId,
+                                                         @PathVariable final String participantId,
+                                                         @RequestParam(defaultValue = "USD") final Currency currency) {
+        return addTransaction(new Transaction()
+                .withUserId(userId)
+                .withPaidTo(new Payment()
+                        .withUserId(participantId)
+                        .withMoney(new Payment.Money(0, currency))
+                        .withSettlement(true)));
+    }
+
+    /**
+     * @apiNote Clears everything the user owes and is owed, with every participant and in every currency, reading the user's
+     * balances once, see {@link ReactiveTransactionHandler#settleAll(String)}.
+     */
+    @PostMapping("/users/{userId}/settlements")
+    public CompletableFuture<ResponseEntity<Void>> settleAll(@PathVariable final String userId) {
+        return reactiveTransactionHandler.settleAll(userId).toFuture()
+                .thenApply(done -> ResponseEntity.noContent().build());
+    }
+}
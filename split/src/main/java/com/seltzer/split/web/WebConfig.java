@@ -0,0 +1,46 @@
+package com.seltzer.split.web;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Controllers hand their work off and return a <code>CompletableFuture</code>, which releases the servlet thread while the
+ * request waits on storage. Writes wait on the {@link com.seltzer.split.domain.service.PairWriteSequencer} lanes, and batches and
+ * reads on the {@link com.seltzer.split.domain.service.ReactiveTransactionHandler}, none of them holding a thread. Streamed
+ * responses are written on the bounded executor defined here, so a burst of them queues up instead of growing the servlet pool.
+ */
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+    public static final String REQUEST_EXECUTOR = "requestExecutor";
+
+    @Value("${split.web.executor.threads:64}")
+    private int threads;
+    @Value("${split.web.executor.queue-capacity:10000}")
+    private int queueCapacity;
+
+    /**
+     * @apiNote When the queue is full the calling servlet thread runs the task itself, which pushes back on the clients.
+     */
+    @Bean(REQUEST_EXECUTOR)
+    public ThreadPoolTaskExecutor requestExecutor() {
+        final var executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("split-request-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        return executor;
+    }
+
+    @Override
+    public void configureAsyncSupport(final AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(requestExecutor());
+    }
+}
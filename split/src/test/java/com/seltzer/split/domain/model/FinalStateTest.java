@@ -0,0 +1,96 @@
+package com.seltzer.split.domain.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FinalStateTest {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void testLegacyFinalState_01() throws Exception {
+        var finalState = objectMapper.readValue(
+                "{\"userId\":\"user-1\",\"participantId\":\"user-2\",\"balance\":-80.35,\"currency\":\"USD\",\"_etag\":\"etag-1\"}",
+                FinalState.class);
+
+        assertEquals(-8035, finalState.getBalance());
+        assertEquals(8035, finalState.getMoney().getAmount());
+
+        var json = objectMapper.readTree(objectMapper.writeValueAsString(finalState));
+        assertEquals(-8035, json.get("balanceMinor").asLong());
+        assertFalse(json.has("balance"));
+        assertEquals("etag-1", json.get("_etag").asText());
+    }
+
+    @Test
+    public void testLegacyFinalState_02() throws Exception {
+        var finalState = objectMapper.readValue(
+                "{\"userId\":\"user-1\",\"participantId\":\"user-2\",\"balance\":-80.35,\"currency\":\"USD\"}",
+                FinalState.class);
+
+        var updated = finalState.withBalance(finalState.getBalance() + 35);
+
+        assertEquals(-8000, updated.getBalance());
+        assertEquals(-8000, objectMapper.readTree(objectMapper.writeValueAsString(updated)).get("balanceMinor").asLong());
+    }
+
+    @Test
+    public void testFinalState_01() throws Exception {
+        var finalState = new FinalState()
+                .withUserId("user-1")
+                .withParticipantId("user-2")
+                .withBalance(12345)
+                .withCurrency(Currency.INR);
+
+        var read = objectMapper.readValue(objectMapper.writeValueAsString(finalState), FinalState.class);
+
+        assertEquals(12345, read.getBalance());
+        assertEquals(Currency.INR, read.getCurrency());
+    }
+
+    @Test
+    public void testFinalState_02() throws Exception {
+        var finalState = new FinalState()
+                .withUserId("user-1")
+                .withParticipantId("user-2")
+                .withBalance(Currency.USD, 500)
+                .withBalance(Currency.INR, -12345);
+
+        var json = objectMapper.readTree(objectMapper.writeValueAsString(finalState));
+        assertEquals(500, json.get("balanceMinor").asLong());
+        assertEquals("USD", json.get("currency").asText());
+        assertEquals(-12345, json.get("otherBalancesMinor").get("INR").asLong());
+
+        var read = objectMapper.readValue(json.toString(), FinalState.class);
+        assertEquals(Map.of(Currency.USD, 500L, Currency.INR, -12345L), read.getBalances());
+
+        var settled = read.withBalance(Currency.INR, 0);
+        assertFalse(objectMapper.readTree(objectMapper.writeValueAsString(settled)).has("otherBalancesMinor"));
+    }
+
+    @Test
+    public void testLegacyMoney_01() throws Exception {
+        var payment = objectMapper.readValue(
+                "{\"userId\":\"user-2\",\"money\":{\"amount\":19.99,\"currency\":\"INR\"},\"settlement\":false}",
+                Payment.class);
+
+        assertEquals(1999, payment.getMoney().getAmount());
+        var json = objectMapper.readTree(objectMapper.writeValueAsString(payment));
+        assertEquals(1999, json.get("money").get("amountMinor").asLong());
+        assertFalse(json.get("money").has("amount"));
+    }
+
+    @Test
+    public void testEmpty_serializesLikeCopies() throws Exception {
+        var copied = new FinalState().withPartitionKey("user-1#3");
+
+        var empty = FinalState.empty("user-1#3");
+
+        assertEquals(objectMapper.readTree(objectMapper.writeValueAsString(copied)),
+                objectMapper.readTree(objectMapper.writeValueAsString(empty)));
+        assertEquals("user-1", empty.getUserId());
+    }
+}
@@ -0,0 +1,102 @@
+package com.seltzer.split.domain.model;
+
+import com.azure.spring.data.cosmos.core.convert.ObjectMapperFactory;
+import com.azure.spring.data.cosmos.repository.support.CosmosEntityInformation;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TransactionTest {
+    private final ObjectMapper objectMapper = ObjectMapperFactory.getObjectMapper();
+
+    private static Payment payment(final String userId, final boolean settlement) {
+        return new Payment()
+                .withUserId(userId)
+                .withMoney(new Payment.Money(1_250, Currency.INR))
+                .withSettlement(settlement);
+    }
+
+    private static List<String> fieldNames(final JsonNode json) {
+        final var names = new ArrayList<String>();
+        json.fieldNames().forEachRemaining(names::add);
+        return names;
+    }
+
+    @Test
+    public void testOneShotRecords_serializeLikeCopies() throws Exception {
+        final var copiedPaidTo = new Transaction()
+                .withUserId("user-1")
+                .withCreatedAt(1_700_000_000_000L)
+                .withIdempotencyKey("key-1")
+                .withPaidTo(payment("user-2", true));
+        final var copiedReceivedFrom = new Transaction()
+                .withUserId("user-2")
+                .withCreatedAt(1_700_000_000_000L)
+                .withReceivedFrom(payment("user-1", false));
+
+        final var paidTo = Transaction.paidTo("user-1", new Payment("user-2", new Payment.Money(1_250, Currency.INR), true),
+                1_700_000_000_000L, "key-1");
+        final var receivedFrom = Transaction.receivedFrom("user-2", new Payment("user-1", new Payment.Money(1_250, Currency.INR), false),
+                1_700_000_000_000L, null);
+        for (final var transaction : List.of(copiedPaidTo, copiedReceivedFrom, paidTo, receivedFrom)) {
+            transaction.setPartitionKey();
+        }
+
+        assertEquals(objectMapper.readTree(objectMapper.writeValueAsString(copiedPaidTo)),
+                objectMapper.readTree(objectMapper.writeValueAsString(paidTo)));
+        assertEquals(objectMapper.readTree(objectMapper.writeValueAsString(copiedReceivedFrom)),
+                objectMapper.readTree(objectMapper.writeValueAsString(receivedFrom)));
+    }
+
+    @Test
+    public void testPayment_notStored() throws Exception {
+        final var transaction = new Transaction()
+                .withUserId("user-1")
+                .withId("id-1")
+                .withPaidTo(payment("user-2", false));
+        transaction.setPartitionKey();
+
+        final var json = objectMapper.readTree(objectMapper.writeValueAsString(transaction));
+
+        assertEquals(List.of("userId", "id", "paidTo", "receivedFrom", "createdAt", "idempotencyKey", "sequence", "partitionKey"),
+                fieldNames(json));
+        assertEquals(List.of("userId", "money", "settlement"), fieldNames(json.get("paidTo")));
+        assertEquals(1_250, json.get("paidTo").get("money").get("amountMinor").asLong());
+    }
+
+    @Test
+    public void testPartitionKey_storedWhereTheContainerIsPartitioned() throws Exception {
+        final var information = new CosmosEntityInformation<Transaction, String>(Transaction.class);
+        final var transaction = new Transaction()
+                .withUserId("user-2")
+                .withId("id-1")
+                .withReceivedFrom(payment("user-1", false));
+        transaction.setPartitionKey();
+
+        final var json = objectMapper.readTree(objectMapper.writeValueAsString(transaction));
+
+        assertEquals("/partitionKey", information.getPartitionKeyPath());
+        assertEquals("user-2_user-1", json.get("partitionKey").asText());
+        assertEquals(information.getPartitionKeyFieldValue(transaction), json.get("partitionKey").asText());
+        assertEquals("user-2_user-1", objectMapper.readValue(json.toString(), Transaction.class).getPartitionKey());
+    }
+
+    @Test
+    public void testStoredRecord_readsTheSame() throws Exception {
+        final var read = objectMapper.readValue("{\"partitionKey\":\"user-2_user-1\",\"userId\":\"user-2\",\"id\":\"id-1\","
+                + "\"receivedFrom\":{\"userId\":\"user-1\",\"money\":{\"amount\":12.5,\"currency\":\"USD\"},\"settlement\":true},"
+                + "\"createdAt\":5,\"_etag\":\"etag-1\"}", Transaction.class);
+
+        assertFalse(read.hasPaidTo());
+        assertTrue(read.hasReceivedFrom());
+        assertSame(read.getReceivedFrom().orElseThrow(), read.getPayment());
+        assertEquals(1_250, read.getPayment().getMoney().getAmount());
+        assertTrue(read.getPayment().isSettlement());
+        assertNull(new Transaction().withUserId("user-1").getPayment());
+    }
+}
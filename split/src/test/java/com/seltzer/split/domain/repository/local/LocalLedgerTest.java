@@ -0,0 +1,201 @@
+package com.seltzer.split.domain.repository.local;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.service.FinalStateShards;
+import com.seltzer.split.domain.service.TransactionHandler;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LocalLedgerTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private Store store;
+
+    /**
+     * The beans of the local-ledger profile, wired the way Spring wires them.
+     */
+    private final class Store {
+        final LocalLedgerLog ledgerLog;
+        final LocalLedgerTransactionRepository transactionRepository;
+        final LocalLedgerFinalStateRepository finalStateRepository;
+        final LocalLedgerSnapshotter snapshotter;
+        final TransactionHandler transactionHandler;
+        final long recovered;
+
+        Store(final int segmentSize) {
+            ledgerLog = new LocalLedgerLog(folder.getRoot().toPath(), segmentSize, false);
+            transactionRepository = new LocalLedgerTransactionRepository(ledgerLog);
+            finalStateRepository = new LocalLedgerFinalStateRepository(ledgerLog);
+            snapshotter = new LocalLedgerSnapshotter(ledgerLog, transactionRepository, finalStateRepository, folder.getRoot().toPath(),
+                    Duration.ofHours(1));
+            transactionHandler = new TransactionHandler(transactionRepository, finalStateRepository);
+            recovered = snapshotter.recover();
+        }
+
+        void close() throws IOException {
+            ledgerLog.close();
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    private static Transaction paidTo(final String userId, final String participantId, final long amount) {
+        return new Transaction()
+                .withUserId(userId)
+                .withPaidTo(new Payment()
+                        .withUserId(participantId)
+                        .withMoney(new Payment.Money(amount, Currency.USD)));
+    }
+
+    private Store reopen(final int segmentSize) throws IOException {
+        store.close();
+        store = new Store(segmentSize);
+        return store;
+    }
+
+    @Test
+    public void testRecover_01() throws IOException {
+        store = new Store(1 << 20);
+        assertEquals(0, store.recovered);
+        for (int i = 0; i < 50; i++) {
+            store.transactionHandler.addTransaction(paidTo("user-1", "user-" + (2 + i % 5), 100));
+        }
+        store.snapshotter.snapshot();
+        for (int i = 0; i < 10; i++) {
+            store.transactionHandler.addTransaction(paidTo("user-2", "user-1", 50));
+        }
+        store.transactionHandler.addTransaction(paidTo("user-3", "user-1", 0).withPaidTo(new Payment()
+                .withUserId("user-1").withSettlement(true).withMoney(new Payment.Money(0, Currency.USD))));
+        final var expected = store.finalStateRepository.findAll().stream()
+                .map(finalState -> finalState.getUserId() + ">" + finalState.getParticipantId() + "=" + finalState.getBalance())
+                .sorted().collect(Collectors.toList());
+
+        reopen(1 << 20);
+
+        assertEquals(2 * 61, store.transactionRepository.count());
+        assertEquals(expected, store.finalStateRepository.findAll().stream()
+                .map(finalState -> finalState.getUserId() + ">" + finalState.getParticipantId() + "=" + finalState.getBalance())
+                .sorted().collect(Collectors.toList()));
+        assertEquals(500, store.finalStateRepository.findById("user-2", new PartitionKey("user-1")).get().getBalance());
+        assertEquals(0, store.finalStateRepository.findById("user-3", new PartitionKey("user-1")).get().getBalance());
+
+        // user-2's payments to user-1, and the complements of user-1's payments to user-2.
+        final var transactions = store.transactionRepository.findAll(new PartitionKey(Transaction.getPartitionKey("user-2", "user-1")));
+        assertEquals(20, transactions.size());
+        final var transaction = transactions.stream().filter(txn -> txn.getPaidTo().isPresent()).findFirst().get();
+        assertEquals(50, transaction.getPaidTo().get().getMoney().getAmount());
+        assertEquals(transaction.getId(), store.transactionRepository.findById(transaction.getId(),
+                new PartitionKey(Transaction.getPartitionKey("user-2", "user-1"))).get().getId());
+
+        final var history = store.transactionHandler.getHistory("user-2", "user-1", 15, null);
+        assertEquals(15, history.getEntries().size());
+        assertEquals(5, store.transactionHandler.getHistory("user-2", "user-1", 15, history.getNextCursor()).getEntries().size());
+
+        // writes resume where the log ends, and survive another restart.
+        store.transactionHandler.addTransaction(paidTo("user-2", "user-1", 50));
+        reopen(1 << 20);
+        assertEquals(450, store.finalStateRepository.findById("user-2", new PartitionKey("user-1")).get().getBalance());
+    }
+
+    @Test
+    public void testRecover_02() throws IOException {
+        store = new Store(1 << 20);
+        store.transactionHandler.addTransaction(paidTo("user-1", "user-2", 100));
+        final var end = store.ledgerLog.getEnd();
+        store.transactionHandler.addTransaction(paidTo("user-1", "user-2", 100));
+        store.close();
+
+        // corrupt the payload of the first record of the second transaction, the way a crash midway through writing it would.
+        try (var segment = new RandomAccessFile(folder.getRoot().toPath().resolve("segment-00000000.log").toFile(), "rw")) {
+            segment.seek(end + 8);
+            segment.writeLong(0x0102030405060708L);
+        }
+        store = new Store(1 << 20);
+
+        assertEquals(end, store.ledgerLog.getEnd());
+        assertEquals(2, store.transactionRepository.count());
+        assertEquals(100, store.finalStateRepository.findById("user-2", new PartitionKey("user-1")).get().getBalance());
+
+        store.transactionHandler.addTransaction(paidTo("user-1", "user-2", 100));
+        reopen(1 << 20);
+        assertEquals(4, store.transactionRepository.count());
+        assertEquals(200, store.finalStateRepository.findById("user-2", new PartitionKey("user-1")).get().getBalance());
+    }
+
+    @Test
+    public void testRecover_03() throws IOException {
+        store = new Store(4096);
+        for (int i = 0; i < 200; i++) {
+            store.transactionHandler.addTransaction(paidTo("user-1", "user-2", 1));
+        }
+        assertTrue(store.ledgerLog.getEnd() > 10 * 4096);
+
+        reopen(4096);
+
+        assertEquals(400, store.transactionRepository.count());
+        assertEquals(200, store.finalStateRepository.findById("user-2", new PartitionKey("user-1")).get().getBalance());
+        assertEquals(-200, store.finalStateRepository.findById("user-1", new PartitionKey("user-2")).get().getBalance());
+        assertEquals(200, store.finalStateRepository.findById("user-1", new PartitionKey("user-2")).get().getRevision());
+    }
+
+    @Test
+    public void testRecover_shards() throws IOException {
+        store = new Store(1 << 20);
+        store.finalStateRepository.save(new FinalState().withUserId("user-1").withParticipantId(FinalStateShards.MARKER_ID).withShards(4));
+        store.finalStateRepository.save(new FinalState().withPartitionKey(FinalState.getPartitionKey("user-1", 3))
+                .withParticipantId("user-2").withBalance(100).withCurrency(Currency.USD));
+
+        reopen(1 << 20);
+        assertEquals(4, store.finalStateRepository.findById(FinalStateShards.MARKER_ID, new PartitionKey("user-1")).get().getShards());
+        store.snapshotter.snapshot();
+        reopen(1 << 20);
+
+        final var sharded = store.finalStateRepository.findById("user-2", new PartitionKey("user-1#3")).get();
+        assertEquals("user-1", sharded.getUserId());
+        assertEquals(100, sharded.getBalance());
+        assertNull(sharded.getShards());
+        assertEquals(4, store.finalStateRepository.findById(FinalStateShards.MARKER_ID, new PartitionKey("user-1")).get().getShards());
+    }
+
+    @Test
+    public void testRecover_replayOrder() throws IOException {
+        store = new Store(1 << 20);
+        store.transactionHandler.addTransactions(List.of(paidTo("user-1", "user-2", 100), paidTo("user-2", "user-1", 30)));
+        store.transactionHandler.addTransaction(paidTo("user-1", "user-3", 70));
+
+        reopen(1 << 20);
+
+        final var replayed = store.transactionRepository.findReplayPage(Long.MIN_VALUE, Long.MIN_VALUE, "", 10);
+        assertEquals(6, replayed.size());
+        assertTrue(replayed.get(0).getSequence() > 0);
+        assertEquals(replayed.get(0).getSequence() + 3, replayed.get(3).getSequence()); // the records of one batch are consecutive.
+        for (int i = 1; i < replayed.size(); i++) {
+            assertTrue(replayed.get(i - 1).getSequence() < replayed.get(i).getSequence());
+        }
+        assertEquals(List.of("user-2", "user-1", "user-1", "user-2", "user-3", "user-1"), replayed.stream()
+                .map(Transaction::getUserId).collect(Collectors.toList()));
+        final var last = replayed.get(3);
+        assertEquals(List.of(replayed.get(4).getId(), replayed.get(5).getId()), store.transactionRepository.findReplayPage(
+                last.getSequence(), last.getCreatedAt(), last.getId(), 10).stream().map(Transaction::getId).collect(Collectors.toList()));
+    }
+}
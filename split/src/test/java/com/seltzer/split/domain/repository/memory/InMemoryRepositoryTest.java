@@ -0,0 +1,232 @@
+package com.seltzer.split.domain.repository.memory;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.spring.data.cosmos.exception.CosmosAccessException;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.service.ConflictRetryPolicy;
+import com.seltzer.split.domain.service.TransactionHandler;
+import org.junit.Test;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class InMemoryRepositoryTest {
+    private final InMemoryFinalStateRepository finalStateRepository = new InMemoryFinalStateRepository();
+    private final InMemoryTransactionRepository transactionRepository = new InMemoryTransactionRepository();
+
+    @Test
+    public void testFinalStateRepository_01() {
+        for (final var participantId : List.of("user-3", "user-1", "user-2")) {
+            finalStateRepository.save(new FinalState().withUserId("user-0").withParticipantId(participantId).withBalance(100)
+                    .withCurrency(Currency.USD));
+        }
+        finalStateRepository.save(new FinalState().withUserId("user-1").withParticipantId("user-0").withBalance(-100)
+                .withCurrency(Currency.USD));
+
+        assertEquals(List.of("user-1", "user-2", "user-3"), finalStateRepository.findAll(new PartitionKey("user-0")).stream()
+                .map(FinalState::getParticipantId).collect(Collectors.toList()));
+        assertEquals(-100, finalStateRepository.findById("user-0", new PartitionKey("user-1")).get().getBalance());
+        assertTrue(finalStateRepository.findById("user-0", new PartitionKey("user-2")).isEmpty());
+        assertTrue(finalStateRepository.findAll(new PartitionKey("user-9")).isEmpty());
+        assertEquals(4, finalStateRepository.count());
+
+        finalStateRepository.deleteById("user-2", new PartitionKey("user-0"));
+        assertEquals(2, finalStateRepository.findAll(new PartitionKey("user-0")).size());
+    }
+
+    @Test
+    public void testFinalStateRepository_02() {
+        final var created = finalStateRepository.save(new FinalState().withUserId("user-0").withParticipantId("user-1")
+                .withBalance(100).withCurrency(Currency.USD));
+        assertNotNull(created.get_etag());
+
+        var e = assertThrows(CosmosAccessException.class, () -> finalStateRepository.save(new FinalState().withUserId("user-0")
+                .withParticipantId("user-1").withBalance(200).withCurrency(Currency.USD)));
+        assertEquals(409, e.getCosmosException().getStatusCode());
+
+        final var updated = finalStateRepository.save(created.withBalance(300));
+        assertNotEquals(created.get_etag(), updated.get_etag());
+
+        e = assertThrows(CosmosAccessException.class, () -> finalStateRepository.save(created.withBalance(400)));
+        assertEquals(412, e.getCosmosException().getStatusCode());
+        assertEquals(300, finalStateRepository.findById("user-1", new PartitionKey("user-0")).get().getBalance());
+    }
+
+    @Test
+    public void testFinalStateRepository_batchIsAllOrNothing() {
+        final var stored = finalStateRepository.save(new FinalState().withUserId("user-0").withParticipantId("user-1")
+                .withBalance(100).withCurrency(Currency.USD));
+
+        final var saved = finalStateRepository.saveBatch("user-0", List.of(stored.withBalance(200),
+                new FinalState().withUserId("user-0").withParticipantId("user-2").withBalance(50).withCurrency(Currency.USD)));
+        assertEquals(List.of(200L, 50L), saved.stream().map(FinalState::getBalance).collect(Collectors.toList()));
+        assertTrue(saved.stream().allMatch(finalState -> finalState.get_etag() != null));
+
+        // the first replace is stale, so the create after it is not made either.
+        final var e = assertThrows(CosmosAccessException.class, () -> finalStateRepository.saveBatch("user-0", List.of(
+                stored.withBalance(300),
+                new FinalState().withUserId("user-0").withParticipantId("user-3").withBalance(70).withCurrency(Currency.USD))));
+        assertEquals(412, e.getCosmosException().getStatusCode());
+        assertEquals(200, finalStateRepository.findById("user-1", new PartitionKey("user-0")).get().getBalance());
+        assertTrue(finalStateRepository.findById("user-3", new PartitionKey("user-0")).isEmpty());
+
+        assertThrows(IllegalArgumentException.class, () -> finalStateRepository.saveBatch("user-0", List.of(
+                new FinalState().withUserId("user-9").withParticipantId("user-3").withBalance(70).withCurrency(Currency.USD))));
+    }
+
+    @Test
+    public void testTransactionRepository_01() {
+        for (int i = 0; i < 5; i++) {
+            transactionRepository.save(new Transaction().withId("txn-" + i).withUserId("user-0").withCreatedAt(10 - i)
+                    .withPaidTo(new Payment().withUserId("user-1").withMoney(new Payment.Money(100, Currency.USD))));
+        }
+        transactionRepository.save(new Transaction().withId("txn-5").withUserId("user-1")
+                .withReceivedFrom(new Payment().withUserId("user-0").withMoney(new Payment.Money(100, Currency.USD))));
+
+        assertEquals(5, transactionRepository.findAll(new PartitionKey(Transaction.getPartitionKey("user-0", "user-1"))).size());
+        assertTrue(transactionRepository.findById("txn-5").isPresent());
+
+        final var page = transactionRepository.findByPartitionKey(Transaction.getPartitionKey("user-0", "user-1"),
+                PageRequest.of(1, 2, Sort.by("createdAt")));
+        assertEquals(5, page.getTotalElements());
+        assertEquals(List.of("txn-2", "txn-1"), page.getContent().stream().map(Transaction::getId).collect(Collectors.toList()));
+        assertEquals(List.of("txn-5", "txn-4"), transactionRepository.findAll(PageRequest.of(0, 2, Sort.by("createdAt"))).getContent()
+                .stream().map(Transaction::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testTransactionRepository_indexedPages() {
+        final var random = new Random(7);
+        final var users = List.of("user-0", "user-1", "user-2", "user-3");
+        for (int i = 0; i < 300; i++) {
+            final var userId = users.get(random.nextInt(users.size()));
+            final var participantId = users.get((users.indexOf(userId) + 1 + random.nextInt(users.size() - 1)) % users.size());
+            // few distinct IDs, sequences and timestamps, so that saves replace transactions and positions tie.
+            transactionRepository.save(new Transaction().withId("txn-" + random.nextInt(120)).withUserId(userId)
+                    .withSequence(random.nextInt(50)).withCreatedAt(random.nextInt(20))
+                    .withPaidTo(new Payment().withUserId(participantId).withMoney(new Payment.Money(100, Currency.USD))));
+            if (i % 10 == 9) {
+                transactionRepository.deleteById("txn-" + random.nextInt(120));
+            }
+        }
+
+        final var all = transactionRepository.findAll();
+        final var replayed = new ArrayList<Transaction>();
+        var last = new Transaction().withId("").withSequence(Long.MIN_VALUE).withCreatedAt(Long.MIN_VALUE);
+        for (var page = transactionRepository.findReplayPage(last.getSequence(), last.getCreatedAt(), last.getId(), 7);
+             !page.isEmpty();
+             page = transactionRepository.findReplayPage(last.getSequence(), last.getCreatedAt(), last.getId(), 7)) {
+            assertEquals(Queries.replay(all, last.getSequence(), last.getCreatedAt(), last.getId(), 7), page);
+            replayed.addAll(page);
+            last = page.get(page.size() - 1);
+        }
+
+        final var partitionReplayed = new ArrayList<Transaction>();
+        var partitionKey = "";
+        last = new Transaction().withId("").withSequence(Long.MIN_VALUE).withCreatedAt(Long.MIN_VALUE);
+        for (var page = transactionRepository.findPartitionReplayPage(partitionKey, last.getSequence(), last.getCreatedAt(),
+                last.getId(), 7); !page.isEmpty(); page = transactionRepository.findPartitionReplayPage(partitionKey,
+                last.getSequence(), last.getCreatedAt(), last.getId(), 7)) {
+            assertEquals(Queries.partitionReplay(all, partitionKey, last.getSequence(), last.getCreatedAt(), last.getId(), 7), page);
+            partitionReplayed.addAll(page);
+            last = page.get(page.size() - 1);
+            partitionKey = Transaction.getPartitionKey(last.getUserId(), last.getPayment().getUserId());
+        }
+        assertEquals(all.size(), replayed.size());
+        assertEquals(all.size(), partitionReplayed.size());
+
+        for (final var userId : users) {
+            for (final var participantId : users) {
+                final var key = Transaction.getPartitionKey(userId, participantId);
+                final var partition = transactionRepository.findAll(new PartitionKey(key));
+                var createdAt = Long.MAX_VALUE;
+                var id = "";
+                var listed = 0;
+                for (var page = transactionRepository.findHistory(key, createdAt, id, 5); !page.isEmpty();
+                     page = transactionRepository.findHistory(key, createdAt, id, 5)) {
+                    assertEquals(Queries.history(partition, createdAt, id, 5), page);
+                    listed += page.size();
+                    createdAt = page.get(page.size() - 1).getCreatedAt();
+                    id = page.get(page.size() - 1).getId();
+                }
+                assertEquals(partition.size(), listed);
+            }
+        }
+
+        transactionRepository.deleteAll();
+        assertTrue(transactionRepository.findReplayPage(Long.MIN_VALUE, Long.MIN_VALUE, "", 10).isEmpty());
+        assertTrue(transactionRepository.findPartitionReplayPage("", Long.MIN_VALUE, Long.MIN_VALUE, "", 10).isEmpty());
+    }
+
+    @Test
+    public void testFinalStateRepository_pages() {
+        for (final var userId : List.of("user-2", "user-0", "user-1")) {
+            for (final var participantId : List.of("user-5", "user-4", "user-3")) {
+                finalStateRepository.save(new FinalState().withUserId(userId).withParticipantId(participantId)
+                        .withBalance(userId.hashCode() - participantId.hashCode()).withCurrency(Currency.USD));
+            }
+        }
+
+        final var walked = new ArrayList<String>();
+        for (int page = 0; page < 5; page++) {
+            final var content = finalStateRepository.findAll(PageRequest.of(page, 2));
+            assertEquals(9, content.getTotalElements());
+            content.forEach(finalState -> walked.add(finalState.getUserId() + "/" + finalState.getParticipantId()));
+        }
+        assertEquals(List.of("user-0/user-3", "user-0/user-4", "user-0/user-5", "user-1/user-3", "user-1/user-4",
+                "user-1/user-5", "user-2/user-3", "user-2/user-4", "user-2/user-5"), walked);
+
+        final var byBalance = PageRequest.of(0, 3, Sort.by("balance"));
+        final var lowest = finalStateRepository.findAll(byBalance).getContent().get(0);
+        assertSame(lowest, finalStateRepository.findAll(byBalance).getContent().get(0));
+        final var lowered = finalStateRepository.save(lowest.withBalance(lowest.getBalance() - 100));
+        assertEquals(lowered.get_etag(), finalStateRepository.findAll(byBalance).getContent().get(0).get_etag());
+    }
+
+    @Test
+    public void testTransactionHandler_parallelWriters() throws Exception {
+        final var transactionHandler = new TransactionHandler(transactionRepository, finalStateRepository,
+                new ConflictRetryPolicy(1_000, 1, 5));
+        final var executor = Executors.newFixedThreadPool(8);
+        final var start = new CountDownLatch(1);
+        final var futures = new ArrayList<Future<?>>();
+        try {
+            for (int writer = 0; writer < 8; writer++) {
+                final var forward = writer % 2 == 0;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < 250; i++) {
+                        transactionHandler.addTransaction(new Transaction()
+                                .withUserId(forward ? "user-1" : "user-2")
+                                .withPaidTo(new Payment()
+                                        .withUserId(forward ? "user-2" : "user-1")
+                                        .withMoney(new Payment.Money(forward ? 300 : 100, Currency.USD))));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (final var future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(4 * 250 * 200, finalStateRepository.findById("user-2", new PartitionKey("user-1")).get().getBalance());
+        assertEquals(-4 * 250 * 200, finalStateRepository.findById("user-1", new PartitionKey("user-2")).get().getBalance());
+        assertEquals(2 * 8 * 250, transactionRepository.count());
+    }
+}
@@ -0,0 +1,192 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.implementation.RequestTimeoutException;
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.spring.data.cosmos.exception.CosmosAccessException;
+import com.seltzer.split.domain.model.ActivityRollup;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.memory.InMemoryActivityRollupRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveActivityRollupRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveTransactionRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveUserBalanceSummaryRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryUserBalanceSummaryRepository;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ActivityRollupsTest {
+    private static final long JANUARY = Instant.parse("2024-01-01T00:00:00Z").toEpochMilli();
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private final InMemoryTransactionRepository transactionRepository = new InMemoryTransactionRepository();
+    private final InMemoryFinalStateRepository finalStateRepository = new InMemoryFinalStateRepository();
+    private final AtomicInteger failingSaves = new AtomicInteger();
+    private final InMemoryActivityRollupRepository rollupRepository = new InMemoryActivityRollupRepository() {
+        @Override
+        public <S extends ActivityRollup> S save(final S rollup) {
+            if (failingSaves.getAndUpdate(failures -> Math.max(failures - 1, 0)) > 0) {
+                throw new CosmosAccessException("timed out", new RequestTimeoutException());
+            }
+            return super.save(rollup);
+        }
+    };
+    private final FinalStateCache finalStateCache = FinalStateCache.defaults(finalStateRepository);
+    private final ActivityRollups rollups = new ActivityRollups(rollupRepository, transactionRepository, ConflictRetryPolicy.defaults());
+    private final TransactionHandler transactionHandler = new TransactionHandler(transactionRepository, finalStateRepository,
+            ConflictRetryPolicy.defaults(), finalStateCache, LedgerLog.disabled(), new TimeOrderedTransactionIdGenerator(),
+            FxRateCache.of(FxRates.EMPTY), UserBalanceSummaries.disabled(), rollups);
+
+    private static Transaction paidTo(final String userId, final String participantId, final long amount, final long createdAt) {
+        return new Transaction()
+                .withUserId(userId)
+                .withCreatedAt(createdAt)
+                .withPaidTo(new Payment()
+                        .withUserId(participantId)
+                        .withMoney(new Payment.Money(amount, Currency.USD)));
+    }
+
+    private static Map<Currency, Long> usd(final long amount) {
+        return amount == 0 ? Map.of() : Map.of(Currency.USD, amount);
+    }
+
+    @Test
+    public void testImportTransactions_rollupsAddUpTheTransactions() {
+        final var random = new Random(11);
+        final var transactions = new ArrayList<Transaction>();
+        for (int i = 0; i < 2_000; i++) {
+            final var userId = "user-" + random.nextInt(4);
+            final var participantId = "user-" + (4 + random.nextInt(4));
+            final var transaction = paidTo(userId, participantId, 1 + random.nextInt(1_000), JANUARY + random.nextInt(90) * DAY_MILLIS);
+            transactions.add(random.nextBoolean() ? transaction : transaction.withUserId(participantId)
+                    .withPaidTo(transaction.getPaidTo().get().withUserId(userId)));
+        }
+        for (int i = 0; i < transactions.size(); i += 100) {
+            transactionHandler.importTransactions(transactions.subList(i, i + 100), transaction -> false);
+        }
+
+        for (final var granularity : ActivityRollup.Granularity.values()) {
+            final var expected = new HashMap<String, long[]>();
+            for (final var record : transactionRepository.findAll()) {
+                final var participantId = record.getPaidTo().or(record::getReceivedFrom).get().getUserId();
+                final var totals = expected.computeIfAbsent(record.getUserId() + ":" + granularity.bucketOf(record.getCreatedAt())
+                        + ":" + participantId, key -> new long[3]);
+                totals[record.getPaidTo().isPresent() ? 0 : 1] += record.getPaidTo().or(record::getReceivedFrom).get().getMoney().getAmount();
+                totals[2]++;
+            }
+            final var found = new ArrayList<ActivityRollup>();
+            for (int user = 0; user < 8; user++) {
+                found.addAll(rollups.find("user-" + user, null, granularity, granularity.bucketOf(JANUARY),
+                        granularity.bucketOf(JANUARY + 89 * DAY_MILLIS)));
+            }
+            assertEquals(expected.size(), found.size(), granularity.name());
+            for (final var rollup : found) {
+                final var totals = expected.get(rollup.getUserId() + ":" + rollup.getBucket() + ":" + rollup.getParticipantId());
+                assertEquals(usd(totals[0]), rollup.getPaid(), rollup.getId());
+                assertEquals(usd(totals[1]), rollup.getReceived(), rollup.getId());
+                assertEquals(totals[2], rollup.getTransactions(), rollup.getId());
+            }
+        }
+    }
+
+    @Test
+    public void testFind_onlyTheRangeAndParticipantAsked() {
+        transactionHandler.importTransactions(List.of(
+                paidTo("user-1", "user-2", 100, JANUARY),
+                paidTo("user-1", "user-3", 200, JANUARY + 31 * DAY_MILLIS),
+                paidTo("user-1", "user-2", 400, JANUARY + 31 * DAY_MILLIS),
+                paidTo("user-1", "user-2", 800, JANUARY + 60 * DAY_MILLIS)), transaction -> false);
+
+        final var february = rollups.find("user-1", null, ActivityRollup.Granularity.MONTH, "2024-02", "2024-02");
+        assertEquals(List.of("user-2", "user-3"), february.stream().map(ActivityRollup::getParticipantId).toList());
+        assertEquals(usd(400), february.get(0).getPaid());
+
+        final var withUser2 = rollups.find("user-1", "user-2", ActivityRollup.Granularity.MONTH, "2024-01", "2024-03");
+        assertEquals(List.of("2024-01", "2024-02", "2024-03"), withUser2.stream().map(ActivityRollup::getBucket).toList());
+        assertEquals(List.of(), rollups.find("user-1", null, ActivityRollup.Granularity.DAY, "2024-01-02", "2024-01-31"));
+        assertEquals(usd(100), rollups.find("user-2", null, ActivityRollup.Granularity.DAY, "2024-01-01", "2024-01-01")
+                .get(0).getReceived());
+        assertThrows(IllegalArgumentException.class, () -> rollups.find("user-1", null, ActivityRollup.Granularity.DAY,
+                "2020-01-01", "2024-01-01"));
+        assertThrows(IllegalArgumentException.class, () -> rollups.find("user-1", null, ActivityRollup.Granularity.MONTH,
+                "2024-01-01", "2024-02"));
+    }
+
+    @Test
+    public void testAddTransaction_settlementCountsTheClearedBalance() {
+        transactionHandler.addTransaction(paidTo("user-1", "user-2", 500, 0));
+        transactionHandler.addTransaction(paidTo("user-2", "user-1", 200, 0));
+        transactionHandler.addTransaction(paidTo("user-2", "user-1", 0, 0)
+                .withPaidTo(new Payment().withUserId("user-1").withMoney(new Payment.Money(0, Currency.USD)).withSettlement(true)));
+        final var month = ActivityRollup.Granularity.MONTH.bucketOf(System.currentTimeMillis());
+
+        for (final var userId : List.of("user-1", "user-2")) {
+            final var rollup = rollups.find(userId, null, ActivityRollup.Granularity.MONTH, month, month).get(0);
+            assertEquals(usd(300), rollup.getSettled(), userId);
+            assertEquals(3, rollup.getTransactions(), userId);
+        }
+    }
+
+    @Test
+    public void testApply_bucketThatCantBeUpdatedIsRebuilt() {
+        transactionHandler.importTransactions(List.of(paidTo("user-1", "user-2", 100, JANUARY)), transaction -> false);
+        failingSaves.set(1);
+
+        transactionHandler.importTransactions(List.of(paidTo("user-1", "user-2", 200, JANUARY + 1)), transaction -> false);
+
+        final var paid = rollupRepository.findById(ActivityRollup.getId(ActivityRollup.Granularity.DAY, "2024-01-01", "user-2"),
+                new PartitionKey("user-1")).orElseThrow();
+        final var received = rollupRepository.findById(ActivityRollup.getId(ActivityRollup.Granularity.DAY, "2024-01-01", "user-1"),
+                new PartitionKey("user-2")).orElseThrow();
+        assertEquals(usd(300), paid.getPaid());
+        assertEquals(usd(300), received.getReceived());
+        assertEquals(2, received.getTransactions());
+    }
+
+    @Test
+    public void testRebuild_pagesThroughTheBucket() {
+        final var transactions = new ArrayList<Transaction>();
+        for (int i = 0; i < 2_500; i++) {
+            transactions.add(paidTo("user-1", "user-2", 1, JANUARY + i * 1_000L));
+        }
+        transactions.add(paidTo("user-1", "user-2", 1_000, JANUARY - 1));
+        transactionHandler.importTransactions(transactions, transaction -> false);
+        rollupRepository.deleteAll();
+
+        final var rollup = rollups.rebuild("user-1", "user-2", ActivityRollup.Granularity.MONTH, "2024-01");
+
+        assertEquals(usd(2_500), rollup.getPaid());
+        assertEquals(2_500, rollup.getTransactions());
+        assertEquals(Map.of(), rollups.rebuild("user-2", "user-1", ActivityRollup.Granularity.DAY, "2023-12-31").getPaid());
+    }
+
+    @Test
+    public void testReactiveAddTransactions() {
+        final var reactiveTransactionHandler = new ReactiveTransactionHandler(new InMemoryReactiveTransactionRepository(transactionRepository),
+                new InMemoryReactiveFinalStateRepository(finalStateRepository), transactionHandler, ConflictRetryPolicy.defaults(),
+                finalStateCache, LedgerLog.disabled(),
+                new InMemoryReactiveUserBalanceSummaryRepository(new InMemoryUserBalanceSummaryRepository()),
+                new InMemoryReactiveActivityRollupRepository(rollupRepository));
+
+        reactiveTransactionHandler.addTransactions(List.of(
+                paidTo("user-1", "user-2", 500, 0),
+                paidTo("user-2", "user-1", 200, 0))).block();
+
+        final var day = ActivityRollup.Granularity.DAY.bucketOf(System.currentTimeMillis());
+        final var rollup = rollups.find("user-2", "user-1", ActivityRollup.Granularity.DAY, day, day).get(0);
+        assertEquals(usd(500), rollup.getReceived());
+        assertEquals(usd(200), rollup.getPaid());
+    }
+}
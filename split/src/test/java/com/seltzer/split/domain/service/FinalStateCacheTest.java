@@ -0,0 +1,54 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FinalStateCacheTest {
+    private final InMemoryFinalStateRepository finalStateRepository = new InMemoryFinalStateRepository();
+    private final FinalStateCache finalStateCache = FinalStateCache.defaults(finalStateRepository);
+
+    private FinalState write(final String participantId, final long amount) {
+        final var update = new FinalStateUpdate("user-1", participantId);
+        update.add(amount, Currency.USD);
+        final var stored = finalStateRepository.findById(participantId, new PartitionKey("user-1"));
+        return finalStateRepository.save(update.applyTo(stored.orElseGet(() -> FinalState.empty("user-1"))));
+    }
+
+    @Test
+    public void testPut_olderCopyArrivingLateIsIgnored() {
+        final var first = write("user-2", 100);
+        finalStateCache.get("user-1");
+        final var second = write("user-2", 50);
+        assertEquals(first.getRevision() + 1, second.getRevision());
+
+        finalStateCache.put(second);
+        finalStateCache.put(first);
+
+        assertEquals(150, finalStateCache.getIfPresent("user-1", "user-2").orElseThrow().getBalance());
+        assertEquals(second.get_etag(), finalStateCache.get("user-1").get(0).get_etag());
+    }
+
+    @Test
+    public void testPut_replacesOneParticipantInPlace() {
+        write("user-3", 300);
+        write("user-2", 200);
+        finalStateCache.get("user-1");
+
+        finalStateCache.put(write("user-4", 400));
+        finalStateCache.put(write("user-2", 20));
+        finalStateCache.put(new FinalState().withUserId("user-9").withParticipantId("user-1").withRevision(1));
+
+        assertEquals(List.of("user-2=220", "user-3=300", "user-4=400"), finalStateCache.get("user-1").stream()
+                .map(finalState -> finalState.getParticipantId() + "=" + finalState.getBalance())
+                .collect(Collectors.toList()));
+        assertTrue(finalStateCache.getIfPresent("user-9").isEmpty());
+    }
+}
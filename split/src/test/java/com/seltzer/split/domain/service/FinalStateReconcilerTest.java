@@ -0,0 +1,189 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.FinalStateRepository;
+import com.seltzer.split.domain.repository.TransactionRepository;
+import com.seltzer.split.domain.repository.memory.Queries;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+public class FinalStateReconcilerTest {
+    private final TransactionRepository transactionRepository = Mockito.mock(TransactionRepository.class);
+    private final FinalStateRepository finalStateRepository = Mockito.mock(FinalStateRepository.class);
+    private final AtomicReference<Runnable> beforeRead = new AtomicReference<>();
+    private final FinalStateReconciler reconciler = new FinalStateReconciler(transactionRepository, finalStateRepository,
+            FinalStateCache.defaults(finalStateRepository), UserBalanceSummaries.disabled(), 2, 2);
+
+    private final List<Transaction> transactions = new ArrayList<>();
+    private final List<FinalState> finalStates = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        record(payment("user-1", "user-2", 10000, false));
+        record(receipt("user-2", "user-1", 10000));
+        record(receipt("user-1", "user-2", 3000));
+        record(payment("user-2", "user-1", 3000, false));
+        record(payment("user-1", "user-2", 500, false));
+        record(receipt("user-2", "user-1", 500));
+        record(payment("user-1", "user-3", 4000, false));
+        record(payment("user-1", "user-3", 4000, true));
+        finalStates.add(new FinalState().withUserId("user-1").withParticipantId("user-2").withBalance(7500).withCurrency(Currency.USD));
+        finalStates.add(new FinalState().withUserId("user-2").withParticipantId("user-1").withBalance(-7000).withCurrency(Currency.USD));
+        finalStates.add(new FinalState().withUserId("user-1").withParticipantId("user-3").withBalance(0).withCurrency(Currency.USD));
+        when(finalStateRepository.findAll(any(Pageable.class))).thenAnswer(invocation -> page(finalStates, invocation.getArgument(0)));
+        when(finalStateRepository.findById(anyString(), any(PartitionKey.class))).thenAnswer(invocation -> {
+            final var write = beforeRead.getAndSet(null);
+            if (write != null) {
+                write.run();
+            }
+            return findFinalState(invocation.getArgument(0), invocation.getArgument(1));
+        });
+        when(transactionRepository.findPartitionReplayPage(anyString(), anyLong(), anyLong(), anyString(), anyInt()))
+                .thenAnswer(invocation -> Queries.partitionReplay(transactions, invocation.getArgument(0), invocation.getArgument(1),
+                        invocation.getArgument(2), invocation.getArgument(3), invocation.getArgument(4)));
+    }
+
+    @Test
+    public void testReconcile_01() {
+        var report = reconciler.reconcile(false);
+
+        assertEquals(3, report.getPartitionsScanned());
+        assertEquals(8, report.getTransactionsScanned());
+        assertEquals(1, report.getDrifted());
+        assertEquals(0, report.getRepaired());
+        assertEquals("user-2", report.getDrifts().get(0).getUserId());
+        assertEquals(-7000, report.getDrifts().get(0).getStoredBalance());
+        assertEquals(-7500, report.getDrifts().get(0).getExpectedBalance());
+        Mockito.verify(finalStateRepository, Mockito.never()).save(any());
+    }
+
+    @Test
+    public void testReconcile_02() {
+        var savedCaptor = ArgumentCaptor.forClass(FinalState.class);
+
+        var report = reconciler.reconcile(true);
+
+        assertEquals(1, report.getRepaired());
+        Mockito.verify(finalStateRepository).save(savedCaptor.capture());
+        assertEquals("user-2", savedCaptor.getValue().getUserId());
+        assertEquals(-7500, savedCaptor.getValue().getBalance());
+    }
+
+    @Test
+    public void testReconcile_pairWrittenWhileReconciledIsNotRepaired() {
+        // a write to the pair commits its FinalState and saves its records after the partition was folded.
+        beforeRead.set(() -> {
+            finalStates.set(1, finalStates.get(1).withBalance(-7100));
+            record(receipt("user-2", "user-1", 100));
+        });
+        // the partitions are all read in one page, before the write.
+        var onePage = new FinalStateReconciler(transactionRepository, finalStateRepository,
+                FinalStateCache.defaults(finalStateRepository), UserBalanceSummaries.disabled(), 1, 100);
+
+        var report = onePage.reconcile(true);
+
+        assertEquals(0, report.getDrifted());
+        assertEquals(1, report.getFailed());
+        Mockito.verify(finalStateRepository, Mockito.never()).save(any());
+    }
+
+    @Test
+    public void testReconcile_missingFinalStateIsReportedAndCreated() {
+        finalStates.remove(1);
+        var savedCaptor = ArgumentCaptor.forClass(FinalState.class);
+
+        var report = reconciler.reconcile(true);
+
+        assertEquals(3, report.getPartitionsScanned());
+        assertEquals(1, report.getDrifted());
+        assertEquals(0, report.getDrifts().get(0).getStoredBalance());
+        assertEquals(-7500, report.getDrifts().get(0).getExpectedBalance());
+        Mockito.verify(finalStateRepository).save(savedCaptor.capture());
+        assertEquals("user-2", savedCaptor.getValue().getUserId());
+        assertEquals("user-1", savedCaptor.getValue().getParticipantId());
+        assertEquals(-7500, savedCaptor.getValue().getBalance());
+        assertNull(savedCaptor.getValue().get_etag());
+    }
+
+    @Test
+    public void testReconcile_balanceWithoutTransactionsIsReported() {
+        finalStates.add(new FinalState().withUserId("user-4").withParticipantId("user-1").withBalance(2500).withCurrency(Currency.USD));
+
+        var report = reconciler.reconcile(false);
+
+        assertEquals(4, report.getPartitionsScanned());
+        assertEquals(2, report.getDrifted());
+        assertTrue(report.getDrifts().stream().anyMatch(drift -> drift.getUserId().equals("user-4")
+                && drift.getStoredBalance() == 2500 && drift.getExpectedBalance() == 0));
+    }
+
+    @Test
+    public void testReconcile_settlementSharingCreatedAtFoldsInWriteOrder() {
+        transactions.clear();
+        finalStates.clear();
+        var createdAt = 1_000L;
+        record(payment("user-1", "user-2", 10000, false).withCreatedAt(createdAt).withId("z"));
+        record(payment("user-1", "user-2", 0, true).withCreatedAt(createdAt).withId("b"));
+        record(payment("user-1", "user-2", 2500, false).withCreatedAt(createdAt).withId("a"));
+        finalStates.add(new FinalState().withUserId("user-1").withParticipantId("user-2").withBalance(2500).withCurrency(Currency.USD));
+
+        var report = reconciler.reconcile(false);
+
+        assertEquals(0, report.getDrifted());
+    }
+
+    private Optional<FinalState> findFinalState(String participantId, PartitionKey partitionKey) {
+        return finalStates.stream()
+                .filter(finalState -> finalState.getParticipantId().equals(participantId)
+                        && new PartitionKey(finalState.getPartitionKey()).equals(partitionKey))
+                .findFirst();
+    }
+
+    private void record(Transaction transaction) {
+        transactions.add(transaction
+                .withId(transaction.getId() == null ? "txn-" + transactions.size() : transaction.getId())
+                .withSequence(transactions.size() + 1));
+    }
+
+    private static <T> PageImpl<T> page(List<T> content, Pageable pageable) {
+        var from = (int) pageable.getOffset();
+        return new PageImpl<>(content.subList(from, Math.min(from + pageable.getPageSize(), content.size())), pageable, content.size());
+    }
+
+    private static Transaction payment(String from, String to, long amount, boolean settlement) {
+        return new Transaction()
+                .withUserId(from)
+                .withPaidTo(new Payment()
+                        .withUserId(to)
+                        .withMoney(new Payment.Money(amount, Currency.USD))
+                        .withSettlement(settlement));
+    }
+
+    private static Transaction receipt(String to, String from, long amount) {
+        return new Transaction()
+                .withUserId(to)
+                .withReceivedFrom(new Payment()
+                        .withUserId(from)
+                        .withMoney(new Payment.Money(amount, Currency.USD)));
+    }
+}
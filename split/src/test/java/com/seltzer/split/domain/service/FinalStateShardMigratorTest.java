@@ -0,0 +1,209 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.memory.InMemoryActivityRollupRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveActivityRollupRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveTransactionRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveUserBalanceSummaryRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryUserBalanceSummaryRepository;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FinalStateShardMigratorTest {
+    private final InMemoryTransactionRepository transactionRepository = new InMemoryTransactionRepository();
+    private final AtomicReference<Runnable> beforeDelete = new AtomicReference<>();
+    private final InMemoryFinalStateRepository finalStateRepository = new InMemoryFinalStateRepository() {
+        @Override
+        public void delete(final FinalState finalState) {
+            final var hook = beforeDelete.getAndSet(null);
+            if (hook != null) {
+                hook.run();
+            }
+            super.delete(finalState);
+        }
+    };
+
+    /**
+     * The handler and migrator of one instance.
+     */
+    private final class Instance {
+        final FinalStateShards finalStateShards;
+        final FinalStateCache finalStateCache;
+        final TransactionHandler transactionHandler;
+        final FinalStateShardMigrator migrator;
+
+        Instance(final FinalStateShards finalStateShards) {
+            this.finalStateShards = finalStateShards;
+            this.finalStateCache = new FinalStateCache(finalStateShards, 1_000_000, Duration.ofMinutes(1));
+            this.transactionHandler = new TransactionHandler(transactionRepository, finalStateRepository, ConflictRetryPolicy.defaults(),
+                    finalStateCache, LedgerLog.disabled(), new TimeOrderedTransactionIdGenerator(), FxRateCache.of(FxRates.EMPTY));
+            this.migrator = new FinalStateShardMigrator(finalStateRepository, finalStateCache, transactionHandler, 4, 10, 7);
+        }
+
+        Instance(final Duration directoryTtl) {
+            this(new FinalStateShards(finalStateRepository, true, directoryTtl, 4));
+        }
+
+        long getBalance(final String participantId) {
+            return transactionHandler.getBalances("treasurer").getToBeReceived().stream()
+                    .filter(finalState -> finalState.getParticipantId().equals(participantId))
+                    .mapToLong(FinalState::getBalance)
+                    .sum();
+        }
+    }
+
+    private static Transaction paidTo(final String userId, final String participantId, final long amount) {
+        return new Transaction()
+                .withUserId(userId)
+                .withPaidTo(new Payment().withUserId(participantId).withMoney(new Payment.Money(amount, Currency.USD)));
+    }
+
+    private List<String> getParticipantIds(final String partitionKey) {
+        return finalStateRepository.findAll(new PartitionKey(partitionKey)).stream()
+                .map(FinalState::getParticipantId)
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void testMigrate_01() throws InterruptedException {
+        final var instance = new Instance(Duration.ZERO);
+        for (int i = 0; i < 50; i++) {
+            instance.transactionHandler.addTransaction(paidTo("treasurer", "member-" + i, 100 + i));
+        }
+        instance.transactionHandler.addTransaction(paidTo("member-0", "member-1", 100));
+
+        assertEquals(Map.of("treasurer", 50L), instance.migrator.findHotUsers());
+        assertEquals(Map.of("treasurer", 50), instance.migrator.migrateHotUsers());
+        assertEquals(Map.of(), instance.migrator.findHotUsers());
+        assertEquals(0, instance.migrator.migrate("treasurer"));
+
+        // the treasurer's own partition only holds the marker, and every shard got some of the members.
+        assertEquals(List.of(FinalStateShards.MARKER_ID), getParticipantIds("treasurer"));
+        for (int shard = 0; shard < 4; shard++) {
+            assertFalse(getParticipantIds(FinalState.getPartitionKey("treasurer", shard)).isEmpty());
+        }
+        assertEquals(4, instance.finalStateShards.getShards("treasurer"));
+        assertEquals(0, instance.finalStateShards.getShards("member-0"));
+
+        final var received = instance.transactionHandler.getAmountsToBeReceived("treasurer");
+        assertEquals(50, received.size());
+        assertTrue(received.stream().allMatch(finalState -> finalState.getUserId().equals("treasurer")));
+        assertEquals(149, instance.getBalance("member-49"));
+
+        // writes, batched or not, go to the shards.
+        instance.transactionHandler.addTransaction(paidTo("member-49", "treasurer", 49));
+        instance.transactionHandler.addTransactions(List.of(paidTo("treasurer", "member-48", 2), paidTo("treasurer", "member-47", 3)));
+        assertEquals(100, instance.getBalance("member-49"));
+        assertEquals(150, instance.getBalance("member-48"));
+        assertEquals(150, instance.getBalance("member-47"));
+        assertEquals(-100, finalStateRepository.findById("treasurer", new PartitionKey("member-49")).get().getBalance());
+        assertEquals(List.of(FinalStateShards.MARKER_ID), getParticipantIds("treasurer"));
+    }
+
+    @Test
+    public void testMigrate_reactive() throws InterruptedException {
+        final var instance = new Instance(Duration.ZERO);
+        for (int i = 0; i < 20; i++) {
+            instance.transactionHandler.addTransaction(paidTo("treasurer", "member-" + i, 100));
+        }
+        instance.migrator.migrate("treasurer");
+        final var reactiveTransactionHandler = new ReactiveTransactionHandler(
+                new InMemoryReactiveTransactionRepository(transactionRepository), new InMemoryReactiveFinalStateRepository(finalStateRepository),
+                instance.transactionHandler, ConflictRetryPolicy.defaults(), instance.finalStateCache, LedgerLog.disabled(),
+                new InMemoryReactiveUserBalanceSummaryRepository(new InMemoryUserBalanceSummaryRepository()),
+                new InMemoryReactiveActivityRollupRepository(new InMemoryActivityRollupRepository()));
+
+        reactiveTransactionHandler.addTransactions(List.of(paidTo("treasurer", "member-1", 1), paidTo("treasurer", "member-2", 2),
+                paidTo("treasurer", "member-3", 3), paidTo("treasurer", "member-4", 4))).block();
+
+        assertEquals(101, instance.getBalance("member-1"));
+        assertEquals(104, instance.getBalance("member-4"));
+        assertEquals(-104, finalStateRepository.findById("treasurer", new PartitionKey("member-4")).get().getBalance());
+        assertEquals(List.of(FinalStateShards.MARKER_ID), getParticipantIds("treasurer"));
+    }
+
+    @Test
+    public void testMigrate_carriesOverStaleWrites() throws Exception {
+        final var instance = new Instance(Duration.ofMillis(500));
+        // another instance, still routing to the treasurer's own partition.
+        final var stale = new Instance(FinalStateShards.disabled(finalStateRepository));
+        for (int i = 0; i < 20; i++) {
+            instance.transactionHandler.addTransaction(paidTo("treasurer", "member-" + i, 100));
+        }
+        final var executor = Executors.newSingleThreadExecutor();
+        try {
+            final var migration = executor.submit(() -> instance.migrator.migrate("treasurer"));
+            while (finalStateRepository.findById(FinalStateShards.MARKER_ID, new PartitionKey("treasurer")).isEmpty()) {
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            stale.transactionHandler.addTransaction(paidTo("treasurer", "member-1", 5));
+            instance.transactionHandler.addTransaction(paidTo("treasurer", "member-1", 7));
+            stale.transactionHandler.addTransaction(paidTo("member-2", "treasurer", 50));
+
+            assertEquals(20, migration.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(112, instance.getBalance("member-1"));
+        assertEquals(50, instance.getBalance("member-2"));
+        assertEquals(List.of(FinalStateShards.MARKER_ID), getParticipantIds("treasurer"));
+    }
+
+    @Test
+    public void testMigrate_carriesOverWritesRacingTheDelete() throws InterruptedException {
+        final var instance = new Instance(Duration.ZERO);
+        final var stale = new Instance(FinalStateShards.disabled(finalStateRepository));
+        for (int i = 0; i < 20; i++) {
+            instance.transactionHandler.addTransaction(paidTo("treasurer", "member-" + i, 100));
+        }
+        beforeDelete.set(() -> stale.transactionHandler.addTransaction(paidTo("treasurer", "member-0", 5)));
+
+        assertEquals(20, instance.migrator.migrate("treasurer"));
+
+        assertEquals(105, instance.getBalance("member-0"));
+        assertEquals(List.of(FinalStateShards.MARKER_ID), getParticipantIds("treasurer"));
+    }
+
+    @Test
+    public void testRebuild_keepsTheShards() throws InterruptedException {
+        final var migrating = new Instance(Duration.ZERO);
+        for (int i = 0; i < 20; i++) {
+            migrating.transactionHandler.addTransaction(paidTo("treasurer", "member-" + i, 100 + i));
+        }
+        migrating.migrator.migrate("treasurer");
+        // an instance that has the treasurer's routing cached.
+        final var instance = new Instance(Duration.ofMinutes(1));
+        assertEquals(4, instance.finalStateShards.getShards("treasurer"));
+
+        new LedgerProjector(instance.transactionHandler, LedgerLog.disabled(), transactionRepository, finalStateRepository,
+                instance.finalStateCache, 8, 2).rebuild();
+
+        assertEquals(List.of(FinalStateShards.MARKER_ID), getParticipantIds("treasurer"));
+        assertEquals(4, instance.finalStateShards.getShards("treasurer"));
+        assertEquals(119, instance.getBalance("member-19"));
+        assertEquals(-119, finalStateRepository.findById("treasurer", new PartitionKey("member-19")).get().getBalance());
+    }
+
+    @Test
+    public void testMigrate_disabled() {
+        final var instance = new Instance(FinalStateShards.disabled(finalStateRepository));
+        assertThrows(IllegalStateException.class, () -> instance.migrator.migrate("treasurer"));
+    }
+}
@@ -0,0 +1,110 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.GroupExpense;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GroupExpenseSplitterTest {
+
+    private static GroupExpense expense(final long amount, final GroupExpense.Split split, final GroupExpense.Share... shares) {
+        return new GroupExpense()
+                .withPaidBy("user-1")
+                .withMoney(new Payment.Money(amount, Currency.USD))
+                .withSplit(split)
+                .withShares(List.of(shares));
+    }
+
+    private static long[] amounts(final List<Transaction> transactions) {
+        return transactions.stream().mapToLong(transaction -> transaction.getPaidTo().get().getMoney().getAmount()).toArray();
+    }
+
+    @Test
+    public void testSplit_equal() {
+        // 100.00 among three: the payer keeps one part, the leftover cent goes to the first participant.
+        final var transactions = GroupExpenseSplitter.split(expense(10_000, GroupExpense.Split.EQUAL,
+                new GroupExpense.Share("user-2"), new GroupExpense.Share("user-1"), new GroupExpense.Share("user-3")));
+
+        assertEquals(2, transactions.size());
+        assertEquals("user-1", transactions.get(0).getUserId());
+        assertEquals("user-2", transactions.get(0).getPaidTo().get().getUserId());
+        assertEquals("user-3", transactions.get(1).getPaidTo().get().getUserId());
+        assertArrayEquals(new long[]{3334, 3333}, amounts(transactions));
+    }
+
+    @Test
+    public void testSplit_exact() {
+        final var transactions = GroupExpenseSplitter.split(expense(1_000, GroupExpense.Split.EXACT,
+                new GroupExpense.Share("user-1").withAmount(100), new GroupExpense.Share("user-2").withAmount(900)));
+
+        assertArrayEquals(new long[]{900}, amounts(transactions));
+        assertThrows(IllegalArgumentException.class, () -> GroupExpenseSplitter.split(expense(1_000, GroupExpense.Split.EXACT,
+                new GroupExpense.Share("user-1").withAmount(100), new GroupExpense.Share("user-2").withAmount(800))));
+    }
+
+    @Test
+    public void testSplit_percentage() {
+        final var transactions = GroupExpenseSplitter.split(expense(1_001, GroupExpense.Split.PERCENTAGE,
+                new GroupExpense.Share("user-2").withPercentage(new BigDecimal("33.33")),
+                new GroupExpense.Share("user-3").withPercentage(new BigDecimal("33.33")),
+                new GroupExpense.Share("user-4").withPercentage(new BigDecimal("33.34"))));
+
+        // exact parts are 333.6333, 333.6333 and 333.7334: the fractions .6333, .6333 and .7334 share two leftover units.
+        assertArrayEquals(new long[]{334, 333, 334}, amounts(transactions));
+        assertThrows(IllegalArgumentException.class, () -> GroupExpenseSplitter.split(expense(1_000, GroupExpense.Split.PERCENTAGE,
+                new GroupExpense.Share("user-2").withPercentage(new BigDecimal("50")))));
+    }
+
+    @Test
+    public void testSplit_shares() {
+        final var transactions = GroupExpenseSplitter.split(expense(1_000, GroupExpense.Split.SHARES,
+                new GroupExpense.Share("user-1").withShares(1), new GroupExpense.Share("user-2").withShares(2),
+                new GroupExpense.Share("user-3").withShares(0), new GroupExpense.Share("user-4").withShares(3)));
+
+        // exact parts are 166.67, 333.33, 0 and 500: the leftover unit makes the payer's part 167, which is not recorded.
+        assertArrayEquals(new long[]{333, 500}, amounts(transactions));
+        assertEquals("user-4", transactions.get(1).getPaidTo().get().getUserId());
+    }
+
+    @Test
+    public void testSplit_invalid() {
+        assertThrows(IllegalArgumentException.class, () -> GroupExpenseSplitter.split(expense(0, GroupExpense.Split.EQUAL,
+                new GroupExpense.Share("user-2"))));
+        assertThrows(IllegalArgumentException.class, () -> GroupExpenseSplitter.split(expense(100, GroupExpense.Split.EQUAL)));
+        assertThrows(IllegalArgumentException.class, () -> GroupExpenseSplitter.split(expense(100, GroupExpense.Split.EQUAL,
+                new GroupExpense.Share("user-2"), new GroupExpense.Share("user-2"))));
+        assertThrows(IllegalArgumentException.class, () -> GroupExpenseSplitter.split(expense(100, GroupExpense.Split.SHARES,
+                new GroupExpense.Share("user-2"))));
+    }
+
+    @Test
+    public void testAddGroupExpense_idempotencyKey() {
+        final var finalStateRepository = new InMemoryFinalStateRepository();
+        final var transactionRepository = new InMemoryTransactionRepository();
+        final var transactionHandler = new TransactionHandler(transactionRepository, finalStateRepository);
+        final var shares = IntStream.rangeClosed(1, 50).mapToObj(i -> new GroupExpense.Share("user-" + i)).collect(Collectors.toList());
+        final var expense = expense(100_001, GroupExpense.Split.EQUAL).withShares(shares).withIdempotencyKey("dinner");
+
+        transactionHandler.addGroupExpense(expense);
+        transactionHandler.addGroupExpense(expense);
+
+        // the leftover unit falls to the payer, who comes first.
+        final var owed = finalStateRepository.findAll(new PartitionKey("user-1")).stream().mapToLong(FinalState::getBalance).sum();
+        assertEquals(100_001 - 2_001, owed);
+        assertEquals(-2_000, finalStateRepository.findById("user-1", new PartitionKey("user-2")).get().getBalance());
+        assertEquals(-2_000, finalStateRepository.findById("user-1", new PartitionKey("user-50")).get().getBalance());
+        assertEquals(2 * 49, transactionRepository.count());
+    }
+}
@@ -0,0 +1,163 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LedgerImporterTest {
+    private static final String HEADER = "userId,direction,participantId,amountMinor,currency,createdAt,idempotencyKey,settlement\n";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final InMemoryTransactionRepository transactionRepository = new InMemoryTransactionRepository();
+    private final InMemoryFinalStateRepository finalStateRepository = new InMemoryFinalStateRepository();
+    private final TransactionHandler transactionHandler = new TransactionHandler(transactionRepository, finalStateRepository);
+
+    private LedgerImporter importer(final int batchSize) {
+        return new LedgerImporter(transactionHandler, new ObjectMapper(), folder.getRoot().toPath(), batchSize, 4, 2);
+    }
+
+    private static ByteArrayInputStream export(final String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private long getBalance(final String userId, final String participantId) {
+        return finalStateRepository.findById(participantId, new PartitionKey(userId)).map(FinalState::getBalance).orElse(0L);
+    }
+
+    /**
+     * @return A CSV export of the given number of payments between 20 users, and the balance it leaves user-0 with user-1.
+     */
+    private static String generate(final int rows, final long[] balance) {
+        final var random = new Random(7);
+        final var csv = new StringBuilder(HEADER);
+        for (int i = 0; i < rows; i++) {
+            final var userId = random.nextInt(20);
+            final var participantId = (userId + 1 + random.nextInt(19)) % 20;
+            final var amount = 1 + random.nextInt(1_000);
+            csv.append("user-").append(userId).append(",paidTo,user-").append(participantId).append(',').append(amount)
+                    .append(",USD,").append(1_600_000_000_000L + i).append(",,\n");
+            if (userId == 0 && participantId == 1) {
+                balance[0] += amount;
+            } else if (userId == 1 && participantId == 0) {
+                balance[0] -= amount;
+            }
+        }
+        return csv.toString();
+    }
+
+    @Test
+    public void testImportCsv() throws IOException {
+        final var report = importer(2).importLedger("group-1", export(HEADER
+                + "user-1,paidTo,user-2,500,USD,2020-01-01T00:00:00Z,,\n"
+                + "\n"
+                + "\"user-2\",receivedFrom,user-1,200,usd,1577923200000,,\r\n"
+                + "user-3,paidTo,user-1,700,INR,,\"key,1\",false\n"
+                + "user-2,paidTo,user-3,0,INR,,,true\n"), LedgerImporter.Format.CSV);
+
+        assertEquals(4, report.getRowsImported());
+        assertEquals(6, report.getLastLine());
+        assertEquals(700, getBalance("user-1", "user-2"));
+        assertEquals(-700, finalStateRepository.findById("user-3", new PartitionKey("user-1")).orElseThrow().getBalance(Currency.INR));
+        assertEquals(8, transactionRepository.count());
+        final var history = transactionHandler.getHistory("user-1", "user-2", 10, null).getEntries();
+        assertEquals(Instant.parse("2020-01-02T00:00:00Z").toEpochMilli(), history.get(0).getCreatedAt());
+        assertEquals(Instant.parse("2020-01-01T00:00:00Z").toEpochMilli(), history.get(1).getCreatedAt());
+    }
+
+    @Test
+    public void testImport_intoActivePairReplaysInWriteOrder() throws IOException {
+        transactionHandler.addTransaction(new Transaction().withUserId("user-1")
+                .withPaidTo(new Payment("user-2", new Payment.Money(500, Currency.USD), false)));
+        transactionHandler.addTransaction(new Transaction().withUserId("user-1")
+                .withPaidTo(new Payment("user-2", new Payment.Money(0, Currency.USD), true)));
+        // dated before the settlement, but written after it.
+        importer(10).importLedger("group-1", export(HEADER + "user-1,paidTo,user-2,300,USD,2020-01-01T00:00:00Z,,\n"),
+                LedgerImporter.Format.CSV);
+        assertEquals(300, getBalance("user-1", "user-2"));
+
+        new LedgerProjector(transactionHandler, LedgerLog.disabled(), transactionRepository, finalStateRepository,
+                FinalStateCache.defaults(finalStateRepository), 8, 2).rebuild();
+
+        assertEquals(300, getBalance("user-1", "user-2"));
+        assertEquals(-300, getBalance("user-2", "user-1"));
+    }
+
+    @Test
+    public void testImportNdjson() throws IOException {
+        importer(10).importLedger("group-1", export(
+                "{\"userId\":\"user-1\",\"paidTo\":{\"userId\":\"user-2\",\"money\":{\"amountMinor\":500,\"currency\":\"USD\"}}}\n"
+                        + "{\"userId\":\"user-1\",\"receivedFrom\":{\"userId\":\"user-2\",\"money\":{\"amountMinor\":200,\"currency\":\"USD\"}}}\n"),
+                LedgerImporter.Format.NDJSON);
+
+        assertEquals(300, getBalance("user-1", "user-2"));
+        assertEquals(-300, getBalance("user-2", "user-1"));
+    }
+
+    @Test
+    public void testImport_resumesAfterInvalidLine() throws IOException {
+        final var balance = new long[1];
+        final var csv = generate(1_000, balance);
+        final var lines = csv.split("\n", -1);
+        final var broken = lines[500];
+        lines[500] = broken.replace(",paidTo,", ",lentTo,");
+
+        final var importer = importer(50);
+        final var e = assertThrows(IllegalArgumentException.class,
+                () -> importer.importLedger("group-1", export(String.join("\n", lines)), LedgerImporter.Format.CSV));
+        assertTrue(e.getMessage().startsWith("Line 501:"), e.getMessage());
+        assertTrue(transactionRepository.count() < 2 * 1_000);
+
+        lines[500] = broken;
+        final var report = importer.importLedger("group-1", export(String.join("\n", lines)), LedgerImporter.Format.CSV);
+
+        assertEquals(451, report.getResumedAfterLine());
+        assertEquals(1_001, report.getLastLine());
+        assertEquals(balance[0], getBalance("user-0", "user-1"));
+        assertEquals(2 * 1_000, transactionRepository.count());
+    }
+
+    @Test
+    public void testImport_linesWrittenPastTheCheckpointAreNotCountedTwice() throws IOException {
+        final var balance = new long[1];
+        final var csv = generate(1_000, balance);
+        importer(50).importLedger("group-1", export(csv), LedgerImporter.Format.CSV);
+
+        // as if the run had died right after reserving the first lines, with all of them written.
+        Files.writeString(folder.getRoot().toPath().resolve("group-1.checkpoint"), "offset=0\nline=0\nreservedLine=5050\n");
+        final var report = importer(50).importLedger("group-1", export(csv), LedgerImporter.Format.CSV);
+
+        assertEquals(1_000, report.getRowsImported());
+        assertEquals(balance[0], getBalance("user-0", "user-1"));
+        assertEquals(2 * 1_000, transactionRepository.count());
+    }
+
+    @Test
+    public void testImport_completedImportIsNotRepeated() throws IOException {
+        final var csv = HEADER + "user-1,paidTo,user-2,500,USD,,,\n";
+        importer(10).importLedger("group-1", export(csv), LedgerImporter.Format.CSV);
+
+        final var report = importer(10).importLedger("group-1", export(csv), LedgerImporter.Format.CSV);
+
+        assertEquals(0, report.getRowsImported());
+        assertEquals(500, getBalance("user-1", "user-2"));
+    }
+}
@@ -0,0 +1,177 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.FinalStateRepository;
+import com.seltzer.split.domain.repository.TransactionRepository;
+import com.seltzer.split.domain.repository.memory.Queries;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.when;
+
+public class LedgerProjectorTest {
+    private final TransactionRepository transactionRepository = Mockito.mock(TransactionRepository.class);
+    private final FinalStateRepository finalStateRepository = Mockito.mock(FinalStateRepository.class);
+    private final FinalStateCache finalStateCache = FinalStateCache.defaults(finalStateRepository);
+    private final LedgerLog ledgerLog = new LedgerLog(true, 16);
+    private final TransactionHandler transactionHandler = new TransactionHandler(transactionRepository, finalStateRepository,
+            ConflictRetryPolicy.defaults(), finalStateCache, ledgerLog, new TimeOrderedTransactionIdGenerator(),
+            FxRateCache.of(FxRates.EMPTY));
+    private final LedgerProjector ledgerProjector = new LedgerProjector(transactionHandler, ledgerLog, transactionRepository,
+            finalStateRepository, finalStateCache, 8, 2);
+
+    private final Map<String, FinalState> store = new ConcurrentHashMap<>();
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        when(finalStateRepository.findById(any(String.class), any(PartitionKey.class))).thenAnswer(invocation ->
+                Optional.ofNullable(store.get(invocation.getArgument(1).toString() + invocation.getArgument(0))));
+        when(finalStateRepository.save(any(FinalState.class))).thenAnswer(invocation -> {
+            final FinalState finalState = invocation.getArgument(0);
+            store.put(new PartitionKey(finalState.getUserId()).toString() + finalState.getParticipantId(), finalState);
+            return finalState;
+        });
+        Mockito.doAnswer(invocation -> {
+            store.clear();
+            return null;
+        }).when(finalStateRepository).deleteAll();
+    }
+
+    @After
+    public void tearDown() {
+        ledgerProjector.stop();
+    }
+
+    @Test
+    public void testProjection_01() throws Exception {
+        transactionHandler.addTransaction(payment("user-1", "user-2", 10000, false));
+        transactionHandler.addTransaction(new Transaction()
+                .withUserId("user-1")
+                .withReceivedFrom(new Payment()
+                        .withUserId("user-2")
+                        .withMoney(new Payment.Money(3000, Currency.USD))));
+
+        Mockito.verify(finalStateRepository, Mockito.never()).save(any());
+        Mockito.verify(transactionRepository, Mockito.times(2)).saveAll(any());
+
+        ledgerProjector.start();
+        assertTrue(ledgerLog.awaitCheckpoint(ledgerLog.getLastSequence(), 5, TimeUnit.SECONDS));
+
+        assertEquals(7000, getBalance("user-1", "user-2"));
+        assertEquals(-7000, getBalance("user-2", "user-1"));
+    }
+
+    @Test
+    public void testRebuild_01() {
+        var records = List.of(
+                payment("user-1", "user-2", 10000, false).withCreatedAt(1).withSequence(1),
+                receipt("user-2", "user-1", 10000, false).withCreatedAt(1).withSequence(2),
+                payment("user-2", "user-1", 4000, false).withCreatedAt(2).withSequence(3),
+                receipt("user-1", "user-2", 4000, false).withCreatedAt(2).withSequence(4),
+                payment("user-1", "user-3", 1000, true).withCreatedAt(3).withSequence(5),
+                receipt("user-3", "user-1", 1000, true).withCreatedAt(3).withSequence(6),
+                payment("user-1", "user-3", 500, false).withCreatedAt(4).withSequence(7),
+                receipt("user-3", "user-1", 500, false).withCreatedAt(4).withSequence(8));
+        replayFrom(records);
+        store.put(new PartitionKey("user-1").toString() + "user-2", new FinalState().withUserId("user-1").withParticipantId("user-2").withBalance(99900));
+
+        assertEquals(8, ledgerProjector.rebuild());
+
+        Mockito.verify(transactionRepository).findReplayPage(Long.MIN_VALUE, Long.MIN_VALUE, "", 2);
+        Mockito.verify(transactionRepository, Mockito.times(5)).findReplayPage(anyLong(), anyLong(), anyString(), anyInt());
+        assertEquals(6000, getBalance("user-1", "user-2"));
+        assertEquals(-6000, getBalance("user-2", "user-1"));
+        assertEquals(500, getBalance("user-1", "user-3"));
+        assertEquals(-500, getBalance("user-3", "user-1"));
+    }
+
+    @Test
+    public void testRebuild_batchSharingCreatedAtReplaysInWriteOrder() {
+        // one batch: a payment and then a settlement of the pair, with IDs that sort the other way round.
+        var records = List.of(
+                payment("user-1", "user-3", 1000, false).withCreatedAt(7).withSequence(11).withId("z-1"),
+                receipt("user-3", "user-1", 1000, false).withCreatedAt(7).withSequence(12).withId("z-2"),
+                payment("user-1", "user-3", 0, true).withCreatedAt(7).withSequence(13).withId("a-1"),
+                receipt("user-3", "user-1", 0, true).withCreatedAt(7).withSequence(14).withId("a-2"));
+        replayFrom(records);
+
+        assertEquals(4, ledgerProjector.rebuild());
+
+        assertEquals(0, getBalance("user-1", "user-3"));
+        assertEquals(0, getBalance("user-3", "user-1"));
+    }
+
+    @Test
+    public void testCatchUp_replaysTheRecordsAfterTheCheckpoint() throws Exception {
+        final var checkpointFile = temporaryFolder.getRoot().toPath().resolve("checkpoint");
+        Files.writeString(checkpointFile, "12");
+        final var restarted = new LedgerLog(true, 16, checkpointFile.toString());
+        final var projector = new LedgerProjector(transactionHandler, restarted, transactionRepository, finalStateRepository,
+                finalStateCache, 8, 2);
+        replayFrom(List.of(
+                payment("user-1", "user-2", 10000, false).withCreatedAt(1).withSequence(11),
+                receipt("user-2", "user-1", 10000, false).withCreatedAt(1).withSequence(12),
+                payment("user-1", "user-2", 3000, false).withCreatedAt(2).withSequence(13),
+                receipt("user-2", "user-1", 3000, false).withCreatedAt(2).withSequence(14)));
+
+        assertEquals(2, projector.catchUp());
+
+        assertEquals(3000, getBalance("user-1", "user-2"));
+        assertEquals(-3000, getBalance("user-2", "user-1"));
+        assertEquals(restarted.getRecoveredSequence(), Long.parseLong(Files.readString(checkpointFile)));
+        assertEquals(0, projector.catchUp());
+    }
+
+    private void replayFrom(final List<Transaction> records) {
+        when(transactionRepository.findReplayPage(anyLong(), anyLong(), anyString(), anyInt()))
+                .thenAnswer(invocation -> Queries.replay(records.stream().map(record -> record.getId() == null
+                                ? record.withId("id-" + record.getSequence()) : record).collect(Collectors.toList()),
+                        invocation.getArgument(0), invocation.getArgument(1), invocation.getArgument(2), invocation.getArgument(3)));
+    }
+
+    private long getBalance(String userId, String participantId) {
+        return store.get(new PartitionKey(userId).toString() + participantId).getBalance();
+    }
+
+    private static Transaction payment(String from, String to, long amount, boolean settlement) {
+        return new Transaction()
+                .withUserId(from)
+                .withPaidTo(new Payment()
+                        .withUserId(to)
+                        .withMoney(new Payment.Money(amount, Currency.USD))
+                        .withSettlement(settlement));
+    }
+
+    private static Transaction receipt(String to, String from, long amount, boolean settlement) {
+        return new Transaction()
+                .withUserId(to)
+                .withReceivedFrom(new Payment()
+                        .withUserId(from)
+                        .withMoney(new Payment.Money(amount, Currency.USD))
+                        .withSettlement(settlement));
+    }
+}
@@ -0,0 +1,124 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MultiCurrencyBalanceTest {
+    private final InMemoryFinalStateRepository finalStateRepository = new InMemoryFinalStateRepository();
+    private final FxRates rates = new FxRates(Map.of(Currency.USD, BigDecimal.ONE, Currency.INR, new BigDecimal("80")));
+    private final TransactionHandler transactionHandler = new TransactionHandler(new InMemoryTransactionRepository(), finalStateRepository,
+            ConflictRetryPolicy.defaults(), FinalStateCache.defaults(finalStateRepository), LedgerLog.disabled(),
+            new TimeOrderedTransactionIdGenerator(), FxRateCache.of(rates));
+
+    private void pay(final String userId, final String participantId, final long amount, final Currency currency, final boolean settlement) {
+        transactionHandler.addTransaction(new Transaction()
+                .withUserId(userId)
+                .withPaidTo(new Payment()
+                        .withUserId(participantId)
+                        .withMoney(new Payment.Money(amount, currency))
+                        .withSettlement(settlement)));
+    }
+
+    private FinalState getFinalState(final String userId, final String participantId) {
+        return finalStateRepository.findById(participantId, new PartitionKey(userId)).orElseThrow();
+    }
+
+    @Test
+    public void testAddTransaction_mixedCurrencies() {
+        pay("user-1", "user-2", 1_000, Currency.USD, false);
+        pay("user-2", "user-1", 40_000, Currency.INR, false);
+        pay("user-1", "user-2", 500, Currency.USD, false);
+
+        final var finalState = getFinalState("user-1", "user-2");
+        assertEquals(Currency.USD, finalState.getCurrency());
+        assertEquals(1_500, finalState.getBalance(Currency.USD));
+        assertEquals(-40_000, finalState.getBalance(Currency.INR));
+        assertEquals(40_000, getFinalState("user-2", "user-1").getBalance(Currency.INR));
+
+        final var balances = transactionHandler.getBalances("user-1");
+        assertEquals(1, balances.getToBeReceived().size());
+        assertEquals(1_500, balances.getToBeReceived().get(0).getBalance());
+        assertEquals(Currency.USD, balances.getToBeReceived().get(0).getCurrency());
+        assertEquals(1, balances.getToBePaid().size());
+        assertEquals(40_000, balances.getToBePaid().get(0).getBalance());
+        assertEquals(Currency.INR, balances.getToBePaid().get(0).getCurrency());
+    }
+
+    @Test
+    public void testGetAmountsToBeReceived_converted() {
+        pay("user-1", "user-2", 1_000, Currency.USD, false);
+        pay("user-2", "user-1", 40_000, Currency.INR, false); // 5 USD
+        pay("user-1", "user-3", 8_000, Currency.INR, false); // 1 USD
+
+        final var received = transactionHandler.getAmountsToBeReceived("user-1", Currency.USD);
+        assertEquals(2, received.size());
+        assertEquals(500, received.stream().filter(state -> state.getParticipantId().equals("user-2")).findFirst().orElseThrow().getBalance());
+        assertEquals(100, received.stream().filter(state -> state.getParticipantId().equals("user-3")).findFirst().orElseThrow().getBalance());
+        assertTrue(received.stream().allMatch(state -> state.getCurrency() == Currency.USD && state.getOtherBalances() == null));
+
+        assertEquals(40_000, transactionHandler.getAmountsToBePaid("user-2", Currency.INR).get(0).getBalance());
+        assertTrue(transactionHandler.getAmountsToBePaid("user-1", Currency.INR).isEmpty());
+    }
+
+    @Test
+    public void testAddTransactions_interleavedCurrenciesMatchOneByOne() {
+        final var transactions = new ArrayList<Transaction>();
+        for (final var step : new Object[][]{{100L, Currency.USD, false}, {200L, Currency.USD, false}, {5_000L, Currency.INR, false},
+                {0L, Currency.USD, true}, {50L, Currency.USD, false}, {1_000L, Currency.INR, false}, {0L, Currency.INR, true},
+                {7L, Currency.INR, false}}) {
+            transactions.add(new Transaction()
+                    .withUserId("user-1")
+                    .withPaidTo(new Payment()
+                            .withUserId("user-2")
+                            .withMoney(new Payment.Money((long) step[0], (Currency) step[1]))
+                            .withSettlement((boolean) step[2])));
+        }
+        final var oneByOneRepository = new InMemoryFinalStateRepository();
+        final var oneByOne = new TransactionHandler(new InMemoryTransactionRepository(), oneByOneRepository);
+
+        transactionHandler.addTransactions(transactions);
+        transactions.forEach(oneByOne::addTransaction);
+
+        for (final var side : new String[][]{{"user-1", "user-2"}, {"user-2", "user-1"}}) {
+            final var batched = getFinalState(side[0], side[1]);
+            final var single = oneByOneRepository.findById(side[1], new PartitionKey(side[0])).orElseThrow();
+            assertEquals(single.getCurrency(), batched.getCurrency());
+            assertEquals(single.getBalances(), batched.getBalances());
+        }
+        assertEquals(Map.of(Currency.USD, 50L, Currency.INR, 7L), getFinalState("user-1", "user-2").getBalances());
+    }
+
+    @Test
+    public void testSettlement_clearsOneCurrency() {
+        pay("user-1", "user-2", 1_000, Currency.USD, false);
+        pay("user-2", "user-1", 40_000, Currency.INR, false);
+
+        pay("user-2", "user-1", 0, Currency.INR, true);
+
+        final var finalState = getFinalState("user-1", "user-2");
+        assertEquals(1_000, finalState.getBalance(Currency.USD));
+        assertEquals(0, finalState.getBalance(Currency.INR));
+        assertNull(finalState.getOtherBalances());
+    }
+
+    @Test
+    public void testFxRates() {
+        assertEquals(8_000, rates.convert(100, Currency.USD, Currency.INR));
+        assertEquals(13, rates.convert(1_000, Currency.INR, Currency.USD)); // 12.5 cents, rounded half away from zero
+        assertEquals(-13, rates.convert(-1_000, Currency.INR, Currency.USD));
+        assertEquals(77, FxRates.EMPTY.convert(77, Currency.INR, Currency.INR));
+        assertThrows(IllegalArgumentException.class, () -> FxRates.EMPTY.convert(1, Currency.USD, Currency.INR));
+    }
+}
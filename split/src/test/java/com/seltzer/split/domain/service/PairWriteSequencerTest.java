@@ -0,0 +1,115 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+
+public class PairWriteSequencerTest {
+    private final TransactionHandler transactionHandler = Mockito.mock(TransactionHandler.class);
+    private final PairWriteSequencer sequencer = new PairWriteSequencer(transactionHandler, 4, 64);
+
+    @After
+    public void tearDown() {
+        sequencer.shutdown();
+    }
+
+    @Test
+    public void testSubmit_01() throws Exception {
+        // hold the lane on the first write so that the following ones queue up behind it.
+        var firstWriteStarted = new CountDownLatch(1);
+        var releaseFirstWrite = new CountDownLatch(1);
+        var batches = new ArrayList<List<Transaction>>();
+        doAnswer(invocation -> {
+            List<Transaction> batch = invocation.getArgument(0);
+            synchronized (batches) {
+                batches.add(List.copyOf(batch));
+            }
+            firstWriteStarted.countDown();
+            releaseFirstWrite.await();
+            return null;
+        }).when(transactionHandler).addTransactions(any());
+
+        var futures = new ArrayList<CompletableFuture<Void>>();
+        futures.add(sequencer.submit(payment("user-1", "user-2", 1)));
+        assertTrue(firstWriteStarted.await(5, TimeUnit.SECONDS));
+        for (int i = 2; i <= 10; i++) {
+            futures.add(sequencer.submit(i % 2 == 0 ? payment("user-2", "user-1", i) : payment("user-1", "user-2", i)));
+        }
+        releaseFirstWrite.countDown();
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, batches.size());
+        assertEquals(1, batches.get(0).size());
+        assertEquals(9, batches.get(1).size());
+        for (int i = 0; i < 9; i++) {
+            assertEquals(i + 2, batches.get(1).get(i).getPaidTo().get().getMoney().getAmount());
+        }
+        assertEquals(10, sequencer.getLaneStats().stream().mapToLong(PairWriteSequencer.LaneStats::getProcessed).sum());
+        assertEquals(2, sequencer.getLaneStats().stream().mapToLong(PairWriteSequencer.LaneStats::getBatches).sum());
+    }
+
+    @Test
+    public void testSubmit_02() throws Exception {
+        var invalid = payment("user-1", "user-2", 13);
+        doThrow(IllegalArgumentException.class).when(transactionHandler).addTransactions(any());
+        doThrow(IllegalArgumentException.class).when(transactionHandler).addTransaction(argThat(txn -> txn == invalid));
+
+        var valid = sequencer.submit(payment("user-1", "user-2", 1));
+        var rejected = sequencer.submit(invalid);
+
+        valid.get(5, TimeUnit.SECONDS);
+        var e = assertThrows(ExecutionException.class, () -> rejected.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalArgumentException);
+    }
+
+    @Test
+    public void testSubmit_03() {
+        var future = sequencer.submit(new Transaction().withUserId("user-1"));
+
+        assertTrue(future.isCompletedExceptionally());
+        Mockito.verifyNoInteractions(transactionHandler);
+    }
+
+    @Test
+    public void testBindTo_metersEveryLane() throws Exception {
+        var meterRegistry = new SimpleMeterRegistry();
+        sequencer.bindTo(meterRegistry);
+
+        CompletableFuture.allOf(sequencer.submit(payment("user-1", "user-2", 1)), sequencer.submit(payment("user-3", "user-4", 2)))
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals(4, meterRegistry.find(PairWriteSequencer.QUEUE_DEPTH).gauges().size());
+        assertEquals(0, meterRegistry.find(PairWriteSequencer.QUEUE_DEPTH).gauges().stream().mapToDouble(Gauge::value).sum());
+        assertEquals(2, meterRegistry.find(PairWriteSequencer.WAIT_TIMER).timers().stream().mapToLong(Timer::count).sum());
+        assertEquals(2, meterRegistry.find(PairWriteSequencer.BATCH_SIZE).summaries().stream()
+                .mapToDouble(DistributionSummary::totalAmount).sum());
+    }
+
+    private static Transaction payment(String from, String to, long amount) {
+        return new Transaction()
+                .withUserId(from)
+                .withPaidTo(new Payment()
+                        .withUserId(to)
+                        .withMoney(new Payment.Money(amount, Currency.USD)));
+    }
+}
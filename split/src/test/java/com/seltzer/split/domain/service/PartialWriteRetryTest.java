@@ -0,0 +1,120 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Fails a write half-way, after one side of the pair has been committed, and checks that retrying it with the same
+ * <code>idempotencyKey</code> finishes the job without applying anything twice.
+ */
+public class PartialWriteRetryTest {
+    private final AtomicBoolean failParticipantSide = new AtomicBoolean();
+    private final AtomicBoolean failRecords = new AtomicBoolean();
+    private final InMemoryTransactionRepository transactionRepository = new InMemoryTransactionRepository() {
+        @Override
+        public <S extends Transaction> Iterable<S> saveAll(final Iterable<S> transactions) {
+            if (failRecords.getAndSet(false)) {
+                throw new IllegalStateException("store unavailable");
+            }
+            return super.saveAll(transactions);
+        }
+    };
+    private final InMemoryFinalStateRepository finalStateRepository = new InMemoryFinalStateRepository() {
+        @Override
+        public <S extends FinalState> S save(final S finalState) {
+            if ("user-2".equals(finalState.getUserId()) && failParticipantSide.getAndSet(false)) {
+                throw new IllegalStateException("store unavailable");
+            }
+            return super.save(finalState);
+        }
+    };
+    private final TransactionHandler transactionHandler = new TransactionHandler(transactionRepository, finalStateRepository);
+
+    private static Transaction paidTo(final long amount, final boolean settlement, final String idempotencyKey) {
+        return new Transaction()
+                .withUserId("user-1")
+                .withIdempotencyKey(idempotencyKey)
+                .withPaidTo(new Payment()
+                        .withUserId("user-2")
+                        .withMoney(new Payment.Money(amount, Currency.USD))
+                        .withSettlement(settlement));
+    }
+
+    private long balance(final String userId, final String participantId) {
+        return finalStateRepository.findById(participantId, new PartitionKey(userId)).orElseThrow().getBalance();
+    }
+
+    @Test
+    public void testAddTransaction_retryFinishesTheOtherSide() {
+        failParticipantSide.set(true);
+        final var transaction = paidTo(10_000, false, "expense-1");
+        assertThrows(IllegalStateException.class, () -> transactionHandler.addTransaction(transaction));
+        assertEquals(10_000, balance("user-1", "user-2"));
+        assertTrue(finalStateRepository.findById("user-1", new PartitionKey("user-2")).isEmpty());
+
+        transactionHandler.addTransaction(transaction);
+        transactionHandler.addTransaction(transaction);
+
+        assertEquals(10_000, balance("user-1", "user-2"));
+        assertEquals(-10_000, balance("user-2", "user-1"));
+        assertEquals(1, transactionRepository.findAll(new PartitionKey("user-1_user-2")).size());
+        assertEquals(1, transactionRepository.findAll(new PartitionKey("user-2_user-1")).size());
+    }
+
+    @Test
+    public void testAddTransaction_retryAfterRecordsFailedKeepsTheBalances() {
+        failRecords.set(true);
+        final var transaction = paidTo(10_000, false, "expense-1");
+        assertThrows(IllegalStateException.class, () -> transactionHandler.addTransaction(transaction));
+        assertEquals(10_000, balance("user-1", "user-2"));
+        assertEquals(-10_000, balance("user-2", "user-1"));
+        assertTrue(transactionRepository.findAll(new PartitionKey("user-1_user-2")).isEmpty());
+
+        transactionHandler.addTransaction(transaction);
+
+        assertEquals(10_000, balance("user-1", "user-2"));
+        assertEquals(-10_000, balance("user-2", "user-1"));
+        assertEquals(1, transactionRepository.findAll(new PartitionKey("user-1_user-2")).size());
+        assertEquals(1, transactionRepository.findAll(new PartitionKey("user-2_user-1")).size());
+    }
+
+    @Test
+    public void testSettle_retryRecordsTheAmountFirstCleared() {
+        transactionHandler.addTransaction(paidTo(10_000, false, "expense-1"));
+        failParticipantSide.set(true);
+        final var settlement = paidTo(0, true, "settlement-1");
+        assertThrows(IllegalStateException.class, () -> transactionHandler.addTransaction(settlement));
+        assertEquals(0, balance("user-1", "user-2"));
+        assertEquals(-10_000, balance("user-2", "user-1"));
+
+        transactionHandler.addTransaction(settlement);
+
+        assertEquals(0, balance("user-1", "user-2"));
+        assertEquals(0, balance("user-2", "user-1"));
+        final List<Transaction> records = transactionRepository.findAll(new PartitionKey("user-1_user-2"));
+        final var settled = records.stream().filter(record -> record.getPayment().isSettlement()).findFirst().orElseThrow();
+        assertEquals(10_000, settled.getPayment().getMoney().getAmount());
+    }
+
+    @Test
+    public void testAddTransactions_marksKeepTheMostRecent() {
+        for (int i = 0; i < FinalStateUpdate.RETAINED_MARKS + 4; i++) {
+            transactionHandler.addTransaction(paidTo(100, false, "expense-" + i));
+        }
+
+        final var applied = finalStateRepository.findById("user-2", new PartitionKey("user-1")).orElseThrow().getApplied();
+        assertEquals(FinalStateUpdate.RETAINED_MARKS, applied.size());
+        assertEquals((FinalStateUpdate.RETAINED_MARKS + 4) * 100, balance("user-1", "user-2"));
+    }
+}
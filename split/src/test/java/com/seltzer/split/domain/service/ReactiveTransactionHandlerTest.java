@@ -0,0 +1,347 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.GroupExpense;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.FinalStateRepository;
+import com.seltzer.split.domain.repository.ReactiveTransactionRepository;
+import com.seltzer.split.domain.repository.TransactionRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryActivityRollupRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveActivityRollupRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveTransactionRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveUserBalanceSummaryRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryUserBalanceSummaryRepository;
+import com.seltzer.split.domain.repository.memory.ReactiveCosmosRepositoryAdapter;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReactiveTransactionHandlerTest {
+    private static final Duration ROUND_TRIP = Duration.ofMillis(200);
+
+    private final InMemoryTransactionRepository transactionRepository = new InMemoryTransactionRepository();
+    private final InMemoryFinalStateRepository finalStateRepository = new InMemoryFinalStateRepository();
+    private final FinalStateCache finalStateCache = FinalStateCache.defaults(finalStateRepository);
+    private final TransactionHandler transactionHandler = new TransactionHandler(transactionRepository, finalStateRepository,
+            new ConflictRetryPolicy(1_000, 1, 5), finalStateCache, LedgerLog.disabled(), new TimeOrderedTransactionIdGenerator(),
+            FxRateCache.of(FxRates.EMPTY));
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private ReactiveTransactionHandler reactiveTransactionHandler(final Duration roundTrip) {
+        return new ReactiveTransactionHandler(new RemoteTransactionRepository(transactionRepository, roundTrip),
+                new RemoteFinalStateRepository(finalStateRepository, roundTrip), transactionHandler,
+                new ConflictRetryPolicy(1_000, 1, 5), finalStateCache, LedgerLog.disabled(),
+                new InMemoryReactiveUserBalanceSummaryRepository(new InMemoryUserBalanceSummaryRepository()),
+                new InMemoryReactiveActivityRollupRepository(new InMemoryActivityRollupRepository()));
+    }
+
+    private static Transaction paidTo(final String userId, final String participantId, final long amount) {
+        return new Transaction()
+                .withUserId(userId)
+                .withPaidTo(new Payment().withUserId(participantId).withMoney(new Payment.Money(amount, Currency.USD)));
+    }
+
+    private static List<String> describe(final List<FinalState> finalStates) {
+        return finalStates.stream().map(state -> state.getParticipantId() + ":" + state.getBalance()).collect(Collectors.toList());
+    }
+
+    private long getBalance(final String userId, final String participantId) {
+        return finalStateRepository.findById(participantId, new PartitionKey(userId)).map(FinalState::getBalance).orElse(0L);
+    }
+
+    @Test
+    public void testAddTransaction_threeRoundTrips() {
+        final var handler = reactiveTransactionHandler(ROUND_TRIP);
+
+        final var start = System.nanoTime();
+        handler.addTransaction(paidTo("user-1", "user-2", 500)).block();
+        final var elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        // two reads, then two FinalState writes and one saveAll of the records once they are done, each group issued at once.
+        assertEquals(5, calls.get());
+        assertTrue(elapsed.compareTo(ROUND_TRIP.multipliedBy(4)) < 0, "took " + elapsed);
+        assertEquals(500, getBalance("user-1", "user-2"));
+        assertEquals(-500, getBalance("user-2", "user-1"));
+        assertEquals(2, transactionRepository.count());
+    }
+
+    @Test
+    public void testAddGroupExpense_fiftyParticipants() {
+        final var handler = reactiveTransactionHandler(ROUND_TRIP);
+        final var expense = new GroupExpense()
+                .withPaidBy("user-0")
+                .withMoney(new Payment.Money(50_000, Currency.USD))
+                .withSplit(GroupExpense.Split.EQUAL)
+                .withShares(IntStream.range(0, 50).mapToObj(i -> new GroupExpense.Share("user-" + i)).collect(Collectors.toList()));
+
+        final var start = System.nanoTime();
+        handler.addGroupExpense(expense).block();
+        final var elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        // one query of the payer's partition and 49 point reads, then 98 FinalState writes and one saveAll, each group issued at once.
+        assertEquals(1 + 49 + 98 + 1, calls.get());
+        assertTrue(elapsed.compareTo(ROUND_TRIP.multipliedBy(4)) < 0, "took " + elapsed);
+        assertEquals(1_000, getBalance("user-0", "user-49"));
+        assertEquals(-1_000, getBalance("user-49", "user-0"));
+        assertEquals(2 * 49, transactionRepository.count());
+    }
+
+    @Test
+    public void testGetBalances_concurrentReadsHoldNoThread() {
+        transactionHandler.addTransactions(List.of(paidTo("user-1", "user-2", 500), paidTo("user-3", "user-1", 200)));
+        finalStateCache.invalidateAll();
+        final var handler = reactiveTransactionHandler(ROUND_TRIP);
+
+        final var start = System.nanoTime();
+        final var reads = Flux.range(0, 100).flatMap(i -> handler.getBalances("user-1", null)).collectList().block();
+        final var elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        // a read of the user's partition each, all waiting at once rather than on a pool.
+        assertEquals(100, calls.get());
+        assertTrue(elapsed.compareTo(ROUND_TRIP.multipliedBy(3)) < 0, "took " + elapsed);
+        for (final var read : reads) {
+            assertEquals(List.of("user-2:500"), describe(read.getToBeReceived()));
+            assertEquals(List.of("user-3:200"), describe(read.getToBePaid()));
+        }
+    }
+
+    @Test
+    public void testGetSummary_derivedWithoutSummaries() {
+        transactionHandler.addTransactions(List.of(paidTo("user-1", "user-2", 500), paidTo("user-3", "user-1", 200)));
+        final var handler = reactiveTransactionHandler(Duration.ZERO);
+
+        final var summary = handler.getSummary("user-1").block();
+
+        assertEquals(Map.of(Currency.USD, 500L), summary.getToBeReceived());
+        assertEquals(Map.of(Currency.USD, 200L), summary.getToBePaid());
+        assertEquals(2, summary.getOpenCounterparties());
+    }
+
+    @Test
+    public void testAddTransaction_settlement() {
+        final var handler = reactiveTransactionHandler(Duration.ZERO);
+        handler.addTransactions(List.of(paidTo("user-1", "user-2", 500), paidTo("user-2", "user-1", 200))).block();
+
+        handler.addTransaction(paidTo("user-2", "user-1", 0).withPaidTo(new Payment()
+                .withUserId("user-1")
+                .withMoney(new Payment.Money(0, Currency.USD))
+                .withSettlement(true))).block();
+
+        assertEquals(0, getBalance("user-1", "user-2"));
+        assertEquals(0, getBalance("user-2", "user-1"));
+        final var settlement = transactionRepository.findAll().stream()
+                .filter(record -> record.getPaidTo().map(Payment::isSettlement).orElse(false))
+                .findFirst()
+                .orElseThrow();
+        assertEquals(300, settlement.getPaidTo().get().getMoney().getAmount());
+    }
+
+    @Test
+    public void testAddTransaction_idempotencyKey() {
+        final var handler = reactiveTransactionHandler(Duration.ZERO);
+        final var transaction = paidTo("user-1", "user-2", 500).withIdempotencyKey("key-1");
+
+        handler.addTransaction(transaction).block();
+        handler.addTransactions(List.of(transaction, transaction)).block();
+
+        assertEquals(500, getBalance("user-1", "user-2"));
+        assertEquals(2, transactionRepository.count());
+    }
+
+    @Test
+    public void testAddTransaction_failedCommitWritesNoRecords() {
+        final var failing = new AtomicBoolean(true);
+        final var finalStates = new InMemoryReactiveFinalStateRepository(finalStateRepository) {
+            @Override
+            public <S extends FinalState> Mono<S> save(final S finalState) {
+                return "user-2".equals(finalState.getUserId()) && failing.getAndSet(false)
+                        ? Mono.error(new IllegalStateException("store unavailable")) : super.save(finalState);
+            }
+        };
+        final var handler = new ReactiveTransactionHandler(new InMemoryReactiveTransactionRepository(transactionRepository),
+                finalStates, transactionHandler, new ConflictRetryPolicy(1_000, 1, 5), finalStateCache, LedgerLog.disabled(),
+                new InMemoryReactiveUserBalanceSummaryRepository(new InMemoryUserBalanceSummaryRepository()),
+                new InMemoryReactiveActivityRollupRepository(new InMemoryActivityRollupRepository()));
+        final var transaction = paidTo("user-1", "user-2", 500).withIdempotencyKey("key-1");
+
+        assertThrows(IllegalStateException.class, () -> handler.addTransaction(transaction).block());
+        assertEquals(0, transactionRepository.count());
+
+        handler.addTransaction(transaction).block();
+
+        assertEquals(500, getBalance("user-1", "user-2"));
+        assertEquals(-500, getBalance("user-2", "user-1"));
+        assertEquals(2, transactionRepository.count());
+    }
+
+    @Test
+    public void testAddTransaction_parallelWritersOnOnePair() {
+        final var handler = reactiveTransactionHandler(Duration.ZERO);
+
+        Flux.range(0, 400)
+                .flatMap(i -> handler.addTransaction(i % 2 == 0 ? paidTo("user-1", "user-2", 300) : paidTo("user-2", "user-1", 100))
+                        .subscribeOn(Schedulers.parallel()))
+                .blockLast();
+
+        assertEquals(200 * (300 - 100), getBalance("user-1", "user-2"));
+        assertEquals(-200 * (300 - 100), getBalance("user-2", "user-1"));
+        assertEquals(800, transactionRepository.count());
+    }
+
+    @Test
+    public void testSettleAll_hundredParticipants() {
+        final var handler = reactiveTransactionHandler(Duration.ZERO);
+        handler.addTransactions(IntStream.range(1, 101)
+                .mapToObj(i -> i % 2 == 0 ? paidTo("user-0", "user-" + i, i) : paidTo("user-" + i, "user-0", i))
+                .collect(Collectors.toList())).block();
+        handler.addTransaction(paidTo("user-0", "user-1", 0).withPaidTo(new Payment()
+                .withUserId("user-1")
+                .withMoney(new Payment.Money(700, Currency.INR)))).block();
+        IntStream.range(1, 51).forEach(i -> finalStateCache.get("user-" + i));
+        final var remote = reactiveTransactionHandler(ROUND_TRIP);
+
+        final var start = System.nanoTime();
+        remote.settleAll("user-0").block();
+        final var elapsed = Duration.ofNanos(System.nanoTime() - start);
+
+        // one query of the user's partition, 50 uncached point reads, then one batch of the user's 100 FinalStates along with the
+        // 100 other sides, and one saveAll.
+        assertEquals(1 + 50 + 1 + 100 + 1, calls.get());
+        assertTrue(elapsed.compareTo(ROUND_TRIP.multipliedBy(6)) < 0, "took " + elapsed);
+        for (int i = 1; i <= 100; i++) {
+            assertEquals(0, getBalance("user-0", "user-" + i));
+            assertEquals(0, getBalance("user-" + i, "user-0"));
+        }
+        final var user1 = finalStateRepository.findById("user-1", new PartitionKey("user-0")).orElseThrow();
+        assertEquals(Map.of(Currency.USD, 0L), user1.getBalances());
+        final var settled = transactionRepository.findAll().stream()
+                .filter(record -> "user-0".equals(record.getUserId()) && record.getPaidTo().map(Payment::isSettlement).orElse(false))
+                .collect(Collectors.toMap(record -> record.getPaidTo().get().getUserId() + ":" + record.getPaidTo().get().getMoney().getCurrency().name(),
+                        record -> record.getPaidTo().get().getMoney().getAmount()));
+        assertEquals(101, settled.size());
+        assertEquals(1L, settled.get("user-1:USD"));
+        assertEquals(700L, settled.get("user-1:INR"));
+        assertEquals(100L, settled.get("user-100:USD"));
+    }
+
+    @Test
+    public void testSettleAll_staleSidesAreRereadAndNothingToSettle() {
+        final var handler = reactiveTransactionHandler(Duration.ZERO);
+        handler.addTransaction(paidTo("user-1", "user-2", 500)).block();
+        finalStateCache.get("user-2");
+        // changed behind the cache's back, as by another instance.
+        final var mirror = finalStateRepository.findById("user-1", new PartitionKey("user-2")).orElseThrow();
+        finalStateRepository.save(mirror.withBalance(-800));
+        finalStateRepository.save(finalStateRepository.findById("user-2", new PartitionKey("user-1")).orElseThrow().withBalance(800));
+
+        handler.settleAll("user-1").block();
+
+        assertEquals(0, getBalance("user-1", "user-2"));
+        assertEquals(0, getBalance("user-2", "user-1"));
+        final var settlement = transactionRepository.findAll().stream()
+                .filter(record -> record.getReceivedFrom().map(Payment::isSettlement).orElse(false))
+                .findFirst()
+                .orElseThrow();
+        assertEquals(800, settlement.getReceivedFrom().get().getMoney().getAmount());
+
+        final var records = transactionRepository.count();
+        handler.settleAll("user-1").block();
+        handler.settleAll("user-3").block();
+        assertEquals(records, transactionRepository.count());
+    }
+
+    @Test
+    public void testSettleAll_blockingBatchesEachPartition() {
+        transactionHandler.addTransactions(IntStream.range(1, 151)
+                .mapToObj(i -> i % 2 == 0 ? paidTo("user-0", "user-" + i, i) : paidTo("user-" + i, "user-0", i))
+                .collect(Collectors.toList()));
+        final var batches = new AtomicInteger();
+        final var handler = new TransactionHandler(transactionRepository, new InMemoryFinalStateRepository() {
+            @Override
+            public List<FinalState> findAll(final PartitionKey partitionKey) {
+                return finalStateRepository.findAll(partitionKey);
+            }
+
+            @Override
+            public Optional<FinalState> findById(final String id, final PartitionKey partitionKey) {
+                return finalStateRepository.findById(id, partitionKey);
+            }
+
+            @Override
+            public <S extends FinalState> S save(final S finalState) {
+                return finalStateRepository.save(finalState);
+            }
+
+            @Override
+            public List<FinalState> saveBatch(final String partitionKey, final List<FinalState> finalStates) {
+                batches.incrementAndGet();
+                return finalStateRepository.saveBatch(partitionKey, finalStates);
+            }
+        }, new ConflictRetryPolicy(1_000, 1, 5), finalStateCache, LedgerLog.disabled(), new TimeOrderedTransactionIdGenerator(),
+                FxRateCache.of(FxRates.EMPTY));
+
+        handler.settleAll("user-0");
+
+        // the user's 150 FinalStates in two batches, and one for each other side.
+        assertEquals(2 + 150, batches.get());
+        for (int i = 1; i <= 150; i++) {
+            assertEquals(0, getBalance("user-0", "user-" + i));
+            assertEquals(0, getBalance("user-" + i, "user-0"));
+        }
+        final var records = transactionRepository.count();
+        handler.settleAll("user-0");
+        assertEquals(records, transactionRepository.count());
+    }
+
+    /**
+     * Answers from the embedded repository after a network round trip, counting the calls.
+     */
+    private class RemoteTransactionRepository extends ReactiveCosmosRepositoryAdapter<Transaction> implements ReactiveTransactionRepository {
+        private final Duration roundTrip;
+
+        RemoteTransactionRepository(final TransactionRepository repository, final Duration roundTrip) {
+            super(repository);
+            this.roundTrip = roundTrip;
+        }
+
+        @Override
+        protected <R> Mono<R> call(final Callable<R> call) {
+            return roundTrip.isZero() ? super.call(call)
+                    : Mono.delay(roundTrip).doOnNext(tick -> calls.incrementAndGet()).then(super.call(call));
+        }
+    }
+
+    private class RemoteFinalStateRepository extends InMemoryReactiveFinalStateRepository {
+        private final Duration roundTrip;
+
+        RemoteFinalStateRepository(final FinalStateRepository repository, final Duration roundTrip) {
+            super(repository);
+            this.roundTrip = roundTrip;
+        }
+
+        @Override
+        protected <R> Mono<R> call(final Callable<R> call) {
+            return roundTrip.isZero() ? super.call(call)
+                    : Mono.delay(roundTrip).doOnNext(tick -> calls.incrementAndGet()).then(super.call(call));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.FinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.when;
+
+public class SettlementPlannerTest {
+    private final FinalStateRepository finalStateRepository = Mockito.mock(FinalStateRepository.class);
+    private final SettlementPlanner settlementPlanner = new SettlementPlanner(FinalStateCache.defaults(finalStateRepository));
+
+    @Test
+    public void testPlanSettlements_01() {
+        // user-1 owes user-2 10, user-2 owes user-3 10: user-1 can pay user-3 directly.
+        when(finalStateRepository.findAll(new PartitionKey("user-1"))).thenReturn(List.of(
+                state("user-1", "user-2", -1000),
+                state("user-1", "user-4", 5000)));
+        when(finalStateRepository.findAll(new PartitionKey("user-2"))).thenReturn(List.of(
+                state("user-2", "user-1", 1000),
+                state("user-2", "user-3", -1000)));
+        when(finalStateRepository.findAll(new PartitionKey("user-3"))).thenReturn(List.of(
+                state("user-3", "user-2", 1000)));
+
+        var plan = settlementPlanner.planSettlements(Set.of("user-1", "user-2", "user-3"));
+
+        assertEquals(4, plan.size());
+        assertEquals("user-1", plan.get(0).getUserId());
+        assertEquals("user-3", plan.get(0).getPaidTo().get().getUserId());
+        assertEquals(1000, plan.get(0).getPaidTo().get().getMoney().getAmount());
+        assertEquals(Currency.USD, plan.get(0).getPaidTo().get().getMoney().getCurrency());
+        assertFalse(plan.get(0).getPaidTo().get().isSettlement());
+        // the payment leaves user-1 owing user-2, user-2 owing user-3 and user-3 owing user-1, which offset each other.
+        assertTrue(plan.subList(1, 4).stream().allMatch(transaction -> transaction.getPaidTo().get().isSettlement()));
+    }
+
+    @Test
+    public void testPlanSettlements_recordedPlanZeroesEveryPair() {
+        var transactionRepository = new InMemoryTransactionRepository();
+        var finalStateRepository = new InMemoryFinalStateRepository();
+        var finalStateCache = FinalStateCache.defaults(finalStateRepository);
+        var transactionHandler = new TransactionHandler(transactionRepository, finalStateRepository, ConflictRetryPolicy.defaults(),
+                finalStateCache, LedgerLog.disabled(), new TimeOrderedTransactionIdGenerator(), FxRateCache.of(FxRates.EMPTY));
+        var random = new Random(7);
+        for (int i = 0; i < 40; i++) {
+            var from = "user-" + random.nextInt(6);
+            var to = "user-" + random.nextInt(6);
+            if (!from.equals(to)) {
+                transactionHandler.addTransaction(paidTo(from, to, 1 + random.nextInt(5_000),
+                        random.nextBoolean() ? Currency.USD : Currency.INR));
+            }
+        }
+        transactionHandler.addTransaction(paidTo("user-0", "outsider", 700, Currency.USD));
+        var members = Set.of("user-0", "user-1", "user-2", "user-3", "user-4", "user-5");
+
+        transactionHandler.addTransactions(new SettlementPlanner(finalStateCache).planSettlements(members));
+
+        for (var member : members) {
+            for (var finalState : finalStateRepository.findAll(new PartitionKey(member))) {
+                if (members.contains(finalState.getParticipantId())) {
+                    var open = finalState.getBalances().entrySet().stream()
+                            .filter(balance -> balance.getValue() != 0)
+                            .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+                    assertEquals(Map.of(), open, member + " with " + finalState.getParticipantId());
+                }
+            }
+        }
+        assertEquals(700, finalStateRepository.findById("outsider", new PartitionKey("user-0")).orElseThrow().getBalance());
+    }
+
+    @Test
+    public void testSimplify_01() {
+        var random = new Random(42);
+        var net = new long[10_000];
+        for (int i = 0; i < net.length - 1; i++) {
+            net[i] = random.nextInt(20_000) - 10_000;
+            net[net.length - 1] -= net[i];
+        }
+
+        var flows = SettlementPlanner.simplify(net);
+
+        assertTrue(flows.getSize() < net.length);
+        var remaining = net.clone();
+        for (int i = 0; i < flows.getSize(); i++) {
+            assertTrue(flows.getAmount()[i] > 0);
+            remaining[flows.getFrom()[i]] += flows.getAmount()[i];
+            remaining[flows.getTo()[i]] -= flows.getAmount()[i];
+        }
+        for (var balance : remaining) {
+            assertEquals(0, balance);
+        }
+    }
+
+    private static Transaction paidTo(String userId, String participantId, long amount, Currency currency) {
+        return new Transaction()
+                .withUserId(userId)
+                .withPaidTo(new Payment().withUserId(participantId).withMoney(new Payment.Money(amount, currency)));
+    }
+
+    private static FinalState state(String userId, String participantId, long balance) {
+        return new FinalState()
+                .withUserId(userId)
+                .withParticipantId(participantId)
+                .withBalance(balance)
+                .withCurrency(Currency.USD);
+    }
+}
@@ -0,0 +1,109 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.CosmosException;
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.spring.data.cosmos.exception.CosmosAccessException;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.FinalStateRepository;
+import com.seltzer.split.domain.repository.TransactionRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Runs many writers against a store that enforces <code>_etag</code> preconditions the way Cosmos does, and checks that no update is lost.
+ */
+public class TransactionHandlerConcurrencyTest {
+    private static final int WRITERS = 8;
+    private static final int TRANSACTIONS_PER_WRITER = 250;
+
+    private final TransactionRepository transactionRepository = Mockito.mock(TransactionRepository.class);
+    private final FinalStateRepository finalStateRepository = Mockito.mock(FinalStateRepository.class);
+    private final TransactionHandler transactionHandler = new TransactionHandler(transactionRepository, finalStateRepository,
+            new ConflictRetryPolicy(1_000, 1, 5));
+
+    private final Map<String, FinalState> store = new ConcurrentHashMap<>();
+    private final AtomicInteger conflicts = new AtomicInteger();
+    private final CosmosException preconditionFailed = cosmosException(412);
+    private final CosmosException alreadyExists = cosmosException(409);
+
+    @Before
+    public void setUp() {
+        when(finalStateRepository.findById(any(String.class), any(PartitionKey.class))).thenAnswer(invocation -> {
+            final String participantId = invocation.getArgument(0);
+            final PartitionKey partitionKey = invocation.getArgument(1);
+            final var finalState = Optional.ofNullable(store.get(partitionKey.toString() + participantId));
+            Thread.yield(); // widen the read-modify-write window
+            return finalState;
+        });
+        when(finalStateRepository.save(any(FinalState.class))).thenAnswer(invocation -> {
+            final FinalState finalState = invocation.getArgument(0);
+            return store.compute(new PartitionKey(finalState.getUserId()).toString() + finalState.getParticipantId(), (key, stored) -> {
+                if (finalState.get_etag() == null ? stored != null : stored == null || !stored.get_etag().equals(finalState.get_etag())) {
+                    conflicts.incrementAndGet();
+                    throw new CosmosAccessException("conflict", finalState.get_etag() == null ? alreadyExists : preconditionFailed);
+                }
+                return finalState.with_etag(UUID.randomUUID().toString());
+            });
+        });
+    }
+
+    @Test
+    public void testAddTransaction_parallelWritersOnOnePair() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        final var start = new CountDownLatch(1);
+        final var futures = new ArrayList<Future<?>>();
+        try {
+            for (int writer = 0; writer < WRITERS; writer++) {
+                final var forward = writer % 2 == 0;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < TRANSACTIONS_PER_WRITER; i++) {
+                        transactionHandler.addTransaction(new Transaction()
+                                .withUserId(forward ? "user-1" : "user-2")
+                                .withPaidTo(new Payment()
+                                        .withUserId(forward ? "user-2" : "user-1")
+                                        .withMoney(new Payment.Money(forward ? 300 : 100, Currency.USD))));
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (final var future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final var expectedBalance = (WRITERS / 2) * TRANSACTIONS_PER_WRITER * (300 - 100);
+        assertEquals(expectedBalance, store.get(new PartitionKey("user-1").toString() + "user-2").getBalance());
+        assertEquals(-expectedBalance, store.get(new PartitionKey("user-2").toString() + "user-1").getBalance());
+        assertTrue(conflicts.get() > 0, "writers never collided, the test proves nothing");
+    }
+
+    private static CosmosException cosmosException(final int statusCode) {
+        final var cosmosException = Mockito.mock(CosmosException.class);
+        when(cosmosException.getStatusCode()).thenReturn(statusCode);
+        return cosmosException;
+    }
+}
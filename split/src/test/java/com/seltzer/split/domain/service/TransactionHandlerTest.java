@@ -30,20 +30,20 @@ public class TransactionHandlerTest {
     @Captor
     ArgumentCaptor<List<Transaction>> transactionsCaptor;
     @Captor
-    ArgumentCaptor<List<FinalState>> finalStatesCaptor;
+    ArgumentCaptor<FinalState> finalStateCaptor;
 
     @Test
     public void testAmountsToBeReceived_01() {
 
         var txnState1 = new FinalState()
                 .withUserId("user-1")
-                .withBalance(100.0f)
+                .withBalance(10000)
                 .withCurrency(Currency.USD)
                 .withParticipantId("user-2");
 
         var txnState2 = new FinalState()
                 .withUserId("user-1")
-                .withBalance(200.0f)
+                .withBalance(20000)
                 .withCurrency(Currency.USD)
                 .withParticipantId("user-3");
 
@@ -56,12 +56,12 @@ public class TransactionHandlerTest {
         var finalAmountsToBeReceived = transactionHandler.getAmountsToBeReceived("user-1");
 
         assertTrue(finalAmountsToBeReceived.stream().anyMatch(finalState -> finalState.getUserId().equals("user-1")
-                && finalState.getBalance() == 100.0f
+                && finalState.getBalance() == 10000
                 && finalState.getParticipantId().equals("user-2")
                 && finalState.getCurrency() == Currency.USD));
 
         assertTrue(finalAmountsToBeReceived.stream().anyMatch(finalState -> finalState.getUserId().equals("user-1")
-                && finalState.getBalance() == 200.0f
+                && finalState.getBalance() == 20000
                 && finalState.getParticipantId().equals("user-3")
                 && finalState.getCurrency() == Currency.USD));
     }
@@ -71,14 +71,14 @@ public class TransactionHandlerTest {
 
         var txnState1 = new FinalState()
                 .withUserId("user-1")
-                .withBalance(100.0f)
+                .withBalance(10000)
                 .withCurrency(Currency.USD)
                 .withParticipantId("user-2");
 
 
         var txnState2 = new FinalState()
                 .withUserId("user-1")
-                .withBalance(-80.0f)
+                .withBalance(-8000)
                 .withCurrency(Currency.USD)
                 .withParticipantId("user-3");
 
@@ -90,7 +90,7 @@ public class TransactionHandlerTest {
 
         var finalAmountsToBeReceived = transactionHandler.getAmountsToBeReceived("user-1");
         assertEquals(1, finalAmountsToBeReceived.size());
-        assertEquals(100.0f, finalAmountsToBeReceived.get(0).getBalance());
+        assertEquals(10000, finalAmountsToBeReceived.get(0).getBalance());
     }
 
 
@@ -98,14 +98,14 @@ public class TransactionHandlerTest {
     public void testAmountsToBePaid_01() {
         var txnState1 = new FinalState()
                 .withUserId("user-1")
-                .withBalance(100.0f)
+                .withBalance(10000)
                 .withCurrency(Currency.USD)
                 .withParticipantId("user-2");
 
 
         var txnState2 = new FinalState()
                 .withUserId("user-1")
-                .withBalance(-80.0f)
+                .withBalance(-8000)
                 .withCurrency(Currency.USD)
                 .withParticipantId("user-3");
 
@@ -117,7 +117,7 @@ public class TransactionHandlerTest {
 
         var finalAmountsToBeReceived = transactionHandler.getAmountsToBePaid("user-1");
         assertEquals(1, finalAmountsToBeReceived.size());
-        assertEquals(80.0f, finalAmountsToBeReceived.get(0).getBalance());
+        assertEquals(8000, finalAmountsToBeReceived.get(0).getBalance());
     }
 
     @Test
@@ -126,26 +126,26 @@ public class TransactionHandlerTest {
                 .withUserId("user-1")
                 .withPaidTo(new Payment()
                         .withUserId("user-2")
-                        .withMoney(new Payment.Money(100.0f, Currency.USD))
+                        .withMoney(new Payment.Money(10000, Currency.USD))
                 );
 
         var expectedTxn1Complement = new Transaction()
                 .withUserId("user-2")
                 .withReceivedFrom(new Payment()
                         .withUserId("user-1")
-                        .withMoney(new Payment.Money(100.0f, Currency.USD))
+                        .withMoney(new Payment.Money(10000, Currency.USD))
                 );
 
         var existingTxnState1 = new FinalState()
                 .withUserId("user-1")
-                .withBalance(80.0f)
+                .withBalance(8000)
                 .withCurrency(Currency.USD)
                 .withParticipantId("user-2");
 
 
         var existingTxnState2 = new FinalState()
                 .withUserId("user-2")
-                .withBalance(-80.0f)
+                .withBalance(-8000)
                 .withCurrency(Currency.USD)
                 .withParticipantId("user-1");
 
@@ -153,11 +153,11 @@ public class TransactionHandlerTest {
         when(finalStateRepository.findById("user-1", new PartitionKey("user-2"))).thenReturn(Optional.of(existingTxnState2));
 
         when(transactionRepository.saveAll(transactionsCaptor.capture())).thenReturn(List.of());
-        when(finalStateRepository.saveAll(finalStatesCaptor.capture())).thenReturn(null);
+        when(finalStateRepository.save(finalStateCaptor.capture())).thenAnswer(invocation -> invocation.getArgument(0));
         transactionHandler.addTransaction(txn1);
 
         var actualTxns = transactionsCaptor.getValue();
-        var actualFinalStates = finalStatesCaptor.getValue();
+        var actualFinalStates = finalStateCaptor.getAllValues();
 
         assertEquals(2, actualFinalStates.size());
         var updatedParticipantFinalStateOpt = actualFinalStates.stream().filter(finalState -> finalState.getUserId().equals("user-2")).findFirst();
@@ -166,15 +166,15 @@ public class TransactionHandlerTest {
         assertTrue(updatedParticipantFinalStateOpt.isPresent());
         assertTrue(updatedSelfFinalStateOpt.isPresent());
 
-        assertEquals(180.0f, updatedSelfFinalStateOpt.get().getBalance());
-        assertEquals(-180.0f, updatedParticipantFinalStateOpt.get().getBalance());
+        assertEquals(18000, updatedSelfFinalStateOpt.get().getBalance());
+        assertEquals(-18000, updatedParticipantFinalStateOpt.get().getBalance());
 
         assertTrue(actualTxns.stream()
                 .anyMatch(txn ->
                         txn.getUserId().equals(txn1.getUserId())
                                 && txn.getPaidTo().isPresent()
                                 && txn.getPaidTo().get().getUserId().equals(txn1.getPaidTo().get().getUserId())
-                                && txn.getPaidTo().get().getMoney().getAmount() == 100.0f
+                                && txn.getPaidTo().get().getMoney().getAmount() == 10000
                 ));
 
         assertTrue(actualTxns.stream()
@@ -182,7 +182,7 @@ public class TransactionHandlerTest {
                         txn.getUserId().equals(expectedTxn1Complement.getUserId())
                                 && txn.getReceivedFrom().isPresent()
                                 && txn.getReceivedFrom().get().getUserId().equals(expectedTxn1Complement.getReceivedFrom().get().getUserId())
-                                && txn.getReceivedFrom().get().getMoney().getAmount() == 100.0f
+                                && txn.getReceivedFrom().get().getMoney().getAmount() == 10000
                 ));
     }
 
@@ -192,26 +192,26 @@ public class TransactionHandlerTest {
                 .withUserId("user-2")
                 .withReceivedFrom(new Payment()
                         .withUserId("user-1")
-                        .withMoney(new Payment.Money(100.0f, Currency.USD))
+                        .withMoney(new Payment.Money(10000, Currency.USD))
                 );
 
         var expectedTxn1Complement = new Transaction()
                 .withUserId("user-1")
                 .withPaidTo(new Payment()
                         .withUserId("user-2")
-                        .withMoney(new Payment.Money(100.0f, Currency.USD))
+                        .withMoney(new Payment.Money(10000, Currency.USD))
                 );
 
         var existingTxnState1 = new FinalState()
                 .withUserId("user-1")
-                .withBalance(-80.0f)
+                .withBalance(-8000)
                 .withCurrency(Currency.USD)
                 .withParticipantId("user-2");
 
 
         var existingTxnState2 = new FinalState()
                 .withUserId("user-2")
-                .withBalance(80.0f)
+                .withBalance(8000)
                 .withCurrency(Currency.USD)
                 .withParticipantId("user-1");
 
@@ -219,12 +219,12 @@ public class TransactionHandlerTest {
         when(finalStateRepository.findById("user-1", new PartitionKey("user-2"))).thenReturn(Optional.of(existingTxnState2));
 
         when(transactionRepository.saveAll(transactionsCaptor.capture())).thenReturn(List.of());
-        when(finalStateRepository.saveAll(finalStatesCaptor.capture())).thenReturn(null);
+        when(finalStateRepository.save(finalStateCaptor.capture())).thenAnswer(invocation -> invocation.getArgument(0));
 
         transactionHandler.addTransaction(txn1);
 
         var actualTxns = transactionsCaptor.getValue();
-        var actualFinalStates = finalStatesCaptor.getValue();
+        var actualFinalStates = finalStateCaptor.getAllValues();
 
         assertEquals(2, actualFinalStates.size());
         var updatedParticipantFinalStateOpt = actualFinalStates.stream().filter(finalState -> finalState.getUserId().equals("user-1")).findFirst();
@@ -233,15 +233,15 @@ public class TransactionHandlerTest {
         assertTrue(updatedParticipantFinalStateOpt.isPresent());
         assertTrue(updatedSelfFinalStateOpt.isPresent());
 
-        assertEquals(-20.0f, updatedSelfFinalStateOpt.get().getBalance());
-        assertEquals(20.0f, updatedParticipantFinalStateOpt.get().getBalance());
+        assertEquals(-2000, updatedSelfFinalStateOpt.get().getBalance());
+        assertEquals(2000, updatedParticipantFinalStateOpt.get().getBalance());
 
         assertTrue(actualTxns.stream()
                 .anyMatch(txn ->
                         txn.getUserId().equals(expectedTxn1Complement.getUserId())
                                 && txn.getPaidTo().isPresent()
                                 && txn.getPaidTo().get().getUserId().equals(expectedTxn1Complement.getPaidTo().get().getUserId())
-                                && txn.getPaidTo().get().getMoney().getAmount() == 100.0f
+                                && txn.getPaidTo().get().getMoney().getAmount() == 10000
                 ));
 
         assertTrue(actualTxns.stream()
@@ -249,7 +249,7 @@ public class TransactionHandlerTest {
                         txn.getUserId().equals(txn1.getUserId())
                                 && txn.getReceivedFrom().isPresent()
                                 && txn.getReceivedFrom().get().getUserId().equals(txn1.getReceivedFrom().get().getUserId())
-                                && txn.getReceivedFrom().get().getMoney().getAmount() == 100.0f
+                                && txn.getReceivedFrom().get().getMoney().getAmount() == 10000
                 ));
     }
 
@@ -274,19 +274,19 @@ public class TransactionHandlerTest {
                 .withUserId("user-2")
                 .withReceivedFrom(new Payment()
                         .withUserId("user-1")
-                        .withMoney(new Payment.Money(80.0f, Currency.USD))
+                        .withMoney(new Payment.Money(8000, Currency.USD))
                 );
 
         var existingTxnState1 = new FinalState()
                 .withUserId("user-1")
-                .withBalance(80.0f)
+                .withBalance(8000)
                 .withCurrency(Currency.USD)
                 .withParticipantId("user-2");
 
 
         var existingTxnState2 = new FinalState()
                 .withUserId("user-2")
-                .withBalance(-80.0f)
+                .withBalance(-8000)
                 .withCurrency(Currency.USD)
                 .withParticipantId("user-1");
 
@@ -294,11 +294,11 @@ public class TransactionHandlerTest {
         when(finalStateRepository.findById("user-1", new PartitionKey("user-2"))).thenReturn(Optional.of(existingTxnState2));
 
         when(transactionRepository.saveAll(transactionsCaptor.capture())).thenReturn(List.of());
-        when(finalStateRepository.saveAll(finalStatesCaptor.capture())).thenReturn(null);
+        when(finalStateRepository.save(finalStateCaptor.capture())).thenAnswer(invocation -> invocation.getArgument(0));
         transactionHandler.addTransaction(txn1);
 
         var actualTxns = transactionsCaptor.getValue();
-        var actualFinalStates = finalStatesCaptor.getValue();
+        var actualFinalStates = finalStateCaptor.getAllValues();
 
         assertEquals(2, actualFinalStates.size());
         var updatedParticipantFinalStateOpt = actualFinalStates.stream().filter(finalState -> finalState.getUserId().equals("user-2")).findFirst();
@@ -307,15 +307,15 @@ public class TransactionHandlerTest {
         assertTrue(updatedParticipantFinalStateOpt.isPresent());
         assertTrue(updatedSelfFinalStateOpt.isPresent());
 
-        assertEquals(0.0f, updatedSelfFinalStateOpt.get().getBalance());
-        assertEquals(0.0f, updatedParticipantFinalStateOpt.get().getBalance());
+        assertEquals(0, updatedSelfFinalStateOpt.get().getBalance());
+        assertEquals(0, updatedParticipantFinalStateOpt.get().getBalance());
 
         assertTrue(actualTxns.stream()
                 .anyMatch(txn ->
                         txn.getUserId().equals(txn1.getUserId())
                                 && txn.getPaidTo().isPresent()
                                 && txn.getPaidTo().get().getUserId().equals(txn1.getPaidTo().get().getUserId())
-                                && txn.getPaidTo().get().getMoney().getAmount() == 80.0f
+                                && txn.getPaidTo().get().getMoney().getAmount() == 8000
                 ));
 
         assertTrue(actualTxns.stream()
@@ -323,7 +323,195 @@ public class TransactionHandlerTest {
                         txn.getUserId().equals(expectedTxn1Complement.getUserId())
                                 && txn.getReceivedFrom().isPresent()
                                 && txn.getReceivedFrom().get().getUserId().equals(expectedTxn1Complement.getReceivedFrom().get().getUserId())
-                                && txn.getReceivedFrom().get().getMoney().getAmount() == 80.0f
+                                && txn.getReceivedFrom().get().getMoney().getAmount() == 8000
                 ));
     }
+
+    @Test
+    public void testAddTransactions_01() {
+        var txn1 = new Transaction()
+                .withUserId("user-1")
+                .withPaidTo(new Payment()
+                        .withUserId("user-2")
+                        .withMoney(new Payment.Money(10000, Currency.USD))
+                );
+
+        var txn2 = new Transaction()
+                .withUserId("user-2")
+                .withPaidTo(new Payment()
+                        .withUserId("user-1")
+                        .withMoney(new Payment.Money(3000, Currency.USD))
+                );
+
+        var txn3 = new Transaction()
+                .withUserId("user-1")
+                .withPaidTo(new Payment()
+                        .withUserId("user-2")
+                        .withMoney(new Payment.Money(10000, Currency.USD))
+                );
+
+        var existingTxnState1 = new FinalState()
+                .withUserId("user-1")
+                .withBalance(8000)
+                .withCurrency(Currency.USD)
+                .withParticipantId("user-2");
+
+        var existingTxnState2 = new FinalState()
+                .withUserId("user-2")
+                .withBalance(-8000)
+                .withCurrency(Currency.USD)
+                .withParticipantId("user-1");
+
+        when(finalStateRepository.findById("user-2", new PartitionKey("user-1"))).thenReturn(Optional.of(existingTxnState1));
+        when(finalStateRepository.findById("user-1", new PartitionKey("user-2"))).thenReturn(Optional.of(existingTxnState2));
+
+        when(transactionRepository.saveAll(transactionsCaptor.capture())).thenReturn(List.of());
+        when(finalStateRepository.save(finalStateCaptor.capture())).thenAnswer(invocation -> invocation.getArgument(0));
+        transactionHandler.addTransactions(List.of(txn1, txn2, txn3));
+
+        Mockito.verify(finalStateRepository, Mockito.times(1)).findById("user-2", new PartitionKey("user-1"));
+        Mockito.verify(finalStateRepository, Mockito.times(1)).findById("user-1", new PartitionKey("user-2"));
+        Mockito.verify(transactionRepository, Mockito.times(1)).saveAll(any());
+        Mockito.verify(finalStateRepository, Mockito.times(2)).save(any());
+
+        var actualTxns = transactionsCaptor.getValue();
+        var actualFinalStates = finalStateCaptor.getAllValues();
+
+        assertEquals(6, actualTxns.size());
+        assertEquals(6, actualTxns.stream().map(Transaction::getId).distinct().count());
+
+        assertEquals(2, actualFinalStates.size());
+        var updatedSelfFinalStateOpt = actualFinalStates.stream().filter(finalState -> finalState.getUserId().equals("user-1")).findFirst();
+        var updatedParticipantFinalStateOpt = actualFinalStates.stream().filter(finalState -> finalState.getUserId().equals("user-2")).findFirst();
+
+        assertTrue(updatedSelfFinalStateOpt.isPresent());
+        assertTrue(updatedParticipantFinalStateOpt.isPresent());
+
+        assertEquals(25000, updatedSelfFinalStateOpt.get().getBalance());
+        assertEquals(-25000, updatedParticipantFinalStateOpt.get().getBalance());
+    }
+
+    @Test
+    public void testAddTransactions_02() {
+        var txn1 = new Transaction()
+                .withUserId("user-1")
+                .withPaidTo(new Payment()
+                        .withUserId("user-2")
+                        .withMoney(new Payment.Money(10000, Currency.USD))
+                );
+
+        var txn2 = new Transaction()
+                .withUserId("user-2");
+
+        assertThrows(IllegalArgumentException.class, () -> transactionHandler.addTransactions(List.of(txn1, txn2)));
+        Mockito.verify(transactionRepository, Mockito.never()).saveAll(any());
+        Mockito.verify(finalStateRepository, Mockito.never()).save(any());
+    }
+
+    @Test
+    public void testGetBalances_01() {
+        var txnState1 = new FinalState()
+                .withUserId("user-1")
+                .withBalance(10000)
+                .withCurrency(Currency.USD)
+                .withParticipantId("user-2");
+
+        var txnState2 = new FinalState()
+                .withUserId("user-1")
+                .withBalance(-8000)
+                .withCurrency(Currency.USD)
+                .withParticipantId("user-3");
+
+        when(finalStateRepository.findAll(any(PartitionKey.class))).thenReturn(List.of(txnState1, txnState2));
+
+        var balances = transactionHandler.getBalances("user-1");
+        var amountsToBeReceived = transactionHandler.getAmountsToBeReceived("user-1");
+
+        Mockito.verify(finalStateRepository, Mockito.times(1)).findAll(any(PartitionKey.class));
+        assertEquals(1, balances.getToBeReceived().size());
+        assertEquals(10000, balances.getToBeReceived().get(0).getBalance());
+        assertEquals(1, balances.getToBePaid().size());
+        assertEquals(8000, balances.getToBePaid().get(0).getBalance());
+        assertEquals(1, amountsToBeReceived.size());
+    }
+
+    @Test
+    public void testGetBalances_02() {
+        var existingTxnState1 = new FinalState()
+                .withUserId("user-1")
+                .withBalance(8000)
+                .withCurrency(Currency.USD)
+                .withParticipantId("user-2");
+
+        var existingTxnState2 = new FinalState()
+                .withUserId("user-2")
+                .withBalance(-8000)
+                .withCurrency(Currency.USD)
+                .withParticipantId("user-1");
+
+        when(finalStateRepository.findAll(new PartitionKey("user-1"))).thenReturn(List.of(existingTxnState1));
+        when(finalStateRepository.findById("user-2", new PartitionKey("user-1"))).thenReturn(Optional.of(existingTxnState1));
+        when(finalStateRepository.findById("user-1", new PartitionKey("user-2"))).thenReturn(Optional.of(existingTxnState2));
+        when(finalStateRepository.save(any(FinalState.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        assertEquals(8000, transactionHandler.getBalances("user-1").getToBeReceived().get(0).getBalance());
+
+        transactionHandler.addTransaction(new Transaction()
+                .withUserId("user-1")
+                .withReceivedFrom(new Payment()
+                        .withUserId("user-2")
+                        .withMoney(new Payment.Money(10000, Currency.USD))
+                ));
+
+        var balances = transactionHandler.getBalances("user-1");
+        Mockito.verify(finalStateRepository, Mockito.times(1)).findAll(any(PartitionKey.class));
+        assertTrue(balances.getToBeReceived().isEmpty());
+        assertEquals(2000, balances.getToBePaid().get(0).getBalance());
+    }
+
+    @Test
+    public void testAddTransaction_05() {
+        var txn1 = new Transaction()
+                .withUserId("user-1")
+                .withIdempotencyKey("expense-42")
+                .withPaidTo(new Payment()
+                        .withUserId("user-2")
+                        .withMoney(new Payment.Money(10000, Currency.USD))
+                );
+
+        when(transactionRepository.saveAll(transactionsCaptor.capture())).thenReturn(List.of());
+        when(finalStateRepository.save(finalStateCaptor.capture())).thenAnswer(invocation -> invocation.getArgument(0));
+        transactionHandler.addTransaction(txn1);
+
+        var recorded = transactionsCaptor.getValue();
+        assertEquals(2, recorded.size());
+        assertTrue(recorded.stream().allMatch(txn -> "expense-42".equals(txn.getIdempotencyKey())));
+        var originalRecord = recorded.stream().filter(txn -> txn.getUserId().equals("user-1")).findFirst().get();
+
+        when(transactionRepository.findById(originalRecord.getId(), new PartitionKey("user-1_user-2"))).thenReturn(Optional.of(originalRecord));
+        transactionHandler.addTransaction(txn1);
+        transactionHandler.addTransactions(List.of(txn1, txn1));
+
+        Mockito.verify(transactionRepository, Mockito.times(1)).saveAll(any());
+        Mockito.verify(finalStateRepository, Mockito.times(2)).save(any());
+    }
+
+    @Test
+    public void testAddTransactions_03() {
+        var txn1 = new Transaction()
+                .withUserId("user-1")
+                .withIdempotencyKey("expense-42")
+                .withPaidTo(new Payment()
+                        .withUserId("user-2")
+                        .withMoney(new Payment.Money(10000, Currency.USD))
+                );
+
+        when(transactionRepository.saveAll(transactionsCaptor.capture())).thenReturn(List.of());
+        when(finalStateRepository.save(finalStateCaptor.capture())).thenAnswer(invocation -> invocation.getArgument(0));
+        transactionHandler.addTransactions(List.of(txn1, txn1));
+
+        assertEquals(2, transactionsCaptor.getValue().size());
+        var updatedSelfFinalState = finalStateCaptor.getAllValues().stream().filter(finalState -> finalState.getUserId().equals("user-1")).findFirst();
+        assertEquals(10000, updatedSelfFinalState.get().getBalance());
+    }
 }
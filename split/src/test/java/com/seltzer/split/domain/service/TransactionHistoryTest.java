@@ -0,0 +1,92 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.HistoryEntry;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TransactionHistoryTest {
+    private final TransactionHandler transactionHandler = new TransactionHandler(new InMemoryTransactionRepository(),
+            new InMemoryFinalStateRepository());
+
+    private void record(final int transactions) {
+        for (int i = 0; i < transactions; i++) {
+            final var forward = i % 3 != 0;
+            transactionHandler.addTransaction(new Transaction()
+                    .withUserId(forward ? "user-1" : "user-2")
+                    .withPaidTo(new Payment()
+                            .withUserId(forward ? "user-2" : "user-1")
+                            .withMoney(new Payment.Money(100 + i, Currency.USD))));
+        }
+        transactionHandler.addTransaction(new Transaction()
+                .withUserId("user-1")
+                .withPaidTo(new Payment().withUserId("user-3").withMoney(new Payment.Money(1, Currency.USD))));
+    }
+
+    @Test
+    public void testGetHistory_01() {
+        record(25);
+
+        final var entries = new ArrayList<HistoryEntry>();
+        String cursor = null;
+        var pages = 0;
+        do {
+            final var page = transactionHandler.getHistory("user-1", "user-2", 10, cursor);
+            entries.addAll(page.getEntries());
+            cursor = page.getNextCursor();
+            pages++;
+        } while (cursor != null);
+
+        assertEquals(3, pages);
+        assertEquals(25, entries.size());
+        assertEquals(25, entries.stream().map(HistoryEntry::getId).collect(Collectors.toSet()).size());
+        final var newestFirst = Comparator.comparingLong(HistoryEntry::getCreatedAt).thenComparing(HistoryEntry::getId).reversed();
+        assertEquals(entries.stream().sorted(newestFirst).collect(Collectors.toList()), entries);
+        assertEquals(9, entries.stream().filter(entry -> entry.getDirection() == HistoryEntry.Direction.RECEIVED_FROM).count());
+        assertEquals(new HashSet<>(List.of(Currency.USD)), entries.stream().map(HistoryEntry::getCurrency).collect(Collectors.toSet()));
+    }
+
+    @Test
+    public void testGetHistory_02() {
+        record(20);
+
+        final var first = transactionHandler.getHistory("user-1", "user-2", 10, null);
+        final var second = transactionHandler.getHistory("user-1", "user-2", 10, first.getNextCursor());
+        assertNotNull(second.getNextCursor()); // a full page cannot tell whether more follow.
+        final var third = transactionHandler.getHistory("user-1", "user-2", 10, second.getNextCursor());
+        assertTrue(third.getEntries().isEmpty());
+        assertNull(third.getNextCursor());
+
+        assertTrue(transactionHandler.getHistory("user-9", "user-2", 10, null).getEntries().isEmpty());
+        assertThrows(IllegalArgumentException.class, () -> transactionHandler.getHistory("user-1", "user-2", 0, null));
+        assertThrows(IllegalArgumentException.class, () -> transactionHandler.getHistory("user-1", "user-2", 10, "not-a-cursor"));
+    }
+
+    @Test
+    public void testStreamHistory_01() {
+        record(2_500);
+
+        final var streamed = transactionHandler.streamHistory("user-1", "user-2").map(HistoryEntry::getId).collect(Collectors.toList());
+        final var paged = new ArrayList<String>();
+        String cursor = null;
+        do {
+            final var page = transactionHandler.getHistory("user-1", "user-2", 700, cursor);
+            page.getEntries().forEach(entry -> paged.add(entry.getId()));
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+
+        assertEquals(2_500, streamed.size());
+        assertEquals(paged, streamed);
+    }
+}
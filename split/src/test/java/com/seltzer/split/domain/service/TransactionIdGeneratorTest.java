@@ -0,0 +1,84 @@
+package com.seltzer.split.domain.service;
+
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import org.junit.Test;
+
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TransactionIdGeneratorTest {
+    private final Transaction record = new Transaction()
+            .withUserId("user-1")
+            .withCreatedAt(1_660_000_000_000L)
+            .withPaidTo(new Payment()
+                    .withUserId("user-2")
+                    .withMoney(new Payment.Money(10000, Currency.USD)));
+
+    @Test
+    public void testTimeOrdered_01() {
+        var generator = new TimeOrderedTransactionIdGenerator();
+        var ids = new HashSet<String>();
+        String previous = "";
+        for (int i = 0; i < 100_000; i++) {
+            var id = generator.generate(record, 0);
+            assertEquals(32, id.length());
+            assertTrue(id.substring(0, 16).compareTo(previous) > 0);
+            previous = id.substring(0, 16);
+            ids.add(id);
+        }
+        assertEquals(100_000, ids.size());
+    }
+
+    @Test
+    public void testCanonicalHash_01() {
+        var generator = new CanonicalHashTransactionIdGenerator();
+        var sequenced = record.withSequence(42);
+
+        assertEquals(generator.generate(sequenced, 0), generator.generate(sequenced, 0));
+        assertNotEquals(generator.generate(sequenced, 0), generator.generate(sequenced, 1));
+        assertNotEquals(generator.generate(sequenced, 0), generator.generate(sequenced.withCreatedAt(record.getCreatedAt() + 1), 0));
+        assertNotEquals(generator.generate(sequenced, 0), generator.generate(sequenced.withPaidTo(record.getPaidTo().get()
+                .withMoney(new Payment.Money(10001, Currency.USD))), 0));
+        assertNotEquals(generator.generate(sequenced, 0), generator.generate(sequenced.withUserId("user-3"), 0));
+        assertNotEquals(generator.generate(sequenced, 0), generator.generate(record.withSequence(43), 0));
+    }
+
+    @Test
+    public void testCanonicalHash_equalRecordsOfOneMillisecond() {
+        var generator = new CanonicalHashTransactionIdGenerator();
+
+        assertEquals(generator.generate(record.withIdempotencyKey("key-1"), 0), generator.generate(record.withIdempotencyKey("key-1"), 0));
+        assertNotEquals(generator.generate(record.withIdempotencyKey("key-1"), 0), generator.generate(record.withIdempotencyKey("key-2"), 0));
+        // without a key or a sequence, two requests recording the same transaction at once still get apart.
+        var ids = new HashSet<String>();
+        for (int i = 0; i < 10_000; i++) {
+            ids.add(generator.generate(record, 0));
+        }
+        assertEquals(10_000, ids.size());
+    }
+
+    @Test
+    public void testCanonicalHash_02() {
+        var generator = new CanonicalHashTransactionIdGenerator();
+        var complement = new Transaction()
+                .withUserId("user-2")
+                .withReceivedFrom(new Payment()
+                        .withUserId("user-1")
+                        .withMoney(new Payment.Money(10000, Currency.USD)));
+
+        assertEquals(generator.generateIdempotent("key-1", record), generator.generateIdempotent("key-1", record.withCreatedAt(42)));
+        assertNotEquals(generator.generateIdempotent("key-1", record), generator.generateIdempotent("key-2", record));
+        assertNotEquals(generator.generateIdempotent("key-1", record), generator.generateIdempotent("key-1", complement));
+    }
+
+    @Test
+    public void testSha256_01() {
+        var generator = new Sha256TransactionIdGenerator();
+
+        assertEquals(64, generator.generate(record, 0).length());
+        assertNotEquals(generator.generate(record, 0), generator.generate(record, 1));
+    }
+}
@@ -0,0 +1,205 @@
+package com.seltzer.split.domain.service;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.model.UserBalanceSummary;
+import com.seltzer.split.domain.repository.memory.InMemoryActivityRollupRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveActivityRollupRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveTransactionRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveUserBalanceSummaryRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryUserBalanceSummaryRepository;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UserBalanceSummariesTest {
+    private static final Currency[] CURRENCIES = {Currency.USD, Currency.INR};
+
+    private final AtomicInteger finalStateReads = new AtomicInteger();
+    private final AtomicInteger summaryReads = new AtomicInteger();
+    private final InMemoryTransactionRepository transactionRepository = new InMemoryTransactionRepository();
+    private final InMemoryFinalStateRepository finalStateRepository = new InMemoryFinalStateRepository() {
+        @Override
+        public List<FinalState> findAll(final PartitionKey partitionKey) {
+            finalStateReads.incrementAndGet();
+            return super.findAll(partitionKey);
+        }
+    };
+    private final InMemoryUserBalanceSummaryRepository summaryRepository = new InMemoryUserBalanceSummaryRepository() {
+        @Override
+        public Optional<UserBalanceSummary> findById(final String id, final PartitionKey partitionKey) {
+            summaryReads.incrementAndGet();
+            return super.findById(id, partitionKey);
+        }
+    };
+    private final FinalStateCache finalStateCache = FinalStateCache.defaults(finalStateRepository);
+    private final UserBalanceSummaries summaries = new UserBalanceSummaries(summaryRepository, finalStateCache.getShards(),
+            ConflictRetryPolicy.defaults());
+    private final TransactionHandler transactionHandler = new TransactionHandler(transactionRepository, finalStateRepository,
+            ConflictRetryPolicy.defaults(), finalStateCache, LedgerLog.disabled(), new TimeOrderedTransactionIdGenerator(),
+            FxRateCache.of(FxRates.EMPTY), summaries);
+
+    private static Transaction paidTo(final String userId, final String participantId, final long amount, final Currency currency,
+                                      final boolean settlement) {
+        return new Transaction()
+                .withUserId(userId)
+                .withPaidTo(new Payment()
+                        .withUserId(participantId)
+                        .withMoney(new Payment.Money(amount, currency))
+                        .withSettlement(settlement));
+    }
+
+    private void assertMatchesFinalStates(final String userId) {
+        final var expected = UserBalanceSummary.of(userId, finalStateRepository.findAll(new PartitionKey(userId)));
+        final var stored = summaryRepository.findById(userId, new PartitionKey(userId)).orElseThrow();
+        assertEquals(expected.getToBeReceived(), stored.getToBeReceived(), userId);
+        assertEquals(expected.getToBePaid(), stored.getToBePaid(), userId);
+        assertEquals(expected.getOpenCounterparties(), stored.getOpenCounterparties(), userId);
+    }
+
+    @Test
+    public void testAddTransactions_summariesFollowTheFinalStates() {
+        final var random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            final var batch = new ArrayList<Transaction>();
+            for (int j = random.nextInt(4); j >= 0; j--) {
+                final var userId = "user-" + random.nextInt(8);
+                final var participantId = "user-" + (8 + random.nextInt(8));
+                final var currency = CURRENCIES[random.nextInt(CURRENCIES.length)];
+                final var transaction = paidTo(userId, participantId, 1 + random.nextInt(1_000), currency, random.nextInt(10) == 0);
+                batch.add(random.nextBoolean() ? transaction : transaction.withUserId(participantId)
+                        .withPaidTo(transaction.getPaidTo().get().withUserId(userId)));
+            }
+            transactionHandler.addTransactions(batch);
+        }
+
+        for (int i = 0; i < 16; i++) {
+            assertMatchesFinalStates("user-" + i);
+        }
+    }
+
+    @Test
+    public void testAddTransaction_settlementClosesCounterparty() {
+        transactionHandler.addTransaction(paidTo("user-1", "user-2", 500, Currency.USD, false));
+        transactionHandler.addTransaction(paidTo("user-1", "user-3", 300, Currency.USD, false));
+        transactionHandler.addTransaction(paidTo("user-2", "user-1", 0, Currency.USD, true));
+
+        final var summary = transactionHandler.getSummary("user-1");
+        assertEquals(Map.of(Currency.USD, 300L), summary.getToBeReceived());
+        assertEquals(Map.of(), summary.getToBePaid());
+        assertEquals(1, summary.getOpenCounterparties());
+        assertEquals(0, transactionHandler.getSummary("user-2").getOpenCounterparties());
+    }
+
+    @Test
+    public void testGetSummary_singlePointRead() {
+        final var batch = new ArrayList<Transaction>();
+        for (int i = 0; i < 1_000; i++) {
+            batch.add(paidTo("user-0", "participant-" + i, 100, Currency.USD, false));
+        }
+        transactionHandler.addTransactions(batch);
+        finalStateCache.invalidate("user-0");
+        finalStateReads.set(0);
+        summaryReads.set(0);
+
+        final var summary = transactionHandler.getSummary("user-0");
+
+        assertEquals(Map.of(Currency.USD, 100_000L), summary.getToBeReceived());
+        assertEquals(1_000, summary.getOpenCounterparties());
+        assertEquals(1, summaryReads.get());
+        assertEquals(0, finalStateReads.get());
+    }
+
+    @Test
+    public void testAddTransaction_droppedSummaryIsRebuilt() {
+        transactionHandler.addTransaction(paidTo("user-1", "user-2", 500, Currency.USD, false));
+        summaries.invalidate("user-1");
+
+        assertEquals(1, transactionHandler.getSummary("user-1").getOpenCounterparties());
+        transactionHandler.addTransaction(paidTo("user-3", "user-1", 200, Currency.INR, false));
+
+        assertMatchesFinalStates("user-1");
+        assertEquals(Map.of(Currency.INR, 200L), transactionHandler.getSummary("user-1").getToBePaid());
+    }
+
+    @Test
+    public void testAddTransaction_concurrentBuildsCountEveryChangeOnce() {
+        transactionHandler.addTransaction(paidTo("user-1", "user-2", 500, Currency.USD, false));
+        summaries.invalidate("user-1");
+        // a writer that saw no summary commits, and another builds the summary before the first applies its change.
+        final var changes = summaries.newChanges();
+        final var update = new FinalStateUpdate("user-1", "user-2");
+        update.add(200, Currency.USD);
+        transactionHandler.commit(update, changes);
+        transactionHandler.addTransaction(paidTo("user-1", "user-3", 300, Currency.USD, false));
+
+        summaries.apply(changes);
+
+        assertMatchesFinalStates("user-1");
+        assertEquals(Map.of(Currency.USD, 1_000L), transactionHandler.getSummary("user-1").getToBeReceived());
+    }
+
+    @Test
+    public void testAddTransaction_summaryLeftMarkedByDeadWriterIsRebuiltOnRead() {
+        transactionHandler.addTransaction(paidTo("user-1", "user-2", 500, Currency.USD, false));
+        assertTrue(summaryRepository.findById("user-1", new PartitionKey("user-1")).orElseThrow().getPending().isEmpty());
+        // a writer marks the summary and commits, then dies before adding its change.
+        final var update = new FinalStateUpdate("user-1", "user-2");
+        update.add(200, Currency.USD);
+        transactionHandler.commit(update, summaries.newChanges());
+
+        // while the mark is recent the writer may still come back, so the summary is served as stored.
+        assertEquals(Map.of(Currency.USD, 500L), transactionHandler.getSummary("user-1").getToBeReceived());
+        final var expiring = new UserBalanceSummaries(summaryRepository, finalStateCache.getShards(), ConflictRetryPolicy.defaults(),
+                Duration.ZERO);
+        assertEquals(Map.of(Currency.USD, 700L), expiring.find("user-1").orElseThrow().getToBeReceived());
+
+        assertMatchesFinalStates("user-1");
+        assertTrue(summaryRepository.findById("user-1", new PartitionKey("user-1")).orElseThrow().getPending().isEmpty());
+        assertEquals(Map.of(Currency.USD, 700L), transactionHandler.getSummary("user-1").getToBeReceived());
+    }
+
+    @Test
+    public void testRebuild_summariesAreBuiltAgain() {
+        transactionHandler.addTransaction(paidTo("user-1", "user-2", 500, Currency.USD, false));
+        transactionHandler.addTransaction(paidTo("user-3", "user-1", 200, Currency.USD, false));
+
+        new LedgerProjector(transactionHandler, LedgerLog.disabled(), transactionRepository, finalStateRepository, finalStateCache,
+                8, 2).rebuild();
+
+        assertMatchesFinalStates("user-1");
+        assertEquals(Map.of(Currency.USD, 500L), transactionHandler.getSummary("user-1").getToBeReceived());
+        assertEquals(Map.of(Currency.USD, 200L), transactionHandler.getSummary("user-1").getToBePaid());
+    }
+
+    @Test
+    public void testReactiveAddTransactions() {
+        final var reactiveTransactionHandler = new ReactiveTransactionHandler(new InMemoryReactiveTransactionRepository(transactionRepository),
+                new InMemoryReactiveFinalStateRepository(finalStateRepository), transactionHandler, ConflictRetryPolicy.defaults(),
+                finalStateCache, LedgerLog.disabled(), new InMemoryReactiveUserBalanceSummaryRepository(summaryRepository),
+                new InMemoryReactiveActivityRollupRepository(new InMemoryActivityRollupRepository()));
+
+        reactiveTransactionHandler.addTransactions(List.of(
+                paidTo("user-1", "user-2", 500, Currency.USD, false),
+                paidTo("user-3", "user-1", 700, Currency.USD, false),
+                paidTo("user-1", "user-3", 200, Currency.USD, false))).block();
+
+        assertMatchesFinalStates("user-1");
+        assertMatchesFinalStates("user-3");
+        assertEquals(Map.of(Currency.USD, 500L), transactionHandler.getSummary("user-3").getToBeReceived());
+    }
+}
@@ -0,0 +1,138 @@
+package com.seltzer.split.metrics;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.azure.spring.data.cosmos.exception.CosmosAccessException;
+import com.seltzer.split.domain.model.Currency;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.model.Payment;
+import com.seltzer.split.domain.model.Transaction;
+import com.seltzer.split.domain.repository.FinalStateRepository;
+import com.seltzer.split.domain.repository.ReactiveFinalStateRepository;
+import com.seltzer.split.domain.repository.TransactionRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryActivityRollupRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveActivityRollupRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveTransactionRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveUserBalanceSummaryRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryUserBalanceSummaryRepository;
+import com.seltzer.split.domain.service.ConflictRetryPolicy;
+import com.seltzer.split.domain.service.FinalStateCache;
+import com.seltzer.split.domain.service.FxRateCache;
+import com.seltzer.split.domain.service.FxRates;
+import com.seltzer.split.domain.service.LedgerLog;
+import com.seltzer.split.domain.service.ReactiveTransactionHandler;
+import com.seltzer.split.domain.service.TimeOrderedTransactionIdGenerator;
+import com.seltzer.split.domain.service.TransactionHandler;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MeteredBeanPostProcessorTest {
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final MeteredBeanPostProcessor postProcessor = new MeteredBeanPostProcessor(beanFactory().getBeanProvider(MeterRegistry.class));
+
+    private DefaultListableBeanFactory beanFactory() {
+        final var beanFactory = new DefaultListableBeanFactory();
+        beanFactory.registerSingleton("meterRegistry", meterRegistry);
+        return beanFactory;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T meter(final T bean) {
+        return (T) postProcessor.postProcessAfterInitialization(bean, "bean");
+    }
+
+    private static Transaction paidTo(final String participantId, final boolean settlement) {
+        return new Transaction()
+                .withUserId("user-1")
+                .withPaidTo(new Payment()
+                        .withUserId(participantId)
+                        .withMoney(new Payment.Money(500, Currency.USD))
+                        .withSettlement(settlement));
+    }
+
+    private long count(final String name, final String... tags) {
+        return meterRegistry.get(name).tags(tags).timer().count();
+    }
+
+    @Test
+    public void testHandler_branchAndOutcome() {
+        final var finalStateRepository = meter(new InMemoryFinalStateRepository());
+        final TransactionRepository transactionRepository = meter(new InMemoryTransactionRepository());
+        final var transactionHandler = meter(new TransactionHandler(transactionRepository, finalStateRepository));
+
+        transactionHandler.addTransaction(paidTo("user-2", false));
+        transactionHandler.addTransaction(paidTo("user-2", true));
+        assertThrows(IllegalArgumentException.class, () -> transactionHandler.addTransaction(new Transaction().withUserId("user-1")));
+
+        assertEquals(1, count(MeteredBeanPostProcessor.HANDLER_TIMER, "handler", "TransactionHandler", "method", "addTransaction",
+                "branch", "paidTo", "outcome", "success"));
+        assertEquals(1, count(MeteredBeanPostProcessor.HANDLER_TIMER, "branch", "settlement", "outcome", "success"));
+        assertEquals(1, count(MeteredBeanPostProcessor.HANDLER_TIMER, "outcome", "invalid"));
+        assertEquals(2, count(MeteredBeanPostProcessor.REPOSITORY_TIMER, "repository", "TransactionRepository", "method", "saveAll"));
+        assertEquals(0, meterRegistry.find(MeteredBeanPostProcessor.HANDLER_TIMER).tag("method", "plan").timers().size());
+    }
+
+    @Test
+    public void testHandler_packagePrivateMethodsReachTheTarget() {
+        final var finalStateRepository = new InMemoryFinalStateRepository();
+        final var transactionRepository = new InMemoryTransactionRepository();
+        final var finalStateCache = FinalStateCache.defaults(finalStateRepository);
+        final var transactionHandler = meter(new TransactionHandler(transactionRepository, finalStateRepository,
+                ConflictRetryPolicy.defaults(), finalStateCache, LedgerLog.disabled(), new TimeOrderedTransactionIdGenerator(),
+                FxRateCache.of(FxRates.EMPTY)));
+        final var reactiveTransactionHandler = meter(new ReactiveTransactionHandler(
+                new InMemoryReactiveTransactionRepository(transactionRepository), new InMemoryReactiveFinalStateRepository(finalStateRepository),
+                transactionHandler, ConflictRetryPolicy.defaults(), finalStateCache, LedgerLog.disabled(),
+                new InMemoryReactiveUserBalanceSummaryRepository(new InMemoryUserBalanceSummaryRepository()),
+                new InMemoryReactiveActivityRollupRepository(new InMemoryActivityRollupRepository())));
+
+        // plans the batch through the proxy of the blocking handler.
+        reactiveTransactionHandler.addTransactions(List.of(paidTo("user-2", false))).block();
+
+        assertEquals(500, finalStateRepository.findById("user-2", new PartitionKey("user-1")).get().getBalance());
+        assertEquals(1, count(MeteredBeanPostProcessor.HANDLER_TIMER, "handler", "ReactiveTransactionHandler", "branch", "batch"));
+    }
+
+    @Test
+    public void testRepository_partitionSizeAndConflicts() {
+        final var finalStateRepository = meter(new InMemoryFinalStateRepository());
+        assertTrue(finalStateRepository instanceof InMemoryFinalStateRepository);
+        final var saved = finalStateRepository.save(new FinalState().withUserId("user-1").withParticipantId("user-2")
+                .withCurrency(Currency.USD));
+        finalStateRepository.save(new FinalState().withUserId("user-1").withParticipantId("user-3").withCurrency(Currency.USD));
+        finalStateRepository.save(saved.withBalance(100));
+
+        assertEquals(2, finalStateRepository.findAll(new PartitionKey("user-1")).size());
+        assertThrows(CosmosAccessException.class, () -> finalStateRepository.save(saved.withBalance(200)));
+
+        final var partitionSize = meterRegistry.get(MeteredBeanPostProcessor.PARTITION_SIZE)
+                .tag("repository", FinalStateRepository.class.getSimpleName()).summary();
+        assertEquals(1, partitionSize.count());
+        assertEquals(2, partitionSize.totalAmount());
+        assertEquals(3, count(MeteredBeanPostProcessor.REPOSITORY_TIMER, "method", "save", "outcome", "success"));
+        assertEquals(1, count(MeteredBeanPostProcessor.REPOSITORY_TIMER, "method", "save", "outcome", "conflict"));
+    }
+
+    @Test
+    public void testReactiveRepository_timedOnSubscription() {
+        final var finalStateRepository = new InMemoryFinalStateRepository();
+        finalStateRepository.save(new FinalState().withUserId("user-1").withParticipantId("user-2").withCurrency(Currency.USD));
+        final ReactiveFinalStateRepository reactiveRepository = meter(new InMemoryReactiveFinalStateRepository(finalStateRepository));
+
+        final var findAll = reactiveRepository.findAll(new PartitionKey("user-1"));
+        assertEquals(0, meterRegistry.find(MeteredBeanPostProcessor.REPOSITORY_TIMER).timers().size());
+        assertEquals(1, findAll.collectList().block().size());
+
+        assertEquals(1, count(MeteredBeanPostProcessor.REPOSITORY_TIMER, "repository", "ReactiveFinalStateRepository",
+                "method", "findAll", "outcome", "success"));
+        assertEquals(1, meterRegistry.get(MeteredBeanPostProcessor.PARTITION_SIZE).summary().totalAmount());
+    }
+}
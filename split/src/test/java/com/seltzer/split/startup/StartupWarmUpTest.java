@@ -0,0 +1,95 @@
+package com.seltzer.split.startup;
+
+import com.azure.cosmos.models.PartitionKey;
+import com.seltzer.split.domain.model.FinalState;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import org.springframework.beans.factory.support.GenericBeanDefinition;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StartupWarmUpTest {
+    private static final AtomicInteger reads = new AtomicInteger();
+
+    public static class CountingFinalStateRepository extends InMemoryFinalStateRepository {
+        @Override
+        public Optional<FinalState> findById(final String id, final PartitionKey partitionKey) {
+            reads.incrementAndGet();
+            return super.findById(id, partitionKey);
+        }
+    }
+
+    public static class BrokenBean {
+        public BrokenBean() {
+            throw new IllegalStateException("broken");
+        }
+    }
+
+    private static GenericApplicationContext context(final Class<?>... lazyBeans) {
+        final var context = new GenericApplicationContext();
+        for (final var beanClass : lazyBeans) {
+            final var definition = new GenericBeanDefinition();
+            definition.setBeanClass(beanClass);
+            definition.setLazyInit(true);
+            context.registerBeanDefinition(beanClass.getSimpleName(), definition);
+        }
+        context.refresh();
+        return context;
+    }
+
+    @Test
+    public void testWarmUp_createsLazyBeansAndReadsRepositories() {
+        reads.set(0);
+        try (var context = context(CountingFinalStateRepository.class)) {
+            final var warmUp = new StartupWarmUp(context, Jackson2ObjectMapperBuilder.json().build(), false);
+            assertFalse(context.getBeanFactory().containsSingleton("CountingFinalStateRepository"));
+            assertEquals(Status.DOWN, warmUp.health().getStatus());
+
+            warmUp.warmUp();
+
+            assertTrue(context.getBeanFactory().containsSingleton("CountingFinalStateRepository"));
+            assertEquals(1, reads.get());
+            assertEquals(Status.UP, warmUp.health().getStatus());
+            assertEquals(1, warmUp.health().getDetails().get("repositories"));
+            assertEquals(List.of(), warmUp.health().getDetails().get("failures"));
+        }
+    }
+
+    @Test
+    public void testWarmUp_failedStepIsReportedButReady() {
+        try (var context = context(BrokenBean.class)) {
+            final var warmUp = new StartupWarmUp(context, Jackson2ObjectMapperBuilder.json().build(), false);
+
+            warmUp.warmUp();
+
+            assertEquals(Status.UP, warmUp.health().getStatus());
+            assertEquals(List.of("bean BrokenBean"), warmUp.health().getDetails().get("failures"));
+        }
+    }
+
+    private static int countWarmUps(final String... profiles) {
+        try (var context = new AnnotationConfigApplicationContext()) {
+            context.getEnvironment().setActiveProfiles(profiles);
+            context.registerBean(ObjectMapper.class, () -> Jackson2ObjectMapperBuilder.json().build());
+            context.register(StartupWarmUp.class);
+            context.refresh();
+            return context.getBeansOfType(StartupWarmUp.class).size();
+        }
+    }
+
+    @Test
+    public void testWarmUp_onlyInFastStartupProfile() {
+        assertEquals(0, countWarmUps());
+        assertEquals(0, countWarmUps("in-memory"));
+        assertEquals(1, countWarmUps("in-memory", "fast-startup"));
+    }
+}
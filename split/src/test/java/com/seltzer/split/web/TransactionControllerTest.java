@@ -0,0 +1,213 @@
+package com.seltzer.split.web;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.seltzer.split.domain.model.ActivityRollup;
+import com.seltzer.split.domain.repository.memory.InMemoryActivityRollupRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveActivityRollupRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveFinalStateRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveTransactionRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryReactiveUserBalanceSummaryRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryTransactionRepository;
+import com.seltzer.split.domain.repository.memory.InMemoryUserBalanceSummaryRepository;
+import com.seltzer.split.domain.service.ActivityRollups;
+import com.seltzer.split.domain.service.ConflictRetryPolicy;
+import com.seltzer.split.domain.service.FinalStateCache;
+import com.seltzer.split.domain.service.FxRateCache;
+import com.seltzer.split.domain.service.FxRates;
+import com.seltzer.split.domain.service.LedgerLog;
+import com.seltzer.split.domain.service.LedgerProjector;
+import com.seltzer.split.domain.service.PairWriteSequencer;
+import com.seltzer.split.domain.service.ReactiveTransactionHandler;
+import com.seltzer.split.domain.service.TimeOrderedTransactionIdGenerator;
+import com.seltzer.split.domain.service.TransactionHandler;
+import com.seltzer.split.domain.service.UserBalanceSummaries;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import static org.hamcrest.Matchers.contains;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+public class TransactionControllerTest {
+    private final InMemoryTransactionRepository transactionRepository = new InMemoryTransactionRepository();
+    private final InMemoryFinalStateRepository finalStateRepository = new InMemoryFinalStateRepository();
+    private final FinalStateCache finalStateCache = FinalStateCache.defaults(finalStateRepository);
+    private final InMemoryUserBalanceSummaryRepository summaryRepository = new InMemoryUserBalanceSummaryRepository();
+    private final InMemoryActivityRollupRepository rollupRepository = new InMemoryActivityRollupRepository();
+    private final TransactionHandler transactionHandler = new TransactionHandler(transactionRepository, finalStateRepository,
+            ConflictRetryPolicy.defaults(), finalStateCache, LedgerLog.disabled(), new TimeOrderedTransactionIdGenerator(),
+            FxRateCache.of(FxRates.EMPTY), new UserBalanceSummaries(summaryRepository, finalStateCache.getShards(),
+            ConflictRetryPolicy.defaults()), new ActivityRollups(rollupRepository, transactionRepository,
+            ConflictRetryPolicy.defaults()));
+    private final ReactiveTransactionHandler reactiveTransactionHandler = new ReactiveTransactionHandler(
+            new InMemoryReactiveTransactionRepository(transactionRepository), new InMemoryReactiveFinalStateRepository(finalStateRepository),
+            transactionHandler, ConflictRetryPolicy.defaults(), finalStateCache, LedgerLog.disabled(),
+            new InMemoryReactiveUserBalanceSummaryRepository(summaryRepository), new InMemoryReactiveActivityRollupRepository(rollupRepository));
+    private final PairWriteSequencer pairWriteSequencer = new PairWriteSequencer(transactionHandler, 2, 64);
+    private final MockMvc mockMvc = MockMvcBuilders
+            .standaloneSetup(new TransactionController(reactiveTransactionHandler, pairWriteSequencer))
+            .setControllerAdvice(new ApiExceptionHandler())
+            .build();
+
+    @After
+    public void tearDown() {
+        pairWriteSequencer.shutdown();
+    }
+
+    /**
+     * Performs a request whose handler returned a future, and dispatches again once the future has completed.
+     */
+    private ResultActions perform(final MockHttpServletRequestBuilder request) throws Exception {
+        return perform(mockMvc, request);
+    }
+
+    private static ResultActions perform(final MockMvc mockMvc, final MockHttpServletRequestBuilder request) throws Exception {
+        // Spring Boot orders its JSON converter ahead of the XML one, the standalone setup does not.
+        final var started = mockMvc.perform(request.accept(MediaType.APPLICATION_JSON)).andExpect(request().asyncStarted()).andReturn();
+        started.getAsyncResult();
+        return mockMvc.perform(asyncDispatch(started));
+    }
+
+    private static String paidTo(final String userId, final String participantId, final long amount) {
+        return String.format("{\"userId\":\"%s\",\"paidTo\":{\"userId\":\"%s\",\"money\":{\"amountMinor\":%d,\"currency\":\"USD\"}}}",
+                userId, participantId, amount);
+    }
+
+    @Test
+    public void testAddTransaction() throws Exception {
+        perform(post("/transactions").contentType(MediaType.APPLICATION_JSON).content(paidTo("user-1", "user-2", 500)))
+                .andExpect(status().isNoContent());
+
+        perform(get("/users/user-1/balances"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.toBeReceived[0].participantId").value("user-2"))
+                .andExpect(jsonPath("$.toBeReceived[0].balanceMinor").value(500))
+                .andExpect(jsonPath("$.toBePaid").isEmpty());
+    }
+
+    @Test
+    public void testGetSummary() throws Exception {
+        perform(post("/transactions").contentType(MediaType.APPLICATION_JSON).content(paidTo("user-1", "user-2", 500)))
+                .andExpect(status().isNoContent());
+        perform(post("/transactions").contentType(MediaType.APPLICATION_JSON).content(paidTo("user-3", "user-1", 200)))
+                .andExpect(status().isNoContent());
+
+        perform(get("/users/user-1/summary"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.userId").value("user-1"))
+                .andExpect(jsonPath("$.toBeReceivedMinor.USD").value(500))
+                .andExpect(jsonPath("$.toBePaidMinor.USD").value(200))
+                .andExpect(jsonPath("$.openCounterparties").value(2));
+    }
+
+    @Test
+    public void testGetActivity() throws Exception {
+        perform(post("/transactions").contentType(MediaType.APPLICATION_JSON).content(paidTo("user-1", "user-2", 500)))
+                .andExpect(status().isNoContent());
+        perform(post("/transactions").contentType(MediaType.APPLICATION_JSON).content(paidTo("user-2", "user-1", 200)))
+                .andExpect(status().isNoContent());
+        final var month = ActivityRollup.Granularity.MONTH.bucketOf(System.currentTimeMillis());
+
+        perform(get("/users/user-1/activity").param("from", month).param("to", month))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].participantId").value("user-2"))
+                .andExpect(jsonPath("$[0].bucket").value(month))
+                .andExpect(jsonPath("$[0].paidMinor.USD").value(500))
+                .andExpect(jsonPath("$[0].receivedMinor.USD").value(200))
+                .andExpect(jsonPath("$[0].transactions").value(2));
+        perform(get("/users/user-1/activity").param("granularity", "DAY").param("from", "2020-01-01").param("to", "2024-01-01"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void testAddTransactions() throws Exception {
+        perform(post("/transactions/batch").contentType(MediaType.APPLICATION_JSON)
+                .content("[" + paidTo("user-1", "user-2", 500) + "," + paidTo("user-2", "user-1", 200) + "," + paidTo("user-3", "user-1", 50) + "]"))
+                .andExpect(status().isNoContent());
+
+        perform(get("/users/user-1/balances"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.toBeReceived[0].participantId").value("user-2"))
+                .andExpect(jsonPath("$.toBeReceived[0].balanceMinor").value(300))
+                .andExpect(jsonPath("$.toBePaid[0].participantId").value("user-3"))
+                .andExpect(jsonPath("$.toBePaid[0].balanceMinor").value(50));
+    }
+
+    @Test
+    public void testSettle() throws Exception {
+        perform(post("/transactions").contentType(MediaType.APPLICATION_JSON).content(paidTo("user-1", "user-2", 500)))
+                .andExpect(status().isNoContent());
+        perform(post("/users/user-2/settlements/user-1").param("currency", "USD"))
+                .andExpect(status().isNoContent());
+
+        perform(get("/users/user-1/balances"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.toBeReceived").isEmpty())
+                .andExpect(jsonPath("$.toBePaid").isEmpty());
+    }
+
+    @Test
+    public void testSettle_eventSourcedRecordsTheAmountCleared() throws Exception {
+        final var ledgerLog = new LedgerLog(true, 16);
+        final var eventSourcedHandler = new TransactionHandler(transactionRepository, finalStateRepository,
+                ConflictRetryPolicy.defaults(), finalStateCache, ledgerLog, new TimeOrderedTransactionIdGenerator(),
+                FxRateCache.of(FxRates.EMPTY));
+        final var ledgerProjector = new LedgerProjector(eventSourcedHandler, ledgerLog, transactionRepository, finalStateRepository,
+                finalStateCache, 8, 100);
+        final var eventSourcedSequencer = new PairWriteSequencer(eventSourcedHandler, 2, 64);
+        final var eventSourcedMvc = MockMvcBuilders
+                .standaloneSetup(new TransactionController(reactiveTransactionHandler, eventSourcedSequencer),
+                        new HistoryController(eventSourcedHandler, new ObjectMapper()))
+                .setControllerAdvice(new ApiExceptionHandler())
+                .build();
+        ledgerProjector.start();
+        try {
+            perform(eventSourcedMvc, post("/transactions").contentType(MediaType.APPLICATION_JSON).content(paidTo("user-1", "user-2", 500)))
+                    .andExpect(status().isNoContent());
+            perform(eventSourcedMvc, post("/users/user-2/settlements/user-1").param("currency", "USD"))
+                    .andExpect(status().isNoContent());
+
+            eventSourcedMvc.perform(get("/users/user-2/history/user-1").accept(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.entries[?(@.settlement == true)].amount", contains(500)))
+                    .andExpect(jsonPath("$.entries[?(@.settlement == true)].direction", contains("PAID_TO")));
+            eventSourcedMvc.perform(get("/users/user-1/history/user-2").accept(MediaType.APPLICATION_JSON))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$.entries[?(@.settlement == true)].amount", contains(500)))
+                    .andExpect(jsonPath("$.entries[?(@.settlement == true)].direction", contains("RECEIVED_FROM")));
+        } finally {
+            eventSourcedSequencer.shutdown();
+            ledgerProjector.stop();
+        }
+    }
+
+    @Test
+    public void testSettleAll() throws Exception {
+        perform(post("/transactions/batch").contentType(MediaType.APPLICATION_JSON)
+                .content("[" + paidTo("user-1", "user-2", 500) + "," + paidTo("user-3", "user-1", 50) + "]"))
+                .andExpect(status().isNoContent());
+        perform(post("/users/user-1/settlements"))
+                .andExpect(status().isNoContent());
+
+        perform(get("/users/user-1/summary"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.openCounterparties").value(0));
+    }
+
+    @Test
+    public void testAddTransaction_invalid() throws Exception {
+        perform(post("/transactions").contentType(MediaType.APPLICATION_JSON).content("{\"userId\":\"user-1\"}"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").exists());
+    }
+}